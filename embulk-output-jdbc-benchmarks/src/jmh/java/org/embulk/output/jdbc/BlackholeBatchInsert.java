@@ -0,0 +1,132 @@
+package org.embulk.output.jdbc;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Calendar;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * BatchInsert which only consumes values so that benchmarks measure the caller side.
+ */
+public class BlackholeBatchInsert
+        implements BatchInsert
+{
+    private final Blackhole blackhole;
+
+    public BlackholeBatchInsert(Blackhole blackhole)
+    {
+        this.blackhole = blackhole;
+    }
+
+    public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema)
+    {
+    }
+
+    public int getBatchWeight()
+    {
+        return 0;
+    }
+
+    public void add()
+    {
+        blackhole.consume(this);
+    }
+
+    public void close()
+    {
+    }
+
+    public void flush()
+    {
+    }
+
+    public int[] getLastUpdateCounts()
+    {
+        return new int[0];
+    }
+
+    public boolean needsRecordsForRetry()
+    {
+        return false;
+    }
+
+    public void finish()
+    {
+    }
+
+    public void setNull(int sqlType)
+    {
+        blackhole.consume(sqlType);
+    }
+
+    public void setBoolean(boolean v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setByte(byte v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setShort(short v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setInt(int v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setLong(long v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setFloat(float v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setDouble(double v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setBigDecimal(BigDecimal v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setString(String v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setNString(String v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setBytes(byte[] v)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setSqlDate(Instant v, Calendar cal)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setSqlTime(Instant v, Calendar cal)
+    {
+        blackhole.consume(v);
+    }
+
+    public void setSqlTimestamp(Instant v, Calendar cal)
+    {
+        blackhole.consume(v);
+    }
+}
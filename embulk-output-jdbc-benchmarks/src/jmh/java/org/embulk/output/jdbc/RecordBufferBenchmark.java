@@ -0,0 +1,139 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.output.jdbc.setter.ColumnSetter;
+import org.embulk.output.jdbc.setter.DoubleColumnSetter;
+import org.embulk.output.jdbc.setter.LongColumnSetter;
+import org.embulk.output.jdbc.setter.NullDefaultValueSetter;
+import org.embulk.output.jdbc.setter.RowBinder;
+import org.embulk.output.jdbc.setter.SqlTimestampColumnSetter;
+import org.embulk.output.jdbc.setter.StringColumnSetter;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of saving records for retry, and of binding the saved records again.
+ * PageReaderRecord can't be built without a Page from embulk-core, so this benchmarks
+ * RecordBuffer which holds the records PageReaderRecord captures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordBufferBenchmark
+{
+    private static final int ROWS = 10000;
+
+    // Long.MAX_VALUE keeps all records on memory. A small value spills them to a file.
+    @Param({"9223372036854775807", "1048576"})
+    public long maxMemory;
+
+    private Schema schema;
+    private String[] names;
+    private RecordBuffer capturing;
+    private RecordBuffer captured;
+    private List<ColumnSetter> setters;
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole blackhole) throws IOException
+    {
+        schema = Schema.builder()
+                .add("id", org.embulk.spi.type.Types.LONG)
+                .add("score", org.embulk.spi.type.Types.DOUBLE)
+                .add("name", org.embulk.spi.type.Types.STRING)
+                .add("created_at", org.embulk.spi.type.Types.TIMESTAMP)
+                .build();
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "name-" + i;
+        }
+
+        capturing = new RecordBuffer(schema, maxMemory);
+        captured = new RecordBuffer(schema, maxMemory);
+        addRecords(captured);
+
+        BatchInsert batch = new BlackholeBatchInsert(blackhole);
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        setters = new ArrayList<>();
+        setters.add(new LongColumnSetter(batch, column(Types.BIGINT), new NullDefaultValueSetter(batch, column(Types.BIGINT))));
+        setters.add(new DoubleColumnSetter(batch, column(Types.DOUBLE), new NullDefaultValueSetter(batch, column(Types.DOUBLE))));
+        setters.add(new StringColumnSetter(batch, column(Types.VARCHAR), new NullDefaultValueSetter(batch, column(Types.VARCHAR)), null));
+        setters.add(new SqlTimestampColumnSetter(batch, column(Types.TIMESTAMP), new NullDefaultValueSetter(batch, column(Types.TIMESTAMP)), calendar));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        capturing.close();
+        captured.close();
+    }
+
+    private static JdbcColumn column(int sqlType)
+    {
+        return JdbcColumn.newGenericTypeColumn("c", sqlType, null, 0, 0, false, false);
+    }
+
+    private void addRecords(RecordBuffer buffer) throws IOException
+    {
+        Column id = schema.getColumn(0);
+        Column score = schema.getColumn(1);
+        Column name = schema.getColumn(2);
+        Column createdAt = schema.getColumn(3);
+        for (int i = 0; i < ROWS; i++) {
+            buffer.addRecord();
+            buffer.setLong(id, i);
+            buffer.setDouble(score, i * 0.5);
+            if (i % 10 != 0) {
+                buffer.setString(name, names[i & 1023]);
+            }
+            buffer.setTimestamp(createdAt, Instant.ofEpochSecond(1500000000L + i));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void capture() throws IOException
+    {
+        capturing.reset();
+        addRecords(capturing);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void replay() throws IOException, SQLException
+    {
+        try (RecordBuffer.Cursor cursor = captured.cursor()) {
+            RowBinder binder = new RowBinder(cursor, schema.getColumns(), setters);
+            while (cursor.next()) {
+                binder.bind();
+            }
+        }
+    }
+}
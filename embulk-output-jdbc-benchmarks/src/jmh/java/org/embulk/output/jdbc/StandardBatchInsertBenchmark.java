@@ -0,0 +1,123 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of StandardBatchInsert loading rows into an in-memory H2 database.
+ * This measures overhead of binding and batching rather than performance of a real database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StandardBatchInsertBenchmark
+{
+    private static final String URL = "jdbc:h2:mem:embulk_bench;DB_CLOSE_DELAY=-1";
+    private static final int ROWS = 10000;
+
+    @Param({"1", "100"})
+    public int rowsPerStatement;
+
+    private Connection ddlConnection;
+    private StandardBatchInsert batch;
+    private Calendar calendar;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException
+    {
+        ddlConnection = DriverManager.getConnection(URL);
+        try (Statement stmt = ddlConnection.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS \"bench\"");
+            stmt.executeUpdate("CREATE TABLE \"bench\" (\"id\" BIGINT, \"score\" DOUBLE, \"name\" VARCHAR(64), \"created_at\" TIMESTAMP)");
+        }
+
+        JdbcSchema schema = new JdbcSchema(Arrays.asList(
+                JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, false, false),
+                JdbcColumn.newGenericTypeColumn("score", Types.DOUBLE, "DOUBLE", 0, 0, false, false),
+                JdbcColumn.newGenericTypeColumn("name", Types.VARCHAR, "VARCHAR", 64, 0, false, false),
+                JdbcColumn.newGenericTypeColumn("created_at", Types.TIMESTAMP, "TIMESTAMP", 0, 0, false, false)));
+
+        JdbcOutputConnector connector = new JdbcOutputConnector() {
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                Connection connection = DriverManager.getConnection(URL);
+                connection.setAutoCommit(autoCommit);
+                return new JdbcOutputConnection(connection, null);
+            }
+        };
+        batch = new StandardBatchInsert(connector, Optional.<MergeConfig>empty(), rowsPerStatement);
+        batch.prepare(new TableIdentifier(null, null, "bench"), schema);
+
+        calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "name-" + i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws SQLException
+    {
+        try (Statement stmt = ddlConnection.createStatement()) {
+            stmt.executeUpdate("TRUNCATE TABLE \"bench\"");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException
+    {
+        batch.close();
+        try (Statement stmt = ddlConnection.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS \"bench\"");
+        }
+        ddlConnection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void insertRows() throws IOException, SQLException
+    {
+        for (int i = 0; i < ROWS; i++) {
+            batch.setLong(i);
+            batch.setDouble(i * 0.5);
+            if (i % 10 == 0) {
+                batch.setNull(Types.VARCHAR);
+            } else {
+                batch.setString(names[i & 1023]);
+            }
+            batch.setSqlTimestamp(Instant.ofEpochSecond(1500000000L + i), calendar);
+            batch.add();
+        }
+        batch.flush();
+    }
+}
@@ -0,0 +1,287 @@
+package org.embulk.output.jdbc.setter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.output.jdbc.BatchInsert;
+import org.embulk.output.jdbc.BlackholeBatchInsert;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.util.timestamp.TimestampFormatter;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of each ColumnSetter for the conversions used by the default column options.
+ * Values are passed to a BatchInsert which only consumes them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColumnSetterBenchmark
+{
+    private static final int VALUES = 1024;
+
+    private long[] longs;
+    private double[] doubles;
+    private String[] strings;
+    private String[] numericStrings;
+    private Instant[] timestamps;
+    private Value[] jsons;
+
+    private ColumnSetter booleanSetter;
+    private ColumnSetter longSetter;
+    private ColumnSetter intSetter;
+    private ColumnSetter bigDecimalSetter;
+    private ColumnSetter doubleSetter;
+    private ColumnSetter floatSetter;
+    private ColumnSetter stringSetter;
+    private ColumnSetter nstringSetter;
+    private ColumnSetter sqlDateSetter;
+    private ColumnSetter sqlTimeSetter;
+    private ColumnSetter sqlTimestampSetter;
+    private ColumnSetter passThroughSetter;
+    private ColumnSetter jsonSetter;
+
+    @Setup
+    public void setup(Blackhole blackhole)
+    {
+        longs = new long[VALUES];
+        doubles = new double[VALUES];
+        strings = new String[VALUES];
+        numericStrings = new String[VALUES];
+        timestamps = new Instant[VALUES];
+        jsons = new Value[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            longs[i] = i * 7919L;
+            doubles[i] = i * 0.37;
+            strings[i] = "value-" + i;
+            numericStrings[i] = Long.toString(i * 7919L);
+            timestamps[i] = Instant.ofEpochSecond(1500000000L + i * 3600L, i * 1000L);
+            jsons[i] = ValueFactory.newMap(ValueFactory.newString("id"), ValueFactory.newInteger(i),
+                    ValueFactory.newString("name"), ValueFactory.newString(strings[i]));
+        }
+
+        BatchInsert batch = new BlackholeBatchInsert(blackhole);
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        TimestampFormatter formatter = TimestampFormatter.builder("%Y-%m-%d %H:%M:%S.%6N", true)
+                .setDefaultZoneId(ZoneId.of("UTC"))
+                .build();
+
+        booleanSetter = new BooleanColumnSetter(batch, column(Types.BOOLEAN, "BOOLEAN"), defaultValue(batch, Types.BOOLEAN));
+        longSetter = new LongColumnSetter(batch, column(Types.BIGINT, "BIGINT"), defaultValue(batch, Types.BIGINT));
+        intSetter = new IntColumnSetter(batch, column(Types.INTEGER, "INTEGER"), defaultValue(batch, Types.INTEGER));
+        bigDecimalSetter = new BigDecimalColumnSetter(batch, column(Types.DECIMAL, "DECIMAL"), defaultValue(batch, Types.DECIMAL));
+        doubleSetter = new DoubleColumnSetter(batch, column(Types.DOUBLE, "DOUBLE"), defaultValue(batch, Types.DOUBLE));
+        floatSetter = new FloatColumnSetter(batch, column(Types.REAL, "REAL"), defaultValue(batch, Types.REAL));
+        stringSetter = new StringColumnSetter(batch, column(Types.VARCHAR, "VARCHAR"), defaultValue(batch, Types.VARCHAR), formatter);
+        nstringSetter = new NStringColumnSetter(batch, column(Types.NVARCHAR, "NVARCHAR"), defaultValue(batch, Types.NVARCHAR), formatter);
+        sqlDateSetter = new SqlDateColumnSetter(batch, column(Types.DATE, "DATE"), defaultValue(batch, Types.DATE), calendar);
+        sqlTimeSetter = new SqlTimeColumnSetter(batch, column(Types.TIME, "TIME"), defaultValue(batch, Types.TIME), calendar);
+        sqlTimestampSetter = new SqlTimestampColumnSetter(batch, column(Types.TIMESTAMP, "TIMESTAMP"), defaultValue(batch, Types.TIMESTAMP), calendar);
+        passThroughSetter = new PassThroughColumnSetter(batch, column(Types.VARCHAR, "VARCHAR"), defaultValue(batch, Types.VARCHAR), calendar);
+        jsonSetter = new JsonColumnSetter(batch, column(Types.VARCHAR, "VARCHAR"), defaultValue(batch, Types.VARCHAR));
+    }
+
+    private static JdbcColumn column(int sqlType, String typeName)
+    {
+        return JdbcColumn.newGenericTypeColumn("c", sqlType, typeName, 18, 3, false, false);
+    }
+
+    private static DefaultValueSetter defaultValue(BatchInsert batch, int sqlType)
+    {
+        return new NullDefaultValueSetter(batch, column(sqlType, null));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void booleanToBoolean() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            booleanSetter.booleanValue((i & 1) == 0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void longToLong() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            longSetter.longValue(longs[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void longToInt() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            intSetter.longValue(longs[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void longToBigDecimal() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            bigDecimalSetter.longValue(longs[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void longToString() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            stringSetter.longValue(longs[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void doubleToDouble() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            doubleSetter.doubleValue(doubles[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void doubleToFloat() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            floatSetter.doubleValue(doubles[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void doubleToBigDecimal() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            bigDecimalSetter.doubleValue(doubles[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void stringToString() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            stringSetter.stringValue(strings[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void stringToNString() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            nstringSetter.stringValue(strings[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void stringToLong() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            longSetter.stringValue(numericStrings[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void stringToBigDecimal() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            bigDecimalSetter.stringValue(numericStrings[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void timestampToSqlDate() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            sqlDateSetter.timestampValue(timestamps[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void timestampToSqlTime() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            sqlTimeSetter.timestampValue(timestamps[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void timestampToSqlTimestamp() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            sqlTimestampSetter.timestampValue(timestamps[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void timestampToString() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            stringSetter.timestampValue(timestamps[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void timestampPassThrough() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            passThroughSetter.timestampValue(timestamps[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void jsonToString() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            jsonSetter.jsonValue(jsons[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void nullValue() throws IOException, SQLException
+    {
+        for (int i = 0; i < VALUES; i++) {
+            longSetter.nullValue();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.embulk.output.postgresql;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of encoding rows to the temporary COPY file of AbstractPostgreSQLCopyBatchInsert,
+ * in the text format for PostgreSQL and Redshift, and in the binary format.
+ * flush() doesn't send the file, but only starts a new file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyEncodingBenchmark
+{
+    private static final int ROWS = 10000;
+
+    @Param({"postgresql", "redshift", "binary"})
+    public String encoding;
+
+    private FileCopyBatchInsert batch;
+    private Calendar calendar;
+    private String[] strings;
+    private Instant[] timestamps;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        if (encoding.equals("redshift")) {
+            batch = new FileCopyBatchInsert(CopyTextEncoder.Escape.REDSHIFT);
+        } else {
+            batch = new FileCopyBatchInsert(CopyTextEncoder.Escape.POSTGRESQL);
+        }
+        if (encoding.equals("binary")) {
+            batch.useBinaryFormat(new JdbcSchema(Arrays.asList(
+                    JdbcColumn.newGenericTypeColumn("c_long", Types.BIGINT, "int8", 19, 0, false, false),
+                    JdbcColumn.newGenericTypeColumn("c_double", Types.DOUBLE, "float8", 17, 17, false, false),
+                    JdbcColumn.newGenericTypeColumn("c_string", Types.VARCHAR, "text", Integer.MAX_VALUE, 0, false, false),
+                    JdbcColumn.newGenericTypeColumn("c_timestamp", Types.TIMESTAMP, "timestamptz", 35, 6, false, false),
+                    JdbcColumn.newGenericTypeColumn("c_date", Types.DATE, "date", 13, 0, false, false),
+                    JdbcColumn.newGenericTypeColumn("c_boolean", Types.BIT, "bool", 1, 0, false, false))));
+        }
+        calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        strings = new String[1024];
+        timestamps = new Instant[1024];
+        for (int i = 0; i < strings.length; i++) {
+            // some of values need escaping
+            strings[i] = (i % 8 == 0) ? "line\tof\\value\n" + i : "value-" + i;
+            timestamps[i] = Instant.ofEpochSecond(1500000000L + i * 3600L, i * 1000L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        batch.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void encodeRows() throws IOException, SQLException
+    {
+        for (int i = 0; i < ROWS; i++) {
+            int j = i & 1023;
+            batch.setLong(i);
+            batch.setDouble(i * 0.5);
+            batch.setString(strings[j]);
+            batch.setSqlTimestamp(timestamps[j], calendar);
+            batch.setSqlDate(timestamps[j], calendar);
+            if (i % 10 == 0) {
+                batch.setNull(Types.VARCHAR);
+            } else {
+                batch.setBoolean((i & 1) == 0);
+            }
+            batch.add();
+        }
+        batch.flush();
+    }
+
+    private static class FileCopyBatchInsert
+            extends AbstractPostgreSQLCopyBatchInsert
+    {
+        FileCopyBatchInsert(CopyTextEncoder.Escape escape) throws IOException
+        {
+            super(escape);
+        }
+
+        @Override
+        public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema)
+        {
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            openNewBuffer().release();
+            batchRows = 0;
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            StagingBuffer buffer = closeCurrentBuffer();
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+}
@@ -131,6 +131,6 @@ public class JdbcOutputPlugin
     @Override
     protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
     {
-        return new StandardBatchInsert(getConnector(task, true), mergeConfig);
+        return new StandardBatchInsert(getConnector(task, true), mergeConfig, getRowsPerStatement(task));
     }
 }
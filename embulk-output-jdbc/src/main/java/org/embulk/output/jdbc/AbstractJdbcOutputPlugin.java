@@ -1,16 +1,22 @@
 package org.embulk.output.jdbc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.io.File;
 import java.io.FileFilter;
@@ -55,7 +61,7 @@ import org.embulk.spi.Page;
 import org.embulk.spi.PageReader;
 import org.embulk.output.jdbc.setter.ColumnSetter;
 import org.embulk.output.jdbc.setter.ColumnSetterFactory;
-import org.embulk.output.jdbc.setter.ColumnSetterVisitor;
+import org.embulk.output.jdbc.setter.RowBinder;
 import org.embulk.util.retryhelper.RetryExecutor;
 import org.embulk.util.retryhelper.RetryGiveupException;
 import org.embulk.util.retryhelper.Retryable;
@@ -81,6 +87,13 @@ public abstract class AbstractJdbcOutputPlugin
     protected static final ConfigMapper CONFIG_MAPPER = CONFIG_MAPPER_FACTORY.createConfigMapper();
     protected static final TaskMapper TASK_MAPPER = CONFIG_MAPPER_FACTORY.createTaskMapper();
 
+    // key of load metrics in the config diff. it must not be an option of PluginTask, so that a config carrying the diff
+    // over to the next run doesn't set anything by the metrics, and the next run replaces them with its own
+    static final String LOAD_METRICS_KEY = "jdbc_load_metrics";
+
+    // max tables of a DDL statement or batch. dropping many tables in a transaction may exhaust lock table of the database
+    private static final int DDL_GROUP_SIZE = 100;
+
     public interface PluginTask
             extends Task
     {
@@ -99,6 +112,86 @@ public abstract class AbstractJdbcOutputPlugin
         // TODO set minimum number
         public int getBatchSize();
 
+        @Config("adaptive_batch_size")
+        @ConfigDefault("false")
+        public boolean getAdaptiveBatchSize();
+
+        @Config("min_batch_size")
+        @ConfigDefault("1048576")
+        public int getMinBatchSize();
+
+        @Config("max_batch_size")
+        @ConfigDefault("134217728")
+        public int getMaxBatchSize();
+
+        @Config("max_flush_latency")
+        @ConfigDefault("30000")
+        public int getMaxFlushLatency();
+
+        @Config("max_batches_in_flight")
+        @ConfigDefault("0")
+        public int getMaxBatchesInFlight();
+
+        @Config("connections_per_task")
+        @ConfigDefault("1")
+        public int getConnectionsPerTask();
+
+        @Config("retry_buffer_memory_limit")
+        @ConfigDefault("null")
+        public Optional<Long> getRetryBufferMemoryLimit();
+
+        @Config("temp_dir")
+        @ConfigDefault("null")
+        public Optional<String> getTempDir();
+
+        @Config("insert_strategy")
+        @ConfigDefault("\"batch\"")
+        public InsertStrategy getInsertStrategy();
+
+        @Config("rows_per_statement")
+        @ConfigDefault("100")
+        public int getRowsPerStatement();
+
+        @Config("batch_dedup")
+        @ConfigDefault("\"none\"")
+        public BatchDedup getBatchDedup();
+
+        @Config("batch_sort")
+        @ConfigDefault("false")
+        public boolean getBatchSort();
+
+        @Config("merge_partitions")
+        @ConfigDefault("1")
+        public int getMergePartitions();
+
+        @Config("merge_partitions_atomic")
+        @ConfigDefault("true")
+        public boolean getMergePartitionsAtomic();
+
+        @Config("analyze_intermediate_tables")
+        @ConfigDefault("false")
+        public boolean getAnalyzeIntermediateTables();
+
+        @Config("incremental_collect")
+        @ConfigDefault("false")
+        public boolean getIncrementalCollect();
+
+        @Config("ddl_connections")
+        @ConfigDefault("1")
+        public int getDdlConnections();
+
+        @Config("deferred_indexes")
+        @ConfigDefault("false")
+        public boolean getDeferredIndexes();
+
+        @Config("commit_chunk_rows")
+        @ConfigDefault("null")
+        public Optional<Long> getCommitChunkRows();
+
+        @Config("commit_chunk_atomic")
+        @ConfigDefault("true")
+        public boolean getCommitChunkAtomic();
+
         @Config("merge_keys")
         @ConfigDefault("null")
         public Optional<List<String>> getMergeKeys();
@@ -135,6 +228,10 @@ public abstract class AbstractJdbcOutputPlugin
         @ConfigDefault("null")
         public Optional<List<String>> getMergeRule();
 
+        @Config("partition")
+        @ConfigDefault("null")
+        public Optional<String> getPartition();
+
         @Config("before_load")
         @ConfigDefault("null")
         public Optional<String> getBeforeLoad();
@@ -164,6 +261,22 @@ public abstract class AbstractJdbcOutputPlugin
 
         public Optional<List<TableIdentifier>> getIntermediateTables();
         public void setIntermediateTables(Optional<List<TableIdentifier>> names);
+
+        // table into which each task merges its intermediate table (incremental_collect)
+        public Optional<TableIdentifier> getCollectTable();
+        public void setCollectTable(Optional<TableIdentifier> table);
+
+        // rows loaded into each intermediate table, reported by tasks
+        public Optional<List<Long>> getIntermediateTableRows();
+        public void setIntermediateTableRows(Optional<List<Long>> rows);
+
+        // upper bounds of key ranges of each intermediate table split by commit_chunk_rows, kept through retries of the commit
+        public Optional<List<List<Long>>> getIntermediateTableKeyBoundaries();
+        public void setIntermediateTableKeyBoundaries(Optional<List<List<Long>>> boundaries);
+
+        // secondary indexes of the target table built after loading (deferred_indexes)
+        public Optional<List<JdbcIndex>> getDeferredIndexList();
+        public void setDeferredIndexList(Optional<List<JdbcIndex>> indexes);
     }
 
     public static enum LengthSemantics
@@ -192,6 +305,7 @@ public abstract class AbstractJdbcOutputPlugin
         private LengthSemantics tableNameLengthSemantics = LengthSemantics.BYTES;
         private Set<Mode> supportedModes = Collections.unmodifiableSet(new HashSet<Mode>(Arrays.asList(Mode.values())));
         private boolean ignoreMergeKeys = false;
+        private boolean concurrentMerge = false;
 
         public Features()
         { }
@@ -246,6 +360,20 @@ public abstract class AbstractJdbcOutputPlugin
             this.ignoreMergeKeys = value;
             return this;
         }
+
+        // true if merges of disjoint keys on multiple connections are verified not to block or deadlock each other (merge_partitions)
+        @JsonProperty
+        public boolean getConcurrentMerge()
+        {
+            return concurrentMerge;
+        }
+
+        @JsonProperty
+        public Features setConcurrentMerge(boolean value)
+        {
+            this.concurrentMerge = value;
+            return this;
+        }
     }
 
     protected void addDriverJarToClasspath(String glob)
@@ -346,6 +474,35 @@ public abstract class AbstractJdbcOutputPlugin
 
     protected abstract BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException;
 
+    /**
+     * BatchInserts of a task, called once in open(). Subclasses override this to share resources of the task,
+     * such as the memory limit of staging buffers, among the batches.
+     */
+    protected List<BatchInsert> newBatchInserts(PluginTask task, Optional<MergeConfig> mergeConfig, int count) throws IOException, SQLException
+    {
+        List<BatchInsert> batches = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                batches.add(newBatchInsert(task, mergeConfig));
+            }
+        } catch (IOException | SQLException | RuntimeException ex) {
+            closeBatches(batches);
+            throw ex;
+        }
+        return batches;
+    }
+
+    /**
+     * Number of rows in a statement of StandardBatchInsert. 1 unless insert_strategy is multi_row.
+     */
+    protected int getRowsPerStatement(PluginTask task)
+    {
+        if (task.getInsertStrategy() == InsertStrategy.MULTI_ROW) {
+            return task.getRowsPerStatement();
+        }
+        return 1;
+    }
+
     protected JdbcOutputConnection newConnection(PluginTask task, boolean retryableMetadataOperation,
             boolean autoCommit) throws SQLException
     {
@@ -358,7 +515,8 @@ public abstract class AbstractJdbcOutputPlugin
         MERGE,
         MERGE_DIRECT,
         TRUNCATE_INSERT,
-        REPLACE;
+        REPLACE,
+        REPLACE_PARTITION;
 
         @JsonValue
         @Override
@@ -383,8 +541,10 @@ public abstract class AbstractJdbcOutputPlugin
                 return TRUNCATE_INSERT;
             case "replace":
                 return REPLACE;
+            case "replace_partition":
+                return REPLACE_PARTITION;
             default:
-                throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are insert, insert_direct, merge, merge_direct, truncate_insert, replace", value));
+                throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are insert, insert_direct, merge, merge_direct, truncate_insert, replace, replace_partition", value));
             }
         }
 
@@ -443,6 +603,14 @@ public abstract class AbstractJdbcOutputPlugin
         {
             return this == REPLACE;
         }
+
+        /**
+         * True if this mode swaps a partition of the target table with an intermediate table to commit
+         */
+        public boolean commitBySwapPartition()
+        {
+            return this == REPLACE_PARTITION;
+        }
     }
 
     public ConfigDiff transaction(ConfigSource config,
@@ -458,9 +626,93 @@ public abstract class AbstractJdbcOutputPlugin
             throw new ConfigException(String.format("This output type doesn't support '%s'. Supported modes are: %s", task.getMode(), features.getSupportedModes()));
         }
 
-        task = begin(task, schema, taskCount);
-        control.run(task.dump());
-        return commit(task, schema, taskCount);
+        if (task.getMaxBatchesInFlight() < 0) {
+            throw new ConfigException(String.format("'max_batches_in_flight' must not be negative: %d", task.getMaxBatchesInFlight()));
+        }
+        if (task.getMaxBatchesInFlight() > 1 && task.getMode().isMerge()) {
+            // batches flushed in parallel could update the same key in a different order, or deadlock each other
+            throw new ConfigException(String.format("'max_batches_in_flight' must not be greater than 1 in %s mode: %d", task.getMode(), task.getMaxBatchesInFlight()));
+        }
+        if (task.getTempDir().isPresent() && !new File(task.getTempDir().get()).isDirectory()) {
+            throw new ConfigException(String.format("'temp_dir' must be an existing directory: %s", task.getTempDir().get()));
+        }
+        if (task.getConnectionsPerTask() < 1) {
+            throw new ConfigException(String.format("'connections_per_task' must be positive: %d", task.getConnectionsPerTask()));
+        }
+        if (task.getDdlConnections() < 1) {
+            throw new ConfigException(String.format("'ddl_connections' must be positive: %d", task.getDdlConnections()));
+        }
+        if (task.getRowsPerStatement() < 1) {
+            throw new ConfigException(String.format("'rows_per_statement' must be positive: %d", task.getRowsPerStatement()));
+        }
+        if (task.getCommitChunkRows().isPresent() && task.getCommitChunkRows().get() < 1) {
+            throw new ConfigException(String.format("'commit_chunk_rows' must be positive: %d", task.getCommitChunkRows().get()));
+        }
+        if (task.getMergePartitions() < 1) {
+            throw new ConfigException(String.format("'merge_partitions' must be positive: %d", task.getMergePartitions()));
+        }
+        if (task.getMergePartitions() > 1) {
+            if (task.getMode() != Mode.MERGE) {
+                throw new ConfigException(String.format("'merge_partitions' is available only in merge mode: %s", task.getMode()));
+            }
+            if (!features.getConcurrentMerge()) {
+                // e.g. gap locks of MySQL may deadlock concurrent merges even if they have disjoint keys
+                throw new ConfigException("This output type doesn't support 'merge_partitions'.");
+            }
+            if (task.getConnectionsPerTask() > 1) {
+                // each task writes rows of each partition through its own connection
+                throw new ConfigException("'merge_partitions' can't be used with 'connections_per_task'.");
+            }
+            if (task.getIncrementalCollect() || task.getCommitChunkRows().isPresent()) {
+                throw new ConfigException("'merge_partitions' can't be used with 'incremental_collect' or 'commit_chunk_rows'.");
+            }
+            if (task.getMergePartitionsAtomic() && task.getMergeRule().isPresent()) {
+                // commits of partitions are not atomic. a retry after some of them are committed merges them again.
+                throw new ConfigException("'merge_rule' can't be used with 'merge_partitions' unless 'merge_partitions_atomic' is false.");
+            }
+        }
+        if (task.getAnalyzeIntermediateTables() && task.getMode() != Mode.MERGE) {
+            throw new ConfigException(String.format("'analyze_intermediate_tables' is available only in merge mode: %s", task.getMode()));
+        }
+        if (task.getIncrementalCollect()) {
+            if (task.getMode() != Mode.MERGE) {
+                throw new ConfigException(String.format("'incremental_collect' is available only in merge mode: %s", task.getMode()));
+            }
+            if (task.getMergeRule().isPresent()) {
+                // merge_rule would be applied twice, to the collect table and to the target table
+                throw new ConfigException("'incremental_collect' can't be used with 'merge_rule'.");
+            }
+            if (task.getCommitChunkRows().isPresent()) {
+                // the commit merges only the collect table, which isn't split into chunks
+                throw new ConfigException("'incremental_collect' can't be used with 'commit_chunk_rows'.");
+            }
+        }
+        if (task.getDeferredIndexes() && task.getMode() != Mode.REPLACE && task.getMode() != Mode.TRUNCATE_INSERT) {
+            throw new ConfigException(String.format("'deferred_indexes' is available only in replace and truncate_insert modes: %s", task.getMode()));
+        }
+        if (task.getMode().commitBySwapPartition() != task.getPartition().isPresent()) {
+            throw new ConfigException("'partition' is required in replace_partition mode, and available only in the mode.");
+        }
+        if (task.getBatchDedup() == BatchDedup.MERGE_KEYS) {
+            if (!task.getMode().isMerge()) {
+                throw new ConfigException(String.format("'batch_dedup: merge_keys' is available only in merge and merge_direct modes: %s", task.getMode()));
+            }
+            if (task.getMergeRule().isPresent()) {
+                // merge_rule needs all rows of the same key
+                throw new ConfigException("'batch_dedup: merge_keys' can't be used with 'merge_rule'.");
+            }
+        }
+        if (task.getAdaptiveBatchSize()) {
+            if (task.getMinBatchSize() < 1 || task.getMinBatchSize() > task.getMaxBatchSize()) {
+                throw new ConfigException(String.format("'min_batch_size' must be positive and not greater than 'max_batch_size': %d, %d",
+                        task.getMinBatchSize(), task.getMaxBatchSize()));
+            }
+            if (task.getMaxFlushLatency() < 1) {
+                throw new ConfigException(String.format("'max_flush_latency' must be positive: %d", task.getMaxFlushLatency()));
+            }
+        }
+
+        return run(task, schema, taskCount, control);
     }
 
     public ConfigDiff resume(TaskSource taskSource,
@@ -473,9 +725,48 @@ public abstract class AbstractJdbcOutputPlugin
             throw new UnsupportedOperationException("inplace mode is not resumable. You need to delete partially-loaded records from the database and restart the entire transaction.");
         }
 
+        return run(task, schema, taskCount, control);
+    }
+
+    private ConfigDiff run(PluginTask task,
+            Schema schema, int taskCount,
+            OutputPlugin.Control control)
+    {
+        long startTime = System.nanoTime();
         task = begin(task, schema, taskCount);
-        control.run(task.dump());
-        return commit(task, schema, taskCount);
+        long beginNanos = System.nanoTime() - startTime;
+
+        List<TaskReport> taskReports = control.run(task.dump());
+
+        // intermediate tables are collected in chunks by their rows
+        final ArrayList<Long> intermediateTableRows = new ArrayList<>();
+        for (TaskReport taskReport : taskReports) {
+            LoadMetrics taskMetrics = taskReport.get(LoadMetrics.class, "load_metrics", null);
+            intermediateTableRows.add(taskMetrics != null ? taskMetrics.getRows() : -1L);
+        }
+        task.setIntermediateTableRows(Optional.<List<Long>>of(intermediateTableRows));
+
+        startTime = System.nanoTime();
+        ConfigDiff configDiff = commit(task, schema, taskCount);
+        long commitNanos = System.nanoTime() - startTime;
+
+        LoadMetrics metrics = new LoadMetrics();
+        for (TaskReport taskReport : taskReports) {
+            LoadMetrics taskMetrics = taskReport.get(LoadMetrics.class, "load_metrics", null);
+            if (taskMetrics != null) {
+                metrics.merge(taskMetrics);
+            }
+        }
+        // begin includes DDL for intermediate tables and before_load. commit includes collecting/merging SQL, after_load
+        // and building deferred indexes. dropping intermediate tables by cleanup runs after the config diff is made.
+        logger.info(String.format("Loaded by %d tasks (%s), begin %.2f seconds, commit %.2f seconds",
+                taskReports.size(), metrics, beginNanos / 1e9, commitNanos / 1e9));
+        ConfigDiff metricsDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
+        metricsDiff.set("tasks", metrics);
+        metricsDiff.set("begin_time_ms", beginNanos / 1000000L);
+        metricsDiff.set("commit_time_ms", commitNanos / 1000000L);
+        configDiff.setNested(LOAD_METRICS_KEY, metricsDiff);
+        return configDiff;
     }
 
     private PluginTask begin(final PluginTask task,
@@ -505,17 +796,35 @@ public abstract class AbstractJdbcOutputPlugin
     {
         if (!task.getMode().isDirectModify() || task.getAfterLoad().isPresent()) {  // no intermediate data if isDirectModify == true
             try {
-                withRetry(task, new IdempotentSqlRunnable() {
-                    public void run() throws SQLException
-                    {
-                        JdbcOutputConnection con = newConnection(task, false, false);
-                        try {
-                            doCommit(con, task, taskCount);
-                        } finally {
-                            con.close();
+                try {
+                    withRetry(task, new IdempotentSqlRunnable() {
+                        public void run() throws SQLException
+                        {
+                            JdbcOutputConnection con = newConnection(task, false, false);
+                            try {
+                                doCommit(con, task, taskCount);
+                            } finally {
+                                con.close();
+                            }
                         }
-                    }
-                });
+                    });
+                } catch (SQLException | RuntimeException ex) {
+                    restoreDroppedIndexes(task, ex);
+                    throw ex;
+                }
+                if (task.getDeferredIndexList().isPresent()) {
+                    // retried apart from the commit not to swap or truncate the target table again
+                    withRetry(task, new IdempotentSqlRunnable() {
+                        public void run() throws SQLException
+                        {
+                            try (JdbcOutputConnection con = newConnection(task, true, true)) {
+                                long startTime = System.currentTimeMillis();
+                                buildDeferredIndexes(con, task);
+                                logger.info(String.format("Built indexes in %.2f seconds", (System.currentTimeMillis() - startTime) / 1000.0));
+                            }
+                        }
+                    });
+                }
             } catch (SQLException | InterruptedException ex) {
                 throw new RuntimeException(ex);
             }
@@ -523,6 +832,25 @@ public abstract class AbstractJdbcOutputPlugin
         return CONFIG_MAPPER_FACTORY.newConfigDiff();
     }
 
+    /**
+     * Builds indexes of deferred_indexes again if truncate_insert mode dropped them and failed. A database
+     * rolling back DDL keeps the indexes because they are dropped in the transaction of the truncate.
+     */
+    private void restoreDroppedIndexes(PluginTask task, Exception cause)
+    {
+        if (task.getMode() != Mode.TRUNCATE_INSERT || !task.getDeferredIndexList().isPresent()) {
+            return;
+        }
+        try (JdbcOutputConnection con = newConnection(task, true, true)) {
+            if (!con.supportsTransactionalDdl()) {
+                logger.warn("Building indexes of {} again because the commit failed", task.getActualTable().getTableName());
+                buildDeferredIndexes(con, task);
+            }
+        } catch (SQLException | RuntimeException ex) {
+            cause.addSuppressed(ex);
+        }
+    }
+
     public void cleanup(TaskSource taskSource,
             Schema schema, final int taskCount,
             final List<TaskReport> successTaskReports)
@@ -536,7 +864,11 @@ public abstract class AbstractJdbcOutputPlugin
                     {
                         JdbcOutputConnection con = newConnection(task, true, true);
                         try {
+                            long startTime = System.currentTimeMillis();
                             doCleanup(con, task, taskCount, successTaskReports);
+                            // the config diff is already made. cleanup_time_ms completes jdbc_load_metrics in the log
+                            logger.info("Cleaned up intermediate tables. {}: cleanup_time_ms={}", LOAD_METRICS_KEY,
+                                    System.currentTimeMillis() - startTime);
                         } finally {
                             con.close();
                         }
@@ -584,6 +916,29 @@ public abstract class AbstractJdbcOutputPlugin
             }
         }
         task.setActualTable(new TableIdentifier(null, con.getSchemaName(), actualTable));
+        if (mode.commitBySwapPartition() && !con.tableExists(task.getActualTable())) {
+            throw new ConfigException(String.format("%s mode needs the partitioned table '%s'.", mode, task.getTable()));
+        }
+
+        // indexes are captured before loading, so that a retried commit doesn't lose indexes dropped by a failed attempt
+        task.setDeferredIndexList(Optional.<List<JdbcIndex>>empty());
+        if (task.getDeferredIndexes()) {
+            if (!con.supportsIndexes()) {
+                throw new ConfigException("This output type doesn't support 'deferred_indexes'.");
+            }
+            if (con.tableExists(task.getActualTable())) {
+                List<JdbcIndex> indexes = new ArrayList<>();
+                for (JdbcIndex index : con.getSecondaryIndexes(task.getActualTable())) {
+                    // truncate_insert keeps unique indexes to reject duplicated rows while loading.
+                    // replace loses all indexes by swapping the table, and builds unique ones before the swap.
+                    if (mode == Mode.REPLACE || !index.isUnique()) {
+                        indexes.add(index);
+                    }
+                }
+                logger.info("Building {} indexes of the target table after loading", indexes.size());
+                task.setDeferredIndexList(Optional.<List<JdbcIndex>>of(Collections.unmodifiableList(indexes)));
+            }
+        }
 
         Optional<JdbcSchema> initialTargetTableSchema =
             mode.ignoreTargetTableSchema() ?
@@ -601,9 +956,17 @@ public abstract class AbstractJdbcOutputPlugin
                 task.getColumnOptions());
 
         // create intermediate tables
-        if (!mode.isDirectModify()) {
-            // create the intermediate tables here
-            task.setIntermediateTables(Optional.<List<TableIdentifier>>of(createIntermediateTables(con, task, taskCount, newTableSchema)));
+        task.setIntermediateTableRows(Optional.<List<Long>>empty());  // set after tasks run
+        task.setIntermediateTableKeyBoundaries(Optional.<List<List<Long>>>empty());  // set by the first attempt of the commit
+        task.setCollectTable(Optional.<TableIdentifier>empty());
+        if (task.getIncrementalCollect()) {
+            // create the intermediate tables here, and the collect table next to them
+            List<TableIdentifier> tables = createIntermediateTables(con, task, taskCount + 1, newTableSchema);
+            task.setIntermediateTables(Optional.<List<TableIdentifier>>of(Collections.unmodifiableList(new ArrayList<>(tables.subList(0, taskCount)))));
+            task.setCollectTable(Optional.of(tables.get(taskCount)));
+        } else if (!mode.isDirectModify()) {
+            // create the intermediate tables here. the i-th task writes rows of the j-th partition into the (i * merge_partitions + j)-th table
+            task.setIntermediateTables(Optional.<List<TableIdentifier>>of(createIntermediateTables(con, task, taskCount * task.getMergePartitions(), newTableSchema)));
         } else {
             // direct modify mode doesn't need intermediate tables.
             task.setIntermediateTables(Optional.<List<TableIdentifier>>empty());
@@ -669,6 +1032,20 @@ public abstract class AbstractJdbcOutputPlugin
         } else {
             task.setMergeKeys(Optional.<List<String>>empty());
         }
+
+        if (task.getCollectTable().isPresent() && con.supportsIndexes()) {
+            // tasks find existing rows of the collect table by merge keys
+            TableIdentifier collectTable = task.getCollectTable().get();
+            con.createIndex(collectTable, buildIndexName(collectTable, "keys"), task.getMergeKeys().get(), con.mergeNeedsUniqueKey());
+        }
+    }
+
+    /**
+     * Index name unique in the schema. Table names are already close to the max length, so that they are hashed.
+     */
+    protected String buildIndexName(TableIdentifier table, String purpose)
+    {
+        return String.format("embulk_%s_%016x", purpose, JdbcUtils.fnv1a64(table.getTableName()));
     }
 
     protected ColumnSetterFactory newColumnSetterFactory(final BatchInsert batch, final ZoneId defaultTimeZone)
@@ -686,31 +1063,59 @@ public abstract class AbstractJdbcOutputPlugin
     {
         try {
             return buildRetryExecutor(task).run(new Retryable<List<TableIdentifier>>() {
-                private TableIdentifier table;
-                private ArrayList<TableIdentifier> intermTables;
+                // tables created by this attempt, and tables of the DDL which failed
+                private List<TableIdentifier> intermTables;
+                private volatile List<TableIdentifier> failedTables;
 
                 @Override
                 public List<TableIdentifier> call() throws Exception
                 {
-                    intermTables = new ArrayList<>();
+                    intermTables = Collections.synchronizedList(new ArrayList<TableIdentifier>());
+                    failedTables = Collections.emptyList();
                     if (task.getMode().tempTablePerTask()) {
                         String tableNameFormat = generateIntermediateTableNameFormat(task.getActualTable().getTableName(), con, taskCount,
                                 task.getFeatures().getMaxTableNameLength(), task.getFeatures().getTableNameLengthSemantics());
+                        final ArrayList<TableIdentifier> tables = new ArrayList<>();
                         for (int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
                             String tableName = String.format(tableNameFormat, taskIndex);
-                            table = buildIntermediateTableId(con, task, tableName);
-                            // if table already exists, SQLException will be thrown
-                            con.createTable(table, newTableSchema, task.getCreateTableConstraint(), task.getCreateTableOption());
-                            intermTables.add(table);
+                            tables.add(buildIntermediateTableId(con, task, tableName));
                         }
+                        runDdl(task, con, tables, false, new TableDdl() {
+                            public void run(JdbcOutputConnection con, List<TableIdentifier> group) throws SQLException
+                            {
+                                try {
+                                    // if table already exists, SQLException will be thrown
+                                    if (con.supportsTransactionalDdl()) {
+                                        con.createTables(group, newTableSchema, task.getCreateTableConstraint(), task.getCreateTableOption());
+                                        intermTables.addAll(group);
+                                    } else {
+                                        for (TableIdentifier table : group) {
+                                            con.createTable(table, newTableSchema, task.getCreateTableConstraint(), task.getCreateTableOption());
+                                            intermTables.add(table);
+                                        }
+                                    }
+                                } catch (SQLException ex) {
+                                    failedTables = group;
+                                    throw ex;
+                                }
+                            }
+                        });
+                        return Collections.unmodifiableList(tables);
                     } else {
                         String tableName = generateIntermediateTableNamePrefix(task.getActualTable().getTableName(), con, 0,
                                 task.getFeatures().getMaxTableNameLength(), task.getFeatures().getTableNameLengthSemantics());
-                        table = buildIntermediateTableId(con, task, tableName);
-                        con.createTable(table, newTableSchema, task.getCreateTableConstraint(), task.getCreateTableOption());
+                        TableIdentifier table = buildIntermediateTableId(con, task, tableName);
+                        failedTables = Collections.singletonList(table);
+                        if (task.getMode().commitBySwapPartition()) {
+                            // shaped like the partition to be exchanged
+                            con.createPartitionTable(table, task.getActualTable(), task.getPartition().get(), newTableSchema,
+                                    task.getCreateTableConstraint(), task.getCreateTableOption());
+                        } else {
+                            con.createTable(table, newTableSchema, task.getCreateTableConstraint(), task.getCreateTableOption());
+                        }
                         intermTables.add(table);
+                        return Collections.unmodifiableList(new ArrayList<>(intermTables));
                     }
-                    return Collections.unmodifiableList(intermTables);
                 }
 
                 @Override
@@ -719,7 +1124,11 @@ public abstract class AbstractJdbcOutputPlugin
                     if (exception instanceof SQLException) {
                         try {
                             // true means that creating table failed because the table already exists.
-                            return con.tableExists(table);
+                            for (TableIdentifier table : failedTables) {
+                                if (!intermTables.contains(table) && con.tableExists(table)) {
+                                    return true;
+                                }
+                            }
                         } catch (SQLException e) {
                         }
                     }
@@ -751,9 +1160,7 @@ public abstract class AbstractJdbcOutputPlugin
 
                 private void dropTables() throws SQLException
                 {
-                    for (TableIdentifier table : intermTables) {
-                        con.dropTableIfExists(table);
-                    }
+                    dropTablesIfExist(task, con, new ArrayList<>(intermTables), false);
                 }
             });
         } catch (RetryGiveupException e) {
@@ -880,20 +1287,25 @@ public abstract class AbstractJdbcOutputPlugin
 
         case INSERT:
             // aggregate insert into target
-            if (task.getNewTableSchema().isPresent()) {
-                con.createTableIfNotExists(task.getActualTable(), task.getNewTableSchema().get(),
-                        task.getCreateTableConstraint(), task.getCreateTableOption());
-            }
-            con.collectInsert(task.getIntermediateTables().get(), schema, task.getActualTable(), false, task.getBeforeLoad(), task.getAfterLoad());
+            collectInsert(con, task, schema, false);
             break;
 
         case TRUNCATE_INSERT:
             // truncate & aggregate insert into target
-            if (task.getNewTableSchema().isPresent()) {
-                con.createTableIfNotExists(task.getActualTable(), task.getNewTableSchema().get(),
-                        task.getCreateTableConstraint(), task.getCreateTableOption());
+            if (task.getDeferredIndexList().isPresent()) {
+                // built again after commit. a database rolling back DDL drops them in the transaction of the truncate,
+                // and the others build them again if the commit fails (see restoreDroppedIndexes)
+                for (JdbcIndex index : task.getDeferredIndexList().get()) {
+                    if (con.indexExists(task.getActualTable(), index.getName())) {
+                        if (con.supportsTransactionalDdl()) {
+                            con.dropIndexWithoutCommit(task.getActualTable(), index.getName());
+                        } else {
+                            con.dropIndex(task.getActualTable(), index.getName());
+                        }
+                    }
+                }
             }
-            con.collectInsert(task.getIntermediateTables().get(), schema, task.getActualTable(), true, task.getBeforeLoad(), task.getAfterLoad());
+            collectInsert(con, task, schema, true);
             break;
 
         case MERGE:
@@ -902,118 +1314,648 @@ public abstract class AbstractJdbcOutputPlugin
                 con.createTableIfNotExists(task.getActualTable(), task.getNewTableSchema().get(),
                         task.getCreateTableConstraint(), task.getCreateTableOption());
             }
-            con.collectMerge(task.getIntermediateTables().get(), schema, task.getActualTable(),
-                    new MergeConfig(task.getMergeKeys().get(), task.getMergeRule()), task.getBeforeLoad(), task.getAfterLoad());
+            if (task.getCollectTable().isPresent()) {
+                // tasks have merged their intermediate tables into the collect table
+                con.collectMerge(Collections.singletonList(task.getCollectTable().get()), schema, task.getActualTable(),
+                        new MergeConfig(task.getMergeKeys().get(), task.getMergeRule()), task.getBeforeLoad(), task.getAfterLoad());
+            } else if (task.getMergePartitions() > 1) {
+                collectMergePartitions(con, task, schema);
+            } else if (task.getCommitChunkRows().isPresent()) {
+                con.collectMergeInChunks(splitIntermediateTables(con, task), schema, task.getActualTable(),
+                        new MergeConfig(task.getMergeKeys().get(), task.getMergeRule()), task.getBeforeLoad(), task.getAfterLoad(), task.getCommitChunkAtomic());
+            } else {
+                con.collectMerge(task.getIntermediateTables().get(), schema, task.getActualTable(),
+                        new MergeConfig(task.getMergeKeys().get(), task.getMergeRule()), task.getBeforeLoad(), task.getAfterLoad());
+            }
             break;
 
         case REPLACE:
-            // swap table
-            con.replaceTable(task.getIntermediateTables().get().get(0), schema, task.getActualTable(), task.getAfterLoad());
+            // swap table. unique indexes are built before the swap, so that the target table never accepts duplicated rows
+            con.replaceTable(task.getIntermediateTables().get().get(0), schema, task.getActualTable(), findUniqueDeferredIndexes(task),
+                    task.getAfterLoad());
             break;
-        }
-    }
 
-    protected void doCleanup(JdbcOutputConnection con, PluginTask task, int taskCount,
-            List<TaskReport> successTaskReports)
-        throws SQLException
-    {
-        if (task.getIntermediateTables().isPresent()) {
-            for (TableIdentifier intermTable : task.getIntermediateTables().get()) {
-                con.dropTableIfExists(intermTable);
-            }
+        case REPLACE_PARTITION:
+            // swap partition
+            con.replacePartition(task.getIntermediateTables().get().get(0), task.getActualTable(), task.getPartition().get(),
+                    task.getBeforeLoad(), task.getAfterLoad());
+            break;
         }
     }
 
-    protected JdbcSchema newJdbcSchemaForNewTable(Schema schema)
+    /**
+     * Collects intermediate tables into the target table in insert and truncate_insert modes. If the target table is new,
+     * the largest intermediate table becomes the target table by a rename, and only the others are copied. The rename is
+     * done only if the table is in the schema of the target table, and, without transactional DDL, if the other tables are
+     * empty. With commit_chunk_atomic, the rename is committed together with the chunks. If the database
+     * can append a table without copying rows (e.g. ALTER TABLE APPEND of Redshift), the others are appended instead, and an
+     * empty target table of insert mode also gets all intermediate tables appended.
+     */
+    protected void collectInsert(JdbcOutputConnection con, PluginTask task, JdbcSchema schema, boolean truncate) throws SQLException
     {
-        final ArrayList<JdbcColumn> columns = new ArrayList<>();
-        for (Column c : schema.getColumns()) {
-            final String columnName = c.getName();
-            c.visit(new ColumnVisitor() {
-                public void booleanColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.BOOLEAN, "BOOLEAN",
-                            1, 0, false, false));
-                }
-
-                public void longColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.BIGINT, "BIGINT",
-                            22, 0, false, false));
+        final List<TableIdentifier> tables = task.getIntermediateTables().get();
+        final TableIdentifier target = task.getActualTable();
+
+        if (task.getNewTableSchema().isPresent()) {
+            if (!con.tableExists(target)) {
+                TableIdentifier renamedTable = findLargestIntermediateTable(task);
+                List<TableIdentifier> otherTables = findNonEmptyIntermediateTables(task);
+                otherTables.remove(renamedTable);
+                boolean chunked = task.getCommitChunkRows().isPresent() && !otherTables.isEmpty();
+                boolean atomicChunks = chunked && task.getCommitChunkAtomic();
+                // a rename can't move a table to another schema (temp_schema)
+                boolean sameSchema = Objects.equals(renamedTable.getSchemaName(), target.getSchemaName());
+                // a database committing DDL implicitly (e.g. MySQL) can't rollback the rename if collecting the others fails
+                boolean rollbackable = otherTables.isEmpty() || con.supportsTransactionalDdl();
+                if (sameSchema && (rollbackable || (con.supportsAppendTable() && !atomicChunks))) {
+                    logger.info("Renaming intermediate table {} to the new target table", renamedTable.getTableName());
+                    if (atomicChunks) {
+                        // the rename is committed together with all chunks
+                        con.collectInsertByRenameInChunks(renamedTable, retainTables(splitIntermediateTables(con, task), otherTables), schema, target,
+                                task.getBeforeLoad(), task.getAfterLoad());
+                    } else if (chunked && !con.supportsAppendTable()) {
+                        // the rename is committed first, so that a retry resumes from the remaining chunks
+                        con.collectInsertByRename(renamedTable, Collections.<TableIdentifier>emptyList(), schema, target,
+                                task.getBeforeLoad(), Optional.<String>empty());
+                        con.collectInsertInChunks(retainTables(splitIntermediateTables(con, task), otherTables), schema, target, false,
+                                Optional.<String>empty(), task.getAfterLoad(), task.getCommitChunkAtomic());
+                    } else {
+                        con.collectInsertByRename(renamedTable, otherTables, schema, target, task.getBeforeLoad(), task.getAfterLoad());
+                    }
+                    return;
                 }
-
-                public void doubleColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.FLOAT, "DOUBLE PRECISION",
-                            24, 0, false, false));
+            } else {
+                // the target table is created by another client, or by a previous attempt of this commit renaming an intermediate table
+                List<TableIdentifier> remainingTables = new ArrayList<>();
+                for (TableIdentifier table : tables) {
+                    if (con.tableExists(table)) {
+                        remainingTables.add(table);
+                    }
                 }
-
-                public void stringColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.CLOB, "CLOB",
-                            4000, 0, false, false));  // TODO size type param
+                if (remainingTables.size() < tables.size()) {
+                    // resume without truncating rows of the renamed table
+                    logger.info("Resuming collecting {} intermediate tables", remainingTables.size());
+                    if (task.getCommitChunkRows().isPresent()) {
+                        con.collectInsertInChunks(retainTables(splitIntermediateTables(con, task), remainingTables), schema, target, false,
+                                Optional.<String>empty(), task.getAfterLoad(), task.getCommitChunkAtomic());
+                    } else {
+                        con.collectInsert(remainingTables, schema, target, false, Optional.<String>empty(), task.getAfterLoad());
+                    }
+                    return;
                 }
+            }
+        } else if (!truncate && con.supportsAppendTable() && con.isTableEmpty(target)) {
+            logger.info("Appending intermediate tables to the empty target table");
+            con.collectAppend(tables, schema, target, task.getBeforeLoad(), task.getAfterLoad());
+            return;
+        }
 
-                public void jsonColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.CLOB, "CLOB",
-                            4000, 0, false, false));  // TODO size type param
-                }
+        if (task.getNewTableSchema().isPresent()) {
+            con.createTableIfNotExists(target, task.getNewTableSchema().get(),
+                    task.getCreateTableConstraint(), task.getCreateTableOption());
+        }
+        if (task.getCommitChunkRows().isPresent()) {
+            con.collectInsertInChunks(splitIntermediateTables(con, task), schema, target, truncate,
+                    task.getBeforeLoad(), task.getAfterLoad(), task.getCommitChunkAtomic());
+        } else {
+            con.collectInsert(tables, schema, target, truncate, task.getBeforeLoad(), task.getAfterLoad());
+        }
+    }
 
-                public void timestampColumn(Column column)
-                {
-                    columns.add(JdbcColumn.newGenericTypeColumn(
-                            columnName, Types.TIMESTAMP, "TIMESTAMP",
-                            26, 0, false, false));  // size type param is from postgresql
+    private TableIdentifier findLargestIntermediateTable(PluginTask task)
+    {
+        final List<TableIdentifier> tables = task.getIntermediateTables().get();
+        final List<Long> rows = task.getIntermediateTableRows().orElse(Collections.<Long>emptyList());
+        int largest = 0;
+        if (rows.size() == tables.size()) {
+            for (int i = 1; i < tables.size(); i++) {
+                if (rows.get(i) > rows.get(largest)) {
+                    largest = i;
                 }
-            });
+            }
         }
-        return new JdbcSchema(Collections.unmodifiableList(columns));
+        return tables.get(largest);
     }
 
-    public Optional<JdbcSchema> newJdbcSchemaFromTableIfExists(JdbcOutputConnection connection,
-            TableIdentifier table) throws SQLException
+    // tables of which rows are unknown are included
+    private List<TableIdentifier> findNonEmptyIntermediateTables(PluginTask task)
     {
-        if (!connection.tableExists(table)) {
-            // DatabaseMetaData.getPrimaryKeys fails if table does not exist
-            return Optional.empty();
+        final List<TableIdentifier> tables = task.getIntermediateTables().get();
+        final List<Long> rows = task.getIntermediateTableRows().orElse(Collections.<Long>emptyList());
+        ArrayList<TableIdentifier> nonEmptyTables = new ArrayList<>();
+        for (int i = 0; i < tables.size(); i++) {
+            if (rows.size() != tables.size() || rows.get(i) != 0) {
+                nonEmptyTables.add(tables.get(i));
+            }
         }
+        return nonEmptyTables;
+    }
 
-        DatabaseMetaData dbm = connection.getMetaData();
-        String escape = dbm.getSearchStringEscape();
+    private static List<List<TableIdentifier>> retainTables(List<List<TableIdentifier>> chunks, List<TableIdentifier> tables)
+    {
+        ArrayList<List<TableIdentifier>> retained = new ArrayList<>();
+        for (List<TableIdentifier> chunk : chunks) {
+            ArrayList<TableIdentifier> retainedChunk = new ArrayList<>();
+            for (TableIdentifier table : chunk) {
+                if (tables.contains(table instanceof TableKeyRange ? ((TableKeyRange) table).getTable() : table)) {
+                    retainedChunk.add(table);
+                }
+            }
+            if (!retainedChunk.isEmpty()) {
+                retained.add(retainedChunk);
+            }
+        }
+        return retained;
+    }
 
-        ResultSet rs = dbm.getPrimaryKeys(table.getDatabase(), table.getSchemaName(), table.getTableName());
-        final HashSet<String> primaryKeysBuilder = new HashSet<>();
-        try {
-            while(rs.next()) {
-                primaryKeysBuilder.add(rs.getString("COLUMN_NAME"));
+    /**
+     * Merges intermediate tables of each partition on its own connection concurrently. Partitions have disjoint merge keys,
+     * so that the merges don't conflict. If merge_partitions_atomic is true, the merges are committed after all of them
+     * succeed. If one of the commits fails, a retry merges committed partitions again, which is harmless only without
+     * merge_rule. Otherwise, each partition is committed with dropping its intermediate tables, so that a retry resumes
+     * from the remaining partitions. before_load and after_load run in the transaction of the first partition if
+     * merge_partitions_atomic is true, or on their own transactions otherwise.
+     */
+    protected void collectMergePartitions(JdbcOutputConnection con, final PluginTask task, final JdbcSchema schema) throws SQLException
+    {
+        final int partitions = task.getMergePartitions();
+        final List<TableIdentifier> tables = task.getIntermediateTables().get();
+        final MergeConfig mergeConfig = new MergeConfig(task.getMergeKeys().get(), task.getMergeRule());
+        final boolean atomic = task.getMergePartitionsAtomic();
+
+        boolean resumed = false;
+        if (!atomic) {
+            for (TableIdentifier table : tables) {
+                if (!con.tableExists(table)) {
+                    resumed = true;
+                    break;
+                }
+            }
+        }
+        if (task.getBeforeLoad().isPresent() && !resumed) {
+            if (atomic) {
+                // the first partition is merged on this connection
+                con.executeWithoutCommit(task.getBeforeLoad().get());
+            } else {
+                con.executeInNewStatement(task.getBeforeLoad().get());
             }
-        } finally {
-            rs.close();
         }
-        final Set<String> primaryKeys = Collections.unmodifiableSet(primaryKeysBuilder);
 
-        final ArrayList<JdbcColumn> builder = new ArrayList<>();
-        rs = dbm.getColumns(
-                JdbcUtils.escapeSearchString(table.getDatabase(), escape),
-                JdbcUtils.escapeSearchString(table.getSchemaName(), escape),
-                JdbcUtils.escapeSearchString(table.getTableName(), escape),
-                null);
+        final ArrayList<JdbcOutputConnection> cons = new ArrayList<>();
+        cons.add(con);
+        final ExecutorService executor = Executors.newFixedThreadPool(partitions);
         try {
-            while (rs.next()) {
-                String columnName = rs.getString("COLUMN_NAME");
-                String simpleTypeName = rs.getString("TYPE_NAME").toUpperCase(Locale.ENGLISH);
-                boolean isUniqueKey = primaryKeys.contains(columnName);
-                int sqlType = rs.getInt("DATA_TYPE");
-                int colSize = rs.getInt("COLUMN_SIZE");
-                int decDigit = rs.getInt("DECIMAL_DIGITS");
-                if (rs.wasNull()) {
-                    decDigit = -1;
+            for (int i = 1; i < partitions; i++) {
+                cons.add(newConnection(task, false, false));
+            }
+            final ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                final JdbcOutputConnection partitionCon = cons.get(i);
+                final ArrayList<TableIdentifier> partitionTables = new ArrayList<>();
+                for (int j = i; j < tables.size(); j += partitions) {
+                    partitionTables.add(tables.get(j));
+                }
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws SQLException
+                    {
+                        if (atomic) {
+                            partitionCon.collectMergeWithoutCommit(partitionTables, schema, task.getActualTable(), mergeConfig);
+                        } else {
+                            partitionCon.collectMergeInChunks(Collections.<List<TableIdentifier>>singletonList(partitionTables),
+                                    schema, task.getActualTable(), mergeConfig, Optional.<String>empty(), Optional.<String>empty(), false);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            SQLException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof SQLException)) {
+                        throw new RuntimeException(ex.getCause());
+                    }
+                    if (failure == null) {
+                        failure = (SQLException) ex.getCause();
+                    } else if (ex.getCause() != failure) {
+                        // the driver may throw the same instance on connections
+                        failure.addSuppressed(ex.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                if (atomic) {
+                    for (JdbcOutputConnection partitionCon : cons) {
+                        try {
+                            partitionCon.rollback();
+                        } catch (SQLException ex) {
+                            failure.addSuppressed(ex);
+                        }
+                    }
+                }
+                throw failure;
+            }
+            if (atomic) {
+                if (task.getAfterLoad().isPresent()) {
+                    con.executeWithoutCommit(task.getAfterLoad().get());
+                }
+                for (JdbcOutputConnection partitionCon : cons) {
+                    partitionCon.commit();
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            executor.shutdownNow();
+            for (JdbcOutputConnection partitionCon : cons.subList(1, cons.size())) {
+                try {
+                    partitionCon.close();
+                } catch (SQLException ex) {
+                    logger.warn("Failed to close a connection", ex);
+                }
+            }
+        }
+
+        if (task.getAfterLoad().isPresent() && !atomic) {
+            con.executeInNewStatement(task.getAfterLoad().get());
+        }
+    }
+
+    /**
+     * Splits intermediate tables into chunks of up to commit_chunk_rows rows. A table having more rows is split into
+     * ranges of the key (see {@link #findRangeKey}), each of which makes a chunk by itself. If there is no such key,
+     * the table makes a chunk by itself. Tables of which rows are unknown also make a chunk by themselves. The ranges
+     * are kept in the task, so that retries of the commit split the tables in the same way.
+     */
+    protected List<List<TableIdentifier>> splitIntermediateTables(JdbcOutputConnection con, PluginTask task) throws SQLException
+    {
+        final List<TableIdentifier> tables = task.getIntermediateTables().get();
+        final List<Long> rows = task.getIntermediateTableRows().orElse(Collections.<Long>emptyList());
+        final long chunkRows = task.getCommitChunkRows().get();
+        final Optional<String> rangeKey = findRangeKey(task);
+
+        if (!task.getIntermediateTableKeyBoundaries().isPresent()) {
+            List<List<Long>> boundaries = new ArrayList<>();
+            for (int i = 0; i < tables.size(); i++) {
+                if (rangeKey.isPresent() && rows.size() == tables.size() && rows.get(i) > chunkRows) {
+                    int ranges = (int) Math.min((rows.get(i) + chunkRows - 1) / chunkRows, Integer.MAX_VALUE);
+                    boundaries.add(con.findKeyBoundaries(tables.get(i), rangeKey.get(), ranges));
+                } else {
+                    boundaries.add(Collections.<Long>emptyList());
+                }
+            }
+            task.setIntermediateTableKeyBoundaries(Optional.<List<List<Long>>>of(boundaries));
+        }
+        final List<List<Long>> boundaries = task.getIntermediateTableKeyBoundaries().get();
+
+        final ArrayList<List<TableIdentifier>> chunks = new ArrayList<>();
+        for (List<TableIdentifier> chunk : splitIntermediateTables(tables, rows, chunkRows)) {
+            int index = tables.indexOf(chunk.get(0));
+            if (chunk.size() == 1 && !boundaries.get(index).isEmpty()) {
+                Optional<Long> lowerBound = Optional.empty();
+                for (Long upperBound : boundaries.get(index)) {
+                    chunks.add(Collections.<TableIdentifier>singletonList(
+                            new TableKeyRange(chunk.get(0), rangeKey.get(), lowerBound, Optional.of(upperBound))));
+                    lowerBound = Optional.of(upperBound);
+                }
+                chunks.add(Collections.<TableIdentifier>singletonList(
+                        new TableKeyRange(chunk.get(0), rangeKey.get(), lowerBound, Optional.<Long>empty())));
+            } else {
+                if (chunk.size() == 1 && rows.size() == tables.size() && rows.get(index) > chunkRows) {
+                    logger.warn("Intermediate table {} has {} rows, which are collected by one statement beyond commit_chunk_rows ({})"
+                            + " because it can't be split by an integer merge key or primary key",
+                            chunk.get(0).getTableName(), rows.get(index), chunkRows);
+                }
+                chunks.add(chunk);
+            }
+        }
+        logger.info("Collecting {} intermediate tables in {} chunks", tables.size(), chunks.size());
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Returns the column to split a large intermediate table by, which is the first merge key in merge modes, or the
+     * first column of the primary key of the target table in the others. The column must be an integer, so that
+     * ranges are written as literals.
+     */
+    protected Optional<String> findRangeKey(PluginTask task)
+    {
+        JdbcSchema schema = filterSkipColumns(task.getTargetTableSchema());
+        Optional<JdbcColumn> key = Optional.empty();
+        if (task.getMergeKeys().isPresent() && !task.getMergeKeys().get().isEmpty()) {
+            key = schema.findColumn(task.getMergeKeys().get().get(0));
+        } else {
+            for (JdbcColumn column : schema.getColumns()) {
+                if (column.isUniqueKey()) {
+                    key = Optional.of(column);
+                    break;
+                }
+            }
+        }
+        if (!key.isPresent()) {
+            return Optional.empty();
+        }
+        switch (key.get().getSqlType()) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            return Optional.of(key.get().getName());
+        default:
+            return Optional.empty();
+        }
+    }
+
+    static List<List<TableIdentifier>> splitIntermediateTables(List<TableIdentifier> tables, List<Long> rows, long chunkRows)
+    {
+        final ArrayList<List<TableIdentifier>> chunks = new ArrayList<>();
+        ArrayList<TableIdentifier> chunk = new ArrayList<>();
+        long rowsInChunk = 0;
+        for (int i = 0; i < tables.size(); i++) {
+            long tableRows = (rows.size() == tables.size() && rows.get(i) >= 0) ? rows.get(i) : chunkRows;
+            if (tableRows == 0) {
+                // no need to collect
+                continue;
+            }
+            if (!chunk.isEmpty() && rowsInChunk + tableRows > chunkRows) {
+                chunks.add(Collections.unmodifiableList(chunk));
+                chunk = new ArrayList<>();
+                rowsInChunk = 0;
+            }
+            chunk.add(tables.get(i));
+            rowsInChunk += tableRows;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(Collections.unmodifiableList(chunk));
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    protected void doCleanup(JdbcOutputConnection con, PluginTask task, int taskCount,
+            List<TaskReport> successTaskReports)
+        throws SQLException
+    {
+        if (task.getIntermediateTables().isPresent()) {
+            final ArrayList<TableIdentifier> tables = new ArrayList<>(task.getIntermediateTables().get());
+            if (task.getCollectTable().isPresent()) {
+                tables.add(task.getCollectTable().get());
+            }
+            dropTablesIfExist(task, con, tables, true);
+        }
+    }
+
+    /**
+     * Drops tables one by one if ddl_connections is 1. Otherwise, drops groups of tables on up to ddl_connections
+     * connections with as few statements as the database allows.
+     */
+    protected void dropTablesIfExist(PluginTask task, JdbcOutputConnection con, List<TableIdentifier> tables,
+            boolean autoCommit) throws SQLException
+    {
+        if (task.getDdlConnections() <= 1) {
+            for (TableIdentifier table : tables) {
+                con.dropTableIfExists(table);
+            }
+            return;
+        }
+        runDdl(task, con, tables, autoCommit, new TableDdl() {
+            public void run(JdbcOutputConnection con, List<TableIdentifier> group) throws SQLException
+            {
+                con.dropTablesIfExist(group);
+            }
+        });
+    }
+
+    protected interface Ddl<T>
+    {
+        void run(JdbcOutputConnection con, List<T> items) throws SQLException;
+    }
+
+    protected interface TableDdl
+            extends Ddl<TableIdentifier>
+    {
+    }
+
+    private static List<JdbcIndex> findUniqueDeferredIndexes(PluginTask task)
+    {
+        List<JdbcIndex> indexes = new ArrayList<>();
+        for (JdbcIndex index : task.getDeferredIndexList().orElse(Collections.<JdbcIndex>emptyList())) {
+            if (index.isUnique()) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Builds indexes of deferred_indexes which the target table doesn't have yet, on up to ddl_connections connections.
+     * Indexes are built one by one on each connection unless the database builds indexes of a table together.
+     */
+    protected void buildDeferredIndexes(JdbcOutputConnection con, final PluginTask task) throws SQLException
+    {
+        final TableIdentifier target = task.getActualTable();
+        List<JdbcIndex> indexes = new ArrayList<>();
+        for (JdbcIndex index : task.getDeferredIndexList().get()) {
+            if (!con.indexExists(target, index.getName())) {
+                indexes.add(index);
+            }
+        }
+        if (indexes.isEmpty()) {
+            return;
+        }
+        int groupSize = con.supportsConcurrentIndexBuild() ? 1 : indexes.size();
+        runDdl(task, con, indexes, groupSize, true, new Ddl<JdbcIndex>() {
+            public void run(JdbcOutputConnection con, List<JdbcIndex> group) throws SQLException
+            {
+                prepareIndexBuild(con, task);
+                con.createIndexes(target, group);
+            }
+        });
+    }
+
+    /**
+     * Called on each connection before it builds indexes, to tune the session for building indexes.
+     */
+    protected void prepareIndexBuild(JdbcOutputConnection con, PluginTask task) throws SQLException
+    {
+    }
+
+    /**
+     * Runs DDL on groups of up to DDL_GROUP_SIZE tables. Groups are shared by up to ddl_connections connections,
+     * including the given one. All connections stop taking groups after a failure, and the first failure is thrown.
+     */
+    protected void runDdl(final PluginTask task, JdbcOutputConnection con, List<TableIdentifier> tables,
+            final boolean autoCommit, final TableDdl ddl) throws SQLException
+    {
+        runDdl(task, con, tables, DDL_GROUP_SIZE, autoCommit, ddl);
+    }
+
+    /**
+     * Same as runDdl of tables, but runs DDL on groups of up to groupSize items.
+     */
+    protected <T> void runDdl(final PluginTask task, JdbcOutputConnection con, List<T> items, int groupSize,
+            final boolean autoCommit, final Ddl<T> ddl) throws SQLException
+    {
+        final ConcurrentLinkedQueue<List<T>> groups = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < items.size(); i += groupSize) {
+            groups.add(items.subList(i, Math.min(i + groupSize, items.size())));
+        }
+        final int connections = Math.min(task.getDdlConnections(), groups.size());
+        if (connections <= 1) {
+            runDdlGroups(con, groups, ddl);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(connections - 1);
+        try {
+            final ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (int i = 1; i < connections; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws SQLException
+                    {
+                        try (JdbcOutputConnection ddlCon = newConnection(task, true, autoCommit)) {
+                            runDdlGroups(ddlCon, groups, ddl);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            SQLException failure = null;
+            try {
+                runDdlGroups(con, groups, ddl);
+            } catch (SQLException ex) {
+                failure = ex;
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof SQLException)) {
+                        throw new RuntimeException(ex.getCause());
+                    }
+                    if (failure == null) {
+                        failure = (SQLException) ex.getCause();
+                    } else if (ex.getCause() != failure) {
+                        // the driver may throw the same instance on connections
+                        failure.addSuppressed(ex.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> void runDdlGroups(JdbcOutputConnection con, ConcurrentLinkedQueue<List<T>> groups,
+            Ddl<T> ddl) throws SQLException
+    {
+        List<T> group;
+        while ((group = groups.poll()) != null) {
+            try {
+                ddl.run(con, group);
+            } catch (SQLException ex) {
+                groups.clear();
+                throw ex;
+            }
+        }
+    }
+
+    protected JdbcSchema newJdbcSchemaForNewTable(Schema schema)
+    {
+        final ArrayList<JdbcColumn> columns = new ArrayList<>();
+        for (Column c : schema.getColumns()) {
+            final String columnName = c.getName();
+            c.visit(new ColumnVisitor() {
+                public void booleanColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.BOOLEAN, "BOOLEAN",
+                            1, 0, false, false));
+                }
+
+                public void longColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.BIGINT, "BIGINT",
+                            22, 0, false, false));
+                }
+
+                public void doubleColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.FLOAT, "DOUBLE PRECISION",
+                            24, 0, false, false));
+                }
+
+                public void stringColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.CLOB, "CLOB",
+                            4000, 0, false, false));  // TODO size type param
+                }
+
+                public void jsonColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.CLOB, "CLOB",
+                            4000, 0, false, false));  // TODO size type param
+                }
+
+                public void timestampColumn(Column column)
+                {
+                    columns.add(JdbcColumn.newGenericTypeColumn(
+                            columnName, Types.TIMESTAMP, "TIMESTAMP",
+                            26, 0, false, false));  // size type param is from postgresql
+                }
+            });
+        }
+        return new JdbcSchema(Collections.unmodifiableList(columns));
+    }
+
+    public Optional<JdbcSchema> newJdbcSchemaFromTableIfExists(JdbcOutputConnection connection,
+            TableIdentifier table) throws SQLException
+    {
+        if (!connection.tableExists(table)) {
+            // DatabaseMetaData.getPrimaryKeys fails if table does not exist
+            return Optional.empty();
+        }
+
+        DatabaseMetaData dbm = connection.getMetaData();
+        String escape = dbm.getSearchStringEscape();
+
+        ResultSet rs = dbm.getPrimaryKeys(table.getDatabase(), table.getSchemaName(), table.getTableName());
+        final HashSet<String> primaryKeysBuilder = new HashSet<>();
+        try {
+            while(rs.next()) {
+                primaryKeysBuilder.add(rs.getString("COLUMN_NAME"));
+            }
+        } finally {
+            rs.close();
+        }
+        final Set<String> primaryKeys = Collections.unmodifiableSet(primaryKeysBuilder);
+
+        final ArrayList<JdbcColumn> builder = new ArrayList<>();
+        rs = dbm.getColumns(
+                JdbcUtils.escapeSearchString(table.getDatabase(), escape),
+                JdbcUtils.escapeSearchString(table.getSchemaName(), escape),
+                JdbcUtils.escapeSearchString(table.getTableName(), escape),
+                null);
+        try {
+            while (rs.next()) {
+                String columnName = rs.getString("COLUMN_NAME");
+                String simpleTypeName = rs.getString("TYPE_NAME").toUpperCase(Locale.ENGLISH);
+                boolean isUniqueKey = primaryKeys.contains(columnName);
+                int sqlType = rs.getInt("DATA_TYPE");
+                int colSize = rs.getInt("COLUMN_SIZE");
+                int decDigit = rs.getInt("DECIMAL_DIGITS");
+                if (rs.wasNull()) {
+                    decDigit = -1;
                 }
                 int charOctetLength = rs.getInt("CHAR_OCTET_LENGTH");
                 boolean isNotNull = "NO".equals(rs.getString("IS_NULLABLE"));
@@ -1051,14 +1993,32 @@ public abstract class AbstractJdbcOutputPlugin
         final PluginTask task = TASK_MAPPER.map(taskSource, this.getTaskClass());
         final Mode mode = task.getMode();
 
-        // instantiate BatchInsert without table name
-        BatchInsert batch = null;
+        int connections = task.getConnectionsPerTask();
+        if (connections > 1 && mode == Mode.MERGE_DIRECT && !findRoutingKeyColumns(schema, task).isPresent()) {
+            // rows can't be routed by merge keys. use one connection to keep the order of rows.
+            logger.warn("'connections_per_task' is ignored because {}.", getNotRoutableReason(schema, task));
+            connections = 1;
+        }
+        final int partitions = task.getMergePartitions();
+        if (partitions > 1) {
+            if (findRoutingKeyColumns(schema, task).isPresent()) {
+                // rows of each partition are written through its own connection
+                connections = partitions;
+            } else {
+                // rows can't be routed by merge keys. all rows are written into the first partition.
+                logger.warn("Rows are not partitioned because {}.", getNotRoutableReason(schema, task));
+            }
+        }
+
+        // instantiate BatchInsert without table name.
+        // each connection has a BatchInsert being filled and others flushed in background (max_batches_in_flight).
+        List<BatchInsert> batches;
         try {
             Optional<MergeConfig> config = Optional.empty();
             if (task.getMode() == Mode.MERGE_DIRECT) {
                 config = Optional.of(new MergeConfig(task.getMergeKeys().get(), task.getMergeRule()));
             }
-            batch = newBatchInsert(task, config);
+            batches = newBatchInserts(task, config, connections * (task.getMaxBatchesInFlight() + 1));
         } catch (IOException | SQLException ex) {
             throw new RuntimeException(ex);
         }
@@ -1067,10 +2027,13 @@ public abstract class AbstractJdbcOutputPlugin
             // configure PageReader -> BatchInsert
             PageReader reader = new PageReader(schema);
 
-            List<ColumnSetter> columnSetters = newColumnSetters(
-                    newColumnSetterFactory(batch, task.getDefaultTimeZone()),
-                    task.getTargetTableSchema(), schema,
-                    task.getColumnOptions());
+            final ArrayList<List<ColumnSetter>> columnSetters = new ArrayList<>();
+            for (BatchInsert batch : batches) {
+                columnSetters.add(newColumnSetters(
+                        newColumnSetterFactory(batch, task.getDefaultTimeZone()),
+                        task.getTargetTableSchema(), schema,
+                        task.getColumnOptions()));
+            }
             JdbcSchema insertIntoSchema = filterSkipColumns(task.getTargetTableSchema());
             if (insertIntoSchema.getCount() == 0) {
                 throw new SQLException("No column to insert.");
@@ -1079,30 +2042,59 @@ public abstract class AbstractJdbcOutputPlugin
             // configure BatchInsert -> an intermediate table (!isDirectModify) or the target table (isDirectModify)
             TableIdentifier destTable;
             if (mode.tempTablePerTask()) {
-                destTable = task.getIntermediateTables().get().get(taskIndex);
+                destTable = task.getIntermediateTables().get().get(taskIndex * partitions);
             } else if (mode.isDirectModify()) {
                 destTable = task.getActualTable();
             } else {
                 destTable = task.getIntermediateTables().get().get(0);
             }
-            batch.prepare(destTable, insertIntoSchema);
+            final int batchesPerConnection = batches.size() / connections;
+            for (int i = 0; i < batches.size(); i++) {
+                if (partitions > 1) {
+                    // batches of the j-th connection write rows of the j-th partition
+                    batches.get(i).prepare(task.getIntermediateTables().get().get(taskIndex * partitions + i / batchesPerConnection), insertIntoSchema);
+                } else {
+                    batches.get(i).prepare(destTable, insertIntoSchema);
+                }
+            }
 
-            PluginPageOutput output = new PluginPageOutput(reader, batch, columnSetters, task.getBatchSize(), task);
-            batch = null;
+            PluginPageOutput output = new PluginPageOutput(reader, batches, columnSetters, connections, task.getBatchSize(), task);
+            if (task.getAnalyzeIntermediateTables()) {
+                output.setAnalyzedTables(task.getIntermediateTables().get().subList(taskIndex * partitions, (taskIndex + 1) * partitions));
+            }
+            if (task.getCollectTable().isPresent()) {
+                output.setCollectedTable(destTable);
+            }
+            batches = null;
             return output;
 
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
 
         } finally {
-            if (batch != null) {
-                try {
-                    batch.close();
-                } catch (IOException | SQLException ex) {
-                    throw new RuntimeException(ex);
+            if (batches != null) {
+                closeBatches(batches);
+            }
+        }
+    }
+
+    protected static void closeBatches(List<BatchInsert> batches)
+    {
+        RuntimeException exception = null;
+        for (BatchInsert batch : batches) {
+            try {
+                batch.close();
+            } catch (IOException | SQLException | RuntimeException ex) {
+                if (exception == null) {
+                    exception = new RuntimeException(ex);
+                } else {
+                    exception.addSuppressed(ex);
                 }
             }
         }
+        if (exception != null) {
+            throw exception;
+        }
     }
 
     public static File findPluginRoot(Class<?> cls)
@@ -1132,67 +2124,243 @@ public abstract class AbstractJdbcOutputPlugin
             implements TransactionalPageOutput
     {
         protected final List<Column> columns;
-        protected final List<ColumnSetter> columnSetters;
-        protected final List<ColumnSetterVisitor> columnVisitors;
+        protected List<ColumnSetter> columnSetters;
+        private final PageReader reader;
         private final PageReaderRecord pageReader;
-        private final BatchInsert batch;
-        private final int batchSize;
-        private final int forceBatchFlushSize;
+        private BatchInsert batch;
+        private RowBinder rowBinder;
+        private int batchSize;
+        private int forceBatchFlushSize;
+        private final AdaptiveBatchSizer batchSizer;
         private final PluginTask task;
 
+        private final List<Writer> writers;
+        private final List<Column> dedupColumns;
+        private final List<Column> sortColumns;
+        private final RoutingHasher routingHasher;
+        private int roundRobinIndex;
+        private BatchSlot currentSlot;
+
+        // intermediate tables indexed and analyzed at finish (analyze_intermediate_tables)
+        private List<TableIdentifier> analyzedTables;
+        // intermediate table merged into the collect table at finish (incremental_collect)
+        private TableIdentifier collectedTable;
+
+        private final LoadMetrics metrics = new LoadMetrics();
+        // time for which the page reading thread is blocked by flushing batches
+        private long waitNanos;
+
         public PluginPageOutput(PageReader pageReader,
                 BatchInsert batch, List<ColumnSetter> columnSetters,
                 int batchSize, PluginTask task)
         {
+            this(pageReader, Collections.singletonList(batch), Collections.singletonList(columnSetters), batchSize, task);
+        }
+
+        public PluginPageOutput(PageReader pageReader,
+                List<BatchInsert> batches, List<List<ColumnSetter>> columnSetters,
+                int batchSize, PluginTask task)
+        {
+            this(pageReader, batches, columnSetters, 1, batchSize, task);
+        }
+
+        public PluginPageOutput(PageReader pageReader,
+                List<BatchInsert> batches, List<List<ColumnSetter>> columnSetters,
+                int connections, int batchSize, PluginTask task)
+        {
+            this.reader = pageReader;
             this.pageReader = new PageReaderRecord(pageReader);
-            this.batch = batch;
             this.columns = pageReader.getSchema().getColumns();
-            this.columnSetters = columnSetters;
-
-            this.columnVisitors = Collections.unmodifiableList((ArrayList<ColumnSetterVisitor>) columnSetters.stream().map(setter -> {
-                                return new ColumnSetterVisitor(PluginPageOutput.this.pageReader, setter);
-                    }).collect(Collectors.toCollection(ArrayList::new)));
-            this.batchSize = batchSize;
             this.task = task;
-            this.forceBatchFlushSize = batchSize * 2;
+            if (task.getAdaptiveBatchSize()) {
+                this.batchSizer = new AdaptiveBatchSizer(batchSize, task.getMinBatchSize(), task.getMaxBatchSize(), task.getMaxFlushLatency());
+                setBatchSize(batchSizer.getBatchSize());
+            } else {
+                this.batchSizer = null;
+                setBatchSize(batchSize);
+            }
+
+            switch (task.getBatchDedup()) {
+            case MERGE_KEYS:
+                Optional<List<Column>> mergeKeyColumns = findMergeKeyColumns(pageReader.getSchema(), task.getMergeKeys().get());
+                if (!mergeKeyColumns.isPresent()) {
+                    logger.warn("'batch_dedup' is ignored because merge keys are not found in input columns.");
+                }
+                this.dedupColumns = mergeKeyColumns.orElse(null);
+                break;
+            case EXACT:
+                this.dedupColumns = columns;
+                break;
+            default:
+                this.dedupColumns = null;
+                break;
+            }
+
+            if (task.getBatchSort()) {
+                this.sortColumns = findSortKeyColumns(pageReader.getSchema(), task);
+                if (sortColumns == null) {
+                    logger.warn("'batch_sort' is ignored because neither merge keys nor primary keys are found in input columns.");
+                }
+            } else {
+                this.sortColumns = null;
+            }
+
+            // batches are split into writers, each of which owns (max_batches_in_flight + 1) batches
+            final int batchesPerWriter = batches.size() / connections;
+            final boolean background = connections > 1 || batchesPerWriter > 1;
+            // merge_direct flushes batches of a writer one by one so that the last row of a key always wins
+            final int flushThreads = task.getMode() == Mode.MERGE_DIRECT ? 1 : Math.max(batchesPerWriter - 1, 1);
+            final ArrayList<Writer> writers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                final ArrayList<BatchSlot> slots = new ArrayList<>();
+                for (int j = i * batchesPerWriter; j < (i + 1) * batchesPerWriter; j++) {
+                    slots.add(new BatchSlot(batches.get(j), columnSetters.get(j)));
+                }
+                writers.add(new Writer(slots, background ? new BackgroundFlusher<BatchSlot>(flushThreads) : null));
+            }
+            this.writers = Collections.unmodifiableList(writers);
+
+            if (connections > 1 && (task.getMode() == Mode.MERGE_DIRECT || task.getMergePartitions() > 1)) {
+                // rows of the same key are always routed to the same writer, which is the same partition in all tasks
+                // values are read without being saved for retry
+                this.routingHasher = new RoutingHasher(new PageReaderRecord(pageReader, null),
+                        findRoutingKeyColumns(pageReader.getSchema(), task).get());
+            } else {
+                this.routingHasher = null;
+            }
+
+            try {
+                select(writers.get(0));
+            } catch (SQLException | InterruptedException ex) {
+                throw new RuntimeException(ex);  // never happens because no batches are in flight yet
+            }
         }
 
         @Override
         public void add(Page page)
         {
+            final long startTime = System.nanoTime();
+            final long waitNanosBefore = waitNanos;
+            long rows = 0;
+            if (batchSizer != null) {
+                setBatchSize(batchSizer.getBatchSize());
+            }
             try {
                 pageReader.setPage(page);
                 while (pageReader.nextRecord()) {
-                    if (batch.getBatchWeight() > forceBatchFlushSize) {
-                        flush();
+                    Writer writer = route();
+                    select(writer);
+                    if (getBatchWeight(currentSlot) > forceBatchFlushSize || batch.isFull()) {
+                        flush(writer);
+                        writer = route();
+                        select(writer);
                     }
-                    handleColumnsSetters();
-                    batch.add();
+                    if (currentSlot.deduplicator != null) {
+                        currentSlot.deduplicator.add(pageReader);
+                    } else if (currentSlot.sortedRecords != null) {
+                        currentSlot.sortedRecords.addRecord(pageReader);
+                    } else {
+                        rowBinder.bind();
+                        batch.add();
+                    }
+                    rows++;
                 }
-                if (batch.getBatchWeight() > batchSize) {
-                    flush();
+                for (Writer writer : writers) {
+                    if (writer.currentSlot != null && (getBatchWeight(writer.currentSlot) > batchSize || writer.currentSlot.batch.isFull())) {
+                        flush(writer);
+                    }
                 }
             } catch (IOException | SQLException | InterruptedException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                metrics.addRows(rows);
+                metrics.addEncodeTime(System.nanoTime() - startTime - (waitNanos - waitNanosBefore));
             }
         }
 
-        private void flush() throws SQLException, InterruptedException
+        private void setBatchSize(int batchSize)
         {
-            withRetry(task, new IdempotentSqlRunnable() {
+            this.batchSize = batchSize;
+            this.forceBatchFlushSize = (int) Math.min(batchSize * 2L, Integer.MAX_VALUE);
+        }
+
+        private long getBatchWeight(BatchSlot slot)
+        {
+            if (slot.deduplicator != null) {
+                // rows are passed to the batch when it's flushed
+                return slot.deduplicator.getEstimatedSize();
+            }
+            if (slot.sortedRecords != null) {
+                return slot.sortedRecords.getEstimatedSize();
+            }
+            return slot.batch.getBatchWeight();
+        }
+
+        private Writer route()
+        {
+            if (routingHasher == null) {
+                return writers.get(roundRobinIndex);
+            }
+            return writers.get(routingHasher.route(writers.size()));
+        }
+
+        private void flush(Writer writer) throws IOException, SQLException, InterruptedException
+        {
+            final BatchSlot slot = writer.currentSlot;
+            if (slot.deduplicator != null) {
+                addDeduplicatedRows(slot);
+            }
+            if (slot.sortedRecords != null) {
+                addSortedRows(slot);
+            }
+            if (writer.flusher == null) {
+                final long startTime = System.nanoTime();
+                try {
+                    flush(slot);
+                } finally {
+                    waitNanos += System.nanoTime() - startTime;
+                }
+                return;
+            }
+
+            // hand over the filled batch to a background thread. an idle batch is taken when next row comes.
+            writer.flusher.submit(slot, new Callable<Void>() {
+                @Override
+                public Void call() throws SQLException, InterruptedException
+                {
+                    flush(slot);
+                    return null;
+                }
+            });
+            writer.currentSlot = null;
+
+            if (routingHasher == null && writers.get(roundRobinIndex) == writer) {
+                // rows are routed by batches. next rows go to the next writer while this writer flushes.
+                roundRobinIndex = (roundRobinIndex + 1) % writers.size();
+            }
+        }
+
+        private void flush(final BatchSlot slot) throws SQLException, InterruptedException
+        {
+            final long bytes = slot.batch.getBatchWeight();
+            final long startTime = System.nanoTime();
+            withFlushRetry(task, slot.batch, new IdempotentSqlRunnable() {
                 private boolean first = true;
 
                 @Override
                 public void run() throws IOException, SQLException {
                     try {
                         if (!first) {
-                            retryColumnsSetters();
+                            metrics.recordRetry();
+                            if (slot.readRecords != null) {
+                                retryColumnsSetters(slot);
+                            }
                         }
 
-                        batch.flush();
+                        slot.batch.flush();
 
                     } catch (IOException | SQLException ex) {
-                        if (!first && !isRetryableException(ex)) {
+                        if (!first && !isRetryableException(ex) && !slot.batch.isRetryableException(ex)) {
                             logger.error("Retry failed : ", ex);
                         }
                         throw ex;
@@ -1201,35 +2369,251 @@ public abstract class AbstractJdbcOutputPlugin
                     }
                 }
             });
+            if (bytes > 0) {
+                final long nanos = System.nanoTime() - startTime;
+                metrics.recordFlush(bytes, nanos);
+                if (batchSizer != null) {
+                    batchSizer.onFlush(bytes, nanos);
+                }
+            }
+
+            if (slot.readRecords != null) {
+                try {
+                    slot.readRecords.reset();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                slot.retryRecords = null;
+            }
+        }
 
-            pageReader.clearReadRecords();
+        /**
+         * Passes buffered rows to the batch except rows superseded by later rows of the same key.
+         * If rows are sorted, they are passed to the sort buffer instead.
+         */
+        private void addDeduplicatedRows(BatchSlot slot) throws IOException, SQLException
+        {
+            final BatchDeduplicator deduplicator = slot.deduplicator;
+            try (RecordBuffer.Cursor cursor = deduplicator.cursor()) {
+                RowBinder binder = new RowBinder(cursor, columns, slot.columnSetters);
+                while (cursor.next()) {
+                    if (!deduplicator.isLast(cursor.getIndex())) {
+                        continue;
+                    }
+                    if (slot.sortedRecords != null) {
+                        slot.sortedRecords.addRecord(cursor);
+                    } else {
+                        addRow(slot, binder, cursor);
+                    }
+                }
+            }
+            if (deduplicator.getDistinctCount() < deduplicator.size()) {
+                logger.info(String.format("Removed %,d duplicated rows from %,d rows", deduplicator.size() - deduplicator.getDistinctCount(), deduplicator.size()));
+            }
+            deduplicator.reset();
+        }
+
+        /**
+         * Passes buffered rows to the batch in the order of the sort keys.
+         */
+        private void addSortedRows(BatchSlot slot) throws IOException, SQLException
+        {
+            try (RecordBuffer.SortedCursor cursor = slot.sortedRecords.sortedCursor()) {
+                RowBinder binder = new RowBinder(cursor, columns, slot.columnSetters);
+                while (cursor.next()) {
+                    addRow(slot, binder, cursor);
+                }
+            }
+            slot.sortedRecords.reset();
+        }
+
+        private void addRow(BatchSlot slot, RowBinder binder, Record record) throws IOException, SQLException
+        {
+            binder.bind();
+            slot.batch.add();
+            if (slot.readRecords != null) {
+                slot.readRecords.addRecord(record);
+            }
+        }
+
+        /**
+         * Makes the writer ready to receive a row. If all batches of the writer are in flight, waits for the oldest one.
+         */
+        private void select(Writer writer) throws SQLException, InterruptedException
+        {
+            if (writer.currentSlot == null) {
+                BatchSlot next = writer.idleSlots.pollFirst();
+                if (next == null) {
+                    next = waitForFlush(writer);
+                }
+                writer.currentSlot = next;
+            }
+            if (currentSlot != writer.currentSlot) {
+                activate(writer.currentSlot);
+            }
+        }
+
+        private BatchSlot waitForFlush(Writer writer) throws SQLException, InterruptedException
+        {
+            final long startTime = System.nanoTime();
+            try {
+                return writer.flusher.awaitOldest();
+            } finally {
+                waitNanos += System.nanoTime() - startTime;
+            }
+        }
+
+        private void activate(BatchSlot slot)
+        {
+            currentSlot = slot;
+            batch = slot.batch;
+            columnSetters = slot.columnSetters;
+            rowBinder = slot.rowBinder;
+            // rows buffered by the deduplicator or the sort buffer are saved when they're passed to the batch
+            pageReader.setReadRecords(slot.deduplicator != null || slot.sortedRecords != null ? null : slot.readRecords);
         }
 
         @Override
         public void finish()
         {
             try {
-                flush();
+                for (Writer writer : writers) {
+                    if (writer.currentSlot != null) {
+                        flush(writer);
+                    }
+                }
 
-                withRetry(task, new IdempotentSqlRunnable() {
-                    @Override
-                    public void run() throws IOException, SQLException {
-                        batch.finish();
+                // wait for all batches in flight, and propagate the first error if any
+                for (Writer writer : writers) {
+                    while (writer.flusher != null && !writer.flusher.isEmpty()) {
+                        writer.idleSlots.addLast(waitForFlush(writer));
                     }
-                });
-            } catch (InterruptedException | SQLException ex) {
+                }
+
+                final long startTime = System.nanoTime();
+                for (Writer writer : writers) {
+                    for (final BatchSlot slot : writer.slots) {
+                        withFlushRetry(task, slot.batch, new IdempotentSqlRunnable() {
+                            @Override
+                            public void run() throws IOException, SQLException {
+                                slot.batch.finish();
+                            }
+                        });
+                    }
+                }
+                waitNanos += System.nanoTime() - startTime;
+
+                if (analyzedTables != null) {
+                    analyze();
+                }
+                if (collectedTable != null) {
+                    collect();
+                }
+            } catch (IOException | InterruptedException | SQLException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        void setAnalyzedTables(List<TableIdentifier> tables)
+        {
+            this.analyzedTables = tables;
+        }
+
+        void setCollectedTable(TableIdentifier table)
+        {
+            this.collectedTable = table;
+        }
+
+        /**
+         * Creates an index of merge keys on the intermediate tables and gathers their statistics, so that the merge joins them
+         * with the target table by a better plan than guessed for tables without statistics. Tasks do it in parallel as they finish.
+         */
+        private void analyze() throws SQLException, InterruptedException
+        {
+            final long startTime = System.nanoTime();
+            withRetry(task, new IdempotentSqlRunnable() {
+                public void run() throws SQLException
+                {
+                    JdbcOutputConnection con = newConnection(task, true, false);
+                    try {
+                        for (TableIdentifier table : analyzedTables) {
+                            String indexName = buildIndexName(table, "keys");
+                            // the index may be created by a failed attempt
+                            if (con.supportsIndexes() && !con.indexExists(table, indexName)) {
+                                con.createIndex(table, indexName, task.getMergeKeys().get(), false);
+                            }
+                            con.analyzeTable(table);
+                        }
+                    } finally {
+                        con.close();
+                    }
+                }
+            });
+            logger.info(String.format("Analyzed intermediate tables in %.2f seconds", (System.nanoTime() - startTime) / 1e9));
+        }
+
+        /**
+         * Merges the intermediate table into the collect table, so that the commit only has to merge the collect table.
+         * Merging the same rows again is harmless on retry because merge_rule is not used. Tasks may run in other
+         * processes, so that concurrent merges are serialized by a lock of the database.
+         */
+        private void collect() throws SQLException, InterruptedException
+        {
+            final JdbcSchema schema = filterSkipColumns(task.getTargetTableSchema());
+            final MergeConfig mergeConfig = new MergeConfig(task.getMergeKeys().get(), task.getMergeRule());
+            final long startTime = System.nanoTime();
+            withRetry(task, new IdempotentSqlRunnable() {
+                public void run() throws SQLException
+                {
+                    JdbcOutputConnection con = newConnection(task, true, false);
+                    try {
+                        // concurrent merges would insert the same new keys twice. the lock is released by the commit
+                        TableIdentifier collectTable = task.getCollectTable().get();
+                        con.collectMerge(Collections.singletonList(collectedTable), schema, collectTable, mergeConfig,
+                                con.buildLockTableSql(collectTable), Optional.<String>empty());
+                    } finally {
+                        con.close();
+                    }
+                }
+            });
+            logger.info(String.format("Merged into the collect table in %.2f seconds", (System.nanoTime() - startTime) / 1e9));
+        }
+
         @Override
         public void close()
         {
-            try {
-                batch.close();
-            } catch (IOException | SQLException ex) {
-                throw new RuntimeException(ex);
+            // don't close connections used by batches in flight
+            for (Writer writer : writers) {
+                if (writer.flusher != null) {
+                    writer.flusher.shutdownNow();
+                }
+            }
+            for (Writer writer : writers) {
+                if (writer.flusher != null) {
+                    writer.flusher.awaitTermination();
+                }
+            }
+
+            final ArrayList<BatchInsert> batches = new ArrayList<>();
+            for (Writer writer : writers) {
+                for (BatchSlot slot : writer.slots) {
+                    batches.add(slot.batch);
+                    try {
+                        if (slot.readRecords != null) {
+                            slot.readRecords.close();
+                        }
+                        if (slot.deduplicator != null) {
+                            slot.deduplicator.close();
+                        }
+                        if (slot.sortedRecords != null) {
+                            slot.sortedRecords.close();
+                        }
+                    } catch (IOException ex) {
+                        logger.warn("Failed to delete a temporary file of records", ex);
+                    }
+                }
             }
+            closeBatches(batches);
         }
 
         @Override
@@ -1240,38 +2624,218 @@ public abstract class AbstractJdbcOutputPlugin
         @Override
         public TaskReport commit()
         {
-            return CONFIG_MAPPER_FACTORY.newTaskReport();
+            metrics.addWaitTime(waitNanos);
+            waitNanos = 0;
+            logger.info("Loaded {}", metrics);
+            return CONFIG_MAPPER_FACTORY.newTaskReport().set("load_metrics", metrics);
         }
 
         protected void handleColumnsSetters()
         {
-            int size = columnVisitors.size();
-            for (int i=0; i < size; i++) {
-                columns.get(i).visit(columnVisitors.get(i));
+            try {
+                rowBinder.bind();
+            } catch (IOException | SQLException ex) {
+                throw new RuntimeException(ex);
             }
         }
 
         protected void retryColumnsSetters() throws IOException, SQLException
         {
-            int size = columnVisitors.size();
-            int[] updateCounts = batch.getLastUpdateCounts();
+            if (currentSlot.readRecords != null) {
+                retryColumnsSetters(currentSlot);
+            }
+        }
+
+        private void retryColumnsSetters(BatchSlot slot) throws IOException, SQLException
+        {
+            int[] updateCounts = slot.batch.getLastUpdateCounts();
+            // records which are added to the batch in the last try. null means all records.
+            int[] lastRecords = slot.retryRecords;
+            int[] retryRecords = new int[lastRecords == null ? slot.readRecords.size() : lastRecords.length];
+            int retryCount = 0;
             int index = 0;
-            for (Iterator<? extends Record> it = pageReader.getReadRecords().iterator(); it.hasNext();) {
-                Record record = it.next();
-                // retry failed records
-                if (index >= updateCounts.length || updateCounts[index] == Statement.EXECUTE_FAILED) {
-                    for (int i = 0; i < size; i++) {
-                        ColumnSetterVisitor columnVisitor = new ColumnSetterVisitor(record, columnSetters.get(i));
-                        columns.get(i).visit(columnVisitor);
+            try (RecordBuffer.Cursor cursor = slot.readRecords.cursor()) {
+                RowBinder retryBinder = new RowBinder(cursor, columns, slot.columnSetters);
+                while (cursor.next()) {
+                    if (lastRecords != null && (index >= lastRecords.length || lastRecords[index] != cursor.getIndex())) {
+                        // succeeded before the last try
+                        continue;
+                    }
+                    // retry failed records
+                    if (index >= updateCounts.length || updateCounts[index] == Statement.EXECUTE_FAILED) {
+                        retryBinder.bind();
+                        slot.batch.add();
+                        retryRecords[retryCount++] = cursor.getIndex();
                     }
-                    batch.add();
+                    index++;
+                }
+            }
+            slot.retryRecords = Arrays.copyOf(retryRecords, retryCount);
+        }
+
+        /**
+         * A BatchInsert with its column setters and the records saved for retry.
+         * A slot is either filled by the page reading thread, flushed in background, or idle.
+         */
+        private class BatchSlot
+        {
+            private final BatchInsert batch;
+            private final List<ColumnSetter> columnSetters;
+            private final RowBinder rowBinder;
+            private final RecordBuffer readRecords;
+            private final BatchDeduplicator deduplicator;
+            private final RecordBuffer sortedRecords;
+            private int[] retryRecords;
+
+            BatchSlot(BatchInsert batch, List<ColumnSetter> columnSetters)
+            {
+                this.batch = batch;
+                this.columnSetters = columnSetters;
+                this.rowBinder = new RowBinder(PluginPageOutput.this.pageReader, columns, columnSetters);
+                final File tempDir = task.getTempDir().map(File::new).orElse(null);
+                if (batch.needsRecordsForRetry()) {
+                    this.readRecords = new RecordBuffer(reader.getSchema(), task.getRetryBufferMemoryLimit().orElse(Long.MAX_VALUE), null, tempDir);
+                } else {
+                    // fast path. values are passed to the batch without being saved
+                    this.readRecords = null;
+                }
+                if (dedupColumns != null) {
+                    // NULL merge keys never match in SQL, but NULLs of exact duplicates are the same
+                    this.deduplicator = new BatchDeduplicator(reader.getSchema(), dedupColumns,
+                            task.getBatchDedup() == BatchDedup.EXACT, task.getRetryBufferMemoryLimit().orElse(Long.MAX_VALUE), tempDir);
+                } else {
+                    this.deduplicator = null;
+                }
+                if (sortColumns != null) {
+                    this.sortedRecords = new RecordBuffer(reader.getSchema(), task.getRetryBufferMemoryLimit().orElse(Long.MAX_VALUE), sortColumns, tempDir);
                 } else {
-                    // remove for re-retry
-                    it.remove();
+                    this.sortedRecords = null;
                 }
-                index++;
             }
         }
+
+        /**
+         * A set of batches writing through their own connections (connections_per_task).
+         */
+        private class Writer
+        {
+            private final List<BatchSlot> slots;
+            private final ArrayDeque<BatchSlot> idleSlots;
+            private final BackgroundFlusher<BatchSlot> flusher;
+            private BatchSlot currentSlot;
+
+            Writer(List<BatchSlot> slots, BackgroundFlusher<BatchSlot> flusher)
+            {
+                this.slots = Collections.unmodifiableList(slots);
+                this.idleSlots = new ArrayDeque<>(slots);
+                this.flusher = flusher;
+            }
+        }
+    }
+
+    /**
+     * Returns input columns of merge keys in merge modes, or input columns of primary keys of the target table.
+     * Returns null if they are not found.
+     */
+    private static List<Column> findSortKeyColumns(Schema schema, PluginTask task)
+    {
+        if (task.getMode().isMerge()) {
+            return findMergeKeyColumns(schema, task.getMergeKeys().get()).orElse(null);
+        }
+        // the target table schema is matched with input columns by index
+        final JdbcSchema targetTableSchema = task.getTargetTableSchema();
+        final ArrayList<Column> columns = new ArrayList<>();
+        for (Column column : schema.getColumns()) {
+            if (targetTableSchema.getColumn(column.getIndex()).isUniqueKey()) {
+                columns.add(column);
+            }
+        }
+        return columns.isEmpty() ? null : Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * Returns input columns of merge keys to route rows by their hash, or empty if merge keys are not found in input
+     * columns or any of them is not hashable (isHashableKeyColumn).
+     */
+    private Optional<List<Column>> findRoutingKeyColumns(Schema schema, PluginTask task)
+    {
+        final Optional<List<Column>> columns = findMergeKeyColumns(schema, task.getMergeKeys().get());
+        if (!columns.isPresent()) {
+            return columns;
+        }
+        // the target table schema is matched with input columns by index
+        for (Column column : columns.get()) {
+            if (!isHashableKeyColumn(column, task.getTargetTableSchema().getColumn(column.getIndex()))) {
+                return Optional.empty();
+            }
+        }
+        return columns;
+    }
+
+    private String getNotRoutableReason(Schema schema, PluginTask task)
+    {
+        if (!findMergeKeyColumns(schema, task.getMergeKeys().get()).isPresent()) {
+            return "merge keys are not found in input columns";
+        }
+        return "values of merge keys may be equal in the database but not in Java, by type conversion or collation";
+    }
+
+    /**
+     * Returns true if values of the input column are equal in the target column only when they are equal in Java,
+     * so that RoutingHasher, which hashes input values, routes rows of the same key to the same connection or partition.
+     * Integers are hashable in integer and decimal columns, and booleans in boolean columns. Strings are not by default,
+     * because the database may convert them ('01' to 1 in an integer column) or compare them by a collation ignoring
+     * cases or trailing spaces. Floating point numbers and timestamps may be rounded to the precision of the column.
+     */
+    protected boolean isHashableKeyColumn(Column column, JdbcColumn targetColumn)
+    {
+        if (targetColumn.isSkipColumn()) {
+            return false;
+        }
+        switch (targetColumn.getSqlType()) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            return column.getType().equals(org.embulk.spi.type.Types.LONG);
+        case Types.BOOLEAN:
+        case Types.BIT:
+            return column.getType().equals(org.embulk.spi.type.Types.BOOLEAN);
+        default:
+            return false;
+        }
+    }
+
+    private static Optional<List<Column>> findMergeKeyColumns(Schema schema, List<String> mergeKeys)
+    {
+        if (mergeKeys.isEmpty()) {
+            return Optional.empty();
+        }
+        final ArrayList<Column> columns = new ArrayList<>();
+        for (String key : mergeKeys) {
+            Optional<Column> found = Optional.empty();
+            for (Column column : schema.getColumns()) {
+                if (column.getName().equals(key)) {
+                    found = Optional.of(column);
+                    break;
+                }
+            }
+            if (!found.isPresent()) {
+                for (Column column : schema.getColumns()) {
+                    if (column.getName().equalsIgnoreCase(key)) {
+                        found = Optional.of(column);
+                        break;
+                    }
+                }
+            }
+            if (!found.isPresent()) {
+                return Optional.empty();
+            }
+            columns.add(found.get());
+        }
+        return Optional.of(Collections.unmodifiableList(columns));
     }
 
     protected boolean isRetryableException(Exception exception)
@@ -1303,10 +2867,29 @@ public abstract class AbstractJdbcOutputPlugin
 
     protected void withRetry(PluginTask task, final IdempotentSqlRunnable op, final String errorMessage)
             throws SQLException, InterruptedException
+    {
+        withRetry(task, new RetryableSQLExecution(op, errorMessage));
+    }
+
+    // retries exceptions which the batch can recover from in addition to isRetryableException
+    private void withFlushRetry(PluginTask task, final BatchInsert batch, final IdempotentSqlRunnable op)
+            throws SQLException, InterruptedException
+    {
+        withRetry(task, new RetryableSQLExecution(op, "Operation failed") {
+            @Override
+            public boolean isRetryableException(Exception exception)
+            {
+                return AbstractJdbcOutputPlugin.this.isRetryableException(exception) || batch.isRetryableException(exception);
+            }
+        });
+    }
+
+    private void withRetry(PluginTask task, RetryableSQLExecution execution)
+            throws SQLException, InterruptedException
     {
         try {
             buildRetryExecutor(task)
-                .runInterruptible(new RetryableSQLExecution(op, errorMessage));
+                .runInterruptible(execution);
         } catch (ExecutionException ex) {
             Throwable cause = ex.getCause();
             if (cause instanceof SQLException) {
@@ -0,0 +1,89 @@
+package org.embulk.output.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resizes batches between min and max sizes by observing flushes.
+ * Size moves toward higher throughput (bytes per second) step by step, and is halved
+ * when a flush takes longer than the latency limit.
+ */
+public class AdaptiveBatchSizer
+{
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    private static final double STEP = 1.5;
+    // decrease of throughput less than this ratio is regarded as noise
+    private static final double TOLERANCE = 0.9;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long maxFlushNanos;
+
+    private volatile int batchSize;
+    private double lastThroughput;  // 0 if not measured yet
+    private boolean growing;
+
+    public AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize, long maxFlushMillis)
+    {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxFlushNanos = maxFlushMillis * 1000000L;
+        this.batchSize = clamp(initialBatchSize);
+        this.lastThroughput = 0;
+        this.growing = true;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Called when a batch is flushed successfully.
+     * @param bytes weight of the flushed batch
+     * @param nanos time taken by the flush
+     */
+    public synchronized void onFlush(long bytes, long nanos)
+    {
+        final int size = batchSize;
+        if (nanos > maxFlushNanos) {
+            // back off quickly. then probe again from the smaller size.
+            resize(size / 2, "flush took " + (nanos / 1000000L) + " ms");
+            lastThroughput = 0;
+            growing = true;
+            return;
+        }
+
+        if (bytes < size / 2) {
+            // partially filled batch (e.g. the last one) doesn't show throughput at this size
+            return;
+        }
+
+        double throughput = bytes * 1e9 / Math.max(nanos, 1L);
+        if (lastThroughput > 0 && throughput < lastThroughput * TOLERANCE) {
+            // the last step made it worse
+            growing = !growing;
+        }
+        lastThroughput = throughput;
+        resize(growing ? (long) (size * STEP) : (long) (size / STEP), null);
+    }
+
+    private void resize(long newSize, String reason)
+    {
+        int size = clamp(newSize);
+        if (size != batchSize) {
+            if (reason != null) {
+                logger.info("Changing batch size from {} to {} because {}", batchSize, size, reason);
+            } else {
+                logger.debug("Changing batch size from {} to {}", batchSize, size);
+            }
+            batchSize = size;
+        }
+    }
+
+    private int clamp(long size)
+    {
+        return (int) Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+}
@@ -0,0 +1,80 @@
+package org.embulk.output.jdbc;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes batches in background threads (max_batches_in_flight), and hands them back in the order they were submitted.
+ * An error of a flush is thrown to the page reading thread when it waits for the batch.
+ */
+class BackgroundFlusher<T>
+{
+    private final ExecutorService executor;
+    private final ArrayDeque<T> flushingBatches = new ArrayDeque<>();
+    private final ArrayDeque<Future<Void>> flushings = new ArrayDeque<>();
+
+    BackgroundFlusher(int threads)
+    {
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public void submit(T batch, Callable<Void> flush)
+    {
+        flushings.addLast(executor.submit(flush));
+        flushingBatches.addLast(batch);
+    }
+
+    public boolean isEmpty()
+    {
+        return flushingBatches.isEmpty();
+    }
+
+    /**
+     * Waits for the oldest batch in flight, and returns it.
+     */
+    public T awaitOldest() throws SQLException, InterruptedException
+    {
+        Future<Void> flushing = flushings.removeFirst();
+        T batch = flushingBatches.removeFirst();
+        try {
+            flushing.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Interrupts batches in flight. Call awaitTermination before closing their connections.
+     */
+    public void shutdownNow()
+    {
+        executor.shutdownNow();
+    }
+
+    public void awaitTermination()
+    {
+        try {
+            executor.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.embulk.output.jdbc;
+
+import java.util.Locale;
+
+import org.embulk.config.ConfigException;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * How rows of a batch are deduplicated before they are sent.
+ * NONE sends all rows.
+ * MERGE_KEYS sends only the last row of each merge key.
+ * EXACT sends only one of rows with the same values in all columns.
+ */
+public enum BatchDedup
+{
+    NONE,
+    MERGE_KEYS,
+    EXACT;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static BatchDedup fromString(String value)
+    {
+        for (BatchDedup batchDedup : BatchDedup.values()) {
+            if (batchDedup.toString().equals(value)) {
+                return batchDedup;
+            }
+        }
+        throw new ConfigException(String.format("Unknown batch_dedup '%s'. Supported values are none, merge_keys and exact.", value));
+    }
+}
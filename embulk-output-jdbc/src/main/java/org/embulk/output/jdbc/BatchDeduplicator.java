@@ -0,0 +1,371 @@
+package org.embulk.output.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Schema;
+
+/**
+ * Buffers records of a batch, and finds the last record of each key.
+ * Keys are kept in an open-addressing hash table with primitive arrays per key column, so that
+ * boolean, long, double and timestamp keys are compared without boxing.
+ */
+public class BatchDeduplicator
+        implements AutoCloseable
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // boolean, long and double are stored as long. string and JSON are stored as object
+    private static final byte BOOLEAN = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte TIMESTAMP = 3;
+    private static final byte STRING = 4;
+    private static final byte JSON = 5;
+
+    private final List<Column> keyColumns;
+    private final boolean nullKeysEqual;
+    private final byte[] kinds;
+    private final RecordBuffer records;
+
+    // keys by entry
+    private long[][] longs;
+    private int[][] nanos;
+    private Object[][] objects;
+    private boolean[][] nulls;
+    private int[] hashes;
+    private int[] lastRows;
+    private int entries;
+    private int distinctCount;
+
+    // hash table of entry + 1. 0 means empty
+    private int[] table;
+    // bits of records superseded by later records of the same key
+    private long[] superseded;
+
+    // key of the record being added
+    private final long[] keyLongs;
+    private final int[] keyNanos;
+    private final Object[] keyObjects;
+    private final boolean[] keyNulls;
+
+    /**
+     * @param keyColumns columns of the key
+     * @param nullKeysEqual false if a record having null in its key never equals others as SQL does
+     * @param maxMemory max memory of buffered records. records are spilled to a temporary file beyond it
+     */
+    public BatchDeduplicator(Schema schema, List<Column> keyColumns, boolean nullKeysEqual, long maxMemory)
+    {
+        this(schema, keyColumns, nullKeysEqual, maxMemory, null);
+    }
+
+    /**
+     * @param directory directory of the temporary file, or null to use the system temporary directory
+     */
+    public BatchDeduplicator(Schema schema, List<Column> keyColumns, boolean nullKeysEqual, long maxMemory, File directory)
+    {
+        this.keyColumns = keyColumns;
+        this.nullKeysEqual = nullKeysEqual;
+        this.records = new RecordBuffer(schema, maxMemory, null, directory);
+
+        int count = keyColumns.size();
+        this.kinds = new byte[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            keyColumns.get(i).visit(new ColumnVisitor() {
+                public void booleanColumn(Column column)
+                {
+                    kinds[index] = BOOLEAN;
+                }
+
+                public void longColumn(Column column)
+                {
+                    kinds[index] = LONG;
+                }
+
+                public void doubleColumn(Column column)
+                {
+                    kinds[index] = DOUBLE;
+                }
+
+                public void stringColumn(Column column)
+                {
+                    kinds[index] = STRING;
+                }
+
+                public void timestampColumn(Column column)
+                {
+                    kinds[index] = TIMESTAMP;
+                }
+
+                public void jsonColumn(Column column)
+                {
+                    kinds[index] = JSON;
+                }
+            });
+        }
+        this.longs = new long[count][];
+        this.nanos = new int[count][];
+        this.objects = new Object[count][];
+        this.nulls = new boolean[count][INITIAL_CAPACITY];
+        for (int i = 0; i < count; i++) {
+            switch (kinds[i]) {
+            case STRING:
+            case JSON:
+                objects[i] = new Object[INITIAL_CAPACITY];
+                break;
+            case TIMESTAMP:
+                nanos[i] = new int[INITIAL_CAPACITY];
+                // fall through
+            default:
+                longs[i] = new long[INITIAL_CAPACITY];
+                break;
+            }
+        }
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.lastRows = new int[INITIAL_CAPACITY];
+        this.table = new int[INITIAL_CAPACITY * 2];
+        this.superseded = new long[INITIAL_CAPACITY / 64];
+
+        this.keyLongs = new long[count];
+        this.keyNanos = new int[count];
+        this.keyObjects = new Object[count];
+        this.keyNulls = new boolean[count];
+    }
+
+    /**
+     * Number of records added, including superseded ones.
+     */
+    public int size()
+    {
+        return records.size();
+    }
+
+    /**
+     * Number of records which are not superseded.
+     */
+    public int getDistinctCount()
+    {
+        return distinctCount;
+    }
+
+    /**
+     * Estimated size of buffered records.
+     */
+    public long getEstimatedSize()
+    {
+        return records.getEstimatedSize();
+    }
+
+    public void add(Record record) throws IOException
+    {
+        int row = records.size();
+        records.addRecord(record);
+        if ((row >>> 6) >= superseded.length) {
+            superseded = Arrays.copyOf(superseded, superseded.length * 2);
+        }
+
+        boolean hasNull = false;
+        int hash = 1;
+        for (int i = 0; i < kinds.length; i++) {
+            Column column = keyColumns.get(i);
+            keyObjects[i] = null;
+            keyNulls[i] = record.isNull(column);
+            if (keyNulls[i]) {
+                hasNull = true;
+                hash = 31 * hash;
+                continue;
+            }
+            switch (kinds[i]) {
+            case STRING:
+                keyObjects[i] = record.getString(column);
+                hash = 31 * hash + keyObjects[i].hashCode();
+                break;
+            case JSON:
+                keyObjects[i] = record.getJson(column);
+                hash = 31 * hash + keyObjects[i].hashCode();
+                break;
+            case TIMESTAMP:
+                Instant instant = record.getTimestamp(column);
+                keyLongs[i] = instant.getEpochSecond();
+                keyNanos[i] = instant.getNano();
+                hash = 31 * (31 * hash + Long.hashCode(keyLongs[i])) + keyNanos[i];
+                break;
+            case BOOLEAN:
+                keyLongs[i] = record.getBoolean(column) ? 1 : 0;
+                hash = 31 * hash + Long.hashCode(keyLongs[i]);
+                break;
+            case DOUBLE:
+                keyLongs[i] = Double.doubleToLongBits(record.getDouble(column));
+                hash = 31 * hash + Long.hashCode(keyLongs[i]);
+                break;
+            default:
+                keyLongs[i] = record.getLong(column);
+                hash = 31 * hash + Long.hashCode(keyLongs[i]);
+                break;
+            }
+        }
+        if (hasNull && !nullKeysEqual) {
+            // never equals others
+            distinctCount++;
+            return;
+        }
+        hash ^= hash >>> 16;
+
+        int mask = table.length - 1;
+        for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+            int entry = table[pos] - 1;
+            if (entry < 0) {
+                table[pos] = addEntry(hash, row) + 1;
+                distinctCount++;
+                if (entries * 2 > table.length) {
+                    rehash(table.length * 2);
+                }
+                return;
+            }
+            if (hashes[entry] == hash && keyEquals(entry)) {
+                int previous = lastRows[entry];
+                superseded[previous >>> 6] |= 1L << previous;
+                lastRows[entry] = row;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true unless a later record has the same key.
+     */
+    public boolean isLast(int row)
+    {
+        return (superseded[row >>> 6] & (1L << row)) == 0;
+    }
+
+    /**
+     * Returns a cursor to read all records including superseded ones.
+     */
+    public RecordBuffer.Cursor cursor() throws IOException
+    {
+        return records.cursor();
+    }
+
+    /**
+     * Removes all records. Arrays are kept to be reused.
+     */
+    public void reset() throws IOException
+    {
+        records.reset();
+        for (int i = 0; i < kinds.length; i++) {
+            if (objects[i] != null) {
+                Arrays.fill(objects[i], 0, entries, null);
+            }
+        }
+        Arrays.fill(table, 0);
+        Arrays.fill(superseded, 0L);
+        entries = 0;
+        distinctCount = 0;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        records.close();
+    }
+
+    private int addEntry(int hash, int row)
+    {
+        int entry = entries++;
+        if (entry == hashes.length) {
+            grow(hashes.length * 2);
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            nulls[i][entry] = keyNulls[i];
+            switch (kinds[i]) {
+            case STRING:
+            case JSON:
+                objects[i][entry] = keyObjects[i];
+                break;
+            case TIMESTAMP:
+                nanos[i][entry] = keyNanos[i];
+                // fall through
+            default:
+                longs[i][entry] = keyLongs[i];
+                break;
+            }
+        }
+        hashes[entry] = hash;
+        lastRows[entry] = row;
+        return entry;
+    }
+
+    private boolean keyEquals(int entry)
+    {
+        for (int i = 0; i < kinds.length; i++) {
+            if (nulls[i][entry] || keyNulls[i]) {
+                if (nulls[i][entry] != keyNulls[i]) {
+                    return false;
+                }
+                continue;
+            }
+            switch (kinds[i]) {
+            case STRING:
+            case JSON:
+                if (!Objects.equals(objects[i][entry], keyObjects[i])) {
+                    return false;
+                }
+                break;
+            case TIMESTAMP:
+                if (nanos[i][entry] != keyNanos[i]) {
+                    return false;
+                }
+                // fall through
+            default:
+                if (longs[i][entry] != keyLongs[i]) {
+                    return false;
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void grow(int capacity)
+    {
+        for (int i = 0; i < kinds.length; i++) {
+            nulls[i] = Arrays.copyOf(nulls[i], capacity);
+            if (objects[i] != null) {
+                objects[i] = Arrays.copyOf(objects[i], capacity);
+            }
+            if (nanos[i] != null) {
+                nanos[i] = Arrays.copyOf(nanos[i], capacity);
+            }
+            if (longs[i] != null) {
+                longs[i] = Arrays.copyOf(longs[i], capacity);
+            }
+        }
+        hashes = Arrays.copyOf(hashes, capacity);
+        lastRows = Arrays.copyOf(lastRows, capacity);
+    }
+
+    private void rehash(int size)
+    {
+        int[] newTable = new int[size];
+        int mask = size - 1;
+        for (int entry : table) {
+            if (entry == 0) {
+                continue;
+            }
+            int pos = hashes[entry - 1] & mask;
+            while (newTable[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            newTable[pos] = entry;
+        }
+        table = newTable;
+    }
+}
@@ -12,6 +12,12 @@ public interface BatchInsert
 
     public int getBatchWeight();
 
+    // true if the batch should be flushed regardless of its weight
+    public default boolean isFull()
+    {
+        return false;
+    }
+
     public void add() throws IOException, SQLException;
 
     public void close() throws IOException, SQLException;
@@ -21,6 +27,20 @@ public interface BatchInsert
     // should be implemented for retry
     public int[] getLastUpdateCounts();
 
+    // false if flush() can resend the batch by itself, or the batch is never retried.
+    // then the caller doesn't save records for retry.
+    public default boolean needsRecordsForRetry()
+    {
+        return true;
+    }
+
+    // true if flush() and finish() can be called again after the exception, in addition to the exceptions
+    // retryable by the plugin. e.g. a batch sent again on a new connection can retry connection failures.
+    public default boolean isRetryableException(Exception exception)
+    {
+        return false;
+    }
+
     public void finish() throws IOException, SQLException;
 
     public void setNull(int sqlType) throws IOException, SQLException;
@@ -0,0 +1,37 @@
+package org.embulk.output.jdbc;
+
+import java.util.Locale;
+
+import org.embulk.config.ConfigException;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * How StandardBatchInsert sends rows through a PreparedStatement.
+ * BATCH adds a statement with one row to the batch for each row.
+ * MULTI_ROW adds a statement with multiple rows (INSERT ... VALUES (...), (...), ...) to the batch.
+ */
+public enum InsertStrategy
+{
+    BATCH,
+    MULTI_ROW;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static InsertStrategy fromString(String value)
+    {
+        for (InsertStrategy insertStrategy : InsertStrategy.values()) {
+            if (insertStrategy.toString().equals(value)) {
+                return insertStrategy;
+            }
+        }
+        throw new ConfigException(String.format("Unknown insert_strategy '%s'.", value));
+    }
+}
@@ -0,0 +1,71 @@
+package org.embulk.output.jdbc;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Definition of an index read from DatabaseMetaData.getIndexInfo, or from the catalog of the database, to build it again.
+ */
+public class JdbcIndex
+{
+    private final String name;
+    private final List<String> columnNames;
+    private final List<Boolean> descending;
+    private final boolean unique;
+    private final String definition;
+
+    public JdbcIndex(String name, List<String> columnNames, List<Boolean> descending, boolean unique)
+    {
+        this(name, columnNames, descending, unique, null);
+    }
+
+    @JsonCreator
+    public JdbcIndex(
+            @JsonProperty("name") String name,
+            @JsonProperty("columnNames") List<String> columnNames,
+            @JsonProperty("descending") List<Boolean> descending,
+            @JsonProperty("unique") boolean unique,
+            @JsonProperty("definition") String definition)
+    {
+        this.name = name;
+        this.columnNames = columnNames;
+        this.descending = descending;
+        this.unique = unique;
+        this.definition = definition;
+    }
+
+    @JsonProperty("name")
+    public String getName()
+    {
+        return name;
+    }
+
+    @JsonProperty("columnNames")
+    public List<String> getColumnNames()
+    {
+        return columnNames;
+    }
+
+    // true if the column at the same position is sorted in descending order
+    @JsonProperty("descending")
+    public List<Boolean> getDescending()
+    {
+        return descending;
+    }
+
+    @JsonProperty("unique")
+    public boolean isUnique()
+    {
+        return unique;
+    }
+
+    // the part of CREATE INDEX following the table name (e.g. columns, options and a WHERE clause) in the SQL of the
+    // database which the index is read from, or null to build the index from columnNames and descending
+    @JsonProperty("definition")
+    public String getDefinition()
+    {
+        return definition;
+    }
+}
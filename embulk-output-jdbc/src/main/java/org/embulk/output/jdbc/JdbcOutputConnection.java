@@ -1,6 +1,13 @@
 package org.embulk.output.jdbc;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
@@ -11,6 +18,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Locale;
 import java.util.Optional;
+import java.math.BigInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -105,6 +113,312 @@ public class JdbcOutputConnection
         return true;
     }
 
+    /**
+     * True if DDL is rolled back with the transaction, so that tables are created in a batch committed at once.
+     */
+    protected boolean supportsTransactionalDdl()
+    {
+        return false;
+    }
+
+    /**
+     * True if a DROP TABLE statement can drop multiple tables.
+     */
+    protected boolean supportsMultiTableDrop()
+    {
+        return false;
+    }
+
+    /**
+     * True if tables can have indexes created by {@link #createIndex}.
+     */
+    protected boolean supportsIndexes()
+    {
+        return true;
+    }
+
+    /**
+     * True if collect merge statements find existing rows only by a unique key, as INSERT ... ON DUPLICATE KEY UPDATE does.
+     */
+    protected boolean mergeNeedsUniqueKey()
+    {
+        return false;
+    }
+
+    /**
+     * Statement which locks the table against other writers until the end of the transaction, so that concurrent merges
+     * into the table don't insert the same new key twice. Empty if the merge statement handles concurrent inserts by itself.
+     */
+    protected Optional<String> buildLockTableSql(TableIdentifier table)
+    {
+        return Optional.of("LOCK TABLE " + quoteTableIdentifier(table) + " IN EXCLUSIVE MODE");
+    }
+
+    public boolean indexExists(TableIdentifier table, String indexName) throws SQLException
+    {
+        try (ResultSet rs = connection.getMetaData().getIndexInfo(table.getDatabase(), table.getSchemaName(), table.getTableName(), false, true)) {
+            while (rs.next()) {
+                if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public void createIndex(TableIdentifier table, String indexName, List<String> columns, boolean unique) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            executeUpdate(stmt, buildCreateIndexSql(table, indexName, columns, unique));
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected String buildCreateIndexSql(TableIdentifier table, String indexName, List<String> columns, boolean unique)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("CREATE ");
+        if (unique) {
+            sb.append("UNIQUE ");
+        }
+        sb.append("INDEX ");
+        quoteIdentifierString(sb, indexName);
+        sb.append(" ON ");
+        quoteTableIdentifier(sb, table);
+        sb.append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i != 0) { sb.append(", "); }
+            quoteIdentifierString(sb, columns.get(i));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Returns indexes of the table other than the primary key, which can be built again by {@link #createIndexes}.
+     * Clustered indexes, partial indexes and indexes on expressions are not returned.
+     */
+    public List<JdbcIndex> getSecondaryIndexes(TableIdentifier table) throws SQLException
+    {
+        DatabaseMetaData dbm = connection.getMetaData();
+        Set<String> primaryKeyNames = new HashSet<>();
+        try (ResultSet rs = dbm.getPrimaryKeys(table.getDatabase(), table.getSchemaName(), table.getTableName())) {
+            while (rs.next()) {
+                if (rs.getString("PK_NAME") != null) {
+                    primaryKeyNames.add(rs.getString("PK_NAME"));
+                }
+            }
+        }
+        Set<String> columnNames = new HashSet<>();
+        try (ResultSet rs = dbm.getColumns(table.getDatabase(), table.getSchemaName(), table.getTableName(), null)) {
+            while (rs.next()) {
+                columnNames.add(rs.getString("COLUMN_NAME"));
+            }
+        }
+
+        // columns of each index by ordinal position
+        Map<String, TreeMap<Short, String>> columns = new LinkedHashMap<>();
+        Map<String, TreeMap<Short, Boolean>> descending = new HashMap<>();
+        Map<String, Boolean> unique = new HashMap<>();
+        Set<String> skippedNames = new HashSet<>();
+        try (ResultSet rs = dbm.getIndexInfo(table.getDatabase(), table.getSchemaName(), table.getTableName(), false, true)) {
+            while (rs.next()) {
+                String indexName = rs.getString("INDEX_NAME");
+                if (indexName == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic
+                        || primaryKeyNames.contains(indexName) || "PRIMARY".equals(indexName)) {
+                    continue;
+                }
+                String columnName = rs.getString("COLUMN_NAME");
+                if (rs.getShort("TYPE") != DatabaseMetaData.tableIndexOther || rs.getString("FILTER_CONDITION") != null
+                        || !columnNames.contains(columnName)) {
+                    skippedNames.add(indexName);
+                    continue;
+                }
+                if (!columns.containsKey(indexName)) {
+                    columns.put(indexName, new TreeMap<Short, String>());
+                    descending.put(indexName, new TreeMap<Short, Boolean>());
+                    unique.put(indexName, !rs.getBoolean("NON_UNIQUE"));
+                }
+                columns.get(indexName).put(rs.getShort("ORDINAL_POSITION"), columnName);
+                descending.get(indexName).put(rs.getShort("ORDINAL_POSITION"), "D".equals(rs.getString("ASC_OR_DESC")));
+            }
+        }
+
+        List<JdbcIndex> indexes = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<Short, String>> entry : columns.entrySet()) {
+            String indexName = entry.getKey();
+            if (skippedNames.contains(indexName)) {
+                continue;
+            }
+            indexes.add(new JdbcIndex(indexName, new ArrayList<>(entry.getValue().values()),
+                        new ArrayList<>(descending.get(indexName).values()), unique.get(indexName)));
+        }
+        if (!skippedNames.isEmpty()) {
+            logger.warn("Indexes {} of table {} can't be built again by this plugin", skippedNames, table.getTableName());
+        }
+        return indexes;
+    }
+
+    public void dropIndex(TableIdentifier table, String indexName) throws SQLException
+    {
+        executeUpdateInNewStatement(buildDropIndexSql(table, indexName));
+    }
+
+    /**
+     * Drops the index in the current transaction, which is committed by the next statement committing it.
+     * Used only if {@link #supportsTransactionalDdl()} is true.
+     */
+    public void dropIndexWithoutCommit(TableIdentifier table, String indexName) throws SQLException
+    {
+        executeWithoutCommit(buildDropIndexSql(table, indexName));
+    }
+
+    protected String buildDropIndexSql(TableIdentifier table, String indexName)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DROP INDEX ");
+        quoteIdentifierString(sb, indexName);
+        sb.append(" ON ");
+        quoteTableIdentifier(sb, table);
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if indexes of a table can be built concurrently on different connections. Otherwise,
+     * {@link #createIndexes} is called with all indexes of the table.
+     */
+    protected boolean supportsConcurrentIndexBuild()
+    {
+        return true;
+    }
+
+    /**
+     * Builds the indexes on the table. Each index is committed by itself.
+     */
+    public void createIndexes(TableIdentifier table, List<JdbcIndex> indexes) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            for (JdbcIndex index : indexes) {
+                executeUpdate(stmt, buildCreateIndexSql(table, index));
+                commitIfNecessary(connection);
+            }
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected String buildCreateIndexSql(TableIdentifier table, JdbcIndex index)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("CREATE ");
+        if (index.isUnique()) {
+            sb.append("UNIQUE ");
+        }
+        sb.append("INDEX ");
+        quoteIdentifierString(sb, index.getName());
+        sb.append(" ON ");
+        quoteTableIdentifier(sb, table);
+        sb.append(" ");
+        appendIndexDefinition(sb, index);
+        return sb.toString();
+    }
+
+    protected void appendIndexDefinition(StringBuilder sb, JdbcIndex index)
+    {
+        if (index.getDefinition() != null) {
+            sb.append(index.getDefinition());
+        } else {
+            sb.append("(");
+            appendIndexColumns(sb, index);
+            sb.append(")");
+        }
+    }
+
+    protected void appendIndexColumns(StringBuilder sb, JdbcIndex index)
+    {
+        for (int i = 0; i < index.getColumnNames().size(); i++) {
+            if (i != 0) { sb.append(", "); }
+            quoteIdentifierString(sb, index.getColumnNames().get(i));
+            if (index.getDescending().get(i)) {
+                sb.append(" DESC");
+            }
+        }
+    }
+
+    /**
+     * Gathers statistics of the table for the query planner. Does nothing if the database doesn't have such a statement.
+     */
+    public void analyzeTable(TableIdentifier table) throws SQLException
+    {
+        Optional<String> sql = buildAnalyzeTableSql(table);
+        if (sql.isPresent()) {
+            executeInNewStatement(sql.get());
+        }
+    }
+
+    protected Optional<String> buildAnalyzeTableSql(TableIdentifier table)
+    {
+        return Optional.empty();
+    }
+
+    /**
+     * Drops tables with as few statements as the database allows.
+     */
+    public void dropTablesIfExist(List<TableIdentifier> tables) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            if (supportsMultiTableDrop()) {
+                List<TableIdentifier> existingTables = tables;
+                if (!supportsTableIfExistsClause()) {
+                    existingTables = new ArrayList<>();
+                    for (TableIdentifier table : tables) {
+                        if (tableExists(table)) {
+                            existingTables.add(table);
+                        }
+                    }
+                }
+                if (!existingTables.isEmpty()) {
+                    executeUpdate(stmt, buildDropTablesSql(existingTables));
+                }
+            } else {
+                for (TableIdentifier table : tables) {
+                    dropTableIfExists(stmt, table);
+                }
+            }
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected String buildDropTablesSql(List<TableIdentifier> tables)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("DROP TABLE ");
+        if (supportsTableIfExistsClause()) {
+            sb.append("IF EXISTS ");
+        }
+        for (int i = 0; i < tables.size(); i++) {
+            if (i != 0) { sb.append(", "); }
+            quoteTableIdentifier(sb, tables.get(i));
+        }
+        return sb.toString();
+    }
+
     public void dropTableIfExists(TableIdentifier table) throws SQLException
     {
         Statement stmt = connection.createStatement();
@@ -210,6 +524,31 @@ public class JdbcOutputConnection
         }
     }
 
+    /**
+     * Creates tables in a batch committed at once. Available only if {@link #supportsTransactionalDdl()} is true,
+     * so that no tables are left if one of them fails.
+     */
+    public void createTables(List<TableIdentifier> tables, JdbcSchema schema,
+            Optional<String> tableConstraint, Optional<String> tableOption) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            for (TableIdentifier table : tables) {
+                String sql = buildCreateTableSql(table, schema, tableConstraint, tableOption);
+                logger.info("SQL: " + sql);
+                stmt.addBatch(sql);
+            }
+            long startTime = System.currentTimeMillis();
+            stmt.executeBatch();
+            commitIfNecessary(connection);
+            logger.info(String.format("> %.2f seconds (%,d tables)", (System.currentTimeMillis() - startTime) / 1000.0, tables.size()));
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
     protected String buildCreateTableSql(TableIdentifier table, JdbcSchema schema,
             Optional<String> tableConstraint, Optional<String> tableOption)
     {
@@ -343,7 +682,62 @@ public class JdbcOutputConnection
         return connection.prepareStatement(sql);
     }
 
+    public PreparedStatement prepareBatchInsertStatement(TableIdentifier toTable, JdbcSchema toTableSchema, Optional<MergeConfig> mergeConfig, int rows) throws SQLException
+    {
+        if (rows == 1) {
+            return prepareBatchInsertStatement(toTable, toTableSchema, mergeConfig);
+        }
+
+        String sql;
+        if (mergeConfig.isPresent()) {
+            sql = buildPreparedMergeSql(toTable, toTableSchema, mergeConfig.get(), rows);
+        } else {
+            sql = buildPreparedInsertSql(toTable, toTableSchema, rows);
+        }
+        logger.debug("Prepared SQL for {} rows: {}", rows, sql);
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Returns number of rows in a multi-row statement (insert_strategy: multi_row),
+     * capped so that the statement does not exceed limits of the database.
+     */
+    public int getRowsPerStatement(JdbcSchema toTableSchema, Optional<MergeConfig> mergeConfig, int rowsPerStatement)
+    {
+        if (rowsPerStatement <= 1) {
+            return 1;
+        }
+        if (mergeConfig.isPresent() && !supportsMultiRowMerge(mergeConfig.get())) {
+            logger.warn("Multi-row statements are not available with the merge configuration. Rows are merged one by one.");
+            return 1;
+        }
+        int rows = Math.min(rowsPerStatement, getMaxRowsPerStatement());
+        rows = Math.min(rows, getMaxPreparedStatementParameters() / toTableSchema.getCount());
+        return Math.max(rows, 1);
+    }
+
+    protected int getMaxPreparedStatementParameters()
+    {
+        // the smallest limit among popular databases (SQLite)
+        return 999;
+    }
+
+    protected int getMaxRowsPerStatement()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    protected boolean supportsMultiRowMerge(MergeConfig mergeConfig)
+    {
+        return false;
+    }
+
     protected String buildPreparedInsertSql(TableIdentifier toTable, JdbcSchema toTableSchema) throws SQLException
+    {
+        return buildPreparedInsertSql(toTable, toTableSchema, 1);
+    }
+
+    protected String buildPreparedInsertSql(TableIdentifier toTable, JdbcSchema toTableSchema, int rows) throws SQLException
     {
         StringBuilder sb = new StringBuilder();
 
@@ -355,21 +749,38 @@ public class JdbcOutputConnection
             if(i != 0) { sb.append(", "); }
             quoteIdentifierString(sb, toTableSchema.getColumnName(i));
         }
-        sb.append(") VALUES (");
-        for(int i=0; i < toTableSchema.getCount(); i++) {
-            if(i != 0) { sb.append(", "); }
-            sb.append("?");
-        }
-        sb.append(")");
+        sb.append(") VALUES ");
+        appendPreparedValues(sb, toTableSchema, rows);
 
         return sb.toString();
     }
 
+    protected void appendPreparedValues(StringBuilder sb, JdbcSchema toTableSchema, int rows)
+    {
+        for (int row = 0; row < rows; row++) {
+            if (row != 0) { sb.append(", "); }
+            sb.append("(");
+            for (int i=0; i < toTableSchema.getCount(); i++) {
+                if(i != 0) { sb.append(", "); }
+                sb.append("?");
+            }
+            sb.append(")");
+        }
+    }
+
     protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema toTableSchema, MergeConfig mergeConfig) throws SQLException
     {
         throw new UnsupportedOperationException("not implemented");
     }
 
+    protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema toTableSchema, MergeConfig mergeConfig, int rows) throws SQLException
+    {
+        if (rows == 1) {
+            return buildPreparedMergeSql(toTable, toTableSchema, mergeConfig);
+        }
+        throw new UnsupportedOperationException("not implemented");
+    }
+
     @Deprecated // Use executeUpdateInNewStatement instead.
     protected void executeSql(String sql) throws SQLException
     {
@@ -401,6 +812,21 @@ public class JdbcOutputConnection
         }
     }
 
+    /**
+     * Executes the statement in the current transaction, which is committed by {@link #commit}.
+     */
+    protected void executeWithoutCommit(String sql) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            execute(stmt, sql);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
     protected void collectInsert(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable,
             boolean truncateDestinationFirst, Optional<String> preSql, Optional<String> postSql) throws SQLException
     {
@@ -464,12 +890,46 @@ public class JdbcOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
         }
 
         return sb.toString();
     }
 
+    /**
+     * Appends a table to collect rows from, followed by a WHERE clause if it's a {@link TableKeyRange}.
+     * SQL collecting intermediate tables must use this instead of quoteTableIdentifier.
+     */
+    protected void appendCollectSource(StringBuilder sb, TableIdentifier fromTable)
+    {
+        quoteTableIdentifier(sb, fromTable);
+        if (fromTable instanceof TableKeyRange) {
+            sb.append(" WHERE ");
+            appendKeyRangeCondition(sb, (TableKeyRange) fromTable);
+        }
+    }
+
+    protected void appendKeyRangeCondition(StringBuilder sb, TableKeyRange range)
+    {
+        sb.append("(");
+        if (range.getLowerBound().isPresent()) {
+            quoteIdentifierString(sb, range.getKeyColumn());
+            sb.append(" > ").append(range.getLowerBound().get());
+            if (range.getUpperBound().isPresent()) {
+                sb.append(" AND ");
+                quoteIdentifierString(sb, range.getKeyColumn());
+                sb.append(" <= ").append(range.getUpperBound().get());
+            }
+        } else {
+            quoteIdentifierString(sb, range.getKeyColumn());
+            sb.append(" <= ").append(range.getUpperBound().get());
+            sb.append(" OR ");
+            quoteIdentifierString(sb, range.getKeyColumn());
+            sb.append(" IS NULL");
+        }
+        sb.append(")");
+    }
+
     protected void collectMerge(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable, MergeConfig mergeConfig,
             Optional<String> preSql, Optional<String> postSql) throws SQLException
     {
@@ -503,6 +963,173 @@ public class JdbcOutputConnection
         throw new UnsupportedOperationException("not implemented");
     }
 
+    /**
+     * Same as collectMerge, but leaves the transaction open so that merges on multiple connections are committed together
+     * by {@link #commit()}. The transaction is rolled back if the merge fails.
+     */
+    protected void collectMergeWithoutCommit(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable,
+            MergeConfig mergeConfig) throws SQLException
+    {
+        if (fromTables.isEmpty()) {
+            return;
+        }
+
+        Statement stmt = connection.createStatement();
+        try {
+            String sql = buildCollectMergeSql(fromTables, schema, toTable, mergeConfig);
+            executeUpdate(stmt, sql);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    public void commit() throws SQLException
+    {
+        commitIfNecessary(connection);
+    }
+
+    public void rollback() throws SQLException
+    {
+        SQLException ex = safeRollback(connection, null);
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    /**
+     * Same as collectInsert, but runs one statement per chunk of intermediate tables (commit_chunk_rows).
+     * See {@link #collectInChunks} for atomic.
+     */
+    protected void collectInsertInChunks(List<List<TableIdentifier>> chunks, final JdbcSchema schema, final TableIdentifier toTable,
+            boolean truncateDestinationFirst, Optional<String> preSql, Optional<String> postSql, boolean atomic) throws SQLException
+    {
+        Optional<String> truncateSql = truncateDestinationFirst ? Optional.of(buildTruncateSql(toTable)) : Optional.<String>empty();
+        collectInChunks(chunks, truncateSql, preSql, postSql, atomic, new CollectSqlBuilder() {
+            public String build(List<TableIdentifier> fromTables)
+            {
+                return buildCollectInsertSql(fromTables, schema, toTable);
+            }
+        });
+    }
+
+    /**
+     * Same as collectMerge, but runs one statement per chunk of intermediate tables (commit_chunk_rows).
+     * See {@link #collectInChunks} for atomic.
+     */
+    protected void collectMergeInChunks(List<List<TableIdentifier>> chunks, final JdbcSchema schema, final TableIdentifier toTable,
+            final MergeConfig mergeConfig, Optional<String> preSql, Optional<String> postSql, boolean atomic) throws SQLException
+    {
+        collectInChunks(chunks, Optional.<String>empty(), preSql, postSql, atomic, new CollectSqlBuilder() {
+            public String build(List<TableIdentifier> fromTables) throws SQLException
+            {
+                return buildCollectMergeSql(fromTables, schema, toTable, mergeConfig);
+            }
+        });
+    }
+
+    protected interface CollectSqlBuilder
+    {
+        String build(List<TableIdentifier> fromTables) throws SQLException;
+    }
+
+    /**
+     * If atomic is true, all chunks are committed at once. Otherwise, each chunk is committed together with dropping its
+     * intermediate tables, so that a retry resumes from the remaining tables without truncating the target or running
+     * preSql again. A {@link TableKeyRange} deletes its rows instead, and its table is dropped with the last range.
+     * The ranges must be the same through retries. Databases committing DDL implicitly (e.g. MySQL) may collect a chunk
+     * twice if a retry happens between the commit and the drop.
+     */
+    protected void collectInChunks(List<List<TableIdentifier>> chunks, Optional<String> truncateSql,
+            Optional<String> preSql, Optional<String> postSql, boolean atomic, CollectSqlBuilder sqlBuilder) throws SQLException
+    {
+        List<List<TableIdentifier>> remainingChunks = chunks;
+        boolean resumed = false;
+        if (!atomic) {
+            remainingChunks = new ArrayList<>();
+            for (List<TableIdentifier> chunk : chunks) {
+                List<TableIdentifier> remainingTables = new ArrayList<>();
+                for (TableIdentifier table : chunk) {
+                    if (tableExists(table)) {
+                        remainingTables.add(table);
+                        if (table instanceof TableKeyRange && !((TableKeyRange) table).getLowerBound().isPresent() && isTableEmpty(table)) {
+                            // the first range has the smallest key when the ranges are made, and its rows are deleted when it's collected
+                            resumed = true;
+                        }
+                    } else {
+                        resumed = true;
+                    }
+                }
+                if (!remainingTables.isEmpty()) {
+                    remainingChunks.add(remainingTables);
+                }
+            }
+            if (resumed) {
+                logger.info("Resuming collecting {} chunks of intermediate tables", remainingChunks.size());
+            }
+        }
+
+        Statement stmt = connection.createStatement();
+        try {
+            if (!resumed) {
+                if (truncateSql.isPresent()) {
+                    executeUpdate(stmt, truncateSql.get());
+                }
+                if (preSql.isPresent()) {
+                    execute(stmt, preSql.get());
+                }
+            }
+
+            for (int i = 0; i < remainingChunks.size(); i++) {
+                List<TableIdentifier> fromTables = remainingChunks.get(i);
+                logger.info(String.format("Collecting chunk %d of %d (%d intermediate tables)", i + 1, remainingChunks.size(), fromTables.size()));
+                executeUpdate(stmt, sqlBuilder.build(fromTables));
+                if (!atomic) {
+                    for (TableIdentifier fromTable : fromTables) {
+                        if (fromTable instanceof TableKeyRange && !((TableKeyRange) fromTable).isLast()) {
+                            // the table is dropped with its last range. a retry finds no rows in the collected ranges
+                            executeUpdate(stmt, buildDeleteKeyRangeSql((TableKeyRange) fromTable));
+                        } else {
+                            dropTableIfExists(stmt, fromTable);
+                        }
+                    }
+                    if (i < remainingChunks.size() - 1) {
+                        // the last chunk is committed with postSql
+                        commitIfNecessary(connection);
+                    }
+                }
+            }
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Same as replaceTable, but builds the indexes on fromTable before the swap, so that toTable has them as soon as
+     * it's replaced. Indexes which fromTable already has are not built again.
+     */
+    public void replaceTable(TableIdentifier fromTable, JdbcSchema schema, TableIdentifier toTable, List<JdbcIndex> indexes,
+            Optional<String> postSql) throws SQLException
+    {
+        List<JdbcIndex> remainingIndexes = new ArrayList<>();
+        for (JdbcIndex index : indexes) {
+            if (!indexExists(fromTable, index.getName())) {
+                remainingIndexes.add(index);
+            }
+        }
+        createIndexes(fromTable, remainingIndexes);
+        replaceTable(fromTable, schema, toTable, postSql);
+    }
+
     public void replaceTable(TableIdentifier fromTable, JdbcSchema schema, TableIdentifier toTable, Optional<String> postSql) throws SQLException
     {
         Statement stmt = connection.createStatement();
@@ -523,6 +1150,250 @@ public class JdbcOutputConnection
         }
     }
 
+    /**
+     * Creates a table which can be exchanged with a partition of partitionedTable. The default implementation creates
+     * the table from schema, tableConstraint and tableOption.
+     */
+    public void createPartitionTable(TableIdentifier table, TableIdentifier partitionedTable, String partition, JdbcSchema schema,
+            Optional<String> tableConstraint, Optional<String> tableOption) throws SQLException
+    {
+        createTable(table, schema, tableConstraint, tableOption);
+    }
+
+    /**
+     * Replaces rows of a partition of toTable with fromTable by the partition operations of the database in a transaction.
+     * Only rows of the partition are read or written.
+     */
+    public void replacePartition(TableIdentifier fromTable, TableIdentifier toTable, String partition,
+            Optional<String> preSql, Optional<String> postSql) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            if (preSql.isPresent()) {
+                execute(stmt, preSql.get());
+            }
+
+            for (String sql : buildReplacePartitionSqls(fromTable, toTable, partition)) {
+                executeUpdate(stmt, sql);
+            }
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected List<String> buildReplacePartitionSqls(TableIdentifier fromTable, TableIdentifier toTable, String partition) throws SQLException
+    {
+        throw new UnsupportedOperationException("not implemented");
+    }
+
+    /**
+     * Makes fromTable the new toTable by renaming it, and collects otherTables into it, so that rows of fromTable are not copied.
+     * toTable must not exist. If the database can append a table to another without copying rows, otherTables are appended
+     * after the rename is committed.
+     */
+    protected void collectInsertByRename(TableIdentifier fromTable, List<TableIdentifier> otherTables, JdbcSchema schema, TableIdentifier toTable,
+            Optional<String> preSql, Optional<String> postSql) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            if (preSql.isPresent()) {
+                execute(stmt, preSql.get());
+            }
+
+            executeUpdate(stmt, buildRenameTableSql(fromTable, toTable));
+
+            if (!otherTables.isEmpty()) {
+                if (supportsAppendTable()) {
+                    commitIfNecessary(connection);
+                    appendTables(stmt, otherTables, schema, toTable);
+                } else {
+                    executeUpdate(stmt, buildCollectInsertSql(otherTables, schema, toTable));
+                }
+            }
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Same as collectInsertByRename, but runs one statement per chunk of otherTables (commit_chunk_rows). The rename and
+     * all chunks are committed at once. Used only if {@link #supportsTransactionalDdl()} is true.
+     */
+    protected void collectInsertByRenameInChunks(TableIdentifier fromTable, List<List<TableIdentifier>> chunks, JdbcSchema schema,
+            TableIdentifier toTable, Optional<String> preSql, Optional<String> postSql) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            if (preSql.isPresent()) {
+                execute(stmt, preSql.get());
+            }
+
+            executeUpdate(stmt, buildRenameTableSql(fromTable, toTable));
+
+            for (int i = 0; i < chunks.size(); i++) {
+                List<TableIdentifier> fromTables = chunks.get(i);
+                logger.info(String.format("Collecting chunk %d of %d (%d intermediate tables)", i + 1, chunks.size(), fromTables.size()));
+                executeUpdate(stmt, buildCollectInsertSql(fromTables, schema, toTable));
+            }
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Appends fromTables to toTable without copying rows. Used only if {@link #supportsAppendTable} returns true.
+     * preSql is committed before the tables are appended.
+     */
+    protected void collectAppend(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable,
+            Optional<String> preSql, Optional<String> postSql) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            if (preSql.isPresent()) {
+                execute(stmt, preSql.get());
+                commitIfNecessary(connection);
+            }
+
+            appendTables(stmt, fromTables, schema, toTable);
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // Appending a table moves its rows, and commits by itself. If appending fails (e.g. a column of toTable has
+    // different attributes), the tables are inserted instead. Tables appended before the failure are empty.
+    private void appendTables(Statement stmt, List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable) throws SQLException
+    {
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(true);
+            for (TableIdentifier fromTable : fromTables) {
+                executeUpdate(stmt, buildAppendTableSql(fromTable, toTable));
+            }
+            return;
+        } catch (SQLException ex) {
+            logger.warn("Failed to append tables. Inserting them instead: {}", ex.getMessage());
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        executeUpdate(stmt, buildCollectInsertSql(fromTables, schema, toTable));
+    }
+
+    /**
+     * Returns true if {@link #buildAppendTableSql} is implemented. Rows are moved to the other table without being copied.
+     */
+    protected boolean supportsAppendTable()
+    {
+        return false;
+    }
+
+    protected String buildAppendTableSql(TableIdentifier fromTable, TableIdentifier toTable)
+    {
+        throw new UnsupportedOperationException("not implemented");
+    }
+
+    /**
+     * Returns upper bounds of up to the given number of ranges of the integer key column of the table, except the last
+     * range, with equal widths between the smallest and the largest key. Unevenly distributed keys make ranges of
+     * uneven rows. Returns an empty list if the table has only one key.
+     */
+    public List<Long> findKeyBoundaries(TableIdentifier table, String keyColumn, int ranges) throws SQLException
+    {
+        Long min;
+        Long max;
+        Statement stmt = connection.createStatement();
+        try {
+            String sql = "SELECT MIN(" + quoteIdentifierString(keyColumn) + "), MAX(" + quoteIdentifierString(keyColumn) + ")"
+                    + " FROM " + quoteTableIdentifier(table);
+            ResultSet rs = stmt.executeQuery(sql);
+            try {
+                rs.next();
+                Object minValue = rs.getObject(1);
+                Object maxValue = rs.getObject(2);
+                min = minValue == null ? null : ((Number) minValue).longValue();
+                max = maxValue == null ? null : ((Number) maxValue).longValue();
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+
+        List<Long> boundaries = new ArrayList<>();
+        if (min == null || min.equals(max)) {
+            return boundaries;
+        }
+        // BigInteger doesn't overflow by the width
+        BigInteger lowest = BigInteger.valueOf(min);
+        BigInteger width = BigInteger.valueOf(max).subtract(lowest);
+        for (int i = 1; i < ranges; i++) {
+            long boundary = lowest.add(width.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(ranges))).longValue();
+            if (boundaries.isEmpty() || boundaries.get(boundaries.size() - 1) < boundary) {
+                boundaries.add(boundary);
+            }
+        }
+        return boundaries;
+    }
+
+    protected String buildDeleteKeyRangeSql(TableKeyRange range)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DELETE FROM ");
+        appendCollectSource(sb, range);
+        return sb.toString();
+    }
+
+    public boolean isTableEmpty(TableIdentifier table) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.setMaxRows(1);
+            StringBuilder sb = new StringBuilder();
+            sb.append("SELECT 1 FROM ");
+            appendCollectSource(sb, table);
+            ResultSet rs = stmt.executeQuery(sb.toString());
+            try {
+                return !rs.next();
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
     protected String quoteTableIdentifier(TableIdentifier table)
     {
         StringBuilder sb = new StringBuilder();
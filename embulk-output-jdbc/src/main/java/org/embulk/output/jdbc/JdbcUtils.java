@@ -30,6 +30,17 @@ public class JdbcUtils
         return searchString;
     }
 
+    // 64-bit FNV-1a to build names of indexes. intermediate tables of a transaction differ only in their suffixes,
+    // which String.hashCode may map to the same 32-bit value
+    public static long fnv1a64(String s)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (char c : s.toCharArray()) {
+            hash = (hash ^ c) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     private Class<?> connectionClass;
 
     // Connection.isValid() is available from Java 1.6 + JDBC4.
@@ -0,0 +1,177 @@
+package org.embulk.output.jdbc;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of loading rows by a task, which are reported by TaskReport and summed up into the config diff at commit.
+ * Batches may be flushed in background threads, so that methods are synchronized.
+ */
+public class LoadMetrics
+{
+    // upper bounds of flush latency buckets. the last bucket doesn't have an upper bound.
+    private static final long[] LATENCY_BUCKET_MILLIS = {10L, 100L, 1000L, 10000L, 60000L};
+    private static final String[] LATENCY_BUCKET_NAMES = {"<10ms", "<100ms", "<1s", "<10s", "<60s", ">=60s"};
+
+    private long rows;
+    private long bytes;
+    private long flushes;
+    private long retries;
+    private long flushNanos;
+    private long encodeNanos;
+    private long waitNanos;
+    private final long[] flushLatency;
+
+    public LoadMetrics()
+    {
+        this.flushLatency = new long[LATENCY_BUCKET_NAMES.length];
+    }
+
+    @JsonCreator
+    public LoadMetrics(
+            @JsonProperty("rows") long rows,
+            @JsonProperty("bytes") long bytes,
+            @JsonProperty("flushes") long flushes,
+            @JsonProperty("retries") long retries,
+            @JsonProperty("flush_time_ms") long flushMillis,
+            @JsonProperty("encode_time_ms") long encodeMillis,
+            @JsonProperty("wait_time_ms") long waitMillis,
+            @JsonProperty("flush_latency") Map<String, Long> flushLatency)
+    {
+        this();
+        this.rows = rows;
+        this.bytes = bytes;
+        this.flushes = flushes;
+        this.retries = retries;
+        this.flushNanos = flushMillis * 1000000L;
+        this.encodeNanos = encodeMillis * 1000000L;
+        this.waitNanos = waitMillis * 1000000L;
+        if (flushLatency != null) {
+            for (int i = 0; i < LATENCY_BUCKET_NAMES.length; i++) {
+                Long count = flushLatency.get(LATENCY_BUCKET_NAMES[i]);
+                if (count != null) {
+                    this.flushLatency[i] = count;
+                }
+            }
+        }
+    }
+
+    public synchronized void addRows(long rows)
+    {
+        this.rows += rows;
+    }
+
+    /**
+     * Records a successful flush.
+     * @param bytes weight of the batch, which approximates the size of data sent to the database
+     * @param nanos time taken by the flush including retries
+     */
+    public synchronized void recordFlush(long bytes, long nanos)
+    {
+        this.bytes += bytes;
+        this.flushes++;
+        this.flushNanos += nanos;
+        long millis = nanos / 1000000L;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKET_MILLIS.length && millis >= LATENCY_BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        flushLatency[bucket]++;
+    }
+
+    public synchronized void recordRetry()
+    {
+        retries++;
+    }
+
+    // time to read pages and to set values to batches
+    public synchronized void addEncodeTime(long nanos)
+    {
+        encodeNanos += nanos;
+    }
+
+    // time for which the task is blocked by the database
+    public synchronized void addWaitTime(long nanos)
+    {
+        waitNanos += nanos;
+    }
+
+    public synchronized void merge(LoadMetrics other)
+    {
+        synchronized (other) {
+            rows += other.rows;
+            bytes += other.bytes;
+            flushes += other.flushes;
+            retries += other.retries;
+            flushNanos += other.flushNanos;
+            encodeNanos += other.encodeNanos;
+            waitNanos += other.waitNanos;
+            for (int i = 0; i < flushLatency.length; i++) {
+                flushLatency[i] += other.flushLatency[i];
+            }
+        }
+    }
+
+    @JsonProperty("rows")
+    public synchronized long getRows()
+    {
+        return rows;
+    }
+
+    @JsonProperty("bytes")
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    @JsonProperty("flushes")
+    public synchronized long getFlushes()
+    {
+        return flushes;
+    }
+
+    @JsonProperty("retries")
+    public synchronized long getRetries()
+    {
+        return retries;
+    }
+
+    @JsonProperty("flush_time_ms")
+    public synchronized long getFlushMillis()
+    {
+        return flushNanos / 1000000L;
+    }
+
+    @JsonProperty("encode_time_ms")
+    public synchronized long getEncodeMillis()
+    {
+        return encodeNanos / 1000000L;
+    }
+
+    @JsonProperty("wait_time_ms")
+    public synchronized long getWaitMillis()
+    {
+        return waitNanos / 1000000L;
+    }
+
+    @JsonProperty("flush_latency")
+    public synchronized Map<String, Long> getFlushLatency()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKET_NAMES.length; i++) {
+            map.put(LATENCY_BUCKET_NAMES[i], flushLatency[i]);
+        }
+        return map;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("rows=%,d bytes=%,d flushes=%,d retries=%,d flush=%.2fs encode=%.2fs wait=%.2fs flush_latency=%s",
+                rows, bytes, flushes, retries,
+                flushNanos / 1e9, encodeNanos / 1e9, waitNanos / 1e9,
+                getFlushLatency());
+    }
+}
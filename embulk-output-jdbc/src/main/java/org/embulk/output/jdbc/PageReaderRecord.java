@@ -1,8 +1,7 @@
 package org.embulk.output.jdbc;
 
+import java.io.IOException;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.embulk.spi.Column;
 import org.embulk.spi.Page;
@@ -11,18 +10,23 @@ import org.msgpack.value.Value;
 
 /**
  * Record read by PageReader.
- * The class will save read records for retry.
+ * The class will save read records for retry unless the buffer is null.
  */
 public class PageReaderRecord implements Record
 {
     private final PageReader pageReader;
-    private final List<MemoryRecord> readRecords;
-    private MemoryRecord lastRecord;
+    private RecordBuffer readRecords;
+    private boolean saved;
 
     public PageReaderRecord(PageReader pageReader)
+    {
+        this(pageReader, new RecordBuffer(pageReader.getSchema(), Long.MAX_VALUE));
+    }
+
+    public PageReaderRecord(PageReader pageReader, RecordBuffer readRecords)
     {
         this.pageReader = pageReader;
-        readRecords = new ArrayList<>();
+        this.readRecords = readRecords;
     }
 
     public void setPage(Page page)
@@ -32,63 +36,110 @@ public class PageReaderRecord implements Record
 
     public boolean nextRecord()
     {
-        lastRecord = null; // lastRecord will be created in next `save` method execution.
+        saved = false; // the record will be added to the buffer in next `save` method execution.
         return pageReader.nextRecord();
     }
 
     public boolean isNull(Column column)
     {
+        if (readRecords != null) {
+            save();  // save the record even if all values are null
+        }
         return pageReader.isNull(column);
     }
 
     public boolean getBoolean(Column column)
     {
-        return save(column, pageReader.getBoolean(column));
+        boolean value = pageReader.getBoolean(column);
+        if (readRecords != null) {
+            save().setBoolean(column, value);
+        }
+        return value;
     }
 
     public long getLong(Column column)
     {
-        return save(column, pageReader.getLong(column));
+        long value = pageReader.getLong(column);
+        if (readRecords != null) {
+            save().setLong(column, value);
+        }
+        return value;
     }
 
     public double getDouble(Column column)
     {
-        return save(column, pageReader.getDouble(column));
+        double value = pageReader.getDouble(column);
+        if (readRecords != null) {
+            save().setDouble(column, value);
+        }
+        return value;
     }
 
     public String getString(Column column)
     {
-        return save(column, pageReader.getString(column));
+        String value = pageReader.getString(column);
+        if (readRecords != null) {
+            save().setString(column, value);
+        }
+        return value;
     }
 
     public Instant getTimestamp(Column column)
     {
-        return save(column, pageReader.getTimestamp(column).getInstant());
+        Instant value = pageReader.getTimestampInstant(column);
+        if (readRecords != null) {
+            save().setTimestamp(column, value);
+        }
+        return value;
     }
 
     public Value getJson(Column column)
     {
-        return save(column, pageReader.getJson(column));
+        Value value = pageReader.getJson(column);
+        if (readRecords != null) {
+            save().setJson(column, value);
+        }
+        return value;
     }
 
-    public List<? extends Record> getReadRecords()
+    public RecordBuffer getReadRecords()
     {
         return readRecords;
     }
 
+    /**
+     * Switches the buffer to which read records are saved. null stops saving records.
+     * Records saved before remain in the previous buffer.
+     */
+    public void setReadRecords(RecordBuffer readRecords)
+    {
+        this.readRecords = readRecords;
+        saved = false;
+    }
+
     public void clearReadRecords()
     {
-        readRecords.clear();
-        lastRecord = null;
+        if (readRecords == null) {
+            return;
+        }
+        try {
+            readRecords.reset();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        saved = false;
     }
 
-    private <T> T save(Column column, T value)
+    private RecordBuffer save()
     {
-        if (lastRecord == null) {
-            lastRecord = new MemoryRecord(pageReader.getSchema().getColumnCount());
-            readRecords.add(lastRecord);
+        if (!saved) {
+            try {
+                readRecords.addRecord();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            saved = true;
         }
-        lastRecord.setValue(column, value);
-        return value;
+        return readRecords;
     }
 }
@@ -0,0 +1,946 @@
+package org.embulk.output.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Schema;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+/**
+ * Columnar buffer of records saved for retry.
+ * Values are stored in primitive arrays per column, and the arrays are reused after {@link #reset()}.
+ * If the estimated size of the buffer exceeds the memory limit, records are spilled to a temporary file.
+ * <p>
+ * If sort keys are given, records are read in the order of the keys by {@link #sortedCursor()}. Records in memory
+ * are sorted when they are read, and spilled records are written as sorted runs which are merged when they are read.
+ */
+public class RecordBuffer
+        implements AutoCloseable
+{
+    private static final int INITIAL_CAPACITY = 1024;
+    // rows per chunk of a sorted run. a chunk of each run is kept in memory while runs are merged
+    private static final int RUN_CHUNK_ROWS = 1024;
+
+    // boolean and long keys are compared as long
+    private static final byte KEY_LONG = 0;
+    private static final byte KEY_DOUBLE = 1;
+    private static final byte KEY_TIMESTAMP = 2;
+    private static final byte KEY_STRING = 3;
+    private static final byte KEY_JSON = 4;
+
+    private final Schema schema;
+    private final long maxMemory;
+    private final File directory;
+    private final Chunk chunk;
+    private final RecordCopier copier;
+    private long estimatedBytes;
+    private long totalEstimatedBytes;
+
+    private File spillFile;
+    private DataOutputStream spillOutput;
+    private int spilledRows;
+
+    private final int[] sortColumns;
+    private final byte[] sortKinds;
+    private final List<File> runFiles = new ArrayList<>();
+
+    public RecordBuffer(Schema schema, long maxMemory)
+    {
+        this(schema, maxMemory, null);
+    }
+
+    /**
+     * @param sortKeys columns to sort records by, or null if records are read in the order they are added
+     */
+    public RecordBuffer(Schema schema, long maxMemory, List<Column> sortKeys)
+    {
+        this(schema, maxMemory, sortKeys, null);
+    }
+
+    /**
+     * @param sortKeys columns to sort records by, or null if records are read in the order they are added
+     * @param directory directory of temporary files (temp_dir), or null to use the system temporary directory
+     */
+    public RecordBuffer(Schema schema, long maxMemory, List<Column> sortKeys, File directory)
+    {
+        this.schema = schema;
+        this.maxMemory = maxMemory;
+        this.directory = directory;
+        this.chunk = new Chunk(schema);
+        this.copier = new RecordCopier();
+        if (sortKeys != null) {
+            this.sortColumns = new int[sortKeys.size()];
+            this.sortKinds = new byte[sortKeys.size()];
+            for (int i = 0; i < sortColumns.length; i++) {
+                final int index = i;
+                sortColumns[i] = sortKeys.get(i).getIndex();
+                sortKeys.get(i).visit(new ColumnVisitor() {
+                    public void booleanColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_LONG;
+                    }
+
+                    public void longColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_LONG;
+                    }
+
+                    public void doubleColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_DOUBLE;
+                    }
+
+                    public void stringColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_STRING;
+                    }
+
+                    public void timestampColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_TIMESTAMP;
+                    }
+
+                    public void jsonColumn(Column column)
+                    {
+                        sortKinds[index] = KEY_JSON;
+                    }
+                });
+            }
+        } else {
+            this.sortColumns = null;
+            this.sortKinds = null;
+        }
+    }
+
+    /**
+     * Number of records in the buffer.
+     */
+    public int size()
+    {
+        return spilledRows + chunk.rows;
+    }
+
+    /**
+     * Estimated size of all records in the buffer, including spilled ones.
+     */
+    public long getEstimatedSize()
+    {
+        return totalEstimatedBytes + estimatedBytes;
+    }
+
+    /**
+     * Starts a new record. All values of the record are null until they are set.
+     */
+    public void addRecord() throws IOException
+    {
+        if (estimatedBytes > maxMemory && chunk.rows > 0) {
+            spill();
+        }
+        chunk.addRow();
+        estimatedBytes += 8 * chunk.columnCount + 16;
+    }
+
+    /**
+     * Adds a copy of the record.
+     */
+    public void addRecord(Record record) throws IOException
+    {
+        addRecord();
+        copier.record = record;
+        for (Column column : schema.getColumns()) {
+            if (!record.isNull(column)) {
+                column.visit(copier);
+            }
+        }
+        copier.record = null;
+    }
+
+    public void setBoolean(Column column, boolean value)
+    {
+        chunk.setLong(column.getIndex(), value ? 1 : 0);
+    }
+
+    public void setLong(Column column, long value)
+    {
+        chunk.setLong(column.getIndex(), value);
+    }
+
+    public void setDouble(Column column, double value)
+    {
+        chunk.setLong(column.getIndex(), Double.doubleToRawLongBits(value));
+    }
+
+    public void setString(Column column, String value)
+    {
+        chunk.setObject(column.getIndex(), value);
+        estimatedBytes += value.length() * 2 + 40;
+    }
+
+    public void setTimestamp(Column column, Instant value)
+    {
+        chunk.setLong(column.getIndex(), value.getEpochSecond());
+        chunk.setNano(column.getIndex(), value.getNano());
+    }
+
+    public void setJson(Column column, Value value)
+    {
+        chunk.setObject(column.getIndex(), value);
+        estimatedBytes += 256;  // rough estimation. JSON is rarely large enough to be worth counting
+    }
+
+    /**
+     * Removes all records. Arrays are kept to be reused.
+     */
+    public void reset() throws IOException
+    {
+        chunk.reset();
+        estimatedBytes = 0;
+        totalEstimatedBytes = 0;
+        spilledRows = 0;
+        deleteSpillFile();
+        deleteRunFiles();
+    }
+
+    /**
+     * Returns a cursor to read records from the first one. The buffer must not be modified while the cursor is used.
+     */
+    public Cursor cursor() throws IOException
+    {
+        if (sortColumns != null) {
+            throw new IllegalStateException("Records sorted by keys are read by sortedCursor.");
+        }
+        return new Cursor();
+    }
+
+    /**
+     * Returns a cursor to read records in the order of the sort keys. Records of the same key are read in the order
+     * they were added. The buffer must not be modified while the cursor is used.
+     */
+    public SortedCursor sortedCursor() throws IOException
+    {
+        if (sortColumns == null) {
+            throw new IllegalStateException("Sort keys are not set.");
+        }
+        return new SortedCursor();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        deleteSpillFile();
+        deleteRunFiles();
+    }
+
+    private void spill() throws IOException
+    {
+        if (sortColumns != null) {
+            spillRun();
+            return;
+        }
+        if (spillOutput == null) {
+            spillFile = File.createTempFile("embulk-output-jdbc-records-", ".tmp", directory);
+            spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        }
+        spilledRows += chunk.rows;
+        chunk.writeTo(spillOutput);
+        chunk.reset();
+        totalEstimatedBytes += estimatedBytes;
+        estimatedBytes = 0;
+    }
+
+    private void spillRun() throws IOException
+    {
+        final int[] order = sortRows(chunk);
+        final File runFile = File.createTempFile("embulk-output-jdbc-records-", ".tmp", directory);
+        runFiles.add(runFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (int from = 0; from < order.length; from += RUN_CHUNK_ROWS) {
+                chunk.writeTo(out, order, from, Math.min(from + RUN_CHUNK_ROWS, order.length));
+            }
+        }
+        spilledRows += chunk.rows;
+        chunk.reset();
+        totalEstimatedBytes += estimatedBytes;
+        estimatedBytes = 0;
+    }
+
+    private void deleteRunFiles()
+    {
+        for (File runFile : runFiles) {
+            if (!runFile.delete()) {
+                runFile.deleteOnExit();
+            }
+        }
+        runFiles.clear();
+    }
+
+    /**
+     * Returns row numbers of the chunk in the order of the sort keys. The sort is stable.
+     */
+    private int[] sortRows(Chunk source)
+    {
+        final int[] order = new int[source.rows];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        mergeSort(source, order.clone(), order, 0, order.length);
+        return order;
+    }
+
+    // sorts src[from, to) into dst[from, to). src and dst have the same elements in the range when it's called
+    private void mergeSort(Chunk source, int[] src, int[] dst, int from, int to)
+    {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int row = dst[i];
+                int j = i;
+                while (j > from && compareRows(source, dst[j - 1], source, row) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = row;
+            }
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        mergeSort(source, dst, src, from, mid);
+        mergeSort(source, dst, src, mid, to);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && compareRows(source, src[left], source, src[right]) <= 0)) {
+                dst[i] = src[left++];
+            } else {
+                dst[i] = src[right++];
+            }
+        }
+    }
+
+    // nulls are placed last as the default ascending order of PostgreSQL
+    private int compareRows(Chunk a, int rowA, Chunk b, int rowB)
+    {
+        for (int i = 0; i < sortColumns.length; i++) {
+            final int column = sortColumns[i];
+            final boolean setA = a.isSet(rowA, column);
+            final boolean setB = b.isSet(rowB, column);
+            if (!setA || !setB) {
+                if (setA != setB) {
+                    return setA ? -1 : 1;
+                }
+                continue;
+            }
+            final int result;
+            switch (sortKinds[i]) {
+            case KEY_DOUBLE:
+                result = Double.compare(Double.longBitsToDouble(a.getLong(rowA, column)), Double.longBitsToDouble(b.getLong(rowB, column)));
+                break;
+            case KEY_TIMESTAMP:
+                final int seconds = Long.compare(a.getLong(rowA, column), b.getLong(rowB, column));
+                result = seconds != 0 ? seconds : Integer.compare(a.getNano(rowA, column), b.getNano(rowB, column));
+                break;
+            case KEY_STRING:
+                result = ((String) a.getObject(rowA, column)).compareTo((String) b.getObject(rowB, column));
+                break;
+            case KEY_JSON:
+                result = a.getObject(rowA, column).toString().compareTo(b.getObject(rowB, column).toString());
+                break;
+            default:
+                result = Long.compare(a.getLong(rowA, column), b.getLong(rowB, column));
+                break;
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private void deleteSpillFile() throws IOException
+    {
+        if (spillOutput != null) {
+            spillOutput.close();
+            spillOutput = null;
+        }
+        if (spillFile != null) {
+            if (!spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+            spillFile = null;
+        }
+    }
+
+    private class RecordCopier
+            implements ColumnVisitor
+    {
+        private Record record;
+
+        public void booleanColumn(Column column)
+        {
+            setBoolean(column, record.getBoolean(column));
+        }
+
+        public void longColumn(Column column)
+        {
+            setLong(column, record.getLong(column));
+        }
+
+        public void doubleColumn(Column column)
+        {
+            setDouble(column, record.getDouble(column));
+        }
+
+        public void stringColumn(Column column)
+        {
+            setString(column, record.getString(column));
+        }
+
+        public void timestampColumn(Column column)
+        {
+            setTimestamp(column, record.getTimestamp(column));
+        }
+
+        public void jsonColumn(Column column)
+        {
+            setJson(column, record.getJson(column));
+        }
+    }
+
+    /**
+     * Reads records in the buffer one by one. Spilled records are read back chunk by chunk.
+     */
+    public class Cursor
+            implements Record, AutoCloseable
+    {
+        private DataInputStream spillInput;
+        private final Chunk spilledChunk;
+        private Chunk current;
+        private int row = -1;
+        private int index = -1;
+
+        private Cursor() throws IOException
+        {
+            if (spillOutput != null) {
+                spillOutput.flush();
+                spillInput = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+                spilledChunk = new Chunk(schema);
+                current = spilledChunk;
+            } else {
+                spilledChunk = null;
+                current = chunk;
+            }
+        }
+
+        /**
+         * Moves to the next record.
+         */
+        public boolean next() throws IOException
+        {
+            row++;
+            while (row >= current.rows) {
+                if (current == chunk) {
+                    return false;
+                }
+                row = 0;
+                if (!spilledChunk.readFrom(spillInput)) {
+                    spillInput.close();
+                    spillInput = null;
+                    current = chunk;
+                }
+            }
+            index++;
+            return true;
+        }
+
+        /**
+         * Index of the current record in the buffer.
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public boolean isNull(Column column)
+        {
+            return !current.isSet(row, column.getIndex());
+        }
+
+        public boolean getBoolean(Column column)
+        {
+            return current.getLong(row, column.getIndex()) != 0;
+        }
+
+        public long getLong(Column column)
+        {
+            return current.getLong(row, column.getIndex());
+        }
+
+        public double getDouble(Column column)
+        {
+            return Double.longBitsToDouble(current.getLong(row, column.getIndex()));
+        }
+
+        public String getString(Column column)
+        {
+            return (String) current.getObject(row, column.getIndex());
+        }
+
+        public Instant getTimestamp(Column column)
+        {
+            return Instant.ofEpochSecond(current.getLong(row, column.getIndex()), current.getNano(row, column.getIndex()));
+        }
+
+        public Value getJson(Column column)
+        {
+            return (Value) current.getObject(row, column.getIndex());
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (spillInput != null) {
+                spillInput.close();
+                spillInput = null;
+            }
+        }
+    }
+
+    /**
+     * Reads records in the order of the sort keys by merging sorted runs and the records in memory.
+     */
+    public class SortedCursor
+            implements Record, AutoCloseable
+    {
+        private final List<Run> runs = new ArrayList<>();
+        private final PriorityQueue<Run> queue;
+        private Run current;
+
+        private SortedCursor() throws IOException
+        {
+            // records of the same key are read from older runs first
+            this.queue = new PriorityQueue<>(runFiles.size() + 1, (a, b) -> {
+                final int result = compareRows(a.chunk, a.row, b.chunk, b.row);
+                return result != 0 ? result : Integer.compare(a.number, b.number);
+            });
+            try {
+                for (File runFile : runFiles) {
+                    runs.add(new Run(runs.size(), new DataInputStream(new BufferedInputStream(new FileInputStream(runFile)))));
+                }
+                runs.add(new Run(runs.size(), sortRows(chunk)));
+                for (Run run : runs) {
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Moves to the next record.
+         */
+        public boolean next() throws IOException
+        {
+            if (current != null && current.next()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        public boolean isNull(Column column)
+        {
+            return !current.chunk.isSet(current.row, column.getIndex());
+        }
+
+        public boolean getBoolean(Column column)
+        {
+            return current.chunk.getLong(current.row, column.getIndex()) != 0;
+        }
+
+        public long getLong(Column column)
+        {
+            return current.chunk.getLong(current.row, column.getIndex());
+        }
+
+        public double getDouble(Column column)
+        {
+            return Double.longBitsToDouble(current.chunk.getLong(current.row, column.getIndex()));
+        }
+
+        public String getString(Column column)
+        {
+            return (String) current.chunk.getObject(current.row, column.getIndex());
+        }
+
+        public Instant getTimestamp(Column column)
+        {
+            return Instant.ofEpochSecond(current.chunk.getLong(current.row, column.getIndex()), current.chunk.getNano(current.row, column.getIndex()));
+        }
+
+        public Value getJson(Column column)
+        {
+            return (Value) current.chunk.getObject(current.row, column.getIndex());
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for (Run run : runs) {
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * A sorted run read chunk by chunk from a file, or the records in memory read in the sorted order.
+     */
+    private class Run
+    {
+        private final int number;
+        private final Chunk chunk;
+        private final int[] order;
+        private DataInputStream input;
+        private int position = -1;
+        private int row;
+
+        Run(int number, DataInputStream input)
+        {
+            this.number = number;
+            this.chunk = new Chunk(schema);
+            this.order = null;
+            this.input = input;
+        }
+
+        Run(int number, int[] order)
+        {
+            this.number = number;
+            this.chunk = RecordBuffer.this.chunk;
+            this.order = order;
+            this.input = null;
+        }
+
+        boolean next() throws IOException
+        {
+            position++;
+            if (order != null) {
+                if (position >= order.length) {
+                    return false;
+                }
+                row = order[position];
+                return true;
+            }
+            while (position >= chunk.rows) {
+                if (input == null || !chunk.readFrom(input)) {
+                    close();
+                    return false;
+                }
+                position = 0;
+            }
+            row = position;
+            return true;
+        }
+
+        void close() throws IOException
+        {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+    }
+
+    private static class Chunk
+    {
+        private static final byte PRIMITIVE = 0;  // boolean, long and double are stored as long
+        private static final byte TIMESTAMP = 1;
+        private static final byte STRING = 2;
+        private static final byte JSON = 3;
+
+        private final int columnCount;
+        private final byte[] kinds;
+        private final long[][] longs;
+        private final int[][] nanos;
+        private final Object[][] objects;
+        private long[] setBits;
+        private int capacity;
+        private int rows;
+
+        Chunk(Schema schema)
+        {
+            this.columnCount = schema.getColumnCount();
+            this.kinds = new byte[columnCount];
+            this.longs = new long[columnCount][];
+            this.nanos = new int[columnCount][];
+            this.objects = new Object[columnCount][];
+            for (Column column : schema.getColumns()) {
+                column.visit(new ColumnVisitor() {
+                    public void booleanColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = PRIMITIVE;
+                    }
+
+                    public void longColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = PRIMITIVE;
+                    }
+
+                    public void doubleColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = PRIMITIVE;
+                    }
+
+                    public void stringColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = STRING;
+                    }
+
+                    public void timestampColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = TIMESTAMP;
+                    }
+
+                    public void jsonColumn(Column column)
+                    {
+                        kinds[column.getIndex()] = JSON;
+                    }
+                });
+            }
+            // arrays are allocated when the first row is added
+        }
+
+        void addRow()
+        {
+            if (rows == capacity) {
+                grow(capacity == 0 ? INITIAL_CAPACITY : capacity * 2);
+            }
+            rows++;
+        }
+
+        void setLong(int column, long value)
+        {
+            longs[column][rows - 1] = value;
+            markSet(rows - 1, column);
+        }
+
+        void setNano(int column, int value)
+        {
+            nanos[column][rows - 1] = value;
+        }
+
+        void setObject(int column, Object value)
+        {
+            objects[column][rows - 1] = value;
+            markSet(rows - 1, column);
+        }
+
+        boolean isSet(int row, int column)
+        {
+            long bit = (long) row * columnCount + column;
+            return (setBits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+
+        long getLong(int row, int column)
+        {
+            return longs[column][row];
+        }
+
+        int getNano(int row, int column)
+        {
+            return nanos[column][row];
+        }
+
+        Object getObject(int row, int column)
+        {
+            return objects[column][row];
+        }
+
+        void reset()
+        {
+            // release references to strings and JSON values
+            for (int i = 0; i < columnCount; i++) {
+                if (objects[i] != null) {
+                    Arrays.fill(objects[i], 0, rows, null);
+                }
+            }
+            if (setBits != null) {
+                Arrays.fill(setBits, 0, bitWords(rows), 0L);
+            }
+            rows = 0;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException
+        {
+            out.writeInt(rows);
+            int words = bitWords(rows);
+            for (int i = 0; i < words; i++) {
+                out.writeLong(setBits[i]);
+            }
+            for (int column = 0; column < columnCount; column++) {
+                for (int row = 0; row < rows; row++) {
+                    if (isSet(row, column)) {
+                        writeValue(out, row, column);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes rows order[from] ... order[to - 1] in the same format as a chunk.
+         */
+        void writeTo(DataOutputStream out, int[] order, int from, int to) throws IOException
+        {
+            final int count = to - from;
+            out.writeInt(count);
+            final long[] bits = new long[bitWords(count)];
+            for (int i = 0; i < count; i++) {
+                for (int column = 0; column < columnCount; column++) {
+                    if (isSet(order[from + i], column)) {
+                        long bit = (long) i * columnCount + column;
+                        bits[(int) (bit >>> 6)] |= 1L << bit;
+                    }
+                }
+            }
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            for (int column = 0; column < columnCount; column++) {
+                for (int i = 0; i < count; i++) {
+                    if (isSet(order[from + i], column)) {
+                        writeValue(out, order[from + i], column);
+                    }
+                }
+            }
+        }
+
+        private void writeValue(DataOutputStream out, int row, int column) throws IOException
+        {
+            switch (kinds[column]) {
+            case STRING:
+                writeBytes(out, ((String) objects[column][row]).getBytes(StandardCharsets.UTF_8));
+                break;
+            case JSON:
+                MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+                packer.packValue((Value) objects[column][row]);
+                packer.close();
+                writeBytes(out, packer.toByteArray());
+                break;
+            case TIMESTAMP:
+                out.writeLong(longs[column][row]);
+                out.writeInt(nanos[column][row]);
+                break;
+            default:
+                out.writeLong(longs[column][row]);
+                break;
+            }
+        }
+
+        boolean readFrom(DataInputStream in) throws IOException
+        {
+            reset();
+            int newRows;
+            try {
+                newRows = in.readInt();
+            } catch (EOFException ex) {
+                return false;
+            }
+            while (capacity < newRows) {
+                grow(capacity == 0 ? INITIAL_CAPACITY : capacity * 2);
+            }
+            rows = newRows;
+            int words = bitWords(rows);
+            for (int i = 0; i < words; i++) {
+                setBits[i] = in.readLong();
+            }
+            for (int column = 0; column < columnCount; column++) {
+                for (int row = 0; row < rows; row++) {
+                    if (!isSet(row, column)) {
+                        continue;
+                    }
+                    switch (kinds[column]) {
+                    case STRING:
+                        objects[column][row] = new String(readBytes(in), StandardCharsets.UTF_8);
+                        break;
+                    case JSON:
+                        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(readBytes(in))) {
+                            objects[column][row] = unpacker.unpackValue();
+                        }
+                        break;
+                    case TIMESTAMP:
+                        longs[column][row] = in.readLong();
+                        nanos[column][row] = in.readInt();
+                        break;
+                    default:
+                        longs[column][row] = in.readLong();
+                        break;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void markSet(int row, int column)
+        {
+            long bit = (long) row * columnCount + column;
+            setBits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+
+        private int bitWords(int rows)
+        {
+            return (int) (((long) rows * columnCount + 63) >>> 6);
+        }
+
+        private void grow(int newCapacity)
+        {
+            for (int i = 0; i < columnCount; i++) {
+                switch (kinds[i]) {
+                case STRING:
+                case JSON:
+                    objects[i] = objects[i] == null ? new Object[newCapacity] : Arrays.copyOf(objects[i], newCapacity);
+                    break;
+                case TIMESTAMP:
+                    nanos[i] = nanos[i] == null ? new int[newCapacity] : Arrays.copyOf(nanos[i], newCapacity);
+                    // fall through
+                default:
+                    longs[i] = longs[i] == null ? new long[newCapacity] : Arrays.copyOf(longs[i], newCapacity);
+                    break;
+                }
+            }
+            int words = bitWords(newCapacity);
+            setBits = setBits == null ? new long[words] : Arrays.copyOf(setBits, words);
+            capacity = newCapacity;
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+        {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
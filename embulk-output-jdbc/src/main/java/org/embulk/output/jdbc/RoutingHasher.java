@@ -0,0 +1,74 @@
+package org.embulk.output.jdbc;
+
+import java.util.List;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+
+/**
+ * Routes a record to one of connections by the hash of its key columns.
+ * The hash depends only on the values, so that all tasks route rows of the same key to the same connection.
+ * Values are hashed as they are in Java, not as compared in the database, so key columns are limited to types
+ * where both are the same (AbstractJdbcOutputPlugin.isHashableKeyColumn).
+ */
+class RoutingHasher
+        implements ColumnVisitor
+{
+    private final Record record;
+    private final List<Column> keyColumns;
+    private int hash;
+
+    RoutingHasher(Record record, List<Column> keyColumns)
+    {
+        this.record = record;
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * Returns the index of the connection for the current record.
+     */
+    public int route(int connections)
+    {
+        hash = 1;
+        for (Column column : keyColumns) {
+            column.visit(this);
+        }
+        return Math.floorMod(hash, connections);
+    }
+
+    @Override
+    public void booleanColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : Boolean.hashCode(record.getBoolean(column)));
+    }
+
+    @Override
+    public void longColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : Long.hashCode(record.getLong(column)));
+    }
+
+    @Override
+    public void doubleColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : Double.hashCode(record.getDouble(column)));
+    }
+
+    @Override
+    public void stringColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : record.getString(column).hashCode());
+    }
+
+    @Override
+    public void timestampColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : record.getTimestamp(column).hashCode());
+    }
+
+    @Override
+    public void jsonColumn(Column column)
+    {
+        hash = 31 * hash + (record.isNull(column) ? 0 : record.getJson(column).hashCode());
+    }
+}
@@ -8,7 +8,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Date;
 import java.sql.Time;
+import java.sql.Statement;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,8 +22,25 @@ public class StandardBatchInsert
 {
     private static final Logger logger = LoggerFactory.getLogger(StandardBatchInsert.class);
 
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte BIG_DECIMAL = 8;
+    private static final byte STRING = 9;
+    private static final byte NSTRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte DATE = 12;
+    private static final byte TIME = 13;
+    private static final byte TIMESTAMP = 14;
+
     private final JdbcOutputConnector connector;
     private final Optional<MergeConfig> mergeConfig;
+    private final int rowsPerStatement;
 
     private JdbcOutputConnection connection;
     private PreparedStatement batch;
@@ -29,10 +50,29 @@ public class StandardBatchInsert
     private long totalRows;
     private int[] lastUpdateCounts;
 
+    // insert_strategy: multi_row. values of rows are kept until a statement gets enough rows.
+    private TableIdentifier loadTable;
+    private JdbcSchema insertSchema;
+    private int statementRows;
+    // values of primitive types are kept as bits of long without boxing, and other values as objects
+    private byte[] pendingTypes;
+    private long[] pendingPrimitives;
+    private Object[] pendingObjects;
+    private Calendar[] pendingCalendars;
+    private int pendingRows;
+    private int batchStatements;
+    private Map<Integer, PreparedStatement> tailStatements;
+
     public StandardBatchInsert(JdbcOutputConnector connector, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
+    {
+        this(connector, mergeConfig, 1);
+    }
+
+    public StandardBatchInsert(JdbcOutputConnector connector, Optional<MergeConfig> mergeConfig, int rowsPerStatement) throws IOException, SQLException
     {
         this.connector = connector;
         this.mergeConfig = mergeConfig;
+        this.rowsPerStatement = rowsPerStatement;
     }
 
     public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema) throws SQLException
@@ -41,13 +81,32 @@ public class StandardBatchInsert
         this.index = 1;  // PreparedStatement index begings from 1
         this.batchRows = 0;
         this.totalRows = 0;
+        this.loadTable = loadTable;
+        this.insertSchema = insertSchema;
+        this.statementRows = connection.getRowsPerStatement(insertSchema, mergeConfig, rowsPerStatement);
+        if (statementRows > 1) {
+            logger.info("Using multi-row statements with {} rows", statementRows);
+            int size = statementRows * insertSchema.getCount();
+            this.pendingTypes = new byte[size];
+            this.pendingPrimitives = new long[size];
+            this.pendingObjects = new Object[size];
+            this.pendingCalendars = new Calendar[size];
+            this.pendingRows = 0;
+            this.batchStatements = 0;
+            this.tailStatements = new HashMap<>();
+        }
         this.batch = prepareStatement(loadTable, insertSchema);
         batch.clearBatch();
     }
 
     protected PreparedStatement prepareStatement(TableIdentifier loadTable, JdbcSchema insertSchema) throws SQLException
     {
-        return connection.prepareBatchInsertStatement(loadTable, insertSchema, mergeConfig);
+        return prepareStatement(loadTable, insertSchema, statementRows);
+    }
+
+    protected PreparedStatement prepareStatement(TableIdentifier loadTable, JdbcSchema insertSchema, int rows) throws SQLException
+    {
+        return connection.prepareBatchInsertStatement(loadTable, insertSchema, mergeConfig, rows);
     }
 
     public int getBatchWeight()
@@ -57,8 +116,19 @@ public class StandardBatchInsert
 
     public void add() throws IOException, SQLException
     {
-        batch.addBatch();
-        index = 1;  // PreparedStatement index begins from 1
+        if (pendingTypes == null) {
+            batch.addBatch();
+            index = 1;  // PreparedStatement index begins from 1
+        } else {
+            index = 1;
+            pendingRows++;
+            if (pendingRows == statementRows) {
+                bindPendingRows(batch, 0, statementRows);
+                batch.addBatch();
+                batchStatements++;
+                pendingRows = 0;
+            }
+        }
         batchRows++;
         batchWeight += 32;  // add weight as overhead of each rows
     }
@@ -79,7 +149,11 @@ public class StandardBatchInsert
         logger.info(String.format("Loading %,d rows", batchRows));
         long startTime = System.currentTimeMillis();
         try {
-            lastUpdateCounts = batch.executeBatch();  // here can't use returned value because MySQL Connector/J returns SUCCESS_NO_INFO as a batch result
+            if (pendingTypes == null) {
+                lastUpdateCounts = batch.executeBatch();  // here can't use returned value because MySQL Connector/J returns SUCCESS_NO_INFO as a batch result
+            } else {
+                flushMultiRowStatements();
+            }
             double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
 
             totalRows += batchRows;
@@ -87,7 +161,11 @@ public class StandardBatchInsert
 
         } catch (BatchUpdateException e) {
             // will be used for retry
-            lastUpdateCounts = e.getUpdateCounts();
+            if (pendingTypes == null) {
+                lastUpdateCounts = e.getUpdateCounts();
+            } else {
+                lastUpdateCounts = toRowUpdateCounts(e.getUpdateCounts(), statementRows);
+            }
             throw e;
 
         } finally {
@@ -95,9 +173,139 @@ public class StandardBatchInsert
             batch.clearBatch();
             batchRows = 0;
             batchWeight = 0;
+            if (pendingTypes != null) {
+                batchStatements = 0;
+                pendingRows = 0;
+                index = 1;
+            }
+        }
+    }
+
+    private void flushMultiRowStatements() throws SQLException
+    {
+        int[] updateCounts = new int[0];
+        if (batchStatements > 0) {
+            updateCounts = toRowUpdateCounts(batch.executeBatch(), statementRows);
+        }
+        lastUpdateCounts = updateCounts;
+
+        // rest of rows are inserted by statements of smaller sizes (power of 2) so that the number of cached statements is small
+        int offset = 0;
+        for (int rows = Integer.highestOneBit(statementRows); rows > 0; rows >>>= 1) {
+            if (pendingRows - offset >= rows) {
+                PreparedStatement tailStatement = tailStatements.get(rows);
+                if (tailStatement == null) {
+                    tailStatement = prepareStatement(loadTable, insertSchema, rows);
+                    tailStatements.put(rows, tailStatement);
+                }
+                bindPendingRows(tailStatement, offset, rows);
+                tailStatement.executeUpdate();
+                offset += rows;
+
+                updateCounts = Arrays.copyOf(updateCounts, updateCounts.length + rows);
+                Arrays.fill(updateCounts, updateCounts.length - rows, updateCounts.length, Statement.SUCCESS_NO_INFO);
+                lastUpdateCounts = updateCounts;
+            }
+        }
+    }
+
+    /**
+     * Expands update counts of multi-row statements to update counts of rows so that failed rows can be retried.
+     */
+    static int[] toRowUpdateCounts(int[] statementUpdateCounts, int statementRows)
+    {
+        int[] rowUpdateCounts = new int[statementUpdateCounts.length * statementRows];
+        for (int i = 0; i < statementUpdateCounts.length; i++) {
+            int count = statementUpdateCounts[i] == Statement.EXECUTE_FAILED ? Statement.EXECUTE_FAILED : Statement.SUCCESS_NO_INFO;
+            Arrays.fill(rowUpdateCounts, i * statementRows, (i + 1) * statementRows, count);
+        }
+        return rowUpdateCounts;
+    }
+
+    private void bindPendingRows(PreparedStatement statement, int fromRow, int rows) throws SQLException
+    {
+        int columnCount = insertSchema.getCount();
+        int from = fromRow * columnCount;
+        for (int i = 0; i < rows * columnCount; i++) {
+            int parameterIndex = i + 1;
+            long bits = pendingPrimitives[from + i];
+            Object value = pendingObjects[from + i];
+            switch (pendingTypes[from + i]) {
+            case NULL:
+                statement.setNull(parameterIndex, (int) bits);
+                break;
+            case BOOLEAN:
+                statement.setBoolean(parameterIndex, bits != 0);
+                break;
+            case BYTE:
+                statement.setByte(parameterIndex, (byte) bits);
+                break;
+            case SHORT:
+                statement.setShort(parameterIndex, (short) bits);
+                break;
+            case INT:
+                statement.setInt(parameterIndex, (int) bits);
+                break;
+            case LONG:
+                statement.setLong(parameterIndex, bits);
+                break;
+            case FLOAT:
+                statement.setFloat(parameterIndex, Float.intBitsToFloat((int) bits));
+                break;
+            case DOUBLE:
+                statement.setDouble(parameterIndex, Double.longBitsToDouble(bits));
+                break;
+            case BIG_DECIMAL:
+                statement.setBigDecimal(parameterIndex, (BigDecimal) value);
+                break;
+            case STRING:
+                statement.setString(parameterIndex, (String) value);
+                break;
+            case NSTRING:
+                statement.setNString(parameterIndex, (String) value);
+                break;
+            case BYTES:
+                statement.setBytes(parameterIndex, (byte[]) value);
+                break;
+            case DATE:
+                statement.setDate(parameterIndex, (Date) value, pendingCalendars[from + i]);
+                break;
+            case TIME:
+                statement.setTime(parameterIndex, (Time) value, pendingCalendars[from + i]);
+                break;
+            case TIMESTAMP:
+                statement.setTimestamp(parameterIndex, (java.sql.Timestamp) value, pendingCalendars[from + i]);
+                break;
+            default:
+                throw new AssertionError("Unknown parameter type: " + pendingTypes[from + i]);
+            }
         }
     }
 
+    private boolean pend(byte type, long bits)
+    {
+        if (pendingTypes == null) {
+            return false;
+        }
+        int i = pendingRows * insertSchema.getCount() + index - 1;
+        pendingTypes[i] = type;
+        pendingPrimitives[i] = bits;
+        pendingObjects[i] = null;
+        return true;
+    }
+
+    private boolean pend(byte type, Object value, Calendar cal)
+    {
+        if (pendingTypes == null) {
+            return false;
+        }
+        int i = pendingRows * insertSchema.getCount() + index - 1;
+        pendingTypes[i] = type;
+        pendingObjects[i] = value;
+        pendingCalendars[i] = cal;
+        return true;
+    }
+
     @Override
     public int[] getLastUpdateCounts()
     {
@@ -110,49 +318,65 @@ public class StandardBatchInsert
 
     public void setNull(int sqlType) throws IOException, SQLException
     {
-        batch.setNull(index, sqlType);
+        if (!pend(NULL, sqlType)) {
+            batch.setNull(index, sqlType);
+        }
         nextColumn(0);
     }
 
     public void setBoolean(boolean v) throws IOException, SQLException
     {
-        batch.setBoolean(index, v);
+        if (!pend(BOOLEAN, v ? 1L : 0L)) {
+            batch.setBoolean(index, v);
+        }
         nextColumn(1);
     }
 
     public void setByte(byte v) throws IOException, SQLException
     {
-        batch.setByte(index, v);
+        if (!pend(BYTE, v)) {
+            batch.setByte(index, v);
+        }
         nextColumn(1);
     }
 
     public void setShort(short v) throws IOException, SQLException
     {
-        batch.setShort(index, v);
+        if (!pend(SHORT, v)) {
+            batch.setShort(index, v);
+        }
         nextColumn(2);
     }
 
     public void setInt(int v) throws IOException, SQLException
     {
-        batch.setInt(index, v);
+        if (!pend(INT, v)) {
+            batch.setInt(index, v);
+        }
         nextColumn(4);
     }
 
     public void setLong(long v) throws IOException, SQLException
     {
-        batch.setLong(index, v);
+        if (!pend(LONG, v)) {
+            batch.setLong(index, v);
+        }
         nextColumn(8);
     }
 
     public void setFloat(float v) throws IOException, SQLException
     {
-        batch.setFloat(index, v);
+        if (!pend(FLOAT, Float.floatToRawIntBits(v))) {
+            batch.setFloat(index, v);
+        }
         nextColumn(4);
     }
 
     public void setDouble(double v) throws IOException, SQLException
     {
-        batch.setDouble(index, v);
+        if (!pend(DOUBLE, Double.doubleToRawLongBits(v))) {
+            batch.setDouble(index, v);
+        }
         nextColumn(8);
     }
 
@@ -160,27 +384,35 @@ public class StandardBatchInsert
     {
         // use estimated number of necessary bytes + 8 byte for the weight
         // assuming one place needs 4 bits. ceil(v.precision() / 2.0) + 8
-        batch.setBigDecimal(index, v);
+        if (!pend(BIG_DECIMAL, v, null)) {
+            batch.setBigDecimal(index, v);
+        }
         nextColumn((v.precision() & ~2) / 2 + 8);
     }
 
     public void setString(String v) throws IOException, SQLException
     {
-        batch.setString(index, v);
+        if (!pend(STRING, v, null)) {
+            batch.setString(index, v);
+        }
         // estimate all chracters use 2 bytes; almost enough for the worst case
         nextColumn(v.length() * 2 + 4);
     }
 
     public void setNString(String v) throws IOException, SQLException
     {
-        batch.setNString(index, v);
+        if (!pend(NSTRING, v, null)) {
+            batch.setNString(index, v);
+        }
         // estimate all chracters use 2 bytes; almost enough for the worst case
         nextColumn(v.length() * 2 + 4);
     }
 
     public void setBytes(byte[] v) throws IOException, SQLException
     {
-        batch.setBytes(index, v);
+        if (!pend(BYTES, v, null)) {
+            batch.setBytes(index, v);
+        }
         nextColumn(v.length + 4);
     }
 
@@ -193,14 +425,18 @@ public class StandardBatchInsert
         cal.set(Calendar.MINUTE, 0);
         cal.set(Calendar.HOUR_OF_DAY, 0);
         Date normalized = new Date(cal.getTimeInMillis());
-        batch.setDate(index, normalized, cal);
+        if (!pend(DATE, normalized, cal)) {
+            batch.setDate(index, normalized, cal);
+        }
         nextColumn(32);
     }
 
     public void setSqlTime(final Instant v, final Calendar cal) throws IOException, SQLException
     {
         Time t = new Time(v.toEpochMilli());
-        batch.setTime(index, t, cal);
+        if (!pend(TIME, t, cal)) {
+            batch.setTime(index, t, cal);
+        }
         nextColumn(32);
     }
 
@@ -208,7 +444,9 @@ public class StandardBatchInsert
     {
         java.sql.Timestamp t = new java.sql.Timestamp(v.toEpochMilli());
         t.setNanos(v.getNano());
-        batch.setTimestamp(index, t, cal);
+        if (!pend(TIMESTAMP, t, cal)) {
+            batch.setTimestamp(index, t, cal);
+        }
         nextColumn(32);
     }
 
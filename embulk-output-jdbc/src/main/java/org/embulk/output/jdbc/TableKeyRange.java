@@ -0,0 +1,51 @@
+package org.embulk.output.jdbc;
+
+import java.util.Optional;
+
+/**
+ * Rows of an intermediate table in a range of an integer key column, collected as a chunk of commit_chunk_rows.
+ * The lower bound is exclusive and the upper bound is inclusive. The first range has no lower bound and also has
+ * rows with a NULL key, and the last range has no upper bound, so that ranges of a table have all of its rows.
+ */
+public class TableKeyRange
+        extends TableIdentifier
+{
+    private final TableIdentifier table;
+    private final String keyColumn;
+    private final Optional<Long> lowerBound;
+    private final Optional<Long> upperBound;
+
+    public TableKeyRange(TableIdentifier table, String keyColumn, Optional<Long> lowerBound, Optional<Long> upperBound)
+    {
+        super(table.getDatabase(), table.getSchemaName(), table.getTableName());
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+    }
+
+    public TableIdentifier getTable()
+    {
+        return table;
+    }
+
+    public String getKeyColumn()
+    {
+        return keyColumn;
+    }
+
+    public Optional<Long> getLowerBound()
+    {
+        return lowerBound;
+    }
+
+    public Optional<Long> getUpperBound()
+    {
+        return upperBound;
+    }
+
+    public boolean isLast()
+    {
+        return !upperBound.isPresent();
+    }
+}
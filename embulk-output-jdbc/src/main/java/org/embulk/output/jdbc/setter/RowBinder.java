@@ -0,0 +1,201 @@
+package org.embulk.output.jdbc.setter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.embulk.output.jdbc.Record;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+
+/**
+ * Binds all columns of a record to ColumnSetters.
+ * A binder specialized for the type of each column is chosen once when RowBinder is built,
+ * so that binding a row doesn't need double dispatch of ColumnVisitor. Columns with
+ * SkipColumnSetter are excluded.
+ */
+public class RowBinder
+{
+    private final ColumnBinder[] binders;
+
+    public RowBinder(final Record record, List<Column> columns, List<ColumnSetter> setters)
+    {
+        final ArrayList<ColumnBinder> binders = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            final ColumnSetter setter = setters.get(i);
+            if (setter instanceof SkipColumnSetter) {
+                continue;
+            }
+            columns.get(i).visit(new ColumnVisitor() {
+                public void booleanColumn(Column column)
+                {
+                    binders.add(new BooleanBinder(record, column, setter));
+                }
+
+                public void longColumn(Column column)
+                {
+                    binders.add(new LongBinder(record, column, setter));
+                }
+
+                public void doubleColumn(Column column)
+                {
+                    binders.add(new DoubleBinder(record, column, setter));
+                }
+
+                public void stringColumn(Column column)
+                {
+                    binders.add(new StringBinder(record, column, setter));
+                }
+
+                public void timestampColumn(Column column)
+                {
+                    binders.add(new TimestampBinder(record, column, setter));
+                }
+
+                public void jsonColumn(Column column)
+                {
+                    binders.add(new JsonBinder(record, column, setter));
+                }
+            });
+        }
+        this.binders = binders.toArray(new ColumnBinder[binders.size()]);
+    }
+
+    public void bind() throws IOException, SQLException
+    {
+        for (ColumnBinder binder : binders) {
+            binder.bind();
+        }
+    }
+
+    private static abstract class ColumnBinder
+    {
+        protected final Record record;
+        protected final Column column;
+        protected final ColumnSetter setter;
+
+        ColumnBinder(Record record, Column column, ColumnSetter setter)
+        {
+            this.record = record;
+            this.column = column;
+            this.setter = setter;
+        }
+
+        abstract void bind() throws IOException, SQLException;
+    }
+
+    private static final class BooleanBinder
+            extends ColumnBinder
+    {
+        BooleanBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.booleanValue(record.getBoolean(column));
+            }
+        }
+    }
+
+    private static final class LongBinder
+            extends ColumnBinder
+    {
+        LongBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.longValue(record.getLong(column));
+            }
+        }
+    }
+
+    private static final class DoubleBinder
+            extends ColumnBinder
+    {
+        DoubleBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.doubleValue(record.getDouble(column));
+            }
+        }
+    }
+
+    private static final class StringBinder
+            extends ColumnBinder
+    {
+        StringBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.stringValue(record.getString(column));
+            }
+        }
+    }
+
+    private static final class TimestampBinder
+            extends ColumnBinder
+    {
+        TimestampBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.timestampValue(record.getTimestamp(column));
+            }
+        }
+    }
+
+    private static final class JsonBinder
+            extends ColumnBinder
+    {
+        JsonBinder(Record record, Column column, ColumnSetter setter)
+        {
+            super(record, column, setter);
+        }
+
+        @Override
+        void bind() throws IOException, SQLException
+        {
+            if (record.isNull(column)) {
+                setter.nullValue();
+            } else {
+                setter.jsonValue(record.getJson(column));
+            }
+        }
+    }
+}
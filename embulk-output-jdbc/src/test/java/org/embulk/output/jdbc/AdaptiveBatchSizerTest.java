@@ -0,0 +1,64 @@
+package org.embulk.output.jdbc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchSizerTest
+{
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testInitialSizeIsClamped()
+    {
+        assertEquals(100, new AdaptiveBatchSizer(10, 100, 1000, 1000).getBatchSize());
+        assertEquals(1000, new AdaptiveBatchSizer(10000, 100, 1000, 1000).getBatchSize());
+    }
+
+    @Test
+    public void testGrowWhileThroughputIncreases()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 100, 10000, 1000);
+        // constant latency, so that larger batches have higher throughput
+        for (int i = 0; i < 10; i++) {
+            sizer.onFlush(sizer.getBatchSize(), 10 * MILLIS);
+        }
+        assertEquals(10000, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShrinkWhenThroughputDecreases()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 100, 10000, 1000);
+        sizer.onFlush(1000, 10 * MILLIS);
+        assertEquals(1500, sizer.getBatchSize());
+        // throughput dropped at 1500
+        sizer.onFlush(1500, 30 * MILLIS);
+        assertEquals(1000, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testBackOffOnLatencySpike()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(8000, 100, 10000, 1000);
+        sizer.onFlush(8000, 2000 * MILLIS);
+        assertEquals(4000, sizer.getBatchSize());
+        sizer.onFlush(4000, 2000 * MILLIS);
+        assertEquals(2000, sizer.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            sizer.onFlush(100, 5000 * MILLIS);
+        }
+        assertEquals(100, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testIgnorePartialBatch()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 100, 10000, 1000);
+        sizer.onFlush(10, 1 * MILLIS);
+        assertEquals(1000, sizer.getBatchSize());
+        sizer.onFlush(1000, 10 * MILLIS);
+        assertTrue(sizer.getBatchSize() > 1000);
+    }
+}
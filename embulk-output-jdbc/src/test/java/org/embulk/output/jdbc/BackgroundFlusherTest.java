@@ -0,0 +1,174 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackgroundFlusherTest
+{
+    @Test
+    public void testOrder() throws Exception
+    {
+        // batches are handed back in the order they were submitted even if later ones finish first
+        final BackgroundFlusher<String> flusher = new BackgroundFlusher<>(3);
+        try {
+            final CountDownLatch lastFinished = new CountDownLatch(1);
+            flusher.submit("a", new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException
+                {
+                    lastFinished.await();
+                    return null;
+                }
+            });
+            flusher.submit("b", flush(null));
+            flusher.submit("c", new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    lastFinished.countDown();
+                    return null;
+                }
+            });
+
+            assertEquals("a", flusher.awaitOldest());
+            assertEquals("b", flusher.awaitOldest());
+            assertEquals("c", flusher.awaitOldest());
+            assertTrue(flusher.isEmpty());
+        } finally {
+            flusher.shutdownNow();
+            flusher.awaitTermination();
+        }
+    }
+
+    @Test
+    public void testSingleThreadFlushesInOrder() throws Exception
+    {
+        // merge_direct flushes batches of a writer one by one
+        final BackgroundFlusher<Integer> flusher = new BackgroundFlusher<>(1);
+        final List<Integer> flushed = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            for (int i = 0; i < 100; i++) {
+                final int batch = i;
+                flusher.submit(batch, new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException
+                    {
+                        Thread.sleep(batch % 3);
+                        flushed.add(batch);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Integer.valueOf(i), flusher.awaitOldest());
+            }
+        } finally {
+            flusher.shutdownNow();
+            flusher.awaitTermination();
+        }
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, flushed);
+    }
+
+    @Test
+    public void testErrorPropagation() throws Exception
+    {
+        final BackgroundFlusher<String> flusher = new BackgroundFlusher<>(2);
+        try {
+            final SQLException sqlError = new SQLException("duplicate key");
+            final IllegalStateException runtimeError = new IllegalStateException("broken");
+            flusher.submit("a", flush(null));
+            flusher.submit("b", flush(sqlError));
+            flusher.submit("c", flush(runtimeError));
+            flusher.submit("d", flush(new IOException("disk full")));
+
+            assertEquals("a", flusher.awaitOldest());
+            try {
+                flusher.awaitOldest();
+                fail();
+            } catch (SQLException ex) {
+                // thrown as is, so that retry and error messages see the original exception
+                assertSame(sqlError, ex);
+            }
+            try {
+                flusher.awaitOldest();
+                fail();
+            } catch (IllegalStateException ex) {
+                assertSame(runtimeError, ex);
+            }
+            try {
+                flusher.awaitOldest();
+                fail();
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+            assertTrue(flusher.isEmpty());
+        } finally {
+            flusher.shutdownNow();
+            flusher.awaitTermination();
+        }
+    }
+
+    @Test
+    public void testErrorDoesNotStopLaterFlushes() throws Exception
+    {
+        final BackgroundFlusher<String> flusher = new BackgroundFlusher<>(1);
+        final List<String> flushed = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            flusher.submit("a", flush(new SQLException("timeout")));
+            for (final String batch : Arrays.asList("b", "c")) {
+                flusher.submit(batch, new Callable<Void>() {
+                    @Override
+                    public Void call()
+                    {
+                        flushed.add(batch);
+                        return null;
+                    }
+                });
+            }
+            try {
+                flusher.awaitOldest();
+                fail();
+            } catch (SQLException ex) {
+                assertEquals("timeout", ex.getMessage());
+            }
+            assertEquals("b", flusher.awaitOldest());
+            assertEquals("c", flusher.awaitOldest());
+            assertEquals(Arrays.asList("b", "c"), flushed);
+        } finally {
+            flusher.shutdownNow();
+            flusher.awaitTermination();
+        }
+    }
+
+    private static Callable<Void> flush(final Exception error)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchDeduplicatorTest
+{
+    private final Schema schema = Schema.builder()
+            .add("id", Types.LONG)
+            .add("s", Types.STRING)
+            .add("t", Types.TIMESTAMP)
+            .add("v", Types.DOUBLE)
+            .build();
+
+    @Test
+    public void testLastRowOfKey() throws IOException
+    {
+        List<Column> keys = Arrays.asList(schema.getColumn(0), schema.getColumn(1));
+        try (BatchDeduplicator deduplicator = new BatchDeduplicator(schema, keys, false, Long.MAX_VALUE)) {
+            // 5000 rows of 100 keys. the last row of each key has v = 1
+            try (RecordBuffer rows = new RecordBuffer(schema, Long.MAX_VALUE)) {
+                for (int i = 0; i < 5000; i++) {
+                    addRow(rows, (long) (i % 100), "k" + (i % 50), null, i >= 4900 ? 1.0 : 0.0);
+                }
+                addRow(rows, null, "k0", null, 1.0);
+                addRow(rows, null, "k0", null, 1.0);
+                addAll(deduplicator, rows);
+            }
+
+            assertEquals(5002, deduplicator.size());
+            assertEquals(102, deduplicator.getDistinctCount());
+            assertEquals(102, countLast(deduplicator, 1.0));
+            assertEquals(0, countLast(deduplicator, 0.0));
+
+            deduplicator.reset();
+            assertEquals(0, deduplicator.size());
+            try (RecordBuffer rows = new RecordBuffer(schema, Long.MAX_VALUE)) {
+                addRow(rows, 1L, "a", null, 1.0);
+                addAll(deduplicator, rows);
+            }
+            assertEquals(1, deduplicator.getDistinctCount());
+        }
+    }
+
+    @Test
+    public void testExact() throws IOException
+    {
+        List<Column> keys = schema.getColumns();
+        try (BatchDeduplicator deduplicator = new BatchDeduplicator(schema, keys, true, 1000)) {
+            try (RecordBuffer rows = new RecordBuffer(schema, Long.MAX_VALUE)) {
+                Instant t = Instant.ofEpochSecond(1500000000L, 123);
+                for (int i = 0; i < 3; i++) {
+                    addRow(rows, 1L, "a", t, 1.0);
+                    addRow(rows, 1L, "a", t.plusNanos(1), 1.0);
+                    addRow(rows, 1L, null, t, 1.0);
+                    addRow(rows, 1L, "a", t, -1.0);
+                }
+                addAll(deduplicator, rows);
+            }
+
+            assertEquals(12, deduplicator.size());
+            assertEquals(4, deduplicator.getDistinctCount());
+            List<Integer> last = new ArrayList<>();
+            try (RecordBuffer.Cursor cursor = deduplicator.cursor()) {
+                while (cursor.next()) {
+                    if (deduplicator.isLast(cursor.getIndex())) {
+                        last.add(cursor.getIndex());
+                    }
+                }
+            }
+            assertEquals(Arrays.asList(8, 9, 10, 11), last);
+        }
+    }
+
+    private void addRow(RecordBuffer rows, Long id, String s, Instant t, double v) throws IOException
+    {
+        rows.addRecord();
+        if (id != null) {
+            rows.setLong(schema.getColumn(0), id);
+        }
+        if (s != null) {
+            rows.setString(schema.getColumn(1), s);
+        }
+        if (t != null) {
+            rows.setTimestamp(schema.getColumn(2), t);
+        }
+        rows.setDouble(schema.getColumn(3), v);
+    }
+
+    private static void addAll(BatchDeduplicator deduplicator, RecordBuffer rows) throws IOException
+    {
+        try (RecordBuffer.Cursor cursor = rows.cursor()) {
+            while (cursor.next()) {
+                deduplicator.add(cursor);
+            }
+        }
+    }
+
+    private int countLast(BatchDeduplicator deduplicator, double v) throws IOException
+    {
+        int count = 0;
+        try (RecordBuffer.Cursor cursor = deduplicator.cursor()) {
+            while (cursor.next()) {
+                if (deduplicator.isLast(cursor.getIndex()) && cursor.getDouble(schema.getColumn(3)) == v) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
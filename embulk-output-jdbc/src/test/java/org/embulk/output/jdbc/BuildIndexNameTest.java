@@ -0,0 +1,34 @@
+package org.embulk.output.jdbc;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BuildIndexNameTest
+{
+    @Test
+    public void testFnv1a64()
+    {
+        assertEquals(0xcbf29ce484222325L, JdbcUtils.fnv1a64(""));
+        assertEquals(0xaf63dc4c8601ec8cL, JdbcUtils.fnv1a64("a"));
+        assertEquals(0x85944171f73967e8L, JdbcUtils.fnv1a64("foobar"));
+    }
+
+    @Test
+    public void testSuffixes()
+    {
+        // "Aa" and "BB" have the same String.hashCode
+        assertEquals("t_Aa".hashCode(), "t_BB".hashCode());
+        assertNotEquals(JdbcUtils.fnv1a64("t_Aa"), JdbcUtils.fnv1a64("t_BB"));
+
+        Set<Long> hashes = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            hashes.add(JdbcUtils.fnv1a64(String.format("target_table_0000018b2f3c4d5e_embulk%06d", i)));
+        }
+        assertEquals(100000, hashes.size());
+    }
+}
@@ -0,0 +1,357 @@
+package org.embulk.output.jdbc;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CollectInsertTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, false, false)));
+
+    private final FakeConnection fake = new FakeConnection();
+    private final Set<String> existingTables = new HashSet<>(Arrays.asList("t_0", "t_1", "t_2"));
+    private final Map<String, Object> values = new HashMap<>();
+    private boolean transactionalDdl = true;
+    private boolean appendTable = false;
+    private final Set<String> collectedRanges = new HashSet<>();
+
+    public CollectInsertTest()
+    {
+        values.put("getIntermediateTables", Optional.of(Arrays.asList(table(null, "t_0"), table(null, "t_1"), table(null, "t_2"))));
+        values.put("getIntermediateTableRows", Optional.of(Arrays.asList(10L, 30L, 20L)));
+        values.put("getActualTable", table(null, "target"));
+        values.put("getNewTableSchema", Optional.of(schema));
+        values.put("getCreateTableConstraint", Optional.empty());
+        values.put("getCreateTableOption", Optional.empty());
+        values.put("getCommitChunkRows", Optional.empty());
+        values.put("getCommitChunkAtomic", true);
+        values.put("getBeforeLoad", Optional.of("before"));
+        values.put("getAfterLoad", Optional.of("after"));
+        values.put("getTargetTableSchema", schema);
+        values.put("getMergeKeys", Optional.empty());
+        values.put("getIntermediateTableKeyBoundaries", Optional.empty());
+    }
+
+    @Test
+    public void testRename() throws SQLException
+    {
+        collectInsert();
+
+        // the largest table is renamed
+        assertEquals(Arrays.asList("before", "RENAME t_1", "INSERT t_0, t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testRenameNotTransactionalDdl() throws SQLException
+    {
+        transactionalDdl = false;
+        collectInsert();
+        assertEquals(Arrays.asList("CREATE target", "COMMIT", "before", "INSERT t_0, t_1, t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testRenameOnlyTableNotTransactionalDdl() throws SQLException
+    {
+        // the rename can't be rolled back, but nothing else is collected
+        transactionalDdl = false;
+        values.put("getIntermediateTableRows", Optional.of(Arrays.asList(0L, 30L, 0L)));
+        collectInsert();
+        assertEquals(Arrays.asList("before", "RENAME t_1", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testNotRenameToAnotherSchema() throws SQLException
+    {
+        // temp_schema
+        values.put("getIntermediateTables", Optional.of(Arrays.asList(table("tmp", "t_0"), table("tmp", "t_1"), table("tmp", "t_2"))));
+        collectInsert();
+        assertEquals(Arrays.asList("CREATE target", "COMMIT", "before", "INSERT t_0, t_1, t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testRenameInAtomicChunks() throws SQLException
+    {
+        values.put("getCommitChunkRows", Optional.of(10L));
+        collectInsert();
+
+        // the rename is committed with all chunks
+        assertEquals(Arrays.asList("before", "RENAME t_1", "INSERT t_0", "INSERT t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testRenameInAtomicChunksNotTransactionalDdl() throws SQLException
+    {
+        transactionalDdl = false;
+        appendTable = true;
+        values.put("getCommitChunkRows", Optional.of(10L));
+        collectInsert();
+
+        // appending can't be rolled back either
+        assertEquals(Arrays.asList("CREATE target", "COMMIT", "before", "INSERT t_0", "INSERT t_1", "INSERT t_2", "after", "COMMIT"),
+                fake.getLog());
+    }
+
+    @Test
+    public void testRenameAndResumeChunks() throws SQLException
+    {
+        values.put("getCommitChunkRows", Optional.of(10L));
+        values.put("getCommitChunkAtomic", false);
+        fake.fail("INSERT t_2", new SQLException("failure"));
+        try {
+            collectInsert();
+        } catch (SQLException ex) {
+            assertEquals("failure", ex.getMessage());
+        }
+        // the rename and the first chunk are committed
+        assertEquals(Arrays.asList("before", "RENAME t_1", "COMMIT", "INSERT t_0", "DROP t_0", "COMMIT", "ROLLBACK"), fake.getLog());
+
+        // a retry collects the remaining tables into the renamed table
+        fake.clearLog();
+        fake.fail("INSERT t_2", null);
+        collectInsert();
+        assertEquals(Arrays.asList("INSERT t_2", "DROP t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testAppend() throws SQLException
+    {
+        appendTable = true;
+        values.put("getNewTableSchema", Optional.empty());
+        existingTables.add("target");
+        collectInsert();
+
+        // appending commits by itself
+        assertEquals(Arrays.asList("before", "COMMIT", "APPEND t_0", "APPEND t_1", "APPEND t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testTruncateDropsIndexesInTransaction() throws SQLException
+    {
+        truncateWithIndex();
+
+        // a failure rolls back the dropped index together with the truncate
+        assertEquals(Arrays.asList("DROP INDEX idx", "TRUNCATE target", "before", "INSERT t_0, t_1, t_2", "after", "COMMIT"),
+                fake.getLog());
+    }
+
+    @Test
+    public void testTruncateDropsIndexesNotTransactionalDdl() throws SQLException
+    {
+        transactionalDdl = false;
+        truncateWithIndex();
+        assertEquals(Arrays.asList("DROP INDEX idx", "COMMIT", "TRUNCATE target", "before", "INSERT t_0, t_1, t_2", "after", "COMMIT"),
+                fake.getLog());
+    }
+
+    @Test
+    public void testSplitByKey() throws SQLException
+    {
+        splitByKey();
+        collectInsert();
+
+        // tables having more rows than commit_chunk_rows are split into ranges of the primary key
+        assertEquals(Arrays.asList(
+                "SELECT MIN(\"id\"), MAX(\"id\") FROM \"t_1\"", "SELECT MIN(\"id\"), MAX(\"id\") FROM \"t_2\"",
+                "before", "INSERT t_0", "INSERT t_1 ..10", "INSERT t_1 10..20", "INSERT t_1 20..", "INSERT t_2 ..15", "INSERT t_2 15..",
+                "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testNoKeyToSplit() throws SQLException
+    {
+        values.put("getNewTableSchema", Optional.empty());
+        values.put("getCommitChunkRows", Optional.of(10L));
+        existingTables.add("target");
+        collectInsert();
+
+        // without an integer key, a large table is collected by one statement
+        assertEquals(Arrays.asList("before", "INSERT t_0", "INSERT t_1", "INSERT t_2", "after", "COMMIT"), fake.getLog());
+    }
+
+    @Test
+    public void testResumeKeyRanges() throws SQLException
+    {
+        splitByKey();
+        values.put("getCommitChunkAtomic", false);
+        values.put("getIntermediateTables", Optional.of(Arrays.asList(table(null, "t_1"))));
+        values.put("getIntermediateTableRows", Optional.of(Arrays.asList(30L)));
+        fake.fail("INSERT t_1 10..20", new SQLException("failure"));
+        try {
+            collectInsert();
+        } catch (SQLException ex) {
+            assertEquals("failure", ex.getMessage());
+        }
+        // rows of the collected range are deleted with its commit
+        assertEquals(Arrays.asList("SELECT MIN(\"id\"), MAX(\"id\") FROM \"t_1\"",
+                "before", "INSERT t_1 ..10", "DELETE t_1 ..10", "COMMIT", "ROLLBACK"), fake.getLog());
+
+        // a retry finds the first range empty, and collects the same ranges without running before_load again
+        fake.clearLog();
+        fake.fail("INSERT t_1 10..20", null);
+        collectInsert();
+        assertEquals(Arrays.asList("INSERT t_1 ..10", "DELETE t_1 ..10", "COMMIT", "INSERT t_1 10..20", "DELETE t_1 10..20", "COMMIT",
+                "INSERT t_1 20..", "DROP t_1", "after", "COMMIT"), fake.getLog());
+    }
+
+    private void splitByKey()
+    {
+        JdbcSchema keySchema = new JdbcSchema(Arrays.asList(
+                JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, true, true)));
+        values.put("getTargetTableSchema", keySchema);
+        values.put("getNewTableSchema", Optional.empty());
+        values.put("getCommitChunkRows", Optional.of(10L));
+        existingTables.add("target");
+        fake.result("MIN(", Arrays.asList("min", "max"), new Object[] {1L, 30L});
+    }
+
+    private void truncateWithIndex() throws SQLException
+    {
+        values.put("getMode", AbstractJdbcOutputPlugin.Mode.TRUNCATE_INSERT);
+        values.put("getNewTableSchema", Optional.empty());
+        values.put("getDeferredIndexList", Optional.of(Arrays.asList(
+                new JdbcIndex("idx", Arrays.asList("id"), Arrays.asList(false), false))));
+        existingTables.add("target");
+        java.sql.Connection connection = fake.connection();
+        connection.setAutoCommit(false);
+        newPlugin().doCommit(newConnection(connection), newTask(), 3);
+    }
+
+    private void collectInsert() throws SQLException
+    {
+        java.sql.Connection connection = fake.connection();
+        connection.setAutoCommit(false);
+        newPlugin().collectInsert(newConnection(connection), newTask(), schema, false);
+    }
+
+    private JdbcOutputConnection newConnection(java.sql.Connection connection) throws SQLException
+    {
+        return new JdbcOutputConnection(connection, null) {
+            @Override
+            protected boolean supportsTransactionalDdl()
+            {
+                return transactionalDdl;
+            }
+
+            @Override
+            protected boolean supportsAppendTable()
+            {
+                return appendTable;
+            }
+
+            @Override
+            public boolean tableExists(TableIdentifier table)
+            {
+                return existingTables.contains(table.getTableName());
+            }
+
+            @Override
+            public boolean isTableEmpty(TableIdentifier table)
+            {
+                return !(table instanceof TableKeyRange) || collectedRanges.contains(describe(table));
+            }
+
+            @Override
+            protected String buildCreateTableIfNotExistsSql(TableIdentifier table, JdbcSchema schema,
+                    Optional<String> tableConstraint, Optional<String> tableOption)
+            {
+                existingTables.add(table.getTableName());
+                return "CREATE " + table.getTableName();
+            }
+
+            @Override
+            protected String buildRenameTableSql(TableIdentifier fromTable, TableIdentifier toTable)
+            {
+                existingTables.remove(fromTable.getTableName());
+                existingTables.add(toTable.getTableName());
+                return "RENAME " + fromTable.getTableName();
+            }
+
+            @Override
+            protected String buildCollectInsertSql(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable)
+            {
+                List<String> names = new ArrayList<>();
+                for (TableIdentifier table : fromTables) {
+                    names.add(describe(table));
+                }
+                return "INSERT " + String.join(", ", names);
+            }
+
+            @Override
+            protected String buildDeleteKeyRangeSql(TableKeyRange range)
+            {
+                collectedRanges.add(describe(range));
+                return "DELETE " + describe(range);
+            }
+
+            @Override
+            public boolean indexExists(TableIdentifier table, String indexName)
+            {
+                return true;
+            }
+
+            @Override
+            protected String buildDropIndexSql(TableIdentifier table, String indexName)
+            {
+                return "DROP INDEX " + indexName;
+            }
+
+            @Override
+            protected String buildTruncateSql(TableIdentifier table)
+            {
+                return "TRUNCATE " + table.getTableName();
+            }
+
+            @Override
+            protected String buildAppendTableSql(TableIdentifier fromTable, TableIdentifier toTable)
+            {
+                return "APPEND " + fromTable.getTableName();
+            }
+
+            @Override
+            protected void dropTableIfExists(Statement stmt, TableIdentifier table) throws SQLException
+            {
+                existingTables.remove(table.getTableName());
+                executeUpdate(stmt, "DROP " + table.getTableName());
+            }
+        };
+    }
+
+    private AbstractJdbcOutputPlugin newPlugin()
+    {
+        return new FakeOutputPlugin();
+    }
+
+    private AbstractJdbcOutputPlugin.PluginTask newTask()
+    {
+        return FakeOutputPlugin.newTask(values);
+    }
+
+    // "t_1 10..20" for rows of t_1 of which keys are greater than 10 and up to 20
+    private static String describe(TableIdentifier table)
+    {
+        if (!(table instanceof TableKeyRange)) {
+            return table.getTableName();
+        }
+        TableKeyRange range = (TableKeyRange) table;
+        return range.getTableName() + " " + (range.getLowerBound().isPresent() ? range.getLowerBound().get() : "")
+                + ".." + (range.getUpperBound().isPresent() ? range.getUpperBound().get() : "");
+    }
+
+    private static TableIdentifier table(String schemaName, String tableName)
+    {
+        return new TableIdentifier(null, schemaName, tableName);
+    }
+}
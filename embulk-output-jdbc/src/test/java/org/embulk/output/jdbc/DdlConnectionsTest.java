@@ -0,0 +1,142 @@
+package org.embulk.output.jdbc;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DdlConnectionsTest
+{
+    private final FakeConnection fake = new FakeConnection();
+    private int connections;
+
+    @Test
+    public void testDropOneByOne() throws SQLException
+    {
+        newPlugin().dropTablesIfExist(newTask(1), newFakeConnection(), tables(3), true);
+        assertEquals(Arrays.asList(
+                    "DROP TABLE IF EXISTS \"t_0\"",
+                    "DROP TABLE IF EXISTS \"t_1\"",
+                    "DROP TABLE IF EXISTS \"t_2\""),
+                fake.getLog());
+        assertEquals(1, connections);
+    }
+
+    @Test
+    public void testDropGroups() throws SQLException
+    {
+        List<TableIdentifier> tables = tables(250);
+        newPlugin().dropTablesIfExist(newTask(4), newFakeConnection(), tables, true);
+
+        // groups of up to 100 tables on 3 connections, which are closed after that
+        List<String> expected = Arrays.asList(
+                dropTablesSql(tables.subList(0, 100)),
+                dropTablesSql(tables.subList(100, 200)),
+                dropTablesSql(tables.subList(200, 250)));
+        List<String> drops = new ArrayList<>();
+        for (String sql : fake.getLog()) {
+            if (!sql.equals("COMMIT")) {
+                drops.add(sql);
+            }
+        }
+        Collections.sort(drops);
+        assertEquals(expected, drops);
+        assertEquals(3, connections);
+        assertEquals(1, fake.getOpenConnections());
+    }
+
+    @Test
+    public void testDropFailure() throws SQLException
+    {
+        fake.fail("\"t_1", new SQLException("lock timeout"));
+        try {
+            newPlugin().dropTablesIfExist(newTask(2), newFakeConnection(), tables(200), true);
+            throw new AssertionError("dropping tables must fail");
+        } catch (SQLException ex) {
+            assertEquals("lock timeout", ex.getMessage());
+        }
+        assertEquals(1, fake.getOpenConnections());
+    }
+
+    @Test
+    public void testCreateTables() throws SQLException
+    {
+        JdbcSchema schema = new JdbcSchema(Arrays.asList(
+                JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, false, false)));
+        JdbcOutputConnection con = newFakeConnection();
+        con.connection.setAutoCommit(false);
+        con.createTables(tables(2), schema, Optional.<String>empty(), Optional.<String>empty());
+        // committed at once
+        assertEquals(Arrays.asList(
+                    "CREATE TABLE \"t_0\" (\"id\" BIGINT)",
+                    "CREATE TABLE \"t_1\" (\"id\" BIGINT)",
+                    "COMMIT"),
+                fake.getLog());
+    }
+
+    private JdbcOutputConnection newFakeConnection() throws SQLException
+    {
+        connections++;
+        return new JdbcOutputConnection(fake.connection(), null) {
+            @Override
+            protected boolean supportsTransactionalDdl()
+            {
+                return true;
+            }
+
+            @Override
+            protected boolean supportsMultiTableDrop()
+            {
+                return true;
+            }
+        };
+    }
+
+    private AbstractJdbcOutputPlugin newPlugin()
+    {
+        return new FakeOutputPlugin(new AbstractJdbcOutputPlugin.Features(), new JdbcOutputConnector() {
+            @Override
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                synchronized (DdlConnectionsTest.this) {
+                    return newFakeConnection();
+                }
+            }
+        });
+    }
+
+    private static AbstractJdbcOutputPlugin.PluginTask newTask(int ddlConnections)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getDdlConnections", ddlConnections);
+        return FakeOutputPlugin.newTask(values);
+    }
+
+    private static String dropTablesSql(List<TableIdentifier> tables)
+    {
+        StringBuilder sb = new StringBuilder("DROP TABLE IF EXISTS ");
+        for (int i = 0; i < tables.size(); i++) {
+            if (i != 0) { sb.append(", "); }
+            sb.append('"').append(tables.get(i).getTableName()).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static List<TableIdentifier> tables(int count)
+    {
+        List<TableIdentifier> tables = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tables.add(new TableIdentifier(null, null, String.format("t_%d", i)));
+        }
+        return tables;
+    }
+}
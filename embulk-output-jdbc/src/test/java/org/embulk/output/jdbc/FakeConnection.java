@@ -0,0 +1,309 @@
+package org.embulk.output.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * java.sql.Connection which records statements instead of running them on a database.
+ * Statements are logged as SQL, followed by bound parameters of prepared statements.
+ */
+public class FakeConnection
+{
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, SQLException> failures = new HashMap<>();
+    private final Map<String, List<Object[]>> results = new HashMap<>();
+    private final Map<String, List<String>> resultColumns = new HashMap<>();
+    private boolean autoCommit = true;
+    private int openConnections;
+
+    /**
+     * Makes statements containing the text fail.
+     */
+    public FakeConnection fail(String sqlPart, SQLException ex)
+    {
+        failures.put(sqlPart, ex);
+        return this;
+    }
+
+    /**
+     * Makes queries containing the text return the rows.
+     */
+    public FakeConnection result(String sqlPart, List<String> columns, Object[]... rows)
+    {
+        results.put(sqlPart, Arrays.asList(rows));
+        resultColumns.put(sqlPart, columns);
+        return this;
+    }
+
+    public List<String> getLog()
+    {
+        synchronized (log) {
+            return new ArrayList<>(log);
+        }
+    }
+
+    public void clearLog()
+    {
+        log.clear();
+    }
+
+    // number of connections created by connection() and not closed yet
+    public synchronized int getOpenConnections()
+    {
+        return openConnections;
+    }
+
+    public Connection connection()
+    {
+        synchronized (this) {
+            openConnections++;
+        }
+        return proxy(Connection.class, new InvocationHandler() {
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                switch (method.getName()) {
+                case "close":
+                    synchronized (FakeConnection.this) {
+                        if (!closed) {
+                            closed = true;
+                            openConnections--;
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getMetaData":
+                    return metaData();
+                case "createStatement":
+                    return statement(null);
+                case "prepareStatement":
+                    return statement((String) args[0]);
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "commit":
+                    log.add("COMMIT");
+                    return null;
+                case "rollback":
+                    log.add("ROLLBACK");
+                    return null;
+                default:
+                    return defaultValue(method);
+                }
+            }
+        });
+    }
+
+    private DatabaseMetaData metaData()
+    {
+        return proxy(DatabaseMetaData.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                switch (method.getName()) {
+                case "getIdentifierQuoteString":
+                    return "\"";
+                case "getSearchStringEscape":
+                    return "\\";
+                case "getDatabaseProductName":
+                    return "fake";
+                case "storesUpperCaseIdentifiers":
+                case "storesLowerCaseIdentifiers":
+                    return false;
+                default:
+                    return defaultValue(method);
+                }
+            }
+        });
+    }
+
+    private Object statement(final String preparedSql)
+    {
+        final TreeMap<Integer, Object> parameters = new TreeMap<>();
+        final List<String> batch = new ArrayList<>();
+        final Class<?> type = preparedSql == null ? Statement.class : PreparedStatement.class;
+        return proxy(type, new InvocationHandler() {
+            private int maxRows;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                String name = method.getName();
+                if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer && preparedSql != null) {
+                    parameters.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                    return null;
+                }
+                switch (name) {
+                case "setMaxRows":
+                    maxRows = (Integer) args[0];
+                    return null;
+                case "clearParameters":
+                    parameters.clear();
+                    return null;
+                case "addBatch":
+                    batch.add(preparedSql == null ? (String) args[0] : preparedSql + " " + parameters.values());
+                    return null;
+                case "clearBatch":
+                    batch.clear();
+                    return null;
+                case "executeBatch":
+                    {
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < batch.size(); i++) {
+                            SQLException failure = failure(batch.get(i));
+                            if (failure != null) {
+                                counts[i] = Statement.EXECUTE_FAILED;
+                                batch.clear();
+                                throw new BatchUpdateException(failure.getMessage(), Arrays.copyOf(counts, i + 1), failure);
+                            }
+                            log.add(batch.get(i));
+                            counts[i] = 1;
+                        }
+                        batch.clear();
+                        return counts;
+                    }
+                case "execute":
+                case "executeUpdate":
+                case "executeQuery":
+                    {
+                        String sql = preparedSql == null ? (String) args[0] : preparedSql + " " + parameters.values();
+                        SQLException failure = failure(sql);
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        log.add(sql);
+                        if (name.equals("executeQuery")) {
+                            return resultSet(sql);
+                        }
+                        return name.equals("execute") ? (Object) false : (Object) 0;
+                    }
+                default:
+                    return defaultValue(method);
+                }
+            }
+        });
+    }
+
+    private SQLException failure(String sql)
+    {
+        for (Map.Entry<String, SQLException> failure : failures.entrySet()) {
+            if (sql.contains(failure.getKey())) {
+                return failure.getValue();
+            }
+        }
+        return null;
+    }
+
+    private ResultSet resultSet(String sql)
+    {
+        List<Object[]> rows = Collections.emptyList();
+        List<String> columns = Collections.emptyList();
+        for (Map.Entry<String, List<Object[]>> result : results.entrySet()) {
+            if (sql.contains(result.getKey())) {
+                rows = result.getValue();
+                columns = resultColumns.get(result.getKey());
+            }
+        }
+        final List<Object[]> resultRows = rows;
+        final List<String> resultColumnNames = columns;
+        return proxy(ResultSet.class, new InvocationHandler() {
+            private int row = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    row++;
+                    return row < resultRows.size();
+                }
+                if (name.startsWith("get") && args != null && args.length == 1) {
+                    int index = args[0] instanceof Integer ? (Integer) args[0] - 1 : resultColumnNames.indexOf(args[0]);
+                    Object value = resultRows.get(row)[index];
+                    if (value == null) {
+                        return defaultValue(method);
+                    }
+                    if (method.getReturnType() == String.class) {
+                        return value.toString();
+                    }
+                    if (method.getReturnType() == int.class) {
+                        return ((Number) value).intValue();
+                    }
+                    if (method.getReturnType() == long.class) {
+                        return ((Number) value).longValue();
+                    }
+                    return value;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, final InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return type.getSimpleName();
+                    }
+                }
+                try {
+                    return handler.invoke(proxy, method, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        });
+    }
+
+    private static Object defaultValue(Method method)
+    {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        }
+        return null;
+    }
+}
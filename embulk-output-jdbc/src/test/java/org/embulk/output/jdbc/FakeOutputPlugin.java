@@ -0,0 +1,78 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * AbstractJdbcOutputPlugin which connects through a given connector, to test methods running on connections.
+ * It doesn't insert rows.
+ */
+public class FakeOutputPlugin
+        extends AbstractJdbcOutputPlugin
+{
+    private final Features features;
+    private final JdbcOutputConnector connector;
+
+    /**
+     * A plugin which doesn't connect.
+     */
+    public FakeOutputPlugin()
+    {
+        this(new Features(), null);
+    }
+
+    public FakeOutputPlugin(Features features, JdbcOutputConnector connector)
+    {
+        this.features = features;
+        this.connector = connector;
+    }
+
+    /**
+     * PluginTask of which getters return values in the map by method names, and setters put values into it.
+     * Other methods throw UnsupportedOperationException.
+     */
+    public static PluginTask newTask(final Map<String, Object> values)
+    {
+        return (PluginTask) Proxy.newProxyInstance(FakeOutputPlugin.class.getClassLoader(),
+                new Class<?>[] {PluginTask.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().startsWith("set") && args != null && args.length == 1) {
+                            values.put("get" + method.getName().substring(3), args[0]);
+                            return null;
+                        }
+                        if (!values.containsKey(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        return values.get(method.getName());
+                    }
+                });
+    }
+
+    @Override
+    protected Features getFeatures(PluginTask task)
+    {
+        return features;
+    }
+
+    @Override
+    protected JdbcOutputConnector getConnector(PluginTask task, boolean retryableMetadataOperation)
+    {
+        if (connector == null) {
+            throw new UnsupportedOperationException();
+        }
+        return connector;
+    }
+
+    @Override
+    protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.output.jdbc;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JdbcOutputConnectionTest
+{
+    @Test
+    public void testBuildLockTableSql() throws SQLException
+    {
+        JdbcOutputConnection connection = new JdbcOutputConnection(new FakeConnection().connection(), null);
+        assertEquals(Optional.of("LOCK TABLE \"s\".\"collect\" IN EXCLUSIVE MODE"),
+                connection.buildLockTableSql(new TableIdentifier(null, "s", "collect")));
+    }
+
+    @Test
+    public void testBuildCreateIndexSql() throws SQLException
+    {
+        JdbcOutputConnection connection = new JdbcOutputConnection(new FakeConnection().connection(), null);
+        TableIdentifier table = new TableIdentifier(null, "s", "t");
+        assertEquals("CREATE UNIQUE INDEX \"i\" ON \"s\".\"t\" (\"a\", \"b\" DESC)",
+                connection.buildCreateIndexSql(table, new JdbcIndex("i", Arrays.asList("a", "b"), Arrays.asList(false, true), true)));
+        // a definition read from the database is used as is
+        assertEquals("CREATE INDEX \"i\" ON \"s\".\"t\" USING gin (a gin_trgm_ops) WHERE (b > 0)",
+                connection.buildCreateIndexSql(table, new JdbcIndex("i", Collections.<String>emptyList(), Collections.<Boolean>emptyList(), false,
+                            "USING gin (a gin_trgm_ops) WHERE (b > 0)")));
+    }
+
+    @Test
+    public void testBuildCollectInsertSqlOfKeyRanges() throws SQLException
+    {
+        JdbcOutputConnection connection = new JdbcOutputConnection(new FakeConnection().connection(), null);
+        JdbcSchema schema = new JdbcSchema(Arrays.asList(JdbcColumn.newGenericTypeColumn("a", Types.BIGINT, "BIGINT", 0, 0, false, true)));
+        TableIdentifier from = new TableIdentifier(null, null, "tmp");
+        TableIdentifier to = new TableIdentifier(null, null, "t");
+
+        // the first range has NULL keys
+        assertEquals("INSERT INTO \"t\" (\"a\") SELECT \"a\" FROM \"tmp\" WHERE (\"a\" <= 10 OR \"a\" IS NULL)",
+                connection.buildCollectInsertSql(Arrays.<TableIdentifier>asList(
+                        new TableKeyRange(from, "a", Optional.<Long>empty(), Optional.of(10L))), schema, to));
+        assertEquals("INSERT INTO \"t\" (\"a\") SELECT \"a\" FROM \"tmp\" WHERE (\"a\" > 10 AND \"a\" <= 20)",
+                connection.buildCollectInsertSql(Arrays.<TableIdentifier>asList(
+                        new TableKeyRange(from, "a", Optional.of(10L), Optional.of(20L))), schema, to));
+        assertEquals("INSERT INTO \"t\" (\"a\") SELECT \"a\" FROM \"tmp\" WHERE (\"a\" > 20)",
+                connection.buildCollectInsertSql(Arrays.<TableIdentifier>asList(
+                        new TableKeyRange(from, "a", Optional.of(20L), Optional.<Long>empty())), schema, to));
+    }
+
+    @Test
+    public void testFindKeyBoundaries() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection().result("MIN(", Arrays.asList("min", "max"), new Object[] {-5L, 2L});
+        JdbcOutputConnection connection = new JdbcOutputConnection(fake.connection(), null);
+        TableIdentifier table = new TableIdentifier(null, null, "tmp");
+        assertEquals(Arrays.asList(-4L, -2L, 0L), connection.findKeyBoundaries(table, "a", 4));
+        // ranges don't get narrower than one key
+        assertEquals(Arrays.asList(-5L, -4L, -3L, -2L, -1L, 0L, 1L), connection.findKeyBoundaries(table, "a", 100));
+    }
+
+    @Test
+    public void testReplaceTableWithIndexes() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection();
+        JdbcOutputConnection connection = new JdbcOutputConnection(fake.connection(), null) {
+            @Override
+            public boolean indexExists(TableIdentifier table, String indexName)
+            {
+                return false;
+            }
+        };
+        JdbcSchema schema = new JdbcSchema(Arrays.asList(JdbcColumn.newGenericTypeColumn("a", Types.BIGINT, "BIGINT", 0, 0, false, false)));
+        connection.replaceTable(new TableIdentifier(null, null, "tmp"), schema, new TableIdentifier(null, null, "t"),
+                Arrays.asList(new JdbcIndex("i", Arrays.asList("a"), Arrays.asList(false), true)), Optional.<String>empty());
+
+        // the index is built before the swap
+        assertEquals(Arrays.asList("CREATE UNIQUE INDEX \"i\" ON \"tmp\" (\"a\")", "DROP TABLE IF EXISTS \"t\"",
+                    "ALTER TABLE \"tmp\" RENAME TO \"t\""),
+                fake.getLog());
+    }
+}
@@ -0,0 +1,97 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.util.config.Config;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class LoadMetricsTest
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        LoadMetrics metrics = newMetrics(1000, 3);
+
+        // TaskReport serializes metrics as JSON
+        ObjectMapper mapper = new ObjectMapper();
+        LoadMetrics read = mapper.readValue(mapper.writeValueAsString(metrics), LoadMetrics.class);
+
+        assertEquals(metrics.toString(), read.toString());
+        assertEquals(1000L, read.getRows());
+        assertEquals(3L, read.getRetries());
+        assertEquals(300L, read.getFlushMillis());
+        assertEquals(latency(1, 1, 1, 0, 0, 0), read.getFlushLatency());
+    }
+
+    @Test
+    public void testMerge()
+    {
+        LoadMetrics metrics = new LoadMetrics();
+        metrics.merge(newMetrics(1000, 3));
+        metrics.merge(newMetrics(10, 0));
+        metrics.merge(new LoadMetrics());
+
+        assertEquals(1010L, metrics.getRows());
+        assertEquals(2000L, metrics.getBytes());
+        assertEquals(6L, metrics.getFlushes());
+        assertEquals(3L, metrics.getRetries());
+        assertEquals(600L, metrics.getFlushMillis());
+        assertEquals(40L, metrics.getEncodeMillis());
+        assertEquals(20L, metrics.getWaitMillis());
+        assertEquals(latency(2, 2, 2, 0, 0, 0), metrics.getFlushLatency());
+    }
+
+    @Test
+    public void testLatencyBuckets()
+    {
+        LoadMetrics metrics = new LoadMetrics();
+        for (long millis : new long[] {0, 9, 10, 99, 100, 999, 1000, 9999, 10000, 59999, 60000, 3600000}) {
+            metrics.recordFlush(1, millis * 1000000L);
+        }
+        assertEquals(latency(2, 2, 2, 2, 2, 2), metrics.getFlushLatency());
+    }
+
+    @Test
+    public void testConfigDiffKeyIsNotOption()
+    {
+        // the next run reading the config diff ignores the metrics
+        for (Method method : AbstractJdbcOutputPlugin.PluginTask.class.getMethods()) {
+            Config config = method.getAnnotation(Config.class);
+            if (config != null) {
+                assertNotEquals(AbstractJdbcOutputPlugin.LOAD_METRICS_KEY, config.value());
+            }
+        }
+    }
+
+    private static LoadMetrics newMetrics(long rows, int retries)
+    {
+        LoadMetrics metrics = new LoadMetrics();
+        metrics.addRows(rows);
+        metrics.recordFlush(100, 5000000L);
+        metrics.recordFlush(400, 50000000L);
+        metrics.recordFlush(500, 245000000L);
+        for (int i = 0; i < retries; i++) {
+            metrics.recordRetry();
+        }
+        metrics.addEncodeTime(20000000L);
+        metrics.addWaitTime(10000000L);
+        return metrics;
+    }
+
+    private static Map<String, Long> latency(long... counts)
+    {
+        String[] names = {"<10ms", "<100ms", "<1s", "<10s", "<60s", ">=60s"};
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], counts[i]);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,124 @@
+package org.embulk.output.jdbc;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MergePartitionsTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, false, false)));
+
+    // one per connection, in the order of connections
+    private final List<FakeConnection> fakes = Collections.synchronizedList(new ArrayList<FakeConnection>());
+
+    @Test
+    public void testAtomic() throws SQLException
+    {
+        JdbcOutputConnection con = newFakeConnection(null);
+        newPlugin(null).collectMergePartitions(con, newTask(true), schema);
+
+        // before_load and after_load run in the transaction of the first partition
+        assertEquals(Arrays.asList("before", "MERGE t_0, t_2", "after", "COMMIT"), fakes.get(0).getLog());
+        assertEquals(Arrays.asList("MERGE t_1, t_3", "COMMIT"), fakes.get(1).getLog());
+        assertEquals(0, fakes.get(1).getOpenConnections());
+    }
+
+    @Test
+    public void testAtomicFailure() throws SQLException
+    {
+        JdbcOutputConnection con = newFakeConnection(null);
+        try {
+            newPlugin("t_1").collectMergePartitions(con, newTask(true), schema);
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("deadlock", ex.getMessage());
+        }
+
+        // before_load is rolled back with the merge of the first partition
+        assertEquals(Arrays.asList("before", "MERGE t_0, t_2", "ROLLBACK"), fakes.get(0).getLog());
+        assertEquals(Arrays.asList("ROLLBACK", "ROLLBACK"), fakes.get(1).getLog());
+    }
+
+    @Test
+    public void testNotAtomic() throws SQLException
+    {
+        JdbcOutputConnection con = newFakeConnection(null);
+        newPlugin(null).collectMergePartitions(con, newTask(false), schema);
+
+        // each partition is committed with dropping its tables
+        assertEquals(Arrays.asList("before", "COMMIT", "MERGE t_0, t_2", "DROP TABLE IF EXISTS \"t_0\"", "DROP TABLE IF EXISTS \"t_2\"", "COMMIT",
+                    "after", "COMMIT"),
+                fakes.get(0).getLog());
+        assertEquals(Arrays.asList("MERGE t_1, t_3", "DROP TABLE IF EXISTS \"t_1\"", "DROP TABLE IF EXISTS \"t_3\"", "COMMIT"),
+                fakes.get(1).getLog());
+    }
+
+    private JdbcOutputConnection newFakeConnection(String failingTable) throws SQLException
+    {
+        FakeConnection fake = new FakeConnection();
+        if (failingTable != null) {
+            fake.fail(failingTable, new SQLException("deadlock"));
+        }
+        fakes.add(fake);
+        java.sql.Connection connection = fake.connection();
+        connection.setAutoCommit(false);
+        return new JdbcOutputConnection(connection, null) {
+            @Override
+            protected String buildCollectMergeSql(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable,
+                    MergeConfig mergeConfig)
+            {
+                List<String> names = new ArrayList<>();
+                for (TableIdentifier table : fromTables) {
+                    names.add(table.getTableName());
+                }
+                return "MERGE " + String.join(", ", names);
+            }
+
+            @Override
+            public boolean tableExists(TableIdentifier table)
+            {
+                return true;
+            }
+        };
+    }
+
+    private AbstractJdbcOutputPlugin newPlugin(final String failingTable)
+    {
+        return new FakeOutputPlugin(new AbstractJdbcOutputPlugin.Features().setConcurrentMerge(true), new JdbcOutputConnector() {
+            @Override
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                return newFakeConnection(failingTable);
+            }
+        });
+    }
+
+    private static AbstractJdbcOutputPlugin.PluginTask newTask(boolean atomic)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getMergePartitions", 2);
+        values.put("getMergePartitionsAtomic", atomic);
+        // tables of 2 tasks, each of which has 2 partitions
+        values.put("getIntermediateTables", Optional.of(Arrays.asList(
+                        new TableIdentifier(null, null, "t_0"), new TableIdentifier(null, null, "t_1"),
+                        new TableIdentifier(null, null, "t_2"), new TableIdentifier(null, null, "t_3"))));
+        values.put("getMergeKeys", Optional.of(Arrays.asList("id")));
+        values.put("getMergeRule", Optional.empty());
+        values.put("getActualTable", new TableIdentifier(null, null, "target"));
+        values.put("getBeforeLoad", Optional.of("before"));
+        values.put("getAfterLoad", Optional.of("after"));
+        return FakeOutputPlugin.newTask(values);
+    }
+}
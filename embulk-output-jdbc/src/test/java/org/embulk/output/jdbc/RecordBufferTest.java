@@ -0,0 +1,194 @@
+package org.embulk.output.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordBufferTest
+{
+    private final Schema schema = Schema.builder()
+            .add("b", Types.BOOLEAN)
+            .add("l", Types.LONG)
+            .add("d", Types.DOUBLE)
+            .add("s", Types.STRING)
+            .add("t", Types.TIMESTAMP)
+            .build();
+
+    @Test
+    public void testInMemory() throws IOException
+    {
+        try (RecordBuffer buffer = new RecordBuffer(schema, Long.MAX_VALUE)) {
+            addRecords(buffer, 3000);
+            assertEquals(3000, buffer.size());
+            assertRecords(buffer, 3000);
+
+            buffer.reset();
+            assertEquals(0, buffer.size());
+            addRecords(buffer, 10);
+            assertRecords(buffer, 10);
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException
+    {
+        try (RecordBuffer buffer = new RecordBuffer(schema, 1000)) {
+            addRecords(buffer, 3000);
+            assertEquals(3000, buffer.size());
+            assertRecords(buffer, 3000);
+            // cursor can be created again
+            assertRecords(buffer, 3000);
+
+            buffer.reset();
+            addRecords(buffer, 10);
+            assertRecords(buffer, 10);
+        }
+    }
+
+    @Test
+    public void testSpillToDirectory() throws IOException
+    {
+        File directory = Files.createTempDirectory("embulk-output-jdbc-test").toFile();
+        try {
+            try (RecordBuffer buffer = new RecordBuffer(schema, 1000, null, directory)) {
+                addRecords(buffer, 3000);
+                assertEquals(1, directory.list().length);
+                assertRecords(buffer, 3000);
+            }
+            // the temporary file is deleted
+            assertEquals(0, directory.list().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSortedRunsToDirectory() throws IOException
+    {
+        File directory = Files.createTempDirectory("embulk-output-jdbc-test").toFile();
+        try {
+            try (RecordBuffer buffer = new RecordBuffer(schema, 1000, Arrays.asList(column(1)), directory)) {
+                addRecords(buffer, 3000);
+                assertTrue(directory.list().length > 1);
+                try (RecordBuffer.SortedCursor cursor = buffer.sortedCursor()) {
+                    int rows = 0;
+                    while (cursor.next()) {
+                        rows++;
+                    }
+                    assertEquals(3000, rows);
+                }
+            }
+            // the sorted runs are deleted
+            assertEquals(0, directory.list().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSorted() throws IOException
+    {
+        // sorted in memory, and merged from sorted runs
+        assertSorted(Long.MAX_VALUE);
+        assertSorted(1000);
+    }
+
+    private void assertSorted(long maxMemory) throws IOException
+    {
+        // sorted by b (nulls last) and d. rows of the same key keep the order they were added
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            expected.add(i);
+        }
+        expected.sort(Comparator.<Integer, Integer>comparing(i -> i % 7 == 0 ? 2 : (i % 2 == 0 ? 1 : 0))
+                .thenComparing(i -> (double) (i * 37 % 100)));
+
+        try (RecordBuffer buffer = new RecordBuffer(schema, maxMemory, Arrays.asList(column(0), column(2)))) {
+            for (int n = 0; n < 2; n++) {
+                for (int i = 0; i < 3000; i++) {
+                    buffer.addRecord();
+                    if (i % 7 != 0) {
+                        buffer.setBoolean(column(0), i % 2 == 0);
+                    }
+                    buffer.setLong(column(1), i);
+                    buffer.setDouble(column(2), i * 37 % 100);
+                    buffer.setString(column(3), "s" + i);
+                }
+                assertEquals(3000, buffer.size());
+                try (RecordBuffer.SortedCursor cursor = buffer.sortedCursor()) {
+                    for (int i : expected) {
+                        assertTrue(cursor.next());
+                        assertEquals(i, cursor.getLong(column(1)));
+                        assertEquals("s" + i, cursor.getString(column(3)));
+                        assertTrue(cursor.isNull(column(4)));
+                    }
+                    assertFalse(cursor.next());
+                }
+                buffer.reset();
+            }
+        }
+    }
+
+    private void addRecords(RecordBuffer buffer, int count) throws IOException
+    {
+        for (int i = 0; i < count; i++) {
+            buffer.addRecord();
+            if (i % 7 == 0) {
+                continue;  // all columns are null
+            }
+            buffer.setBoolean(column(0), i % 2 == 0);
+            buffer.setLong(column(1), i);
+            buffer.setDouble(column(2), i / 2.0);
+            if (i % 5 != 0) {
+                buffer.setString(column(3), "s" + i);
+            }
+            buffer.setTimestamp(column(4), Instant.ofEpochSecond(i, i * 1000));
+        }
+    }
+
+    private void assertRecords(RecordBuffer buffer, int count) throws IOException
+    {
+        try (RecordBuffer.Cursor cursor = buffer.cursor()) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(cursor.next());
+                assertEquals(i, cursor.getIndex());
+                if (i % 7 == 0) {
+                    for (int j = 0; j < 5; j++) {
+                        assertTrue(cursor.isNull(column(j)));
+                    }
+                    continue;
+                }
+                assertEquals(i % 2 == 0, cursor.getBoolean(column(0)));
+                assertEquals(i, cursor.getLong(column(1)));
+                assertEquals(i / 2.0, cursor.getDouble(column(2)), 0.0);
+                if (i % 5 != 0) {
+                    assertEquals("s" + i, cursor.getString(column(3)));
+                } else {
+                    assertTrue(cursor.isNull(column(3)));
+                }
+                assertFalse(cursor.isNull(column(4)));
+                assertEquals(Instant.ofEpochSecond(i, i * 1000), cursor.getTimestamp(column(4)));
+            }
+            assertFalse(cursor.next());
+        }
+    }
+
+    private Column column(int index)
+    {
+        return schema.getColumn(index);
+    }
+}
@@ -0,0 +1,148 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingHasherTest
+{
+    private final Schema schema = Schema.builder()
+            .add("id", Types.LONG)
+            .add("s", Types.STRING)
+            .add("t", Types.TIMESTAMP)
+            .add("v", Types.DOUBLE)
+            .build();
+
+    @Test
+    public void testSameKeySameConnection() throws IOException
+    {
+        // rows of 100 keys appear repeatedly with different values of the other column
+        List<Column> keys = Arrays.asList(schema.getColumn(0), schema.getColumn(1), schema.getColumn(2));
+        Instant t = Instant.ofEpochSecond(1500000000L, 123);
+        try (RecordBuffer rows = new RecordBuffer(schema, Long.MAX_VALUE)) {
+            for (int i = 0; i < 5000; i++) {
+                int key = i % 100;
+                addRow(rows, key % 7 == 0 ? null : (long) key, "k" + (key % 10), t.plusNanos(key % 3), i);
+            }
+
+            Map<String, Integer> routes = new HashMap<>();
+            int[] counts = new int[4];
+            try (RecordBuffer.Cursor cursor = rows.cursor()) {
+                RoutingHasher hasher = new RoutingHasher(cursor, keys);
+                while (cursor.next()) {
+                    int connection = hasher.route(4);
+                    Integer expected = routes.putIfAbsent(key(cursor, keys), connection);
+                    if (expected != null) {
+                        assertEquals(expected.intValue(), connection);
+                    }
+                    counts[connection]++;
+                }
+            }
+            assertEquals(100, routes.size());
+            // keys are spread over connections
+            for (int count : counts) {
+                assertTrue(count > 0);
+            }
+
+            // another task routes the keys to the same connections
+            try (RecordBuffer.Cursor cursor = rows.cursor()) {
+                RoutingHasher hasher = new RoutingHasher(cursor, keys);
+                while (cursor.next()) {
+                    assertEquals(routes.get(key(cursor, keys)).intValue(), hasher.route(4));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyKeysAffectRoute() throws IOException
+    {
+        List<Column> keys = Arrays.asList(schema.getColumn(1));
+        try (RecordBuffer rows = new RecordBuffer(schema, Long.MAX_VALUE)) {
+            addRow(rows, 1L, "a", null, 1.0);
+            addRow(rows, 2L, "a", Instant.EPOCH, -1.0);
+            addRow(rows, null, "a", null, 0.5);
+
+            List<Integer> routes = new ArrayList<>();
+            try (RecordBuffer.Cursor cursor = rows.cursor()) {
+                RoutingHasher hasher = new RoutingHasher(cursor, keys);
+                while (cursor.next()) {
+                    routes.add(hasher.route(16));
+                }
+            }
+            assertEquals(3, routes.size());
+            assertEquals(routes.get(0), routes.get(1));
+            assertEquals(routes.get(0), routes.get(2));
+        }
+    }
+
+    @Test
+    public void testHashableKeyColumns()
+    {
+        AbstractJdbcOutputPlugin plugin = new FakeOutputPlugin();
+        Column id = schema.getColumn(0);
+        Column s = schema.getColumn(1);
+        assertTrue(plugin.isHashableKeyColumn(id, column(java.sql.Types.BIGINT)));
+        assertTrue(plugin.isHashableKeyColumn(id, column(java.sql.Types.DECIMAL)));
+        // '01' and '1' are the same integer
+        assertFalse(plugin.isHashableKeyColumn(s, column(java.sql.Types.INTEGER)));
+        // collations may ignore cases or trailing spaces
+        assertFalse(plugin.isHashableKeyColumn(s, column(java.sql.Types.VARCHAR)));
+        assertFalse(plugin.isHashableKeyColumn(s, column(java.sql.Types.CHAR)));
+        // rounded to the precision of the column
+        assertFalse(plugin.isHashableKeyColumn(schema.getColumn(2), column(java.sql.Types.TIMESTAMP)));
+        assertFalse(plugin.isHashableKeyColumn(schema.getColumn(3), column(java.sql.Types.DOUBLE)));
+        assertFalse(plugin.isHashableKeyColumn(id, JdbcColumn.skipColumn()));
+    }
+
+    private static JdbcColumn column(int sqlType)
+    {
+        return JdbcColumn.newGenericTypeColumn("c", sqlType, "", 0, 0, false, false);
+    }
+
+    private void addRow(RecordBuffer rows, Long id, String s, Instant t, double v) throws IOException
+    {
+        rows.addRecord();
+        if (id != null) {
+            rows.setLong(schema.getColumn(0), id);
+        }
+        if (s != null) {
+            rows.setString(schema.getColumn(1), s);
+        }
+        if (t != null) {
+            rows.setTimestamp(schema.getColumn(2), t);
+        }
+        rows.setDouble(schema.getColumn(3), v);
+    }
+
+    private static String key(Record record, List<Column> keys)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Column column : keys) {
+            if (record.isNull(column)) {
+                sb.append("null");
+            } else if (column.getIndex() == 0) {
+                sb.append(record.getLong(column));
+            } else if (column.getIndex() == 1) {
+                sb.append(record.getString(column));
+            } else {
+                sb.append(record.getTimestamp(column));
+            }
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package org.embulk.output.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SplitIntermediateTablesTest
+{
+    @Test
+    public void testSplitByRows()
+    {
+        List<TableIdentifier> tables = tables(5);
+        assertEquals(Arrays.asList(
+                    Arrays.asList(tables.get(0), tables.get(1)),
+                    Arrays.asList(tables.get(2), tables.get(3)),
+                    Arrays.asList(tables.get(4))),
+                AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Arrays.asList(40L, 60L, 70L, 10L, 30L), 100));
+    }
+
+    @Test
+    public void testLargeTable()
+    {
+        // a table having more rows than commit_chunk_rows isn't split
+        List<TableIdentifier> tables = tables(3);
+        assertEquals(Arrays.asList(
+                    Arrays.asList(tables.get(0)),
+                    Arrays.asList(tables.get(1)),
+                    Arrays.asList(tables.get(2))),
+                AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Arrays.asList(10L, 1000L, 10L), 100));
+    }
+
+    @Test
+    public void testEmptyTables()
+    {
+        List<TableIdentifier> tables = tables(3);
+        assertEquals(Arrays.asList(Arrays.asList(tables.get(1))),
+                AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Arrays.asList(0L, 10L, 0L), 100));
+        assertEquals(Collections.emptyList(),
+                AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Arrays.asList(0L, 0L, 0L), 100));
+    }
+
+    @Test
+    public void testUnknownRows()
+    {
+        // tables without rows of task reports make a chunk by themselves
+        List<TableIdentifier> tables = tables(3);
+        List<List<TableIdentifier>> expected = Arrays.asList(
+                Arrays.asList(tables.get(0)),
+                Arrays.asList(tables.get(1)),
+                Arrays.asList(tables.get(2)));
+        assertEquals(expected, AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Collections.<Long>emptyList(), 100));
+        assertEquals(expected, AbstractJdbcOutputPlugin.splitIntermediateTables(tables, Arrays.asList(10L, -1L, 10L), 100));
+    }
+
+    private static List<TableIdentifier> tables(int count)
+    {
+        List<TableIdentifier> tables = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tables.add(new TableIdentifier(null, null, "t_" + i));
+        }
+        return tables;
+    }
+}
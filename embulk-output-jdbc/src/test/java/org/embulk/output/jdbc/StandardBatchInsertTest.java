@@ -0,0 +1,132 @@
+package org.embulk.output.jdbc;
+
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StandardBatchInsertTest
+{
+    private static final String INSERT_1 = "INSERT INTO \"t\" (\"id\", \"flag\", \"s\") VALUES (?, ?, ?)";
+    private static final String INSERT_2 = INSERT_1 + ", (?, ?, ?)";
+    private static final String INSERT_4 = INSERT_2 + ", (?, ?, ?), (?, ?, ?)";
+
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "BIGINT", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("flag", Types.BOOLEAN, "BOOLEAN", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("s", Types.VARCHAR, "VARCHAR", 10, 0, false, false)));
+
+    @Test
+    public void testTailStatements() throws IOException, SQLException
+    {
+        FakeConnection fake = new FakeConnection();
+        StandardBatchInsert batch = newBatchInsert(fake, 4);
+        // 11 rows are inserted by 2 statements of 4 rows, and the rest by a statement of 2 rows and of 1 row
+        addRows(batch, 0, 11);
+        batch.flush();
+
+        assertEquals(Arrays.asList(
+                INSERT_4 + " [0, true, null, 1, false, s1, 2, true, s2, 3, false, null]",
+                INSERT_4 + " [4, true, s4, 5, false, s5, 6, true, null, 7, false, s7]",
+                INSERT_2 + " [8, true, s8, 9, false, null]",
+                INSERT_1 + " [10, true, s10]"),
+                fake.getLog());
+        assertEquals(11, batch.getLastUpdateCounts().length);
+
+        // statements are reused for the next batch
+        fake.clearLog();
+        addRows(batch, 11, 3);
+        batch.flush();
+        assertEquals(Arrays.asList(
+                INSERT_2 + " [11, false, s11, 12, true, null]",
+                INSERT_1 + " [13, false, s13]"),
+                fake.getLog());
+        batch.close();
+    }
+
+    @Test
+    public void testFailedStatementInBatch() throws IOException, SQLException
+    {
+        FakeConnection fake = new FakeConnection().fail("s5", new SQLException("deadlock"));
+        StandardBatchInsert batch = newBatchInsert(fake, 4);
+        addRows(batch, 0, 11);
+        try {
+            batch.flush();
+            fail();
+        } catch (BatchUpdateException ex) {
+            // all rows of the failed statement are retried
+            assertArrayEquals(new int[] {
+                    Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO,
+                    Statement.EXECUTE_FAILED, Statement.EXECUTE_FAILED, Statement.EXECUTE_FAILED, Statement.EXECUTE_FAILED},
+                    batch.getLastUpdateCounts());
+        }
+        batch.close();
+    }
+
+    @Test
+    public void testFailedTailStatement() throws IOException, SQLException
+    {
+        FakeConnection fake = new FakeConnection().fail(" 9, ", new SQLException("timeout"));
+        StandardBatchInsert batch = newBatchInsert(fake, 4);
+        addRows(batch, 0, 11);
+        try {
+            batch.flush();
+            fail();
+        } catch (SQLException ex) {
+            // rows after the last successful statement are retried
+            assertEquals(8, batch.getLastUpdateCounts().length);
+        }
+        assertEquals(2, fake.getLog().size());
+        batch.close();
+    }
+
+    @Test
+    public void testToRowUpdateCounts()
+    {
+        assertArrayEquals(new int[0], StandardBatchInsert.toRowUpdateCounts(new int[0], 3));
+        assertArrayEquals(new int[] {
+                Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO,
+                Statement.EXECUTE_FAILED, Statement.EXECUTE_FAILED,
+                Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO},
+                StandardBatchInsert.toRowUpdateCounts(new int[] {2, Statement.EXECUTE_FAILED, Statement.SUCCESS_NO_INFO}, 2));
+        // update counts of merge statements may be larger than the number of rows
+        assertArrayEquals(new int[] {Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO},
+                StandardBatchInsert.toRowUpdateCounts(new int[] {6}, 3));
+    }
+
+    private StandardBatchInsert newBatchInsert(final FakeConnection fake, int rowsPerStatement) throws IOException, SQLException
+    {
+        StandardBatchInsert batch = new StandardBatchInsert(new JdbcOutputConnector() {
+            @Override
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                return new JdbcOutputConnection(fake.connection(), null);
+            }
+        }, Optional.<MergeConfig>empty(), rowsPerStatement);
+        batch.prepare(new TableIdentifier(null, null, "t"), schema);
+        return batch;
+    }
+
+    private static void addRows(StandardBatchInsert batch, int from, int rows) throws IOException, SQLException
+    {
+        for (int i = from; i < from + rows; i++) {
+            batch.setLong(i);
+            batch.setBoolean(i % 2 == 0);
+            if (i % 3 == 0) {
+                batch.setNull(Types.VARCHAR);
+            } else {
+                batch.setString("s" + i);
+            }
+            batch.add();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.embulk.output.jdbc.setter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.output.jdbc.RecordBuffer;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+import org.msgpack.value.Value;
+
+import static org.junit.Assert.assertEquals;
+
+public class RowBinderTest
+{
+    private final Schema schema = Schema.builder()
+            .add("b", Types.BOOLEAN)
+            .add("l", Types.LONG)
+            .add("d", Types.DOUBLE)
+            .add("s", Types.STRING)
+            .add("t", Types.TIMESTAMP)
+            .add("skipped", Types.STRING)
+            .build();
+
+    @Test
+    public void testSameAsColumnSetterVisitor() throws IOException, SQLException
+    {
+        try (RecordBuffer records = new RecordBuffer(schema, Long.MAX_VALUE)) {
+            for (int i = 0; i < 100; i++) {
+                records.addRecord();
+                if (i % 7 == 0) {
+                    continue;  // all columns are null
+                }
+                records.setBoolean(schema.getColumn(0), i % 2 == 0);
+                records.setLong(schema.getColumn(1), i);
+                records.setDouble(schema.getColumn(2), i / 3.0);
+                if (i % 5 != 0) {
+                    records.setString(schema.getColumn(3), "s" + i);
+                }
+                records.setTimestamp(schema.getColumn(4), Instant.ofEpochSecond(i, i));
+                records.setString(schema.getColumn(5), "x");
+            }
+
+            List<String> bound = new ArrayList<>();
+            List<String> visited = new ArrayList<>();
+            try (RecordBuffer.Cursor cursor = records.cursor()) {
+                RowBinder binder = new RowBinder(cursor, schema.getColumns(), newSetters(bound));
+                List<ColumnSetter> visitedSetters = newSetters(visited);
+                while (cursor.next()) {
+                    binder.bind();
+                    for (Column column : schema.getColumns()) {
+                        column.visit(new ColumnSetterVisitor(cursor, visitedSetters.get(column.getIndex())));
+                    }
+                }
+            }
+
+            assertEquals(visited, bound);
+            // 5 columns of 100 rows, excluding the skipped column
+            assertEquals(500, bound.size());
+            assertEquals(Arrays.asList("b:null", "l:null", "d:null", "s:null", "t:null",
+                    "b:false", "l:1", "d:" + (1 / 3.0), "s:s1", "t:" + Instant.ofEpochSecond(1, 1)),
+                    bound.subList(0, 10));
+        }
+    }
+
+    private List<ColumnSetter> newSetters(List<String> log)
+    {
+        return Arrays.<ColumnSetter>asList(
+                new RecordingColumnSetter("b", log),
+                new RecordingColumnSetter("l", log),
+                new RecordingColumnSetter("d", log),
+                new RecordingColumnSetter("s", log),
+                new RecordingColumnSetter("t", log),
+                new SkipColumnSetter(null));
+    }
+
+    private static class RecordingColumnSetter
+            extends ColumnSetter
+    {
+        private final String name;
+        private final List<String> log;
+
+        RecordingColumnSetter(String name, List<String> log)
+        {
+            super(null, null, null);
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public void nullValue()
+        {
+            log.add(name + ":null");
+        }
+
+        @Override
+        public void booleanValue(boolean v)
+        {
+            log.add(name + ":" + v);
+        }
+
+        @Override
+        public void longValue(long v)
+        {
+            log.add(name + ":" + v);
+        }
+
+        @Override
+        public void doubleValue(double v)
+        {
+            log.add(name + ":" + v);
+        }
+
+        @Override
+        public void stringValue(String v)
+        {
+            log.add(name + ":" + v);
+        }
+
+        @Override
+        public void timestampValue(final Instant v)
+        {
+            log.add(name + ":" + v);
+        }
+
+        @Override
+        public void jsonValue(Value v)
+        {
+            log.add(name + ":" + v);
+        }
+    }
+}
@@ -137,7 +137,7 @@ public class MySQLOutputPlugin
     @Override
     protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
     {
-        return new MySQLBatchInsert(getConnector(task, true), mergeConfig);
+        return new MySQLBatchInsert(getConnector(task, true), mergeConfig, getRowsPerStatement(task));
     }
 
 
@@ -16,6 +16,11 @@ public class MySQLBatchInsert
         super(connector, mergeConfig);
     }
 
+    public MySQLBatchInsert(JdbcOutputConnector connector, Optional<MergeConfig> mergeConfig, int rowsPerStatement) throws IOException, SQLException
+    {
+        super(connector, mergeConfig, rowsPerStatement);
+    }
+
     @Override
     public void setFloat(float v) throws IOException, SQLException
     {
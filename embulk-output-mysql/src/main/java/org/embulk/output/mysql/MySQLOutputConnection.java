@@ -1,13 +1,23 @@
 package org.embulk.output.mysql;
 
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Optional;
 
 import org.embulk.output.MySQLTimeZoneComparison;
 import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcIndex;
 import org.embulk.output.jdbc.JdbcSchema;
 import org.embulk.output.jdbc.JdbcOutputConnection;
 import org.embulk.output.jdbc.MergeConfig;
@@ -22,8 +32,60 @@ public class MySQLOutputConnection
         super(connection, null);
     }
 
+    @Override
+    protected int getMaxPreparedStatementParameters()
+    {
+        return 65535;
+    }
+
+    // DDL commits implicitly, so that tables are created one by one
+    @Override
+    protected boolean supportsTransactionalDdl()
+    {
+        return false;
+    }
+
+    @Override
+    protected boolean supportsMultiTableDrop()
+    {
+        return true;
+    }
+
+    // INSERT ... ON DUPLICATE KEY UPDATE
+    @Override
+    protected boolean mergeNeedsUniqueKey()
+    {
+        return true;
+    }
+
+    // the unique key makes concurrent INSERT ... ON DUPLICATE KEY UPDATE update a new key inserted by another
+    @Override
+    protected Optional<String> buildLockTableSql(TableIdentifier table)
+    {
+        return Optional.empty();
+    }
+
+    @Override
+    protected Optional<String> buildAnalyzeTableSql(TableIdentifier table)
+    {
+        return Optional.of("ANALYZE TABLE " + quoteTableIdentifier(table));
+    }
+
+    @Override
+    protected boolean supportsMultiRowMerge(MergeConfig mergeConfig)
+    {
+        // rows in VALUES are applied one by one, so that the result is the same as single-row statements
+        return true;
+    }
+
     @Override
     protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema toTableSchema, MergeConfig mergeConfig) throws SQLException
+    {
+        return buildPreparedMergeSql(toTable, toTableSchema, mergeConfig, 1);
+    }
+
+    @Override
+    protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema toTableSchema, MergeConfig mergeConfig, int rows) throws SQLException
     {
         StringBuilder sb = new StringBuilder();
 
@@ -34,12 +96,8 @@ public class MySQLOutputConnection
             if(i != 0) { sb.append(", "); }
             quoteIdentifierString(sb, toTableSchema.getColumnName(i));
         }
-        sb.append(") VALUES (");
-        for(int i = 0; i < toTableSchema.getCount(); i++) {
-            if(i != 0) { sb.append(", "); }
-            sb.append("?");
-        }
-        sb.append(")");
+        sb.append(") VALUES ");
+        appendPreparedValues(sb, toTableSchema, rows);
         sb.append(" ON DUPLICATE KEY UPDATE ");
         if (mergeConfig.getMergeRule().isPresent()) {
             List<String> rule = mergeConfig.getMergeRule().get();
@@ -81,7 +139,7 @@ public class MySQLOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
         }
         sb.append(" ON DUPLICATE KEY UPDATE ");
         if (mergeConfig.getMergeRule().isPresent()) {
@@ -153,6 +211,130 @@ public class MySQLOutputConnection
         }
     }
 
+    // Prefix lengths (SUB_PART) are read from information_schema. FULLTEXT, SPATIAL and HASH indexes and indexes on
+    // expressions are skipped.
+    @Override
+    public List<JdbcIndex> getSecondaryIndexes(TableIdentifier table) throws SQLException
+    {
+        String sql = "SELECT INDEX_NAME, NON_UNIQUE, COLUMN_NAME, SUB_PART, COLLATION, INDEX_TYPE FROM information_schema.STATISTICS"
+                + " WHERE TABLE_SCHEMA = COALESCE(?, DATABASE()) AND TABLE_NAME = ? AND INDEX_NAME <> 'PRIMARY'"
+                + " ORDER BY INDEX_NAME, SEQ_IN_INDEX";
+        // columns of each index in the order of SEQ_IN_INDEX
+        Map<String, StringBuilder> definitions = new LinkedHashMap<>();
+        Map<String, Boolean> unique = new HashMap<>();
+        Set<String> skippedNames = new LinkedHashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, table.getSchemaName());
+            stmt.setString(2, table.getTableName());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String indexName = rs.getString("INDEX_NAME");
+                    String columnName = rs.getString("COLUMN_NAME");
+                    if (columnName == null || !"BTREE".equals(rs.getString("INDEX_TYPE"))) {
+                        skippedNames.add(indexName);
+                        continue;
+                    }
+                    StringBuilder sb = definitions.get(indexName);
+                    if (sb == null) {
+                        sb = new StringBuilder("(");
+                        definitions.put(indexName, sb);
+                        unique.put(indexName, rs.getInt("NON_UNIQUE") == 0);
+                    } else {
+                        sb.append(", ");
+                    }
+                    quoteIdentifierString(sb, columnName);
+                    long subPart = rs.getLong("SUB_PART");
+                    if (!rs.wasNull()) {
+                        sb.append("(").append(subPart).append(")");
+                    }
+                    if ("D".equals(rs.getString("COLLATION"))) {
+                        sb.append(" DESC");
+                    }
+                }
+            }
+        }
+
+        List<JdbcIndex> indexes = new ArrayList<>();
+        for (Map.Entry<String, StringBuilder> entry : definitions.entrySet()) {
+            if (!skippedNames.contains(entry.getKey())) {
+                indexes.add(new JdbcIndex(entry.getKey(), Collections.<String>emptyList(), Collections.<Boolean>emptyList(),
+                            unique.get(entry.getKey()), entry.getValue().append(")").toString()));
+            }
+        }
+        if (!skippedNames.isEmpty()) {
+            logger.warn("Indexes {} of table {} can't be built again by this plugin", skippedNames, table.getTableName());
+        }
+        return indexes;
+    }
+
+    // ALTER TABLE holds the table, and builds all indexes in one pass
+    @Override
+    protected boolean supportsConcurrentIndexBuild()
+    {
+        return false;
+    }
+
+    @Override
+    public void createIndexes(TableIdentifier table, List<JdbcIndex> indexes) throws SQLException
+    {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("ALTER TABLE ");
+        quoteTableIdentifier(sb, table);
+        for (int i = 0; i < indexes.size(); i++) {
+            JdbcIndex index = indexes.get(i);
+            if (i != 0) { sb.append(","); }
+            sb.append(" ADD ");
+            if (index.isUnique()) {
+                sb.append("UNIQUE ");
+            }
+            sb.append("INDEX ");
+            quoteIdentifierString(sb, index.getName());
+            sb.append(" ");
+            appendIndexDefinition(sb, index);
+        }
+        executeUpdateInNewStatement(sb.toString());
+    }
+
+    // EXCHANGE PARTITION needs a non-partitioned table having the same columns and indexes
+    @Override
+    public void createPartitionTable(TableIdentifier table, TableIdentifier partitionedTable, String partition, JdbcSchema schema,
+            Optional<String> tableConstraint, Optional<String> tableOption) throws SQLException
+    {
+        String sql = "SELECT 1 FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = COALESCE(?, DATABASE()) AND TABLE_NAME = ? AND PARTITION_NAME = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, partitionedTable.getSchemaName());
+            stmt.setString(2, partitionedTable.getTableName());
+            stmt.setString(3, partition);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException(String.format("Table %s has no partition '%s'.", quoteTableIdentifier(partitionedTable), partition));
+                }
+            }
+        }
+
+        Statement stmt = connection.createStatement();
+        try {
+            executeUpdate(stmt, String.format("CREATE TABLE %s LIKE %s", quoteTableIdentifier(table), quoteTableIdentifier(partitionedTable)));
+            executeUpdate(stmt, String.format("ALTER TABLE %s REMOVE PARTITIONING", quoteTableIdentifier(table)));
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // rows of the partition are moved to fromTable, and dropped with it
+    @Override
+    protected List<String> buildReplacePartitionSqls(TableIdentifier fromTable, TableIdentifier toTable, String partition)
+    {
+        return Collections.singletonList(String.format("ALTER TABLE %s EXCHANGE PARTITION %s WITH TABLE %s",
+                    quoteTableIdentifier(toTable), quoteIdentifierString(partition), quoteTableIdentifier(fromTable)));
+    }
+
     @Override
     protected String buildColumnTypeName(JdbcColumn c)
     {
@@ -9,13 +9,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Optional;
 
+import org.embulk.config.ConfigException;
 import org.embulk.output.jdbc.*;
 import org.embulk.output.jdbc.setter.ColumnSetterFactory;
+import org.embulk.output.postgresql.CopyFormat;
 import org.embulk.output.postgresql.PostgreSQLCopyBatchInsert;
+import org.embulk.output.postgresql.PostgreSQLCopyStreamBatchInsert;
+import org.embulk.output.postgresql.PostgreSQLOutputConnection;
 import org.embulk.output.postgresql.PostgreSQLOutputConnector;
+import org.embulk.output.postgresql.StagingBufferFactory;
 import org.embulk.output.postgresql.setter.PostgreSQLColumnSetterFactory;
 import org.embulk.spi.Column;
 import org.embulk.spi.ColumnVisitor;
@@ -65,6 +71,38 @@ public class PostgreSQLOutputPlugin
         @Config("role_name")
         @ConfigDefault("null")
         public Optional<String> getRoleName();
+
+        @Config("copy_format")
+        @ConfigDefault("\"text\"")
+        public CopyFormat getCopyFormat();
+
+        @Config("copy_streaming")
+        @ConfigDefault("false")
+        public boolean getCopyStreaming();
+
+        @Config("copy_checkpoint_rows")
+        @ConfigDefault("null")
+        public Optional<Long> getCopyCheckpointRows();
+
+        @Config("merge_direct_staging")
+        @ConfigDefault("false")
+        public boolean getMergeDirectStaging();
+
+        @Config("staging_memory_limit")
+        @ConfigDefault("33554432")
+        public long getStagingMemoryLimit();
+
+        @Config("staging_min_free_space")
+        @ConfigDefault("104857600")
+        public long getStagingMinFreeSpace();
+
+        @Config("index_maintenance_work_mem")
+        @ConfigDefault("null")
+        public Optional<String> getIndexMaintenanceWorkMem();
+
+        @Config("index_parallel_workers")
+        @ConfigDefault("null")
+        public Optional<Integer> getIndexParallelWorkers();
     }
 
     @Override
@@ -79,8 +117,9 @@ public class PostgreSQLOutputPlugin
         return new Features()
             .setMaxTableNameLength(63)
             .setSupportedModes(Collections.unmodifiableSet(new HashSet<Mode>(Arrays.asList(
-                    Mode.INSERT, Mode.INSERT_DIRECT, Mode.MERGE, Mode.MERGE_DIRECT, Mode.TRUNCATE_INSERT, Mode.REPLACE))))
-            .setIgnoreMergeKeys(false);
+                    Mode.INSERT, Mode.INSERT_DIRECT, Mode.MERGE, Mode.MERGE_DIRECT, Mode.TRUNCATE_INSERT, Mode.REPLACE, Mode.REPLACE_PARTITION))))
+            .setIgnoreMergeKeys(false)
+            .setConcurrentMerge(true);
     }
 
     @Override
@@ -128,20 +167,72 @@ public class PostgreSQLOutputPlugin
     @Override
     protected TableIdentifier buildIntermediateTableId(JdbcOutputConnection con, PluginTask task, String tableName) {
         PostgreSQLPluginTask t = (PostgreSQLPluginTask) task;
-        // replace mode doesn't support temp_schema because ALTER TABLE cannot change schema of table
-        if (t.getTempSchema().isPresent() && t.getMode() != Mode.REPLACE) {
+        // replace and replace_partition modes don't support temp_schema because ALTER TABLE cannot change schema of table
+        if (t.getTempSchema().isPresent() && t.getMode() != Mode.REPLACE && t.getMode() != Mode.REPLACE_PARTITION) {
             return new TableIdentifier(null, t.getTempSchema().get(), tableName);
         }
         return super.buildIntermediateTableId(con, task, tableName);
     }
 
+    @Override
+    protected List<BatchInsert> newBatchInserts(PluginTask task, Optional<MergeConfig> mergeConfig, int count) throws IOException, SQLException
+    {
+        // staging_memory_limit is shared by all batches of the task
+        StagingBufferFactory bufferFactory = newStagingBufferFactory((PostgreSQLPluginTask) task);
+        List<BatchInsert> batches = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                batches.add(newBatchInsert(task, mergeConfig, bufferFactory));
+            }
+        } catch (IOException | SQLException | RuntimeException ex) {
+            closeBatches(batches);
+            throw ex;
+        }
+        return batches;
+    }
+
     @Override
     protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
     {
+        return newBatchInsert(task, mergeConfig, newStagingBufferFactory((PostgreSQLPluginTask) task));
+    }
+
+    private BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig, StagingBufferFactory bufferFactory) throws IOException, SQLException
+    {
+        PostgreSQLPluginTask t = (PostgreSQLPluginTask) task;
         if (mergeConfig.isPresent()) {
-            return new StandardBatchInsert(getConnector(task, true), mergeConfig);
+            // merge_rule needs to be applied to rows of the same key one by one
+            if (!t.getMergeDirectStaging() || mergeConfig.get().getMergeRule().isPresent()) {
+                return new StandardBatchInsert(getConnector(task, true), mergeConfig, getRowsPerStatement(task));
+            }
+            return new PostgreSQLCopyBatchInsert(getConnector(task, true), mergeConfig, t.getCopyFormat(), bufferFactory);
+        }
+        if (t.getCopyStreaming()) {
+            if (t.getCopyCheckpointRows().isPresent() && t.getCopyCheckpointRows().get() <= 0) {
+                throw new ConfigException(String.format("'copy_checkpoint_rows' must be positive: %d", t.getCopyCheckpointRows().get()));
+            }
+            return new PostgreSQLCopyStreamBatchInsert(getConnector(task, true), t.getCopyCheckpointRows().orElse(Long.MAX_VALUE), t.getCopyFormat());
         }
-        return new PostgreSQLCopyBatchInsert(getConnector(task, true));
+        return new PostgreSQLCopyBatchInsert(getConnector(task, true), t.getCopyFormat(), bufferFactory);
+    }
+
+    private StagingBufferFactory newStagingBufferFactory(PostgreSQLPluginTask t)
+    {
+        return StagingBufferFactory.fromOptions(t.getTempDir(), t.getStagingMemoryLimit(), t.getStagingMinFreeSpace(), true);
+    }
+
+    @Override
+    protected void prepareIndexBuild(JdbcOutputConnection con, PluginTask task) throws SQLException
+    {
+        PostgreSQLPluginTask t = (PostgreSQLPluginTask) task;
+        ((PostgreSQLOutputConnection) con).setIndexBuildParameters(t.getIndexMaintenanceWorkMem(), t.getIndexParallelWorkers());
+    }
+
+    @Override
+    protected boolean isRetryableException(String sqlState, int errorCode)
+    {
+        // the transaction was rolled back, so it can be run again
+        return PostgreSQLOutputConnection.isTransactionRollback(sqlState);
     }
 
     // TODO This is almost copy from AbstractJdbcOutputPlugin excepting type of TIMESTAMP -> TIMESTAMP WITH TIME ZONE.
@@ -199,6 +290,21 @@ public class PostgreSQLOutputPlugin
         return new JdbcSchema(Collections.unmodifiableList(columns));
     }
 
+    @Override
+    protected boolean isHashableKeyColumn(Column column, JdbcColumn targetColumn)
+    {
+        // text and varchar compare strings as they are by the default deterministic collation.
+        // char (bpchar) ignores trailing spaces.
+        switch (targetColumn.getSqlType()) {
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.CLOB:
+            return column.getType().equals(org.embulk.spi.type.Types.STRING);
+        default:
+            return super.isHashableKeyColumn(column, targetColumn);
+        }
+    }
+
     @Override
     protected ColumnSetterFactory newColumnSetterFactory(final BatchInsert batch, final ZoneId defaultTimeZone)
     {
@@ -1,68 +1,156 @@
 package org.embulk.output.postgresql;
 
 import java.util.Calendar;
-import java.util.Locale;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.time.Instant;
 import org.embulk.output.jdbc.BatchInsert;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class AbstractPostgreSQLCopyBatchInsert
         implements BatchInsert
 {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractPostgreSQLCopyBatchInsert.class);
+
     protected static final Charset FILE_CHARSET = Charset.forName("UTF-8");
 
     protected static final String nullString = "\\N";
     protected static final String newLineString = "\n";
     protected static final String delimiterString = "\t";
 
-    protected File currentFile;
-    protected BufferedWriter writer;
+    private static final byte[] NULL_BYTES = nullString.getBytes(FILE_CHARSET);
+    private static final byte[] TRUE_BYTES = "true".getBytes(FILE_CHARSET);
+    private static final byte[] FALSE_BYTES = "false".getBytes(FILE_CHARSET);
+    private static final byte[] BYTEA_HEX_PREFIX = "\\\\x".getBytes(FILE_CHARSET);  // \x of the hex format of bytea, escaped for COPY
+
+    private final CopyTextEncoder.Escape escape;
+    private final StagingBufferFactory bufferFactory;
+    protected StagingBuffer currentBuffer;
+    protected CopyTextEncoder encoder;
+    protected CopyBinaryEncoder binaryEncoder;  // not null if rows are written in the binary format
+    private JdbcSchema binarySchema;
+    private CountingOutputStream output;
+    private OutputStream dataOutput;
     protected int index;
     protected int batchRows;
 
     protected AbstractPostgreSQLCopyBatchInsert() throws IOException
     {
+        this(CopyTextEncoder.Escape.POSTGRESQL);
+    }
+
+    protected AbstractPostgreSQLCopyBatchInsert(CopyTextEncoder.Escape escape) throws IOException
+    {
+        this(escape, StagingBufferFactory.TEMP_FILE);
+    }
+
+    /**
+     * Keeps each batch in a buffer created by the factory until it's sent.
+     */
+    protected AbstractPostgreSQLCopyBatchInsert(CopyTextEncoder.Escape escape, StagingBufferFactory bufferFactory) throws IOException
+    {
+        this.escape = escape;
+        this.bufferFactory = bufferFactory;
         this.index = 0;
-        openNewFile();
+        openNewBuffer();
     }
 
-    private File createTempFile() throws IOException
+    /**
+     * Writes data to the stream instead of staging buffers.
+     */
+    protected AbstractPostgreSQLCopyBatchInsert(CopyTextEncoder.Escape escape, OutputStream out)
     {
-        return File.createTempFile("embulk-output-postgres-copy-", ".tsv.tmp");  // TODO configurable temporary file path
+        this.escape = escape;
+        this.bufferFactory = null;
+        this.index = 0;
+        this.output = new CountingOutputStream(out);
+        this.dataOutput = output;
+        this.encoder = new CopyTextEncoder(dataOutput, escape);
     }
 
-    protected File openNewFile() throws IOException
+    protected StagingBuffer openNewBuffer() throws IOException
     {
-        File newFile = createTempFile();
-        File oldFile = closeCurrentFile();
-        this.writer = openWriter(newFile);
-        currentFile = newFile;
-        return oldFile;
+        StagingBuffer newBuffer = bufferFactory.newBuffer("embulk-output-postgres-copy-");
+        StagingBuffer oldBuffer = closeCurrentBuffer();
+        this.output = new CountingOutputStream(newBuffer);
+        this.dataOutput = openOutputStream(output);
+        if (binarySchema != null) {
+            this.binaryEncoder = new CopyBinaryEncoder(dataOutput, binarySchema);
+        } else {
+            this.encoder = new CopyTextEncoder(dataOutput, escape);
+        }
+        currentBuffer = newBuffer;
+        return oldBuffer;
     }
 
-    protected File closeCurrentFile() throws IOException
+    /**
+     * Finishes writing the current buffer, which can be read after this.
+     */
+    protected StagingBuffer closeCurrentBuffer() throws IOException
     {
-        if(writer != null) {
-            writer.close();
-            writer = null;
+        if(encoder != null) {
+            encoder.close();
+            encoder = null;
         }
-        return currentFile;
+        if (binaryEncoder != null) {
+            binaryEncoder.close();
+            binaryEncoder = null;
+        }
+        return currentBuffer;
     }
 
-    protected BufferedWriter openWriter(File newFile) throws IOException
+    /**
+     * Writes rows in the binary format of COPY instead of text if all columns have types
+     * supported by CopyBinaryEncoder. This must be called before adding rows.
+     * @return true if rows are written in the binary format
+     */
+    protected boolean useBinaryFormat(JdbcSchema insertSchema)
     {
-        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newFile), FILE_CHARSET));
+        for (JdbcColumn column : insertSchema.getColumns()) {
+            if (CopyBinaryEncoder.FieldType.of(column) == null) {
+                logger.warn("Using the text format of COPY because type '{}' of column '{}' isn't supported by the binary format",
+                        column.getSimpleTypeName(), column.getName());
+                return false;
+            }
+        }
+        // nothing is written to the text encoder yet
+        this.binarySchema = insertSchema;
+        this.binaryEncoder = new CopyBinaryEncoder(dataOutput, insertSchema);
+        this.encoder = null;
+        return true;
+    }
+
+    /**
+     * Writes data buffered by the encoder to the stream. The binary format writes the trailer of COPY data here.
+     */
+    protected void flushEncoder() throws IOException
+    {
+        if (binaryEncoder != null) {
+            binaryEncoder.finish();
+        } else {
+            encoder.flush();
+        }
+    }
+
+    /**
+     * Returns a stream to write data to the buffer. Subclasses can override to compress data.
+     */
+    protected OutputStream openOutputStream(OutputStream bufferOutput) throws IOException
+    {
+        return bufferOutput;
     }
 
     public int getBatchWeight()
     {
-        long fsize = currentFile.length();
+        // size of data written to the buffer. data in buffers of encoders are not counted
+        long fsize = output.getCount();
         if (fsize > Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
         } else {
@@ -70,9 +158,19 @@ public abstract class AbstractPostgreSQLCopyBatchInsert
         }
     }
 
+    // starts counting weight of the next batch written to the stream
+    protected void resetBatchWeight()
+    {
+        output.resetCount();
+    }
+
     public void add() throws IOException
     {
-        writer.write(newLineString);
+        if (binaryEncoder != null) {
+            binaryEncoder.endRow();
+        } else {
+            encoder.writeByte((byte) '\n');
+        }
         batchRows++;
         index = 0;
     }
@@ -80,160 +178,254 @@ public abstract class AbstractPostgreSQLCopyBatchInsert
     private void appendDelimiter() throws IOException
     {
         if(index != 0) {
-            writer.write(delimiterString);
+            encoder.writeByte((byte) '\t');
         }
         index++;
     }
 
     public void setNull(int sqlType) throws IOException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeNull();
+            return;
+        }
         appendDelimiter();
-        writer.write(nullString);
+        encoder.writeBytes(NULL_BYTES);
     }
 
-    public void setBoolean(boolean v) throws IOException
+    public void setBoolean(boolean v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeBoolean(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeBytes(v ? TRUE_BYTES : FALSE_BYTES);
     }
 
-    public void setByte(byte v) throws IOException
+    public void setByte(byte v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeLong(v);
+            return;
+        }
         appendDelimiter();
-        setEscapedString(String.valueOf(v));
+        encoder.writeLong(v);
     }
 
-    public void setShort(short v) throws IOException
+    public void setShort(short v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeLong(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeLong(v);
     }
 
-    public void setInt(int v) throws IOException
+    public void setInt(int v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeLong(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeLong(v);
     }
 
-    public void setLong(long v) throws IOException
+    public void setLong(long v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeLong(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeLong(v);
     }
 
-    public void setFloat(float v) throws IOException
+    public void setFloat(float v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeFloat(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeAscii(String.valueOf(v));
     }
 
-    public void setDouble(double v) throws IOException
+    public void setDouble(double v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeDouble(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeAscii(String.valueOf(v));
     }
 
-    public void setBigDecimal(BigDecimal v) throws IOException
+    public void setBigDecimal(BigDecimal v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeBigDecimal(v);
+            return;
+        }
         appendDelimiter();
-        writer.write(String.valueOf(v));
+        encoder.writeAscii(String.valueOf(v));
     }
 
-    public void setString(String v) throws IOException
+    public void setString(String v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeString(v);
+            return;
+        }
         appendDelimiter();
-        setEscapedString(v);
+        encoder.writeEscaped(v);
     }
 
-    public void setNString(String v) throws IOException
+    public void setNString(String v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeString(v);
+            return;
+        }
         appendDelimiter();
-        setEscapedString(v);
+        encoder.writeEscaped(v);
     }
 
-    public void setBytes(byte[] v) throws IOException
+    public void setBytes(byte[] v) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeBytes(v);
+            return;
+        }
         appendDelimiter();
-        setEscapedString(String.valueOf(v));
+        if (escape == CopyTextEncoder.Escape.POSTGRESQL) {
+            encoder.writeBytes(BYTEA_HEX_PREFIX);
+        }
+        encoder.writeHex(v);
     }
 
-    public void setSqlDate(final Instant v, final Calendar cal) throws IOException
+    public void setSqlDate(final Instant v, final Calendar cal) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeSqlDate(v, cal);
+            return;
+        }
         appendDelimiter();
         cal.setTimeInMillis(v.getEpochSecond() * 1000);
-        String f = String.format(Locale.ENGLISH, "%02d-%02d-%02d",
-                cal.get(Calendar.YEAR),
-                cal.get(Calendar.MONTH) + 1,
-                cal.get(Calendar.DAY_OF_MONTH));
-        writer.write(f);
+        writeDate(cal, 2);
     }
 
-    public void setSqlTime(final Instant v, final Calendar cal) throws IOException
+    public void setSqlTime(final Instant v, final Calendar cal) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeSqlTime(v, cal);
+            return;
+        }
         appendDelimiter();
         cal.setTimeInMillis(v.getEpochSecond() * 1000);
-        String f = String.format(Locale.ENGLISH, "%02d:%02d:%02d.%06d",
-                cal.get(Calendar.HOUR_OF_DAY),
-                cal.get(Calendar.MINUTE),
-                cal.get(Calendar.SECOND),
-                v.getNano() / 1000);
-        writer.write(f);
+        writeTime(cal, v.getNano());
     }
 
-    public void setSqlTimestamp(final Instant v, final Calendar cal) throws IOException
+    public void setSqlTimestamp(final Instant v, final Calendar cal) throws IOException, SQLException
     {
+        if (binaryEncoder != null) {
+            binaryEncoder.writeSqlTimestamp(v, cal);
+            return;
+        }
         appendDelimiter();
         cal.setTimeInMillis(v.getEpochSecond() * 1000);
+        writeDate(cal, 1);
+        encoder.writeByte((byte) ' ');
+        writeTime(cal, v.getNano());
         int zoneOffset = cal.get(Calendar.ZONE_OFFSET) / 1000 / 60;  // zone offset considering DST in minute
-        String offset;
         if (zoneOffset >= 0) {
-            offset = String.format(Locale.ENGLISH, "+%02d%02d", zoneOffset / 60, zoneOffset % 60);
+            encoder.writeByte((byte) '+');
         } else {
-            offset = String.format(Locale.ENGLISH, "-%02d%02d", -zoneOffset / 60, -zoneOffset % 60);
+            encoder.writeByte((byte) '-');
+            zoneOffset = -zoneOffset;
         }
-        String f = String.format(Locale.ENGLISH, "%d-%02d-%02d %02d:%02d:%02d.%06d%s",
-                cal.get(Calendar.YEAR),
-                cal.get(Calendar.MONTH) + 1,
-                cal.get(Calendar.DAY_OF_MONTH),
-                cal.get(Calendar.HOUR_OF_DAY),
-                cal.get(Calendar.MINUTE),
-                cal.get(Calendar.SECOND),
-                v.getNano() / 1000,
-                offset);
-        writer.write(f);
+        encoder.writePadded(zoneOffset / 60, 2);
+        encoder.writePadded(zoneOffset % 60, 2);
     }
 
-    private void setEscapedString(String v) throws IOException
+    // yyyy-MM-dd
+    private void writeDate(Calendar cal, int yearWidth) throws IOException
     {
-        for (char c : v.toCharArray()) {
-            writer.write(escape(c));
-        }
+        encoder.writePadded(cal.get(Calendar.YEAR), yearWidth);
+        encoder.writeByte((byte) '-');
+        encoder.writePadded(cal.get(Calendar.MONTH) + 1, 2);
+        encoder.writeByte((byte) '-');
+        encoder.writePadded(cal.get(Calendar.DAY_OF_MONTH), 2);
     }
 
-    // Escape \, \n, \t, \r
-    // Remove \0
-    protected String escape(char c)
+    // HH:mm:ss.SSSSSS
+    private void writeTime(Calendar cal, int nano) throws IOException
     {
-        switch (c) {
-        case '\\':
-            return "\\\\";
-        case '\n':
-            return "\\n";
-        case '\t':
-            return "\\t";
-        case '\r':
-            return "\\r";
-        case 0:
-            return "";
-        default:
-            return String.valueOf(c);
-        }
+        encoder.writePadded(cal.get(Calendar.HOUR_OF_DAY), 2);
+        encoder.writeByte((byte) ':');
+        encoder.writePadded(cal.get(Calendar.MINUTE), 2);
+        encoder.writeByte((byte) ':');
+        encoder.writePadded(cal.get(Calendar.SECOND), 2);
+        encoder.writeByte((byte) '.');
+        encoder.writePadded(nano / 1000, 6);
     }
 
     @Override
     public int[] getLastUpdateCounts()
     {
-        // need not be implemented because AbstractPostgreSQLCopyBatchInsert won't retry.
+        // need not be implemented because COPY loads all rows of a batch or nothing.
         return new int[]{};
     }
+
+    @Override
+    public boolean isRetryableException(Exception exception)
+    {
+        // a batch is kept until COPY succeeds, and sent again on a new connection
+        return exception instanceof SQLException
+            && PostgreSQLOutputConnection.isConnectionFailure(((SQLException) exception).getSQLState());
+    }
+
+    @Override
+    public boolean needsRecordsForRetry()
+    {
+        // rows are kept in the buffer until flush succeeds
+        return false;
+    }
+
+    private static class CountingOutputStream
+            extends FilterOutputStream
+    {
+        private long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        void resetCount()
+        {
+            count = 0;
+        }
+    }
 }
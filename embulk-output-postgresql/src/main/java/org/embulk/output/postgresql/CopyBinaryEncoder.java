@@ -0,0 +1,754 @@
+package org.embulk.output.postgresql;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Calendar;
+import java.util.Locale;
+
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcSchema;
+
+/**
+ * Encodes rows in the binary format of COPY. Each value is written in the binary representation of
+ * the type of its target column, so that the server doesn't need to parse text.
+ * Values are converted to the type of the column in the same way as the server parses text of COPY
+ * as far as possible, and other conversions fail with SQLDataException.
+ */
+public class CopyBinaryEncoder
+{
+    public enum FieldType
+    {
+        INT2,
+        INT4,
+        INT8,
+        FLOAT4,
+        FLOAT8,
+        BOOL,
+        NUMERIC,
+        DATE,
+        TIME,
+        TIMESTAMP,
+        TIMESTAMPTZ,
+        TEXT,
+        JSONB,
+        BYTEA;
+
+        /**
+         * Returns the type to encode values of the column, or null if the type of the column isn't supported.
+         */
+        public static FieldType of(JdbcColumn column)
+        {
+            switch (column.getSimpleTypeName().toLowerCase(Locale.ENGLISH)) {
+            case "int2":
+            case "smallserial":
+                return INT2;
+            case "int4":
+            case "serial":
+                return INT4;
+            case "int8":
+            case "bigserial":
+                return INT8;
+            case "float4":
+                return FLOAT4;
+            case "float8":
+                return FLOAT8;
+            case "bool":
+                return BOOL;
+            case "numeric":
+                return NUMERIC;
+            case "date":
+                return DATE;
+            case "time":
+                return TIME;
+            case "timestamp":
+                return TIMESTAMP;
+            case "timestamptz":
+                return TIMESTAMPTZ;
+            case "text":
+            case "varchar":
+            case "bpchar":
+            case "name":
+            case "json":
+                // binary representation of these types is text itself
+                return TEXT;
+            case "jsonb":
+                return JSONB;
+            case "bytea":
+                return BYTEA;
+            default:
+                return null;
+            }
+        }
+    }
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 2000-01-01 00:00:00 UTC
+    private static final long POSTGRES_EPOCH_SECONDS = 946684800L;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private static final short NUMERIC_POS = 0x0000;
+    private static final short NUMERIC_NEG = 0x4000;
+    private static final short NUMERIC_NAN = (short) 0xc000;
+    private static final byte JSONB_VERSION = 1;
+
+    private final OutputStream out;
+    private final String[] names;
+    private final FieldType[] types;
+    private final byte[] buffer;
+    private int position;
+    private int column;
+    private boolean started;
+
+    public CopyBinaryEncoder(OutputStream out, JdbcSchema schema)
+    {
+        this.out = out;
+        this.names = new String[schema.getCount()];
+        this.types = new FieldType[schema.getCount()];
+        for (int i = 0; i < schema.getCount(); i++) {
+            JdbcColumn c = schema.getColumn(i);
+            names[i] = c.getName();
+            types[i] = FieldType.of(c);
+            if (types[i] == null) {
+                throw new IllegalArgumentException(String.format("Type '%s' of column '%s' isn't supported by the binary format", c.getSimpleTypeName(), c.getName()));
+            }
+        }
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.column = 0;
+        this.started = false;
+    }
+
+    public void writeNull() throws IOException
+    {
+        nextType();
+        ensure(4);
+        putInt(-1);
+        column++;
+    }
+
+    public void writeBoolean(boolean v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case BOOL:
+            writeBoolField(v);
+            break;
+        case TEXT:
+        case JSONB:
+            writeTextField(v ? "true" : "false");
+            break;
+        default:
+            throw unsupported("boolean");
+        }
+    }
+
+    public void writeLong(long v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case INT2:
+        case INT4:
+        case INT8:
+            writeIntegerField(v);
+            break;
+        case FLOAT4:
+            writeInt4Field(Float.floatToIntBits((float) v));
+            break;
+        case FLOAT8:
+            writeInt8Field(Double.doubleToLongBits((double) v));
+            break;
+        case NUMERIC:
+            writeNumericField(BigDecimal.valueOf(v));
+            break;
+        case BOOL:
+            if (v != 0 && v != 1) {
+                throw outOfRange(v);
+            }
+            writeBoolField(v == 1);
+            break;
+        case TEXT:
+        case JSONB:
+            writeTextField(Long.toString(v));
+            break;
+        default:
+            throw unsupported("integer");
+        }
+    }
+
+    public void writeFloat(float v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case FLOAT4:
+            writeInt4Field(Float.floatToIntBits(v));
+            break;
+        case FLOAT8:
+            // through text as the server does, so that 0.1f is 0.1 rather than 0.10000000149011612
+            writeInt8Field(Double.doubleToLongBits(Double.parseDouble(Float.toString(v))));
+            break;
+        case NUMERIC:
+            writeFloatingNumericField(v, Float.toString(v));
+            break;
+        case TEXT:
+        case JSONB:
+            writeTextField(Float.toString(v));
+            break;
+        default:
+            throw unsupported("float");
+        }
+    }
+
+    public void writeDouble(double v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case FLOAT4:
+            writeInt4Field(Float.floatToIntBits((float) v));
+            break;
+        case FLOAT8:
+            writeInt8Field(Double.doubleToLongBits(v));
+            break;
+        case NUMERIC:
+            writeFloatingNumericField(v, Double.toString(v));
+            break;
+        case TEXT:
+        case JSONB:
+            writeTextField(Double.toString(v));
+            break;
+        default:
+            throw unsupported("double");
+        }
+    }
+
+    public void writeBigDecimal(BigDecimal v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case INT2:
+        case INT4:
+        case INT8:
+            long l;
+            try {
+                l = v.longValueExact();
+            } catch (ArithmeticException ex) {
+                throw new SQLDataException(String.format("Invalid integer value %s for column '%s'", v, names[column]), "22P02", ex);
+            }
+            writeIntegerField(l);
+            break;
+        case FLOAT4:
+            writeInt4Field(Float.floatToIntBits(v.floatValue()));
+            break;
+        case FLOAT8:
+            writeInt8Field(Double.doubleToLongBits(v.doubleValue()));
+            break;
+        case NUMERIC:
+            writeNumericField(v);
+            break;
+        case TEXT:
+        case JSONB:
+            writeTextField(v.toString());
+            break;
+        default:
+            throw unsupported("decimal");
+        }
+    }
+
+    public void writeString(String v) throws IOException, SQLException
+    {
+        FieldType type = nextType();
+        try {
+            switch (type) {
+            case INT2:
+            case INT4:
+            case INT8:
+                writeIntegerField(Long.parseLong(v.trim()));
+                break;
+            case FLOAT4:
+                writeInt4Field(Float.floatToIntBits(Float.parseFloat(v)));
+                break;
+            case FLOAT8:
+                writeInt8Field(Double.doubleToLongBits(Double.parseDouble(v)));
+                break;
+            case NUMERIC:
+                if (v.trim().equalsIgnoreCase("NaN")) {
+                    writeNumericNaNField();
+                } else {
+                    writeNumericField(new BigDecimal(v.trim()));
+                }
+                break;
+            case BOOL:
+                writeBoolField(parseBoolean(v));
+                break;
+            case TEXT:
+            case JSONB:
+                writeTextField(v);
+                break;
+            case BYTEA:
+                writeBytesField(parseBytea(v));
+                break;
+            default:
+                throw unsupported("string");
+            }
+        } catch (NumberFormatException ex) {
+            throw new SQLDataException(String.format("Invalid %s value '%s' for column '%s'", type.toString().toLowerCase(Locale.ENGLISH), v, names[column]), "22P02", ex);
+        }
+    }
+
+    public void writeBytes(byte[] v) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case BYTEA:
+            writeBytesField(v);
+            break;
+        default:
+            throw unsupported("bytes");
+        }
+    }
+
+    public void writeSqlDate(Instant v, Calendar cal) throws IOException, SQLException
+    {
+        long seconds = localEpochSecond(v, cal);
+        long days = Math.floorDiv(seconds, SECONDS_PER_DAY);
+        switch (nextType()) {
+        case DATE:
+            writeInt4Field((int) (days - POSTGRES_EPOCH_SECONDS / SECONDS_PER_DAY));
+            break;
+        case TIMESTAMP:
+            writeInt8Field((days * SECONDS_PER_DAY - POSTGRES_EPOCH_SECONDS) * MICROS_PER_SECOND);
+            break;
+        default:
+            throw unsupported("date");
+        }
+    }
+
+    public void writeSqlTime(Instant v, Calendar cal) throws IOException, SQLException
+    {
+        long seconds = localEpochSecond(v, cal);
+        switch (nextType()) {
+        case TIME:
+            writeInt8Field(Math.floorMod(seconds, SECONDS_PER_DAY) * MICROS_PER_SECOND + v.getNano() / 1000);
+            break;
+        default:
+            throw unsupported("time");
+        }
+    }
+
+    public void writeSqlTimestamp(Instant v, Calendar cal) throws IOException, SQLException
+    {
+        switch (nextType()) {
+        case TIMESTAMPTZ:
+            writeInt8Field((v.getEpochSecond() - POSTGRES_EPOCH_SECONDS) * MICROS_PER_SECOND + v.getNano() / 1000);
+            break;
+        case TIMESTAMP:
+            // local date and time in the time zone of the calendar
+            writeInt8Field((localEpochSecond(v, cal) - POSTGRES_EPOCH_SECONDS) * MICROS_PER_SECOND + v.getNano() / 1000);
+            break;
+        case DATE:
+            long days = Math.floorDiv(localEpochSecond(v, cal), SECONDS_PER_DAY);
+            writeInt4Field((int) (days - POSTGRES_EPOCH_SECONDS / SECONDS_PER_DAY));
+            break;
+        case TIME:
+            writeInt8Field(Math.floorMod(localEpochSecond(v, cal), SECONDS_PER_DAY) * MICROS_PER_SECOND + v.getNano() / 1000);
+            break;
+        default:
+            throw unsupported("timestamp");
+        }
+    }
+
+    public void endRow()
+    {
+        if (column != types.length) {
+            throw new IllegalStateException(String.format("%d values are set to a row of %d columns", column, types.length));
+        }
+        column = 0;
+    }
+
+    /**
+     * Writes the trailer if any rows are written, and flushes. Rows written after this start a new COPY data.
+     */
+    public void finish() throws IOException
+    {
+        if (started) {
+            ensure(2);
+            putShort((short) -1);
+            started = false;
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private FieldType nextType() throws IOException
+    {
+        if (column == 0) {
+            if (!started) {
+                // signature, flags and length of header extension
+                ensure(SIGNATURE.length + 8);
+                System.arraycopy(SIGNATURE, 0, buffer, position, SIGNATURE.length);
+                position += SIGNATURE.length;
+                putInt(0);
+                putInt(0);
+                started = true;
+            }
+            ensure(2);
+            putShort((short) types.length);
+        }
+        if (column >= types.length) {
+            throw new IllegalStateException(String.format("More than %d values are set to a row", types.length));
+        }
+        return types[column];
+    }
+
+    private void writeIntegerField(long v) throws IOException, SQLException
+    {
+        switch (types[column]) {
+        case INT2:
+            if (v < Short.MIN_VALUE || v > Short.MAX_VALUE) {
+                throw outOfRange(v);
+            }
+            ensure(6);
+            putInt(2);
+            putShort((short) v);
+            column++;
+            break;
+        case INT4:
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+                throw outOfRange(v);
+            }
+            writeInt4Field((int) v);
+            break;
+        default:
+            writeInt8Field(v);
+        }
+    }
+
+    private void writeBoolField(boolean v) throws IOException
+    {
+        ensure(5);
+        putInt(1);
+        buffer[position++] = v ? (byte) 1 : (byte) 0;
+        column++;
+    }
+
+    private void writeInt4Field(int v) throws IOException
+    {
+        ensure(8);
+        putInt(4);
+        putInt(v);
+        column++;
+    }
+
+    private void writeInt8Field(long v) throws IOException
+    {
+        ensure(12);
+        putInt(8);
+        putLong(v);
+        column++;
+    }
+
+    private void writeFloatingNumericField(double v, String text) throws IOException, SQLException
+    {
+        if (Double.isNaN(v)) {
+            writeNumericNaNField();
+        } else if (Double.isInfinite(v)) {
+            throw new SQLDataException(String.format("Cannot write %s to numeric column '%s'", text, names[column]), "22003");
+        } else {
+            // same digits as the text format
+            writeNumericField(new BigDecimal(text));
+        }
+    }
+
+    private void writeNumericNaNField() throws IOException
+    {
+        ensure(12);
+        putInt(8);
+        putShort((short) 0);
+        putShort((short) 0);
+        putShort(NUMERIC_NAN);
+        putShort((short) 0);
+        column++;
+    }
+
+    // ndigits, weight, sign, dscale and digits in base 10000
+    private void writeNumericField(BigDecimal v) throws IOException
+    {
+        int dscale = Math.max(v.scale(), 0);
+        BigInteger unscaled = v.unscaledValue().abs();
+        if (v.scale() < 0) {
+            unscaled = unscaled.multiply(BigInteger.TEN.pow(-v.scale()));
+        }
+
+        // align the decimal point to a boundary of base 10000 digits
+        int fractionGroups = (dscale + 3) / 4;
+        StringBuilder sb = new StringBuilder(unscaled.toString());
+        for (int i = dscale; i < fractionGroups * 4; i++) {
+            sb.append('0');
+        }
+        while (sb.length() % 4 != 0) {
+            sb.insert(0, '0');
+        }
+        int groups = sb.length() / 4;
+        short[] digits = new short[groups];
+        for (int i = 0; i < groups; i++) {
+            digits[i] = Short.parseShort(sb.substring(i * 4, i * 4 + 4));
+        }
+
+        int weight = groups - fractionGroups - 1;
+        int first = 0;
+        while (first < groups && digits[first] == 0) {
+            first++;
+            weight--;
+        }
+        int last = groups;
+        while (last > first && digits[last - 1] == 0) {
+            last--;
+        }
+        int ndigits = last - first;
+        if (ndigits == 0) {
+            weight = 0;
+        }
+
+        ensure(12);
+        putInt(8 + ndigits * 2);
+        putShort((short) ndigits);
+        putShort((short) weight);
+        putShort(v.signum() < 0 ? NUMERIC_NEG : NUMERIC_POS);
+        putShort((short) dscale);
+        for (int i = first; i < last; i++) {
+            ensure(2);
+            putShort(digits[i]);
+        }
+        column++;
+    }
+
+    private void writeBytesField(byte[] v) throws IOException
+    {
+        ensure(4);
+        putInt(v.length);
+        writeRaw(v);
+        column++;
+    }
+
+    private void writeTextField(String s) throws IOException
+    {
+        boolean jsonb = types[column] == FieldType.JSONB;
+        int length = utf8Length(s);
+        ensure(5);
+        if (jsonb) {
+            putInt(length + 1);
+            buffer[position++] = JSONB_VERSION;
+        } else {
+            putInt(length);
+        }
+        writeUtf8(s);
+        column++;
+    }
+
+    // \0 is removed as the text format does, and an unpaired surrogate is replaced with '?'
+    private static int utf8Length(String s)
+    {
+        final int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c != 0) {
+                    bytes++;
+                }
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void writeUtf8(String s) throws IOException
+    {
+        final int length = s.length();
+        int i = 0;
+        while (i < length) {
+            if (buffer.length - position < 4) {
+                flushBuffer();
+            }
+            // see CopyTextEncoder.writeEscaped
+            final int end = Math.min(length, i + (buffer.length - position - 1) / 3);
+            while (i < end) {
+                final char c = s.charAt(i++);
+                if (c < 0x80) {
+                    if (c != 0) {
+                        buffer[position++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(s.charAt(i))) {
+                    final int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                    buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    private void writeRaw(byte[] bytes) throws IOException
+    {
+        if (buffer.length - position < bytes.length) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private long localEpochSecond(Instant v, Calendar cal)
+    {
+        cal.setTimeInMillis(v.getEpochSecond() * 1000);
+        return v.getEpochSecond() + (cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET)) / 1000;
+    }
+
+    private boolean parseBoolean(String v) throws SQLException
+    {
+        switch (v.trim().toLowerCase(Locale.ENGLISH)) {
+        case "t":
+        case "true":
+        case "y":
+        case "yes":
+        case "on":
+        case "1":
+            return true;
+        case "f":
+        case "false":
+        case "n":
+        case "no":
+        case "off":
+        case "0":
+            return false;
+        default:
+            throw new SQLDataException(String.format("Invalid boolean value '%s' for column '%s'", v, names[column]), "22P02");
+        }
+    }
+
+    // hex format (\x...) or escape format of bytea
+    private byte[] parseBytea(String v) throws SQLException
+    {
+        if (v.startsWith("\\x")) {
+            if (v.length() % 2 != 0) {
+                throw new SQLDataException(String.format("Invalid hexadecimal bytea value for column '%s'", names[column]), "22P02");
+            }
+            byte[] bytes = new byte[(v.length() - 2) / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int hi = Character.digit(v.charAt(2 + i * 2), 16);
+                int lo = Character.digit(v.charAt(3 + i * 2), 16);
+                if (hi < 0 || lo < 0) {
+                    throw new SQLDataException(String.format("Invalid hexadecimal bytea value for column '%s'", names[column]), "22P02");
+                }
+                bytes[i] = (byte) ((hi << 4) | lo);
+            }
+            return bytes;
+        }
+        if (v.indexOf('\\') < 0) {
+            return v.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] utf8 = v.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[utf8.length];
+        int length = 0;
+        for (int i = 0; i < utf8.length; i++) {
+            if (utf8[i] != '\\') {
+                bytes[length++] = utf8[i];
+            } else if (i + 1 < utf8.length && utf8[i + 1] == '\\') {
+                bytes[length++] = '\\';
+                i++;
+            } else if (i + 3 < utf8.length && isOctal(utf8[i + 1]) && isOctal(utf8[i + 2]) && isOctal(utf8[i + 3])) {
+                bytes[length++] = (byte) (((utf8[i + 1] - '0') << 6) | ((utf8[i + 2] - '0') << 3) | (utf8[i + 3] - '0'));
+                i += 3;
+            } else {
+                throw new SQLDataException(String.format("Invalid escaped bytea value for column '%s'", names[column]), "22P02");
+            }
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, 0, result, 0, length);
+        return result;
+    }
+
+    private static boolean isOctal(byte b)
+    {
+        return b >= '0' && b <= '7';
+    }
+
+    private SQLException unsupported(String valueType)
+    {
+        return new SQLDataException(String.format("Cannot write a %s value to column '%s' of type %s in the binary format of COPY",
+                    valueType, names[column], types[column].toString().toLowerCase(Locale.ENGLISH)), "42804");
+    }
+
+    private SQLException outOfRange(long v)
+    {
+        return new SQLDataException(String.format("Value %d is out of range for column '%s' of type %s",
+                    v, names[column], types[column].toString().toLowerCase(Locale.ENGLISH)), "22003");
+    }
+
+    private void ensure(int bytes) throws IOException
+    {
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void putShort(short v)
+    {
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void putInt(int v)
+    {
+        buffer[position++] = (byte) (v >>> 24);
+        buffer[position++] = (byte) (v >>> 16);
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void putLong(long v)
+    {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
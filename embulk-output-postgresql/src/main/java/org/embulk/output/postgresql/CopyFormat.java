@@ -0,0 +1,32 @@
+package org.embulk.output.postgresql;
+
+import java.util.Locale;
+
+import org.embulk.config.ConfigException;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+public enum CopyFormat
+{
+    TEXT,
+    BINARY;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static CopyFormat fromString(String value)
+    {
+        for (CopyFormat copyFormat : CopyFormat.values()) {
+            if (copyFormat.toString().equals(value)) {
+                return copyFormat;
+            }
+        }
+        throw new ConfigException(String.format("Unknown copy_format '%s'. Supported formats are text and binary.", value));
+    }
+}
@@ -0,0 +1,227 @@
+package org.embulk.output.postgresql;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes values in the text format of COPY to UTF-8 bytes without allocating objects per value.
+ */
+public class CopyTextEncoder
+{
+    public enum Escape
+    {
+        // Escape \, \n, \t, \r as \\, \n, \t, \r
+        // Remove \0
+        POSTGRESQL,
+
+        // Add \ before \, \n, \t
+        // Remove \0
+        REDSHIFT;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final OutputStream out;
+    private final Escape escape;
+    private final byte[] buffer;
+    private final byte[] digits;
+    private int position;
+
+    public CopyTextEncoder(OutputStream out, Escape escape)
+    {
+        this.out = out;
+        this.escape = escape;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.digits = new byte[20];
+        this.position = 0;
+    }
+
+    public void writeByte(byte b) throws IOException
+    {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = b;
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException
+    {
+        if (buffer.length - position < bytes.length) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes a string which consists of ASCII characters which don't need escaping, such as a formatted number.
+     */
+    public void writeAscii(String s) throws IOException
+    {
+        final int length = s.length();
+        int i = 0;
+        while (i < length) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int end = Math.min(length, i + buffer.length - position);
+            for (; i < end; i++) {
+                buffer[position++] = (byte) s.charAt(i);
+            }
+        }
+    }
+
+    public void writeLong(long v) throws IOException
+    {
+        if (v == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (buffer.length - position < 20) {
+            flushBuffer();
+        }
+        if (v < 0) {
+            buffer[position++] = '-';
+            v = -v;
+        }
+        int p = digits.length;
+        do {
+            digits[--p] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        System.arraycopy(digits, p, buffer, position, digits.length - p);
+        position += digits.length - p;
+    }
+
+    /**
+     * Writes bytes as lower-case hexadecimal digits.
+     */
+    public void writeHex(byte[] bytes) throws IOException
+    {
+        for (byte b : bytes) {
+            if (buffer.length - position < 2) {
+                flushBuffer();
+            }
+            buffer[position++] = HEX_DIGITS[(b >> 4) & 0x0f];
+            buffer[position++] = HEX_DIGITS[b & 0x0f];
+        }
+    }
+
+    /**
+     * Writes a non-negative integer padded with leading zeros to the width.
+     */
+    public void writePadded(int v, int width) throws IOException
+    {
+        if (buffer.length - position < Math.max(width, 10)) {
+            flushBuffer();
+        }
+        int p = digits.length;
+        do {
+            digits[--p] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        for (int i = digits.length - p; i < width; i++) {
+            buffer[position++] = '0';
+        }
+        System.arraycopy(digits, p, buffer, position, digits.length - p);
+        position += digits.length - p;
+    }
+
+    public void writeEscaped(String s) throws IOException
+    {
+        final int length = s.length();
+        int i = 0;
+        while (i < length) {
+            if (buffer.length - position < 4) {
+                flushBuffer();
+            }
+            // a char takes 3 bytes at most, and a surrogate pair takes 4 bytes.
+            // so chars until end fit in the buffer even if the last char is a high surrogate.
+            final int end = Math.min(length, i + (buffer.length - position - 1) / 3);
+            while (i < end) {
+                final char c = s.charAt(i++);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '\\') {
+                        buffer[position++] = (byte) c;
+                    } else {
+                        escapeAscii(c);
+                    }
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(s.charAt(i))) {
+                    final int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                    buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // malformed. replaced in the same way as OutputStreamWriter
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    private void escapeAscii(char c)
+    {
+        switch (c) {
+        case '\\':
+            buffer[position++] = '\\';
+            buffer[position++] = '\\';
+            break;
+        case '\n':
+            buffer[position++] = '\\';
+            buffer[position++] = escape == Escape.REDSHIFT ? (byte) '\n' : (byte) 'n';
+            break;
+        case '\t':
+            buffer[position++] = '\\';
+            buffer[position++] = escape == Escape.REDSHIFT ? (byte) '\t' : (byte) 't';
+            break;
+        case '\r':
+            if (escape == Escape.REDSHIFT) {
+                buffer[position++] = '\r';
+            } else {
+                buffer[position++] = '\\';
+                buffer[position++] = 'r';
+            }
+            break;
+        case 0:
+            break;
+        default:
+            buffer[position++] = (byte) c;
+        }
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+}
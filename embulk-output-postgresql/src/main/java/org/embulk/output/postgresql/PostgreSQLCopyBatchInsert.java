@@ -1,12 +1,13 @@
 package org.embulk.output.postgresql;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.Optional;
 
 import org.embulk.output.jdbc.JdbcOutputConnector;
 import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.MergeConfig;
 import org.embulk.output.jdbc.TableIdentifier;
 import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
@@ -16,40 +17,79 @@ public class PostgreSQLCopyBatchInsert
         extends AbstractPostgreSQLCopyBatchInsert
 {
     private static final Logger logger = LoggerFactory.getLogger(PostgreSQLCopyBatchInsert.class);
+    private static final TableIdentifier STAGING_TABLE = new TableIdentifier(null, null, "embulk_merge_staging");
     private final JdbcOutputConnector connector;
+    private final CopyFormat format;
+    private final Optional<MergeConfig> mergeConfig;
 
     private PostgreSQLOutputConnection connection = null;
+    private TableIdentifier loadTable;
+    private JdbcSchema insertSchema;
     private CopyManager copyManager = null;
     private String copySql = null;
+    private boolean reconnect;
     private long totalRows;
 
     public PostgreSQLCopyBatchInsert(JdbcOutputConnector connector) throws IOException, SQLException
     {
-        super();
+        this(connector, CopyFormat.TEXT, StagingBufferFactory.TEMP_FILE);
+    }
+
+    public PostgreSQLCopyBatchInsert(JdbcOutputConnector connector, CopyFormat format, StagingBufferFactory bufferFactory) throws IOException, SQLException
+    {
+        this(connector, Optional.empty(), format, bufferFactory);
+    }
+
+    /**
+     * If mergeConfig is present, each batch is copied to a temporary table of the session, and merged
+     * into the table by a statement.
+     */
+    public PostgreSQLCopyBatchInsert(JdbcOutputConnector connector, Optional<MergeConfig> mergeConfig,
+            CopyFormat format, StagingBufferFactory bufferFactory) throws IOException, SQLException
+    {
+        super(CopyTextEncoder.Escape.POSTGRESQL, bufferFactory);
         this.connector = connector;
+        this.mergeConfig = mergeConfig;
+        this.format = format;
     }
 
     @Override
     public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema) throws SQLException
     {
-        this.connection = (PostgreSQLOutputConnection)connector.connect(true);
-        this.copySql = connection.buildCopySql(loadTable, insertSchema);
-        this.copyManager = connection.newCopyManager();
+        this.loadTable = loadTable;
+        this.insertSchema = insertSchema;
+        connect();
+        boolean binary = format == CopyFormat.BINARY && useBinaryFormat(insertSchema);
+        TableIdentifier copyTable = mergeConfig.isPresent() ? STAGING_TABLE : loadTable;
+        this.copySql = connection.buildCopySql(copyTable, insertSchema, binary ? CopyFormat.BINARY : CopyFormat.TEXT);
         logger.info("Copy SQL: "+copySql);
     }
 
     @Override
     public void flush() throws IOException, SQLException
     {
-        File file = closeCurrentFile();  // flush buffered data in writer
+        StagingBuffer buffer = closeCurrentBuffer();  // flush buffered data in writer
         if (getBatchWeight() == 0) return;
 
-        logger.info(String.format("Loading %,d rows (%,d bytes)", batchRows, file.length()));
+        if (reconnect) {
+            // the buffer of the failed batch is kept, and sent again on a new connection
+            logger.info("Reconnecting to retry COPY");
+            closeConnection();
+            connect();
+            reconnect = false;
+        }
+
+        logger.info(String.format("Loading %,d rows (%,d bytes)", batchRows, buffer.getSize()));
         long startTime = System.currentTimeMillis();
-        FileInputStream in = new FileInputStream(file);
+        InputStream in = buffer.openInputStream();
         try {
-            // TODO check age of connection and call isValid if it's old and reconnect if it's invalid
             copyManager.copyIn(copySql, in);
+            if (mergeConfig.isPresent()) {
+                connection.mergeStagingTable(STAGING_TABLE, insertSchema, loadTable, mergeConfig.get());
+            }
+        } catch (SQLException ex) {
+            reconnect = true;
+            throw ex;
         } finally {
             in.close();
         }
@@ -59,8 +99,8 @@ public class PostgreSQLCopyBatchInsert
         batchRows = 0;
         logger.info(String.format("> %.2f seconds (loaded %,d rows in total)", seconds, totalRows));
 
-        openNewFile();
-        file.delete();
+        openNewBuffer();
+        buffer.release();
     }
 
     @Override
@@ -71,10 +111,28 @@ public class PostgreSQLCopyBatchInsert
     @Override
     public void close() throws IOException, SQLException
     {
-        closeCurrentFile().delete();
+        closeCurrentBuffer().release();
+        closeConnection();
+    }
+
+    private void connect() throws SQLException
+    {
+        this.connection = (PostgreSQLOutputConnection)connector.connect(true);
+        if (mergeConfig.isPresent()) {
+            // the temporary table is dropped with the session
+            connection.createStagingTable(STAGING_TABLE, loadTable, insertSchema);
+        }
+        this.copyManager = connection.newCopyManager();
+    }
+
+    private void closeConnection() throws SQLException
+    {
         if (connection != null) {
-            connection.close();
-            connection = null;
+            try {
+                connection.close();
+            } finally {
+                connection = null;
+            }
         }
     }
 }
@@ -0,0 +1,215 @@
+package org.embulk.output.postgresql;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+
+import org.embulk.output.jdbc.JdbcOutputConnector;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams rows to COPY while they are added, without temporary files.
+ * A COPY is started by the first row of a batch, and ended by flush() when the batch reaches
+ * batch_size or checkpoint rows. Rows of a failed COPY are rolled back by the server, and
+ * sent again from the records saved by the caller on a new connection.
+ */
+public class PostgreSQLCopyStreamBatchInsert
+        extends AbstractPostgreSQLCopyBatchInsert
+{
+    private static final Logger logger = LoggerFactory.getLogger(PostgreSQLCopyStreamBatchInsert.class);
+    private final JdbcOutputConnector connector;
+    private final long checkpointRows;
+    private final CopyFormat format;
+    private final CopyInOutputStream copyOutput;
+
+    private PostgreSQLOutputConnection connection = null;
+    private long totalRows;
+
+    public PostgreSQLCopyStreamBatchInsert(JdbcOutputConnector connector, long checkpointRows, CopyFormat format)
+    {
+        this(connector, checkpointRows, format, new CopyInOutputStream());
+    }
+
+    private PostgreSQLCopyStreamBatchInsert(JdbcOutputConnector connector, long checkpointRows, CopyFormat format, CopyInOutputStream copyOutput)
+    {
+        super(CopyTextEncoder.Escape.POSTGRESQL, copyOutput);
+        this.connector = connector;
+        this.checkpointRows = checkpointRows;
+        this.format = format;
+        this.copyOutput = copyOutput;
+    }
+
+    @Override
+    public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema) throws SQLException
+    {
+        connect();
+        boolean binary = format == CopyFormat.BINARY && useBinaryFormat(insertSchema);
+        String copySql = connection.buildCopySql(loadTable, insertSchema, binary ? CopyFormat.BINARY : CopyFormat.TEXT);
+        copyOutput.setCopy(this::getCopyManager, copySql);
+        logger.info("Copy SQL: "+copySql);
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return batchRows >= checkpointRows;
+    }
+
+    @Override
+    public void flush() throws IOException, SQLException
+    {
+        if (batchRows == 0) return;
+
+        long startTime = System.currentTimeMillis();
+        int rows = batchRows;
+        try {
+            flushEncoder();
+            copyOutput.endCopy();
+        } catch (SQLException ex) {
+            // the next COPY is started on a new connection
+            closeConnection();
+            throw ex;
+        } finally {
+            // rows of a failed COPY are added again for retry
+            batchRows = 0;
+            resetBatchWeight();
+        }
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        totalRows += rows;
+        logger.info(String.format("Loaded %,d rows > %.2f seconds to end COPY (loaded %,d rows in total)", rows, seconds, totalRows));
+    }
+
+    @Override
+    public void finish() throws IOException, SQLException
+    {
+    }
+
+    @Override
+    public void close() throws IOException, SQLException
+    {
+        copyOutput.cancelCopy();
+        closeConnection();
+    }
+
+    private void connect() throws SQLException
+    {
+        this.connection = (PostgreSQLOutputConnection)connector.connect(true);
+    }
+
+    private CopyManager getCopyManager() throws SQLException
+    {
+        if (connection == null) {
+            logger.info("Reconnecting to retry COPY");
+            connect();
+        }
+        return connection.newCopyManager();
+    }
+
+    private void closeConnection()
+    {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                logger.warn("Failed to close connection", ex);
+            }
+            connection = null;
+        }
+    }
+
+    @Override
+    public boolean needsRecordsForRetry()
+    {
+        // streamed rows aren't kept
+        return true;
+    }
+
+    /**
+     * Writes data to a CopyIn which is started lazily. An error is kept until endCopy() so that
+     * the caller can retry the batch by flush().
+     */
+    private interface CopyManagerProvider
+    {
+        CopyManager get() throws SQLException;
+    }
+
+    private static class CopyInOutputStream
+            extends OutputStream
+    {
+        private CopyManagerProvider copyManagerProvider;
+        private String copySql;
+        private CopyIn copyIn;
+        private SQLException error;
+
+        void setCopy(CopyManagerProvider copyManagerProvider, String copySql)
+        {
+            this.copyManagerProvider = copyManagerProvider;
+            this.copySql = copySql;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (error != null) {
+                return;  // discarded until the failed COPY is ended
+            }
+            try {
+                if (copyIn == null) {
+                    copyIn = copyManagerProvider.get().copyIn(copySql);
+                }
+                copyIn.writeToCopy(b, off, len);
+            } catch (SQLException ex) {
+                error = ex;
+                cancelCopy();
+            }
+        }
+
+        long endCopy() throws SQLException
+        {
+            if (error != null) {
+                SQLException ex = error;
+                error = null;
+                throw ex;
+            }
+            if (copyIn == null) {
+                return 0;
+            }
+            try {
+                return copyIn.endCopy();
+            } finally {
+                copyIn = null;
+            }
+        }
+
+        void cancelCopy()
+        {
+            if (copyIn != null) {
+                try {
+                    if (copyIn.isActive()) {
+                        copyIn.cancelCopy();
+                    }
+                } catch (SQLException ex) {
+                    logger.warn("Failed to cancel COPY", ex);
+                }
+                copyIn = null;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            cancelCopy();
+        }
+    }
+}
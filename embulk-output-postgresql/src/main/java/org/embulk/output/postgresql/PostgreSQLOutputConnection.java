@@ -1,13 +1,23 @@
 package org.embulk.output.postgresql;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 
 import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcIndex;
 import org.embulk.output.jdbc.JdbcOutputConnection;
 import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.JdbcUtils;
 import org.embulk.output.jdbc.MergeConfig;
 import org.embulk.output.jdbc.TableIdentifier;
 import org.postgresql.copy.CopyManager;
@@ -18,6 +28,34 @@ public class PostgreSQLOutputConnection
 {
     private static final int MIN_NUMERIC_PRECISION = 1;
     private static final int MAX_NUMERIC_PRECISION = 1000;
+    private static final String STAGING_ROW_NUMBER_COLUMN = "embulk_row_number";
+
+    // Statements which define constraints, indexes, triggers, privileges and storage parameters of the partition again.
+    // Those inherited from the partitioned table are not included because ATTACH PARTITION creates them. The statements
+    // refer to the partition by its name, so that they apply to the table renamed to the name.
+    private static final List<String> PARTITION_LOCAL_SQL_QUERIES = Arrays.asList(
+            // constraints having an index (primary keys, unique and exclusion constraints)
+            "SELECT 'ALTER TABLE ' || CAST(CAST(c.conrelid AS regclass) AS text) || ' ADD CONSTRAINT ' || quote_ident(c.conname)"
+                    + " || ' ' || pg_get_constraintdef(c.oid) FROM pg_constraint c"
+                    + " WHERE c.conrelid = CAST(? AS regclass) AND c.contype IN ('p', 'u', 'x')"
+                    + " AND NOT EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = c.conindid) ORDER BY c.conname",
+            "SELECT pg_get_indexdef(x.indexrelid) FROM pg_index x JOIN pg_class ic ON ic.oid = x.indexrelid"
+                    + " WHERE x.indrelid = CAST(? AS regclass)"
+                    + " AND NOT EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = x.indexrelid)"
+                    + " AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = x.indexrelid) ORDER BY ic.relname",
+            // triggers cloned from the partitioned table have its names
+            "SELECT pg_get_triggerdef(t.oid) FROM pg_trigger t WHERE t.tgrelid = CAST(? AS regclass) AND NOT t.tgisinternal"
+                    + " AND NOT EXISTS (SELECT 1 FROM pg_inherits i JOIN pg_trigger p ON p.tgrelid = i.inhparent"
+                    + " WHERE i.inhrelid = t.tgrelid AND p.tgname = t.tgname) ORDER BY t.tgname",
+            // privileges of the current user, who owns the new table, are not granted
+            "SELECT 'GRANT ' || a.privilege_type || ' ON ' || CAST(CAST(c.oid AS regclass) AS text) || ' TO '"
+                    + " || CASE WHEN a.grantee = 0 THEN 'PUBLIC' ELSE quote_ident(r.rolname) END"
+                    + " || CASE WHEN a.is_grantable THEN ' WITH GRANT OPTION' ELSE '' END"
+                    + " FROM pg_class c CROSS JOIN LATERAL aclexplode(c.relacl) a LEFT JOIN pg_roles r ON r.oid = a.grantee"
+                    + " WHERE c.oid = CAST(? AS regclass) AND a.grantee <> (SELECT u.oid FROM pg_roles u WHERE u.rolname = current_user)"
+                    + " ORDER BY r.rolname, a.privilege_type",
+            "SELECT 'ALTER TABLE ' || CAST(CAST(c.oid AS regclass) AS text) || ' SET (' || array_to_string(c.reloptions, ', ') || ')'"
+                    + " FROM pg_class c WHERE c.oid = CAST(? AS regclass) AND c.reloptions IS NOT NULL");
 
     public PostgreSQLOutputConnection(Connection connection, String schemaName, String roleName)
             throws SQLException
@@ -34,6 +72,11 @@ public class PostgreSQLOutputConnection
     }
 
     public String buildCopySql(TableIdentifier toTable, JdbcSchema toTableSchema)
+    {
+        return buildCopySql(toTable, toTableSchema, CopyFormat.TEXT);
+    }
+
+    public String buildCopySql(TableIdentifier toTable, JdbcSchema toTableSchema, CopyFormat format)
     {
         StringBuilder sb = new StringBuilder();
 
@@ -46,29 +89,133 @@ public class PostgreSQLOutputConnection
         }
         sb.append(") ");
         sb.append("FROM STDIN");
+        if (format == CopyFormat.BINARY) {
+            sb.append(" WITH (FORMAT binary)");
+        }
 
         return sb.toString();
     }
 
+    /**
+     * Returns true if the transaction was rolled back by a serialization failure or a deadlock.
+     */
+    public static boolean isTransactionRollback(String sqlState)
+    {
+        return "40001".equals(sqlState) || "40P01".equals(sqlState);
+    }
+
+    /**
+     * Returns true if the connection was lost, or the session was terminated by the server.
+     */
+    public static boolean isConnectionFailure(String sqlState)
+    {
+        if (sqlState == null) {
+            return false;
+        }
+        return sqlState.startsWith("08") ||  // connection exception
+            sqlState.equals("57P01") ||  // admin_shutdown
+            sqlState.equals("57P02") ||  // crash_shutdown
+            sqlState.equals("57P03");    // cannot_connect_now
+    }
+
     public CopyManager newCopyManager() throws SQLException
     {
         return new CopyManager((BaseConnection) connection);
     }
 
+    @Override
+    protected int getMaxPreparedStatementParameters()
+    {
+        return 32767;
+    }
+
+    @Override
+    protected boolean supportsTransactionalDdl()
+    {
+        return true;
+    }
+
+    @Override
+    protected boolean supportsMultiTableDrop()
+    {
+        return true;
+    }
+
+    @Override
+    protected Optional<String> buildAnalyzeTableSql(TableIdentifier table)
+    {
+        return Optional.of("ANALYZE " + quoteTableIdentifier(table));
+    }
+
+    @Override
+    protected boolean supportsMultiRowMerge(MergeConfig mergeConfig)
+    {
+        // duplicated keys in a statement are reduced to the last row. it's the same
+        // result as single-row statements only if the row overwrites the existing row.
+        return !mergeConfig.getMergeRule().isPresent();
+    }
+
     @Override
     protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema schema, MergeConfig mergeConfig) throws SQLException
+    {
+        return buildPreparedMergeSql(toTable, schema, mergeConfig, 1);
+    }
+
+    @Override
+    protected String buildPreparedMergeSql(TableIdentifier toTable, JdbcSchema schema, MergeConfig mergeConfig, int rows) throws SQLException
     {
         StringBuilder sb = new StringBuilder();
 
         sb.append("WITH S AS (");
-        sb.append("SELECT ");
-        for (int i = 0; i < schema.getCount(); i++) {
-            JdbcColumn column = schema.getColumn(i);
-            if (i != 0) { sb.append(", "); }
-            sb.append("CAST(? AS " + column.getSimpleTypeName() + ") AS ");
-            quoteIdentifierString(sb, column.getName());
+        if (rows == 1) {
+            sb.append("SELECT ");
+            for (int i = 0; i < schema.getCount(); i++) {
+                JdbcColumn column = schema.getColumn(i);
+                if (i != 0) { sb.append(", "); }
+                sb.append("CAST(? AS " + column.getSimpleTypeName() + ") AS ");
+                quoteIdentifierString(sb, column.getName());
+            }
+        } else {
+            // UPDATE and INSERT below can't handle the same key twice. keep the last row for each key.
+            // rows with a NULL key never match, so all of them are kept as single-row statements do
+            sb.append("SELECT DISTINCT ON (");
+            appendDistinctKeys(sb, mergeConfig.getMergeKeys());
+            sb.append(") ");
+            for (int i = 0; i < schema.getCount(); i++) {
+                if (i != 0) { sb.append(", "); }
+                quoteIdentifierString(sb, schema.getColumnName(i));
+            }
+            sb.append(" FROM (VALUES ");
+            for (int row = 0; row < rows; row++) {
+                if (row != 0) { sb.append(", "); }
+                sb.append("(").append(row);
+                for (int i = 0; i < schema.getCount(); i++) {
+                    JdbcColumn column = schema.getColumn(i);
+                    sb.append(", CAST(? AS " + column.getSimpleTypeName() + ")");
+                }
+                sb.append(")");
+            }
+            sb.append(") AS T(");
+            quoteIdentifierString(sb, STAGING_ROW_NUMBER_COLUMN);
+            for (int i = 0; i < schema.getCount(); i++) {
+                sb.append(", ");
+                quoteIdentifierString(sb, schema.getColumnName(i));
+            }
+            sb.append(") ORDER BY ");
+            appendDistinctKeys(sb, mergeConfig.getMergeKeys());
+            sb.append(", ");
+            quoteIdentifierString(sb, STAGING_ROW_NUMBER_COLUMN);
+            sb.append(" DESC");
         }
         sb.append("),");
+        appendMergeFromS(sb, toTable, schema, mergeConfig);
+
+        return sb.toString();
+    }
+
+    // UPDATE rows of S with the existing keys, and INSERT the other rows. S must not have the same key twice.
+    private void appendMergeFromS(StringBuilder sb, TableIdentifier toTable, JdbcSchema schema, MergeConfig mergeConfig)
+    {
         sb.append("updated AS (");
         sb.append("UPDATE ");
         quoteTableIdentifier(sb, toTable);
@@ -132,10 +279,101 @@ public class PostgreSQLOutputConnection
             quoteIdentifierString(sb, mergeKeys.get(i));
         }
         sb.append(") ");
+    }
+
+    /**
+     * Creates a temporary table to stage rows before merging them by a statement. The table has the columns
+     * of the schema without constraints, and a row number to find the last row of each key.
+     */
+    public void createStagingTable(TableIdentifier stagingTable, TableIdentifier toTable, JdbcSchema schema) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("CREATE TEMPORARY TABLE ");
+            quoteTableIdentifier(sb, stagingTable);
+            sb.append(" AS SELECT ");
+            for (int i = 0; i < schema.getCount(); i++) {
+                if (i != 0) { sb.append(", "); }
+                quoteIdentifierString(sb, schema.getColumnName(i));
+            }
+            sb.append(" FROM ");
+            quoteTableIdentifier(sb, toTable);
+            sb.append(" WITH NO DATA");
+            executeUpdate(stmt, sb.toString());
+
+            executeUpdate(stmt, String.format("ALTER TABLE %s ADD COLUMN %s BIGSERIAL",
+                        quoteTableIdentifier(stagingTable), quoteIdentifierString(STAGING_ROW_NUMBER_COLUMN)));
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Merges rows in the staging table into the table, and empties the staging table.
+     */
+    public void mergeStagingTable(TableIdentifier stagingTable, JdbcSchema schema, TableIdentifier toTable, MergeConfig mergeConfig) throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        try {
+            executeUpdate(stmt, buildStagingMergeSql(stagingTable, schema, toTable, mergeConfig));
+            executeUpdate(stmt, "TRUNCATE " + quoteTableIdentifier(stagingTable));
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected String buildStagingMergeSql(TableIdentifier stagingTable, JdbcSchema schema, TableIdentifier toTable, MergeConfig mergeConfig)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        // keep the last row for each key as well as multi-row statements. rows with a NULL key never
+        // match an existing row, so all of them are inserted as they are by statements with rows
+        sb.append("WITH S AS (");
+        sb.append("SELECT DISTINCT ON (");
+        appendDistinctKeys(sb, mergeConfig.getMergeKeys());
+        sb.append(") ");
+        for (int i = 0; i < schema.getCount(); i++) {
+            if (i != 0) { sb.append(", "); }
+            quoteIdentifierString(sb, schema.getColumnName(i));
+        }
+        sb.append(" FROM ");
+        quoteTableIdentifier(sb, stagingTable);
+        sb.append(" ORDER BY ");
+        appendDistinctKeys(sb, mergeConfig.getMergeKeys());
+        sb.append(", ");
+        quoteIdentifierString(sb, STAGING_ROW_NUMBER_COLUMN);
+        sb.append(" DESC");
+        sb.append("),");
+        appendMergeFromS(sb, toTable, schema, mergeConfig);
 
         return sb.toString();
     }
 
+    // merge keys, and the row number if any of the keys is NULL so that such rows are distinct
+    private void appendDistinctKeys(StringBuilder sb, List<String> mergeKeys)
+    {
+        for (int i = 0; i < mergeKeys.size(); i++) {
+            quoteIdentifierString(sb, mergeKeys.get(i));
+            sb.append(", ");
+        }
+        sb.append("CASE WHEN ");
+        for (int i = 0; i < mergeKeys.size(); i++) {
+            if (i != 0) { sb.append(" OR "); }
+            quoteIdentifierString(sb, mergeKeys.get(i));
+            sb.append(" IS NULL");
+        }
+        sb.append(" THEN ");
+        quoteIdentifierString(sb, STAGING_ROW_NUMBER_COLUMN);
+        sb.append(" END");
+    }
+
     @Override
     protected String buildCollectMergeSql(List<TableIdentifier> fromTables, JdbcSchema schema, TableIdentifier toTable, MergeConfig mergeConfig) throws SQLException
     {
@@ -172,7 +410,7 @@ public class PostgreSQLOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
         }
         sb.append(") S");
         sb.append(" WHERE ");
@@ -216,7 +454,7 @@ public class PostgreSQLOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
         }
         sb.append(") S ");
         sb.append("WHERE NOT EXISTS (");
@@ -292,6 +530,183 @@ public class PostgreSQLOutputConnection
         return sb.toString();
     }
 
+    // an index belongs to the schema of its table
+    @Override
+    protected String buildDropIndexSql(TableIdentifier table, String indexName)
+    {
+        return "DROP INDEX " + quoteTableIdentifier(new TableIdentifier(null, table.getSchemaName(), indexName));
+    }
+
+    // Definitions are taken from pg_get_indexdef, so that access methods, operator classes, collations, INCLUDE columns,
+    // storage parameters and predicates are built again. Indexes defined otherwise (e.g. on partitioned tables) are skipped.
+    @Override
+    public List<JdbcIndex> getSecondaryIndexes(TableIdentifier table) throws SQLException
+    {
+        String sql = "SELECT ic.relname, x.indisunique, pg_get_indexdef(x.indexrelid),"
+                + " 'CREATE ' || CASE WHEN x.indisunique THEN 'UNIQUE ' ELSE '' END || 'INDEX ' || quote_ident(ic.relname)"
+                + " || ' ON ' || CAST(CAST(x.indrelid AS regclass) AS text) || ' '"
+                + " FROM pg_index x JOIN pg_class ic ON ic.oid = x.indexrelid"
+                + " WHERE x.indrelid = CAST(? AS regclass) AND NOT x.indisprimary AND x.indisvalid ORDER BY ic.relname";
+        List<JdbcIndex> indexes = new ArrayList<>();
+        Set<String> skippedNames = new HashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, quoteTableIdentifier(table));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String definition = rs.getString(3);
+                    String prefix = rs.getString(4);
+                    if (!definition.startsWith(prefix)) {
+                        skippedNames.add(rs.getString(1));
+                        continue;
+                    }
+                    indexes.add(new JdbcIndex(rs.getString(1), Collections.<String>emptyList(), Collections.<Boolean>emptyList(),
+                                rs.getBoolean(2), definition.substring(prefix.length())));
+                }
+            }
+        }
+        if (!skippedNames.isEmpty()) {
+            logger.warn("Indexes {} of table {} can't be built again by this plugin", skippedNames, table.getTableName());
+        }
+        return indexes;
+    }
+
+    // Index names are unique in a schema. The indexes are built on fromTable with temporary names while toTable has
+    // the names, and renamed in the transaction of the swap.
+    @Override
+    public void replaceTable(TableIdentifier fromTable, JdbcSchema schema, TableIdentifier toTable, List<JdbcIndex> indexes,
+            Optional<String> postSql) throws SQLException
+    {
+        List<JdbcIndex> temporaryIndexes = new ArrayList<>();
+        List<JdbcIndex> remainingIndexes = new ArrayList<>();
+        for (int i = 0; i < indexes.size(); i++) {
+            JdbcIndex index = indexes.get(i);
+            String temporaryName = String.format("embulk_index_%016x_%d", JdbcUtils.fnv1a64(fromTable.getTableName()), i);
+            JdbcIndex temporaryIndex = new JdbcIndex(temporaryName, index.getColumnNames(), index.getDescending(), index.isUnique(),
+                    index.getDefinition());
+            temporaryIndexes.add(temporaryIndex);
+            if (!indexExists(fromTable, temporaryName)) {
+                remainingIndexes.add(temporaryIndex);
+            }
+        }
+        createIndexes(fromTable, remainingIndexes);
+
+        Statement stmt = connection.createStatement();
+        try {
+            dropTableIfExists(stmt, toTable);
+
+            executeUpdate(stmt, buildRenameTableSql(fromTable, toTable));
+
+            for (int i = 0; i < indexes.size(); i++) {
+                TableIdentifier temporaryIndex = new TableIdentifier(null, fromTable.getSchemaName(), temporaryIndexes.get(i).getName());
+                executeUpdate(stmt, String.format("ALTER INDEX %s RENAME TO %s", quoteTableIdentifier(temporaryIndex),
+                            quoteIdentifierString(indexes.get(i).getName())));
+            }
+
+            if (postSql.isPresent()) {
+                execute(stmt, postSql.get());
+            }
+
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Sets memory and parallel workers of CREATE INDEX statements of the session.
+     */
+    public void setIndexBuildParameters(Optional<String> maintenanceWorkMem, Optional<Integer> maxParallelMaintenanceWorkers) throws SQLException
+    {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT set_config(?, ?, false)")) {
+            if (maintenanceWorkMem.isPresent()) {
+                stmt.setString(1, "maintenance_work_mem");
+                stmt.setString(2, maintenanceWorkMem.get());
+                stmt.executeQuery().close();
+            }
+            if (maxParallelMaintenanceWorkers.isPresent()) {
+                stmt.setString(1, "max_parallel_maintenance_workers");
+                stmt.setString(2, maxParallelMaintenanceWorkers.get().toString());
+                stmt.executeQuery().close();
+            }
+        }
+    }
+
+    // indexes of the partitioned table are built when the table is attached
+    @Override
+    public void createPartitionTable(TableIdentifier table, TableIdentifier partitionedTable, String partition, JdbcSchema schema,
+            Optional<String> tableConstraint, Optional<String> tableOption) throws SQLException
+    {
+        getPartitionBound(partitionedTable, partition);
+
+        Statement stmt = connection.createStatement();
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("CREATE TABLE ");
+            quoteTableIdentifier(sb, table);
+            sb.append(" (LIKE ");
+            quoteTableIdentifier(sb, new TableIdentifier(null, partitionedTable.getSchemaName(), partition));
+            sb.append(" INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+            executeUpdate(stmt, sb.toString());
+            commitIfNecessary(connection);
+        } catch (SQLException ex) {
+            throw safeRollback(connection, ex);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // the table takes the name and the bound of the partition, and what is defined on the partition itself
+    @Override
+    protected List<String> buildReplacePartitionSqls(TableIdentifier fromTable, TableIdentifier toTable, String partition) throws SQLException
+    {
+        TableIdentifier partitionTable = new TableIdentifier(null, toTable.getSchemaName(), partition);
+        String bound = getPartitionBound(toTable, partition);
+        List<String> sqls = new ArrayList<>();
+        sqls.add(String.format("ALTER TABLE %s DETACH PARTITION %s", quoteTableIdentifier(toTable), quoteTableIdentifier(partitionTable)));
+        sqls.add(String.format("DROP TABLE %s", quoteTableIdentifier(partitionTable)));
+        sqls.add(buildRenameTableSql(fromTable, partitionTable));
+        // read before the partition is dropped
+        sqls.addAll(getPartitionLocalSqls(partitionTable));
+        sqls.add(String.format("ALTER TABLE %s ATTACH PARTITION %s %s", quoteTableIdentifier(toTable), quoteTableIdentifier(partitionTable), bound));
+        return sqls;
+    }
+
+    private List<String> getPartitionLocalSqls(TableIdentifier partitionTable) throws SQLException
+    {
+        List<String> sqls = new ArrayList<>();
+        for (String query : PARTITION_LOCAL_SQL_QUERIES) {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setString(1, quoteTableIdentifier(partitionTable));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        sqls.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        return sqls;
+    }
+
+    // e.g. FOR VALUES FROM ('2020-01-01') TO ('2020-01-02')
+    private String getPartitionBound(TableIdentifier partitionedTable, String partition) throws SQLException
+    {
+        String sql = "SELECT pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+                + " WHERE i.inhparent = CAST(? AS regclass) AND c.relname = ?"
+                + " AND c.relnamespace = (SELECT p.relnamespace FROM pg_class p WHERE p.oid = i.inhparent)";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, quoteTableIdentifier(partitionedTable));
+            stmt.setString(2, partition);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException(String.format("Table %s has no partition '%s'.", quoteTableIdentifier(partitionedTable), partition));
+                }
+                return rs.getString(1);
+            }
+        }
+    }
+
     protected void setRole(String roleName) throws SQLException
     {
         // Same procedure with JdbcOutputConnection.setSearchPath
@@ -0,0 +1,284 @@
+package org.embulk.output.postgresql;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Keeps data of a batch until it's sent. Data is kept in chunks of memory from the factory, and
+ * spilled to a temporary file when the factory has no more memory within its limit. Spilled data is
+ * compressed with LZ4 unless it's compressed already.
+ * Data can be read repeatedly after close() until release().
+ */
+public class StagingBuffer
+        extends OutputStream
+{
+    static final int CHUNK_SIZE = 256 * 1024;
+    // free space of the directory is checked every time this size of data is spilled
+    private static final long FREE_SPACE_CHECK_INTERVAL = 8 * 1024 * 1024;
+
+    private final StagingBufferFactory factory;
+    private final File directory;
+    private final String prefix;
+    private final long minFreeSpace;
+    private final boolean compress;
+
+    private final List<ByteBuffer> chunks;
+    private File file;
+    private OutputStream fileOutput;
+    private long size;
+    private long uncheckedSize;
+    private boolean closed;
+
+    StagingBuffer(StagingBufferFactory factory, File directory, String prefix, long minFreeSpace, boolean compress)
+    {
+        this.factory = factory;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.minFreeSpace = minFreeSpace;
+        this.compress = compress;
+        this.chunks = new ArrayList<>();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Staging buffer is closed");
+        }
+        size += len;
+        while (len > 0 && fileOutput == null) {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = factory.acquireChunk();
+                if (chunk == null) {
+                    // memory of the factory is used up by this and other buffers
+                    spill();
+                    break;
+                }
+                chunks.add(chunk);
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            fileOutput.write(b, off, len);
+            uncheckedSize += len;
+            if (uncheckedSize >= FREE_SPACE_CHECK_INTERVAL) {
+                checkFreeSpace();
+            }
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        file = File.createTempFile(prefix, compress ? ".tmp.lz4" : ".tmp", directory);
+        checkFreeSpace();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+        if (compress) {
+            out = new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_256KB);
+        }
+        fileOutput = out;
+
+        byte[] bytes = new byte[CHUNK_SIZE];
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+            int n = chunk.remaining();
+            chunk.get(bytes, 0, n);
+            fileOutput.write(bytes, 0, n);
+        }
+        releaseChunks();
+    }
+
+    private void checkFreeSpace() throws IOException
+    {
+        uncheckedSize = 0;
+        long freeSpace = file.getParentFile().getUsableSpace();
+        if (freeSpace < minFreeSpace) {
+            throw new IOException(String.format("Free space of %s is %,d bytes, which is less than staging_min_free_space (%,d bytes)",
+                        file.getParent(), freeSpace, minFreeSpace));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (fileOutput != null) {
+            fileOutput.flush();
+        }
+    }
+
+    /**
+     * Finishes writing. Data can be read after this.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOutput != null) {
+            fileOutput.close();
+        }
+    }
+
+    /**
+     * Returns size of data written, which is uncompressed.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the temporary file if data is spilled and not compressed by this buffer, or null.
+     */
+    public File getFile()
+    {
+        return compress ? null : file;
+    }
+
+    public InputStream openInputStream() throws IOException
+    {
+        if (!closed) {
+            throw new IllegalStateException("Staging buffer is being written");
+        }
+        if (file == null) {
+            return new ChunksInputStream(chunks);
+        }
+        InputStream in = new FileInputStream(file);
+        if (compress) {
+            in = new LZ4FrameInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Returns the memory to the pool and deletes the temporary file.
+     */
+    public void release()
+    {
+        closed = true;
+        if (fileOutput != null) {
+            try {
+                fileOutput.close();
+            } catch (IOException ex) {
+                // ignore because the file is deleted
+            }
+            fileOutput = null;
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+        releaseChunks();
+    }
+
+    private void releaseChunks()
+    {
+        for (ByteBuffer chunk : chunks) {
+            factory.releaseChunk(chunk);
+        }
+        chunks.clear();
+    }
+
+    // reads chunks through read-only views, so that data can be read again for retry.
+    // mark() is supported so that a client can resend data without rereading the buffer.
+    private static class ChunksInputStream
+            extends InputStream
+    {
+        private final List<ByteBuffer> chunks;
+        private int index;
+        private ByteBuffer current;
+        private int markIndex;
+        private int markPosition;
+
+        ChunksInputStream(List<ByteBuffer> chunks)
+        {
+            this.chunks = new ArrayList<>();
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer view = chunk.asReadOnlyBuffer();
+                view.flip();
+                this.chunks.add(view);
+            }
+            this.index = 0;
+            this.current = this.chunks.isEmpty() ? null : this.chunks.get(0);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null && !current.hasRemaining()) {
+                index++;
+                current = index < chunks.size() ? chunks.get(index) : null;
+            }
+            if (current == null) {
+                return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+            markIndex = index;
+            markPosition = current == null ? 0 : current.position();
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            for (int i = markIndex + 1; i < chunks.size() && i <= index; i++) {
+                chunks.get(i).rewind();
+            }
+            index = markIndex;
+            current = index < chunks.size() ? chunks.get(index) : null;
+            if (current != null) {
+                current.position(markPosition);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.embulk.output.postgresql;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.embulk.config.ConfigException;
+
+/**
+ * Creates staging buffers of a task. Buffers share the memory limit of the factory, so that batches
+ * being sent in background threads don't keep more memory than the limit in total.
+ */
+public class StagingBufferFactory
+{
+    // writes every batch to an uncompressed file in the default temporary directory
+    public static final StagingBufferFactory TEMP_FILE = new StagingBufferFactory(null, 0, 0, false);
+
+    private final File directory;
+    private final long memoryLimit;
+    private final long minFreeSpace;
+    private final boolean compress;
+
+    // chunks released by buffers. they are counted in reservedMemory
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicLong reservedMemory = new AtomicLong();
+
+    /**
+     * @param directory directory of spilled files. null means the default temporary directory
+     * @param memoryLimit max size of memory kept by all buffers of this factory
+     * @param minFreeSpace free space of the directory required to spill
+     * @param compress true to compress spilled data with LZ4
+     */
+    public StagingBufferFactory(File directory, long memoryLimit, long minFreeSpace, boolean compress)
+    {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.minFreeSpace = minFreeSpace;
+        this.compress = compress;
+    }
+
+    /**
+     * Creates a factory from temp_dir, staging_memory_limit and staging_min_free_space options.
+     */
+    public static StagingBufferFactory fromOptions(Optional<String> tempDir, long memoryLimit, long minFreeSpace, boolean compress)
+    {
+        File directory = null;
+        if (tempDir.isPresent()) {
+            directory = new File(tempDir.get());
+            if (!directory.isDirectory()) {
+                throw new ConfigException(String.format("'temp_dir' must be an existing directory: %s", tempDir.get()));
+            }
+        }
+        if (memoryLimit < 0) {
+            throw new ConfigException(String.format("'staging_memory_limit' must not be negative: %d", memoryLimit));
+        }
+        if (minFreeSpace < 0) {
+            throw new ConfigException(String.format("'staging_min_free_space' must not be negative: %d", minFreeSpace));
+        }
+        return new StagingBufferFactory(directory, memoryLimit, minFreeSpace, compress);
+    }
+
+    public StagingBuffer newBuffer(String prefix)
+    {
+        return new StagingBuffer(this, directory, prefix, minFreeSpace, compress);
+    }
+
+    /**
+     * Returns an empty chunk, or null if memory of this factory is used up.
+     */
+    ByteBuffer acquireChunk()
+    {
+        ByteBuffer chunk = pool.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        while (true) {
+            long reserved = reservedMemory.get();
+            long size = Math.min(StagingBuffer.CHUNK_SIZE, memoryLimit - reserved);
+            if (size <= 0) {
+                return null;
+            }
+            if (reservedMemory.compareAndSet(reserved, reserved + size)) {
+                // heap memory, which is freed by GC even if a buffer isn't released
+                return ByteBuffer.allocate((int) size);
+            }
+        }
+    }
+
+    void releaseChunk(ByteBuffer chunk)
+    {
+        if (chunk.capacity() == StagingBuffer.CHUNK_SIZE) {
+            chunk.clear();
+            pool.offer(chunk);
+        } else {
+            // a smaller chunk at the end of the limit
+            reservedMemory.addAndGet(-chunk.capacity());
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigSource;
@@ -120,6 +121,15 @@ public class BasicTest
         assertThat(selectRecords(embulk, "test_merge"), is(readResource("test_merge_keys_expected.csv")));
     }
 
+    @Test
+    public void testMergeNullKeysInMultiRowStatement() throws Exception
+    {
+        // all rows are in one statement. each row with a NULL key is inserted
+        Path in1 = toPath("test_merge_null_keys.csv");
+        TestingEmbulk.RunResult result1 = embulk.runOutput(baseConfig.merge(loadYamlResource(embulk, "test_merge_null_keys.yml")), in1);
+        assertThat(selectRecords(embulk, "test_merge"), is(readResource("test_merge_null_keys_expected.csv")));
+    }
+
     @Test
     public void testMergeRule() throws Exception
     {
@@ -137,6 +147,17 @@ public class BasicTest
         //assertThat(result1.getConfigDiff(), is((ConfigDiff) loadYamlResource(embulk, "test_expected.diff")));
     }
 
+    @Test
+    public void testReplacePartition() throws Exception
+    {
+        Path in1 = toPath("test_merge.csv");
+        TestingEmbulk.RunResult result1 = embulk.runOutput(baseConfig.merge(loadYamlResource(embulk, "test_replace_partition.yml")), in1);
+        assertThat(selectRecords(embulk, "test_partition", Arrays.asList("id", "value1", "value2")), is(readResource("test_replace_partition_expected.csv")));
+        // the index of the partition is created again
+        assertThat(selectRecords(embulk, "pg_indexes WHERE tablename = 'test_partition_p1'", Arrays.asList("indexname")),
+                is(readResource("test_replace_partition_indexes_expected.csv")));
+    }
+
 
     private Path toPath(String fileName) throws URISyntaxException
     {
@@ -0,0 +1,185 @@
+package org.embulk.output.postgresql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CopyBinaryEncoderTest
+{
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+    @Test
+    public void testRows() throws IOException, SQLException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyBinaryEncoder encoder = new CopyBinaryEncoder(out, schema("int4", "int8", "bool", "text", "jsonb"));
+        encoder.writeLong(-2);
+        encoder.writeLong(1234567890123L);
+        encoder.writeBoolean(true);
+        encoder.writeString("a\u3042\0");
+        encoder.writeString("{}");
+        encoder.endRow();
+        encoder.writeNull();
+        encoder.writeNull();
+        encoder.writeNull();
+        encoder.writeNull();
+        encoder.writeNull();
+        encoder.endRow();
+        encoder.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        readHeader(in);
+        assertEquals(5, in.readShort());
+        assertEquals(4, in.readInt());
+        assertEquals(-2, in.readInt());
+        assertEquals(8, in.readInt());
+        assertEquals(1234567890123L, in.readLong());
+        assertEquals(1, in.readInt());
+        assertEquals(1, in.readByte());
+        assertArrayEquals("a\u3042".getBytes(StandardCharsets.UTF_8), readField(in));
+        assertArrayEquals(new byte[] {1, '{', '}'}, readField(in));
+        assertEquals(5, in.readShort());
+        for (int i = 0; i < 5; i++) {
+            assertNull(readField(in));
+        }
+        assertEquals(-1, in.readShort());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testEmpty() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CopyBinaryEncoder(out, schema("int4")).close();
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testNumeric() throws IOException, SQLException
+    {
+        assertArrayEquals(new short[] {3, 1, 0x0000, 3, 1, 2345, 6780}, numeric(new BigDecimal("12345.678")));
+        assertArrayEquals(new short[] {3, 1, 0x4000, 3, 1, 2345, 6780}, numeric(new BigDecimal("-12345.678")));
+        assertArrayEquals(new short[] {1, -2, 0x0000, 5, 1000}, numeric(new BigDecimal("0.00001")));
+        assertArrayEquals(new short[] {1, 1, 0x0000, 0, 10}, numeric(new BigDecimal("1E+5")));
+        assertArrayEquals(new short[] {0, 0, 0x0000, 2}, numeric(new BigDecimal("0.00")));
+    }
+
+    @Test
+    public void testDateTime() throws IOException, SQLException
+    {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("Asia/Tokyo"), Locale.ENGLISH);
+        // 2000-01-02 08:00:00.123456 +0900
+        Instant instant = Instant.parse("2000-01-01T23:00:00.123456789Z");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyBinaryEncoder encoder = new CopyBinaryEncoder(out, schema("timestamptz", "timestamp", "date"));
+        encoder.writeSqlTimestamp(instant, cal);
+        encoder.writeSqlTimestamp(instant, cal);
+        encoder.writeSqlDate(instant, cal);
+        encoder.endRow();
+        encoder.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        readHeader(in);
+        assertEquals(3, in.readShort());
+        assertEquals(8, in.readInt());
+        assertEquals(23 * 3600 * 1000000L + 123456L, in.readLong());
+        assertEquals(8, in.readInt());
+        assertEquals((24 + 8) * 3600 * 1000000L + 123456L, in.readLong());
+        assertEquals(4, in.readInt());
+        assertEquals(1, in.readInt());
+    }
+
+    @Test
+    public void testConversionErrors() throws IOException
+    {
+        CopyBinaryEncoder encoder = new CopyBinaryEncoder(new ByteArrayOutputStream(), schema("int2", "int4", "date"));
+        try {
+            encoder.writeLong(40000);
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("22003", ex.getSQLState());
+        }
+        encoder = new CopyBinaryEncoder(new ByteArrayOutputStream(), schema("int4", "date"));
+        try {
+            encoder.writeString("x");
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("22P02", ex.getSQLState());
+        }
+        encoder = new CopyBinaryEncoder(new ByteArrayOutputStream(), schema("date"));
+        try {
+            encoder.writeDouble(1.0);
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("42804", ex.getSQLState());
+        }
+    }
+
+    private static JdbcSchema schema(String... typeNames)
+    {
+        List<JdbcColumn> columns = new ArrayList<>();
+        for (int i = 0; i < typeNames.length; i++) {
+            columns.add(JdbcColumn.newGenericTypeColumn("c" + i, Types.OTHER, typeNames[i], 0, 0, false, false));
+        }
+        return new JdbcSchema(columns);
+    }
+
+    private static short[] numeric(BigDecimal v) throws IOException, SQLException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyBinaryEncoder encoder = new CopyBinaryEncoder(out, schema("numeric"));
+        encoder.writeBigDecimal(v);
+        encoder.endRow();
+        encoder.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        readHeader(in);
+        assertEquals(1, in.readShort());
+        short[] fields = new short[in.readInt() / 2];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readShort();
+        }
+        return fields;
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException
+    {
+        byte[] signature = new byte[SIGNATURE.length];
+        in.readFully(signature);
+        assertArrayEquals(SIGNATURE, signature);
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package org.embulk.output.postgresql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CopyTextEncoderTest
+{
+    @Test
+    public void testEscapePostgreSQL() throws IOException
+    {
+        assertEquals("a\\\\b\\nc\\td\\re", encode(CopyTextEncoder.Escape.POSTGRESQL, "a\\b\nc\td\re\0"));
+    }
+
+    @Test
+    public void testEscapeRedshift() throws IOException
+    {
+        assertEquals("a\\\\b\\\nc\\\td\re", encode(CopyTextEncoder.Escape.REDSHIFT, "a\\b\nc\td\re\0"));
+    }
+
+    @Test
+    public void testUtf8() throws IOException
+    {
+        String s = "abc\u00e9\u3042\ud83c\udf63";
+        assertEquals(s, encode(CopyTextEncoder.Escape.POSTGRESQL, s));
+        // unpaired surrogate
+        assertEquals("a?b", encode(CopyTextEncoder.Escape.POSTGRESQL, "a\ud83cb"));
+    }
+
+    @Test
+    public void testLongString() throws IOException
+    {
+        // exceeds the internal buffer
+        StringBuilder sb = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("\u3042\ud83c\udf63a\t");
+            expected.append("\u3042\ud83c\udf63a\\t");
+        }
+        assertEquals(expected.toString(), encode(CopyTextEncoder.Escape.POSTGRESQL, sb.toString()));
+    }
+
+    @Test
+    public void testNumbers() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyTextEncoder encoder = new CopyTextEncoder(out, CopyTextEncoder.Escape.POSTGRESQL);
+        long[] values = {0, 1, -1, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+        StringBuilder expected = new StringBuilder();
+        for (long value : values) {
+            encoder.writeLong(value);
+            encoder.writeByte((byte) ',');
+            expected.append(value).append(',');
+        }
+        encoder.writePadded(7, 2);
+        encoder.writePadded(123, 2);
+        encoder.writePadded(4567, 6);
+        expected.append("07").append("123").append("004567");
+        encoder.close();
+        assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private String encode(CopyTextEncoder.Escape escape, String s) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyTextEncoder encoder = new CopyTextEncoder(out, escape);
+        encoder.writeEscaped(s);
+        encoder.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,105 @@
+package org.embulk.output.postgresql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * CopyManager which keeps data of COPY in memory instead of sending it to a server.
+ * A COPY fails with a connection failure when the given number of writes is reached.
+ */
+public class FakeCopyManager
+        extends CopyManager
+{
+    private final List<String> copies;
+    private int writesBeforeFailure;
+    private ByteArrayOutputStream data;
+
+    /**
+     * @param copies data of COPY which are ended successfully
+     * @param writesBeforeFailure number of writes before the COPY fails, or negative not to fail
+     */
+    public FakeCopyManager(List<String> copies, int writesBeforeFailure) throws SQLException
+    {
+        super(newBaseConnection());
+        this.copies = copies;
+        this.writesBeforeFailure = writesBeforeFailure;
+    }
+
+    @Override
+    public long copyIn(String sql, InputStream in) throws SQLException, IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            if (writesBeforeFailure-- == 0) {
+                throw connectionFailure();
+            }
+            out.write(buffer, 0, n);
+        }
+        copies.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        return 0;
+    }
+
+    @Override
+    public CopyIn copyIn(String sql) throws SQLException
+    {
+        data = new ByteArrayOutputStream();
+        return (CopyIn) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {CopyIn.class}, new InvocationHandler() {
+            private boolean active = true;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                switch (method.getName()) {
+                case "writeToCopy":
+                    if (writesBeforeFailure-- == 0) {
+                        throw connectionFailure();
+                    }
+                    data.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                    return null;
+                case "endCopy":
+                    active = false;
+                    copies.add(new String(data.toByteArray(), StandardCharsets.UTF_8));
+                    return 0L;
+                case "cancelCopy":
+                    active = false;
+                    return null;
+                case "isActive":
+                    return active;
+                default:
+                    return null;
+                }
+            }
+        });
+    }
+
+    private static SQLException connectionFailure()
+    {
+        return new SQLException("An I/O error occurred while sending to the backend.", "08006");
+    }
+
+    private static BaseConnection newBaseConnection()
+    {
+        // CopyManager only keeps objects of the connection until it starts COPY
+        return (BaseConnection) Proxy.newProxyInstance(FakeCopyManager.class.getClassLoader(), new Class<?>[] {BaseConnection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,165 @@
+package org.embulk.output.postgresql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.output.jdbc.FakeConnection;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcOutputConnection;
+import org.embulk.output.jdbc.JdbcOutputConnector;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.postgresql.copy.CopyManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PostgreSQLCopyBatchInsertTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "int8", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("s", Types.VARCHAR, "text", 0, 0, false, false)));
+
+    private final FakeConnection fake = new FakeConnection();
+    private final List<String> copies = new ArrayList<>();
+    private int connections;
+
+    @Test
+    public void testRetryInMemory() throws IOException, SQLException
+    {
+        testRetry(new StagingBufferFactory(null, 1 << 20, 0, false));
+    }
+
+    @Test
+    public void testRetrySpilled() throws IOException, SQLException
+    {
+        // the buffer is spilled to a compressed file, which is read again for the retry
+        testRetry(new StagingBufferFactory(null, 1024, 0, true));
+    }
+
+    private void testRetry(StagingBufferFactory bufferFactory) throws IOException, SQLException
+    {
+        PostgreSQLCopyBatchInsert batch = new PostgreSQLCopyBatchInsert(newConnector(2), CopyFormat.TEXT, bufferFactory);
+        batch.prepare(new TableIdentifier(null, null, "t"), schema);
+        assertFalse(batch.needsRecordsForRetry());
+        addRows(batch, 0, 20000);
+        try {
+            batch.flush();
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("08006", ex.getSQLState());
+            assertTrue(batch.isRetryableException(ex));
+        }
+        assertTrue(copies.isEmpty());
+
+        // the kept buffer is sent again on a new connection without adding rows
+        batch.flush();
+        assertEquals(Arrays.asList(rows(0, 20000)), copies);
+        assertEquals(2, connections);
+        assertEquals(1, fake.getOpenConnections());
+
+        // the next batch uses the new connection
+        addRows(batch, 20000, 10);
+        batch.flush();
+        assertEquals(Arrays.asList(rows(0, 20000), rows(20000, 10)), copies);
+        assertEquals(2, connections);
+
+        batch.close();
+        assertEquals(0, fake.getOpenConnections());
+    }
+
+    @Test
+    public void testMemoryLimitOfBatches() throws IOException, SQLException
+    {
+        File directory = Files.createTempDirectory("embulk-output-postgresql-test").toFile();
+        try {
+            // batches of a task share one factory, and staging_memory_limit applies to all of them
+            StagingBufferFactory bufferFactory = new StagingBufferFactory(directory, 2 * StagingBuffer.CHUNK_SIZE, 0, false);
+            PostgreSQLCopyBatchInsert first = new PostgreSQLCopyBatchInsert(newConnector(-1), CopyFormat.TEXT, bufferFactory);
+            PostgreSQLCopyBatchInsert second = new PostgreSQLCopyBatchInsert(newConnector(-1), CopyFormat.TEXT, bufferFactory);
+            first.prepare(new TableIdentifier(null, null, "t"), schema);
+            second.prepare(new TableIdentifier(null, null, "t"), schema);
+            addRows(first, 0, 20000);
+            assertEquals(0, directory.listFiles().length);
+            // the first batch used the limit, so the second one spills
+            addRows(second, 20000, 20000);
+            assertEquals(1, directory.listFiles().length);
+
+            first.flush();
+            second.flush();
+            assertEquals(Arrays.asList(rows(0, 20000), rows(20000, 20000)), copies);
+            assertEquals(0, directory.listFiles().length);
+
+            // memory of the flushed batches is used again
+            addRows(first, 40000, 20000);
+            assertEquals(0, directory.listFiles().length);
+            first.flush();
+
+            first.close();
+            second.close();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testNotRetryable() throws IOException, SQLException
+    {
+        PostgreSQLCopyBatchInsert batch = new PostgreSQLCopyBatchInsert(newConnector(-1), CopyFormat.TEXT, StagingBufferFactory.TEMP_FILE);
+        assertFalse(batch.isRetryableException(new SQLException("duplicate key value violates unique constraint", "23505")));
+        assertFalse(batch.isRetryableException(new IOException("No space left on device")));
+        batch.close();
+    }
+
+    /**
+     * @param writesBeforeFailure writes before COPY of the first connection fails, or negative not to fail
+     */
+    private JdbcOutputConnector newConnector(final int writesBeforeFailure)
+    {
+        return new JdbcOutputConnector() {
+            @Override
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                final int failure = connections == 0 ? writesBeforeFailure : -1;
+                connections++;
+                return new PostgreSQLOutputConnection(fake.connection(), null, null) {
+                    @Override
+                    public CopyManager newCopyManager() throws SQLException
+                    {
+                        return new FakeCopyManager(copies, failure);
+                    }
+                };
+            }
+        };
+    }
+
+    private static void addRows(PostgreSQLCopyBatchInsert batch, int from, int rows) throws IOException, SQLException
+    {
+        for (int i = from; i < from + rows; i++) {
+            batch.setLong(i);
+            batch.setString("row\t" + i);
+            batch.add();
+        }
+    }
+
+    private static String rows(int from, int rows)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < from + rows; i++) {
+            sb.append(i).append("\trow\\t").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+}
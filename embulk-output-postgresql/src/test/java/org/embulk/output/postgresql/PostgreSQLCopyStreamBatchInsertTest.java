@@ -0,0 +1,122 @@
+package org.embulk.output.postgresql;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.output.jdbc.FakeConnection;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcOutputConnection;
+import org.embulk.output.jdbc.JdbcOutputConnector;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.postgresql.copy.CopyManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PostgreSQLCopyStreamBatchInsertTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.BIGINT, "int8", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("s", Types.VARCHAR, "text", 0, 0, false, false)));
+
+    private final FakeConnection fake = new FakeConnection();
+    private final List<String> copies = new ArrayList<>();
+    private int connections;
+
+    @Test
+    public void testCheckpoint() throws IOException, SQLException
+    {
+        PostgreSQLCopyStreamBatchInsert batch = new PostgreSQLCopyStreamBatchInsert(newConnector(-1), 3, CopyFormat.TEXT);
+        batch.prepare(new TableIdentifier(null, null, "t"), schema);
+        addRows(batch, 0, 2);
+        assertFalse(batch.isFull());
+        addRows(batch, 2, 1);
+        assertTrue(batch.isFull());
+        batch.flush();
+        addRows(batch, 3, 2);
+        batch.flush();
+        batch.close();
+
+        assertEquals(Arrays.asList(rows(0, 3), rows(3, 2)), copies);
+        assertEquals(1, connections);
+        assertEquals(0, fake.getOpenConnections());
+    }
+
+    @Test
+    public void testReplayAfterFailure() throws IOException, SQLException
+    {
+        // the COPY fails after some data is sent. it's larger than the buffer of the encoder
+        PostgreSQLCopyStreamBatchInsert batch = new PostgreSQLCopyStreamBatchInsert(newConnector(2), 1000000, CopyFormat.TEXT);
+        batch.prepare(new TableIdentifier(null, null, "t"), schema);
+        addRows(batch, 0, 20000);
+        try {
+            batch.flush();
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("08006", ex.getSQLState());
+            assertTrue(batch.isRetryableException(ex));
+        }
+        // the connection of the failed COPY is closed
+        assertEquals(0, fake.getOpenConnections());
+        assertTrue(copies.isEmpty());
+        assertTrue(batch.needsRecordsForRetry());
+
+        // the caller adds the saved records again, which are sent on a new connection
+        addRows(batch, 0, 20000);
+        batch.flush();
+        assertEquals(Arrays.asList(rows(0, 20000)), copies);
+        assertEquals(2, connections);
+        assertEquals(1, fake.getOpenConnections());
+
+        batch.close();
+        assertEquals(0, fake.getOpenConnections());
+    }
+
+    /**
+     * @param writesBeforeFailure writes before COPY of the first connection fails, or negative not to fail
+     */
+    private JdbcOutputConnector newConnector(final int writesBeforeFailure)
+    {
+        return new JdbcOutputConnector() {
+            @Override
+            public JdbcOutputConnection connect(boolean autoCommit) throws SQLException
+            {
+                final int failure = connections == 0 ? writesBeforeFailure : -1;
+                connections++;
+                return new PostgreSQLOutputConnection(fake.connection(), null, null) {
+                    @Override
+                    public CopyManager newCopyManager() throws SQLException
+                    {
+                        return new FakeCopyManager(copies, failure);
+                    }
+                };
+            }
+        };
+    }
+
+    private static void addRows(PostgreSQLCopyStreamBatchInsert batch, int from, int rows) throws IOException, SQLException
+    {
+        for (int i = from; i < from + rows; i++) {
+            batch.setLong(i);
+            batch.setString("row\t" + i);
+            batch.add();
+        }
+    }
+
+    private static String rows(int from, int rows)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < from + rows; i++) {
+            sb.append(i).append("\trow\\t").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package org.embulk.output.postgresql;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.embulk.output.jdbc.FakeConnection;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcIndex;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.JdbcUtils;
+import org.embulk.output.jdbc.MergeConfig;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PostgreSQLOutputConnectionTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("k1", Types.BIGINT, "int8", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("k2", Types.VARCHAR, "text", 0, 0, false, false),
+            JdbcColumn.newGenericTypeColumn("v", Types.VARCHAR, "text", 0, 0, false, false)));
+
+    @Test
+    public void testBuildStagingMergeSql() throws SQLException
+    {
+        PostgreSQLOutputConnection connection = new PostgreSQLOutputConnection(new FakeConnection().connection(), null, null);
+        String sql = connection.buildStagingMergeSql(new TableIdentifier(null, null, "staging"), schema,
+                new TableIdentifier(null, null, "t"), new MergeConfig(Arrays.asList("k1", "k2"), Optional.empty()));
+
+        // the last row of duplicate keys is merged, and rows with a NULL key are distinct by the row number
+        String distinctKeys = "\"k1\", \"k2\", CASE WHEN \"k1\" IS NULL OR \"k2\" IS NULL THEN \"embulk_row_number\" END";
+        assertEquals("WITH S AS ("
+                + "SELECT DISTINCT ON (" + distinctKeys + ") \"k1\", \"k2\", \"v\" FROM \"staging\""
+                + " ORDER BY " + distinctKeys + ", \"embulk_row_number\" DESC),"
+                + "updated AS (UPDATE \"t\" SET \"k1\" = S.\"k1\", \"k2\" = S.\"k2\", \"v\" = S.\"v\" FROM S"
+                + " WHERE \"t\".\"k1\" = S.\"k1\" AND \"t\".\"k2\" = S.\"k2\" RETURNING S.\"k1\", S.\"k2\") "
+                + "INSERT INTO \"t\" (\"k1\", \"k2\", \"v\") SELECT \"k1\", \"k2\", \"v\" FROM S "
+                + "WHERE NOT EXISTS (SELECT 1 FROM updated WHERE S.\"k1\" = updated.\"k1\" AND S.\"k2\" = updated.\"k2\") ",
+                sql);
+    }
+
+    @Test
+    public void testBuildMultiRowMergeSql() throws SQLException
+    {
+        PostgreSQLOutputConnection connection = new PostgreSQLOutputConnection(new FakeConnection().connection(), null, null);
+        String sql = connection.buildPreparedMergeSql(new TableIdentifier(null, null, "t"), schema,
+                new MergeConfig(Arrays.asList("k1", "k2"), Optional.empty()), 3);
+
+        // rows with a NULL key in the same statement are all inserted as well as single-row statements
+        String distinctKeys = "\"k1\", \"k2\", CASE WHEN \"k1\" IS NULL OR \"k2\" IS NULL THEN \"embulk_row_number\" END";
+        String values = "CAST(? AS int8), CAST(? AS text), CAST(? AS text)";
+        assertEquals("WITH S AS ("
+                + "SELECT DISTINCT ON (" + distinctKeys + ") \"k1\", \"k2\", \"v\""
+                + " FROM (VALUES (0, " + values + "), (1, " + values + "), (2, " + values + "))"
+                + " AS T(\"embulk_row_number\", \"k1\", \"k2\", \"v\")"
+                + " ORDER BY " + distinctKeys + ", \"embulk_row_number\" DESC),"
+                + "updated AS (UPDATE \"t\" SET \"k1\" = S.\"k1\", \"k2\" = S.\"k2\", \"v\" = S.\"v\" FROM S"
+                + " WHERE \"t\".\"k1\" = S.\"k1\" AND \"t\".\"k2\" = S.\"k2\" RETURNING S.\"k1\", S.\"k2\") "
+                + "INSERT INTO \"t\" (\"k1\", \"k2\", \"v\") SELECT \"k1\", \"k2\", \"v\" FROM S "
+                + "WHERE NOT EXISTS (SELECT 1 FROM updated WHERE S.\"k1\" = updated.\"k1\" AND S.\"k2\" = updated.\"k2\") ",
+                sql);
+    }
+
+    @Test
+    public void testBuildReplacePartitionSqls() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection()
+                .result("relpartbound", Collections.singletonList("bound"), new Object[] {"FOR VALUES FROM (1) TO (10)"})
+                .result("pg_get_constraintdef", Collections.singletonList("sql"),
+                        new Object[] {"ALTER TABLE s.p1 ADD CONSTRAINT p1_pkey PRIMARY KEY (k1)"})
+                .result("pg_get_indexdef", Collections.singletonList("sql"),
+                        new Object[] {"CREATE INDEX p1_v_idx ON s.p1 USING gin (v gin_trgm_ops)"})
+                .result("pg_get_triggerdef", Collections.singletonList("sql"),
+                        new Object[] {"CREATE TRIGGER p1_trigger BEFORE INSERT ON s.p1 FOR EACH ROW EXECUTE FUNCTION f()"})
+                .result("aclexplode", Collections.singletonList("sql"),
+                        new Object[] {"GRANT SELECT ON s.p1 TO reader"}, new Object[] {"GRANT INSERT ON s.p1 TO PUBLIC"})
+                .result("reloptions", Collections.singletonList("sql"), new Object[] {"ALTER TABLE s.p1 SET (fillfactor=70)"});
+        PostgreSQLOutputConnection connection = new PostgreSQLOutputConnection(fake.connection(), null, null);
+        assertEquals(Arrays.asList(
+                "ALTER TABLE \"s\".\"t\" DETACH PARTITION \"s\".\"p1\"",
+                "DROP TABLE \"s\".\"p1\"",
+                "ALTER TABLE \"s\".\"tmp\" RENAME TO \"p1\"",
+                "ALTER TABLE s.p1 ADD CONSTRAINT p1_pkey PRIMARY KEY (k1)",
+                "CREATE INDEX p1_v_idx ON s.p1 USING gin (v gin_trgm_ops)",
+                "CREATE TRIGGER p1_trigger BEFORE INSERT ON s.p1 FOR EACH ROW EXECUTE FUNCTION f()",
+                "GRANT SELECT ON s.p1 TO reader",
+                "GRANT INSERT ON s.p1 TO PUBLIC",
+                "ALTER TABLE s.p1 SET (fillfactor=70)",
+                "ALTER TABLE \"s\".\"t\" ATTACH PARTITION \"s\".\"p1\" FOR VALUES FROM (1) TO (10)"),
+                connection.buildReplacePartitionSqls(new TableIdentifier(null, "s", "tmp"), new TableIdentifier(null, "s", "t"), "p1"));
+    }
+
+    @Test
+    public void testGetSecondaryIndexes() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection().result("pg_get_indexdef", Arrays.asList("relname", "indisunique", "def", "prefix"),
+                new Object[] {"t_v_idx", false, "CREATE INDEX t_v_idx ON s.t USING gin (v gin_trgm_ops) WHERE (k1 > 0)",
+                    "CREATE INDEX t_v_idx ON s.t "},
+                new Object[] {"t_k2_key", true, "CREATE UNIQUE INDEX t_k2_key ON s.t USING btree (k2 COLLATE \"C\") INCLUDE (v)",
+                    "CREATE UNIQUE INDEX t_k2_key ON s.t "},
+                // an index of a partitioned table
+                new Object[] {"t_k1_idx", false, "CREATE INDEX t_k1_idx ON ONLY s.t USING btree (k1)", "CREATE INDEX t_k1_idx ON s.t "});
+        PostgreSQLOutputConnection connection = new PostgreSQLOutputConnection(fake.connection(), null, null);
+        TableIdentifier table = new TableIdentifier(null, "s", "t");
+        List<JdbcIndex> indexes = connection.getSecondaryIndexes(table);
+
+        fake.clearLog();
+        connection.createIndexes(table, indexes);
+        assertEquals(Arrays.asList(
+                    "CREATE INDEX \"t_v_idx\" ON \"s\".\"t\" USING gin (v gin_trgm_ops) WHERE (k1 > 0)",
+                    "CREATE UNIQUE INDEX \"t_k2_key\" ON \"s\".\"t\" USING btree (k2 COLLATE \"C\") INCLUDE (v)"),
+                fake.getLog());
+    }
+
+    @Test
+    public void testReplaceTableWithIndexes() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection();
+        PostgreSQLOutputConnection connection = new PostgreSQLOutputConnection(fake.connection(), null, null) {
+            @Override
+            public boolean indexExists(TableIdentifier table, String indexName)
+            {
+                return false;
+            }
+        };
+        TableIdentifier fromTable = new TableIdentifier(null, "s", "tmp");
+        connection.replaceTable(fromTable, schema, new TableIdentifier(null, "s", "t"),
+                Arrays.asList(new JdbcIndex("t_k2_key", Collections.<String>emptyList(), Collections.<Boolean>emptyList(), true,
+                            "USING btree (k2)")), Optional.<String>empty());
+
+        // built with a temporary name while the target table has the index, and renamed with the swap
+        String temporaryName = String.format("embulk_index_%016x_0", JdbcUtils.fnv1a64("tmp"));
+        assertEquals(Arrays.asList(
+                    "CREATE UNIQUE INDEX \"" + temporaryName + "\" ON \"s\".\"tmp\" USING btree (k2)",
+                    "DROP TABLE IF EXISTS \"s\".\"t\"",
+                    "ALTER TABLE \"s\".\"tmp\" RENAME TO \"t\"",
+                    "ALTER INDEX \"s\".\"" + temporaryName + "\" RENAME TO \"t_k2_key\""),
+                fake.getLog());
+    }
+}
@@ -0,0 +1,162 @@
+package org.embulk.output.postgresql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StagingBufferTest
+{
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException
+    {
+        directory = Files.createTempDirectory("embulk-output-postgresql-test").toFile();
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testMemory() throws IOException
+    {
+        byte[] data = randomBytes(1000000);
+        StagingBuffer buffer = new StagingBufferFactory(directory, data.length, 0, true).newBuffer("test-");
+        write(buffer, data);
+        buffer.close();
+
+        assertEquals(data.length, buffer.getSize());
+        assertEquals(0, directory.listFiles().length);
+        // can be read again for retry
+        assertArrayEquals(data, read(buffer));
+        assertArrayEquals(data, read(buffer));
+        buffer.release();
+    }
+
+    @Test
+    public void testSpill() throws IOException
+    {
+        byte[] data = randomBytes(1000000);
+        StagingBuffer buffer = new StagingBufferFactory(directory, 300000, 0, true).newBuffer("test-");
+        write(buffer, data);
+        buffer.close();
+
+        assertEquals(data.length, buffer.getSize());
+        assertEquals(1, directory.listFiles().length);
+        assertNull(buffer.getFile());  // compressed
+        assertArrayEquals(data, read(buffer));
+        assertArrayEquals(data, read(buffer));
+        buffer.release();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testSharedMemoryLimit() throws IOException
+    {
+        byte[] data = randomBytes(600000);
+        StagingBufferFactory factory = new StagingBufferFactory(directory, 1000000, 0, true);
+        StagingBuffer first = factory.newBuffer("test-");
+        write(first, data);
+        first.close();
+        // the second buffer gets the rest of the limit, and spills
+        StagingBuffer second = factory.newBuffer("test-");
+        write(second, data);
+        second.close();
+        assertEquals(1, directory.listFiles().length);
+        assertArrayEquals(data, read(first));
+        assertArrayEquals(data, read(second));
+
+        // memory of a released buffer is used again
+        first.release();
+        second.release();
+        assertEquals(0, directory.listFiles().length);
+        StagingBuffer third = factory.newBuffer("test-");
+        write(third, randomBytes(1000000));
+        third.close();
+        assertEquals(0, directory.listFiles().length);
+        third.release();
+    }
+
+    @Test
+    public void testSpillUncompressed() throws IOException
+    {
+        byte[] data = randomBytes(1000);
+        StagingBuffer buffer = StagingBufferFactory.TEMP_FILE.newBuffer("embulk-output-postgresql-test-");
+        write(buffer, data);
+        buffer.close();
+
+        File file = buffer.getFile();
+        assertNotNull(file);
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        buffer.release();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testMinFreeSpace() throws IOException
+    {
+        StagingBuffer buffer = new StagingBufferFactory(directory, 10, Long.MAX_VALUE, true).newBuffer("test-");
+        buffer.write(new byte[10]);
+        try {
+            buffer.write(new byte[1]);
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("staging_min_free_space"));
+        }
+        buffer.release();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static byte[] randomBytes(int size)
+    {
+        // compressible data
+        byte[] bytes = new byte[size];
+        Random random = new Random(1);
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return bytes;
+    }
+
+    private static void write(StagingBuffer buffer, byte[] data) throws IOException
+    {
+        // writes in pieces not aligned with chunks
+        for (int i = 0; i < data.length; i += 777) {
+            buffer.write(data, i, Math.min(777, data.length - i));
+        }
+    }
+
+    private static byte[] read(StagingBuffer buffer) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = buffer.openInputStream()) {
+            byte[] bytes = new byte[4096];
+            int n;
+            while ((n = in.read(bytes)) >= 0) {
+                out.write(bytes, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -55,3 +55,18 @@ insert into test_merge values(11, 'A1', 'B1');
 insert into test_merge values(12, 'A2', 'B2');
 insert into test_merge values(13, 'A3', 'B3');
 
+
+drop table if exists test_partition;
+
+create table test_partition (
+    id     int,
+    value1 varchar(8),
+    value2 varchar(8)
+) partition by range (id);
+
+create table test_partition_p1 partition of test_partition for values from (10) to (20);
+create table test_partition_p2 partition of test_partition for values from (20) to (30);
+create index test_partition_p1_value1 on test_partition_p1 (value1);
+
+insert into test_partition values(11, 'A1', 'B1');
+insert into test_partition values(21, 'A2', 'B2');
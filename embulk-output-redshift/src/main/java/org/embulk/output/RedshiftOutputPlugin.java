@@ -3,9 +3,11 @@ package org.embulk.output;
 import java.util.Properties;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
@@ -21,6 +23,8 @@ import org.embulk.output.jdbc.JdbcOutputConnector;
 import org.embulk.output.jdbc.MergeConfig;
 import org.embulk.output.jdbc.TableIdentifier;
 import org.embulk.output.jdbc.Ssl;
+import org.embulk.output.postgresql.PostgreSQLOutputConnection;
+import org.embulk.output.postgresql.StagingBufferFactory;
 import org.embulk.output.redshift.RedshiftOutputConnector;
 import org.embulk.output.redshift.RedshiftCopyBatchInsert;
 import org.embulk.util.config.Config;
@@ -98,6 +102,14 @@ public class RedshiftOutputPlugin
         @Config("copy_aws_account_id")
         @ConfigDefault("null")
         public Optional<String> getCopyAwsAccountId();
+
+        @Config("staging_memory_limit")
+        @ConfigDefault("33554432")
+        public long getStagingMemoryLimit();
+
+        @Config("staging_min_free_space")
+        @ConfigDefault("104857600")
+        public long getStagingMinFreeSpace();
     }
 
     @Override
@@ -200,17 +212,52 @@ public class RedshiftOutputPlugin
         return namePrefix.toLowerCase();
     }
 
+    @Override
+    protected List<BatchInsert> newBatchInserts(PluginTask task, Optional<MergeConfig> mergeConfig, int count) throws IOException, SQLException
+    {
+        // staging_memory_limit is shared by all batches of the task
+        StagingBufferFactory bufferFactory = newStagingBufferFactory((RedshiftPluginTask) task);
+        List<BatchInsert> batches = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                batches.add(newBatchInsert(task, mergeConfig, bufferFactory));
+            }
+        } catch (IOException | SQLException | RuntimeException ex) {
+            closeBatches(batches);
+            throw ex;
+        }
+        return batches;
+    }
+
     @Override
     protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig) throws IOException, SQLException
+    {
+        return newBatchInsert(task, mergeConfig, newStagingBufferFactory((RedshiftPluginTask) task));
+    }
+
+    private BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig, StagingBufferFactory bufferFactory) throws IOException, SQLException
     {
         if (mergeConfig.isPresent()) {
             throw new UnsupportedOperationException("Redshift output plugin doesn't support 'merge_direct' mode. Use 'merge' mode instead.");
         }
         RedshiftPluginTask t = (RedshiftPluginTask) task;
         setAWSCredentialsBackwardCompatibility(t);
-        return new RedshiftCopyBatchInsert(getConnector(task, true),
+        return new RedshiftCopyBatchInsert(getConnector(task, true), bufferFactory,
                 getAWSCredentialsProvider(t), t.getS3Bucket(), t.getS3KeyPrefix(),
                 t.getIamUserName(), t.getDeleteS3TempFile(), t.getMaxS3UploadThreadsPerTask().orElse(null),
                 t.getCopyIamRoleName().orElse(null), t.getCopyAwsAccountId().orElse(null));
     }
+
+    private StagingBufferFactory newStagingBufferFactory(RedshiftPluginTask t)
+    {
+        // data is gzipped for COPY of Redshift already
+        return StagingBufferFactory.fromOptions(t.getTempDir(), t.getStagingMemoryLimit(), t.getStagingMinFreeSpace(), false);
+    }
+
+    @Override
+    protected boolean isRetryableException(String sqlState, int errorCode)
+    {
+        // the transaction was rolled back, so it can be run again
+        return PostgreSQLOutputConnection.isTransactionRollback(sqlState);
+    }
 }
@@ -1,10 +1,9 @@
 package org.embulk.output.redshift;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -21,6 +20,9 @@ import org.embulk.output.jdbc.JdbcOutputConnector;
 import org.embulk.output.jdbc.JdbcSchema;
 import org.embulk.output.jdbc.TableIdentifier;
 import org.embulk.output.postgresql.AbstractPostgreSQLCopyBatchInsert;
+import org.embulk.output.postgresql.CopyTextEncoder;
+import org.embulk.output.postgresql.StagingBuffer;
+import org.embulk.output.postgresql.StagingBufferFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +35,7 @@ import com.amazonaws.auth.policy.Statement;
 import com.amazonaws.auth.policy.Statement.Effect;
 import com.amazonaws.auth.policy.actions.S3Actions;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Region;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
 import com.amazonaws.services.securitytoken.model.Credentials;
@@ -61,16 +64,16 @@ public class RedshiftCopyBatchInsert
     private String copySqlBeforeFrom = null;
     private long totalRows;
     private int fileCount;
-    private List<Future<Void>> uploadAndCopyFutures;
+    private List<CopyTask> copyTasks;
 
     public static final String COPY_AFTER_FROM = "GZIP DELIMITER '\\t' NULL '\\\\N' ESCAPE TRUNCATECOLUMNS ACCEPTINVCHARS STATUPDATE OFF COMPUPDATE OFF";
 
-    public RedshiftCopyBatchInsert(JdbcOutputConnector connector,
+    public RedshiftCopyBatchInsert(JdbcOutputConnector connector, StagingBufferFactory bufferFactory,
             AWSCredentialsProvider credentialsProvider, String s3BucketName, String s3KeyPrefix,
             String iamReaderUserName, boolean deleteS3TempFile, Integer maxS3UploadThreadsPerTask,
             String copyIamRoleName, String copyAwsAccountId) throws IOException, SQLException
     {
-        super();
+        super(CopyTextEncoder.Escape.REDSHIFT, bufferFactory);
         this.connector = connector;
         this.s3BucketName = s3BucketName;
         if (s3KeyPrefix.isEmpty() || s3KeyPrefix.endsWith("/")) {
@@ -86,7 +89,7 @@ public class RedshiftCopyBatchInsert
         this.executorService = maxS3UploadThreadsPerTask != null
                 ? Executors.newFixedThreadPool(maxS3UploadThreadsPerTask)
                 : Executors.newCachedThreadPool();
-        this.uploadAndCopyFutures = new ArrayList<Future<Void>>();
+        this.copyTasks = new ArrayList<CopyTask>();
 
         String s3RegionName = null;
         try {
@@ -125,51 +128,38 @@ public class RedshiftCopyBatchInsert
     }
 
     @Override
-    protected BufferedWriter openWriter(File newFile) throws IOException
+    protected OutputStream openOutputStream(OutputStream bufferOutput) throws IOException
     {
         // Redshift supports gzip
-        return new BufferedWriter(
-                new OutputStreamWriter(
-                    new GZIPOutputStream(new FileOutputStream(newFile)),
-                    FILE_CHARSET)
-                );
+        return new GZIPOutputStream(bufferOutput);
     }
 
     @Override
     public void flush() throws IOException, SQLException
     {
-        File file = closeCurrentFile();  // flush buffered data in writer
+        StagingBuffer buffer = closeCurrentBuffer();  // flush buffered data in writer
 
         String s3KeyName = s3KeyPrefix + UUID.randomUUID().toString();
-        UploadTask uploadTask = new UploadTask(file, batchRows, s3KeyName);
+        UploadTask uploadTask = new UploadTask(buffer, batchRows, s3KeyName);
         Future<Void> uploadFuture = executorService.submit(uploadTask);
-        uploadAndCopyFutures.add(uploadFuture);
 
         CopyTask copyTask = new CopyTask(uploadFuture, s3KeyName);
-        uploadAndCopyFutures.add(executorService.submit(copyTask));
+        copyTask.future = executorService.submit(copyTask);
+        copyTasks.add(copyTask);
 
         fileCount++;
         totalRows += batchRows;
         batchRows = 0;
 
-        openNewFile();
+        openNewBuffer();
     }
 
     @Override
     public void finish() throws IOException, SQLException
     {
-        for (Future<Void> uploadAndCopyFuture : uploadAndCopyFutures) {
-            try {
-                uploadAndCopyFuture.get();
-
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            } catch (ExecutionException e) {
-                if (e.getCause() instanceof SQLException) {
-                    throw (SQLException)e.getCause();
-                }
-                throw new RuntimeException(e);
-            }
+        // a failed COPY is run again when finish() is retried
+        for (CopyTask copyTask : copyTasks) {
+            copyTask.await();
         }
 
         logger.info("Loaded {} files.", fileCount);
@@ -183,31 +173,21 @@ public class RedshiftCopyBatchInsert
             executorService.awaitTermination(60, TimeUnit.SECONDS);
         } catch (InterruptedException e) {}
 
+        if (deleteS3TempFile) {
+            for (CopyTask copyTask : copyTasks) {
+                if (copyTask.failed) {
+                    s3.deleteObject(s3BucketName, copyTask.s3KeyName);
+                }
+            }
+        }
         s3.shutdown();
-        closeCurrentFile().delete();
+        closeCurrentBuffer().release();
         if (connection != null) {
             connection.close();
             connection = null;
         }
     }
 
-    // Add \ before \, \n, \t
-    // Remove \0
-    @Override
-    protected String escape(char c)
-    {
-        switch (c) {
-        case '\n':
-            return "\\\n";
-        case '\t':
-            return "\\\t";
-        case '\r':
-            return String.valueOf(c);
-        default:
-            return super.escape(c);
-        }
-    }
-
     private BasicSessionCredentials generateReaderSessionCredentials(String s3KeyName)
     {
         Policy policy = new Policy()
@@ -244,29 +224,38 @@ public class RedshiftCopyBatchInsert
 
     private class UploadTask implements Callable<Void>
     {
-        private final File file;
+        private final StagingBuffer buffer;
         private final int batchRows;
         private final String s3KeyName;
 
-        public UploadTask(File file, int batchRows, String s3KeyName)
+        public UploadTask(StagingBuffer buffer, int batchRows, String s3KeyName)
         {
-            this.file = file;
+            this.buffer = buffer;
             this.batchRows = batchRows;
             this.s3KeyName = s3KeyName;
         }
 
-        public Void call() {
+        public Void call() throws IOException {
             logger.info(String.format("Uploading file id %s to S3 (%,d bytes %,d rows)",
-                        s3KeyName, file.length(), batchRows));
+                        s3KeyName, buffer.getSize(), batchRows));
 
             try {
                 long startTime = System.currentTimeMillis();
-                s3.putObject(s3BucketName, s3KeyName, file);
+                File file = buffer.getFile();
+                if (file != null) {
+                    s3.putObject(s3BucketName, s3KeyName, file);
+                } else {
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(buffer.getSize());
+                    try (InputStream in = buffer.openInputStream()) {
+                        s3.putObject(s3BucketName, s3KeyName, in, metadata);
+                    }
+                }
                 double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
 
                 logger.info(String.format("Uploaded file %s (%.2f seconds)", s3KeyName, seconds));
             } finally {
-                file.delete();
+                buffer.release();
             }
 
             return null;
@@ -277,6 +266,9 @@ public class RedshiftCopyBatchInsert
     {
         private final Future<Void> uploadFuture;
         private final String s3KeyName;
+        private Future<Void> future;
+        private boolean failed;  // the file is kept in S3 to run COPY again
+        private boolean done;
 
         public CopyTask(Future<Void> uploadFuture, String s3KeyName)
         {
@@ -285,6 +277,7 @@ public class RedshiftCopyBatchInsert
         }
 
         public Void call() throws SQLException, InterruptedException, ExecutionException {
+            boolean keepFile = false;
             try {
                 uploadFuture.get();
 
@@ -305,8 +298,13 @@ public class RedshiftCopyBatchInsert
                 } finally {
                     con.close();
                 }
+                failed = false;
+            } catch (SQLException ex) {
+                failed = true;
+                keepFile = true;
+                throw ex;
             } finally {
-                if (deleteS3TempFile) {
+                if (deleteS3TempFile && !keepFile) {
                     s3.deleteObject(s3BucketName, s3KeyName);
                 }
             }
@@ -314,6 +312,30 @@ public class RedshiftCopyBatchInsert
             return null;
         }
 
+        public void await() throws SQLException
+        {
+            if (done) {
+                return;
+            }
+            try {
+                if (failed) {
+                    // uploaded already. runs COPY again on a new connection
+                    call();
+                } else {
+                    future.get();
+                }
+                done = true;
+
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException)e.getCause();
+                }
+                throw new RuntimeException(e);
+            }
+        }
+
 
 
         private String buildCopySQL(BasicSessionCredentials creds)
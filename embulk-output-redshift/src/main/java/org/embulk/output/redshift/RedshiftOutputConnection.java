@@ -5,12 +5,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 import org.embulk.output.jdbc.JdbcColumn;
 import org.embulk.output.jdbc.JdbcOutputConnection;
 import org.embulk.output.jdbc.JdbcSchema;
 import org.embulk.output.jdbc.MergeConfig;
 import org.embulk.output.jdbc.TableIdentifier;
+import org.embulk.output.jdbc.TableKeyRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +27,55 @@ public class RedshiftOutputConnection
         super(connection, schemaName);
     }
 
+    @Override
+    protected boolean supportsTransactionalDdl()
+    {
+        return true;
+    }
+
+    @Override
+    protected boolean supportsMultiTableDrop()
+    {
+        return true;
+    }
+
+    // LOCK of Redshift has no lock modes, and always locks exclusively
+    @Override
+    protected Optional<String> buildLockTableSql(TableIdentifier table)
+    {
+        return Optional.of("LOCK " + quoteTableIdentifier(table));
+    }
+
+    @Override
+    protected boolean supportsIndexes()
+    {
+        return false;
+    }
+
+    @Override
+    protected Optional<String> buildAnalyzeTableSql(TableIdentifier table)
+    {
+        return Optional.of("ANALYZE " + quoteTableIdentifier(table));
+    }
+
+    @Override
+    protected boolean supportsAppendTable()
+    {
+        return true;
+    }
+
+    // ALTER TABLE APPEND moves the storage of the source table, and can't run in a transaction block
+    @Override
+    protected String buildAppendTableSql(TableIdentifier fromTable, TableIdentifier toTable)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ALTER TABLE ");
+        quoteTableIdentifier(sb, toTable);
+        sb.append(" APPEND FROM ");
+        quoteTableIdentifier(sb, fromTable);
+        return sb.toString();
+    }
+
     // ALTER TABLE cannot change the schema of a table
     //
     // Standard JDBC:
@@ -117,7 +168,7 @@ public class RedshiftOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
         }
         sb.append(" ) S WHERE ");
 
@@ -148,9 +199,10 @@ public class RedshiftOutputConnection
                 quoteIdentifierString(sb, schema.getColumnName(j));
             }
             sb.append(" FROM ");
-            quoteTableIdentifier(sb, fromTables.get(i));
+            appendCollectSource(sb, fromTables.get(i));
 
-            sb.append(" WHERE (");
+            // a key range already has WHERE
+            sb.append(fromTables.get(i) instanceof TableKeyRange ? " AND (" : " WHERE (");
             for (int k = 0; k < mergeKeys.size(); k++) {
                 if (k != 0) { sb.append(", "); }
                 quoteTableIdentifier(sb, fromTables.get(i));
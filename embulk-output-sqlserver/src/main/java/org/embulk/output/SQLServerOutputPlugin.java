@@ -138,7 +138,7 @@ public class SQLServerOutputPlugin
         return new Features()
             .setMaxTableNameLength(128)
             .setSupportedModes(Collections.unmodifiableSet(new HashSet<Mode>(Arrays.asList(
-                    Mode.INSERT, Mode.INSERT_DIRECT, Mode.MERGE, Mode.TRUNCATE_INSERT, Mode.REPLACE))))
+                    Mode.INSERT, Mode.INSERT_DIRECT, Mode.MERGE, Mode.TRUNCATE_INSERT, Mode.REPLACE, Mode.REPLACE_PARTITION))))
             .setIgnoreMergeKeys(false);
     }
 
@@ -299,7 +299,7 @@ public class SQLServerOutputPlugin
                     sqlServerTask.getDatabase().get(), sqlServerTask.getUser(), sqlServerTask.getPassword(),
                     sqlServerTask.getNativeDriverName(), sqlServerTask.getDatabaseEncoding());
         }
-        return new StandardBatchInsert(getConnector(task, true), mergeConfig);
+        return new StandardBatchInsert(getConnector(task, true), mergeConfig, getRowsPerStatement(task));
     }
 
     @Override
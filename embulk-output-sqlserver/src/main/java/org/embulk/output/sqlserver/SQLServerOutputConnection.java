@@ -1,11 +1,23 @@
 package org.embulk.output.sqlserver;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcIndex;
 import org.embulk.output.jdbc.JdbcOutputConnection;
 import org.embulk.output.jdbc.JdbcSchema;
 import org.embulk.output.jdbc.MergeConfig;
@@ -20,6 +32,20 @@ public class SQLServerOutputConnection
         super(connection, schemaName);
     }
 
+    @Override
+    protected int getMaxPreparedStatementParameters()
+    {
+        // SQL Server accepts at most 2100 parameters, and the driver may add some of its own
+        return 2000;
+    }
+
+    @Override
+    protected int getMaxRowsPerStatement()
+    {
+        // the maximum number of row value expressions in VALUES
+        return 1000;
+    }
+
     @Override
     protected String buildRenameTableSql(TableIdentifier fromTable, TableIdentifier toTable)
     {
@@ -37,6 +63,129 @@ public class SQLServerOutputConnection
         return sb.toString();
     }
 
+    // Nonclustered rowstore indexes are read from sys.indexes with their included columns and filters. Clustered,
+    // columnstore, XML and spatial indexes are skipped.
+    @Override
+    public List<JdbcIndex> getSecondaryIndexes(TableIdentifier table) throws SQLException
+    {
+        String sql = "SELECT i.name AS index_name, i.type, i.is_unique, i.filter_definition, c.name AS column_name,"
+                + " ic.is_descending_key, ic.is_included_column"
+                + " FROM sys.indexes i JOIN sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id"
+                + " JOIN sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id"
+                + " WHERE i.object_id = OBJECT_ID(?) AND i.type > 0 AND i.is_primary_key = 0 AND i.is_hypothetical = 0"
+                + " ORDER BY i.name, ic.is_included_column, ic.key_ordinal, ic.index_column_id";
+        Map<String, List<String>> keyColumns = new LinkedHashMap<>();
+        Map<String, List<String>> includedColumns = new HashMap<>();
+        Map<String, String> filters = new HashMap<>();
+        Map<String, Boolean> unique = new HashMap<>();
+        Set<String> skippedNames = new LinkedHashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, quoteTableIdentifier(table));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String indexName = rs.getString("index_name");
+                    if (rs.getInt("type") != 2) {
+                        skippedNames.add(indexName);
+                        continue;
+                    }
+                    if (!keyColumns.containsKey(indexName)) {
+                        keyColumns.put(indexName, new ArrayList<String>());
+                        includedColumns.put(indexName, new ArrayList<String>());
+                        filters.put(indexName, rs.getString("filter_definition"));
+                        unique.put(indexName, rs.getBoolean("is_unique"));
+                    }
+                    String column = quoteIdentifierString(rs.getString("column_name"));
+                    if (rs.getBoolean("is_included_column")) {
+                        includedColumns.get(indexName).add(column);
+                    } else {
+                        keyColumns.get(indexName).add(rs.getBoolean("is_descending_key") ? column + " DESC" : column);
+                    }
+                }
+            }
+        }
+
+        List<JdbcIndex> indexes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : keyColumns.entrySet()) {
+            String indexName = entry.getKey();
+            StringBuilder sb = new StringBuilder();
+            sb.append("(").append(String.join(", ", entry.getValue())).append(")");
+            if (!includedColumns.get(indexName).isEmpty()) {
+                sb.append(" INCLUDE (").append(String.join(", ", includedColumns.get(indexName))).append(")");
+            }
+            if (filters.get(indexName) != null) {
+                sb.append(" WHERE ").append(filters.get(indexName));
+            }
+            indexes.add(new JdbcIndex(indexName, Collections.<String>emptyList(), Collections.<Boolean>emptyList(),
+                        unique.get(indexName), sb.toString()));
+        }
+        if (!skippedNames.isEmpty()) {
+            logger.warn("Indexes {} of table {} can't be built again by this plugin", skippedNames, table.getTableName());
+        }
+        return indexes;
+    }
+
+    // sorts in tempdb instead of the filegroup of the table
+    @Override
+    protected String buildCreateIndexSql(TableIdentifier table, JdbcIndex index)
+    {
+        return super.buildCreateIndexSql(table, index) + " WITH (SORT_IN_TEMPDB = ON)";
+    }
+
+    // SWITCH needs the table on the filegroup of the partition, which is used unless create_table_option is given.
+    // A partition bounded by a partition function needs a CHECK constraint of its range, which is checked before loading.
+    @Override
+    public void createPartitionTable(TableIdentifier table, TableIdentifier partitionedTable, String partition, JdbcSchema schema,
+            Optional<String> tableConstraint, Optional<String> tableOption) throws SQLException
+    {
+        int partitionNumber = parsePartitionNumber(partition);
+        String sql = "SELECT ds.name, pf.fanout FROM sys.indexes i"
+                + " JOIN sys.partition_schemes ps ON ps.data_space_id = i.data_space_id"
+                + " JOIN sys.partition_functions pf ON pf.function_id = ps.function_id"
+                + " JOIN sys.destination_data_spaces dds ON dds.partition_scheme_id = ps.data_space_id AND dds.destination_id = ?"
+                + " JOIN sys.data_spaces ds ON ds.data_space_id = dds.data_space_id"
+                + " WHERE i.object_id = OBJECT_ID(?) AND i.index_id IN (0, 1)";
+        String filegroup;
+        int fanout;
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, partitionNumber);
+            stmt.setString(2, quoteTableIdentifier(partitionedTable));
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException(String.format("Table %s has no partition %d.", quoteTableIdentifier(partitionedTable), partitionNumber));
+                }
+                filegroup = rs.getString(1);
+                fanout = rs.getInt(2);
+            }
+        }
+        if (fanout > 1 && !(tableConstraint.isPresent() && tableConstraint.get().toUpperCase(Locale.ENGLISH).contains("CHECK"))) {
+            throw new SQLException(String.format("'create_table_constraint' needs a CHECK constraint of the range of partition %d of %s.",
+                        partitionNumber, quoteTableIdentifier(partitionedTable)));
+        }
+        if (!tableOption.isPresent()) {
+            tableOption = Optional.of("ON " + quoteIdentifierString(filegroup));
+        }
+        super.createPartitionTable(table, partitionedTable, partition, schema, tableConstraint, tableOption);
+    }
+
+    // the partition is emptied, and fromTable is switched in. fromTable must have the same indexes as the partition
+    @Override
+    protected List<String> buildReplacePartitionSqls(TableIdentifier fromTable, TableIdentifier toTable, String partition) throws SQLException
+    {
+        int partitionNumber = parsePartitionNumber(partition);
+        return Arrays.asList(
+                String.format("TRUNCATE TABLE %s WITH (PARTITIONS (%d))", quoteTableIdentifier(toTable), partitionNumber),
+                String.format("ALTER TABLE %s SWITCH TO %s PARTITION %d", quoteTableIdentifier(fromTable), quoteTableIdentifier(toTable), partitionNumber));
+    }
+
+    private static int parsePartitionNumber(String partition) throws SQLException
+    {
+        try {
+            return Integer.parseInt(partition);
+        } catch (NumberFormatException ex) {
+            throw new SQLException(String.format("'partition' must be a partition number: %s", partition), ex);
+        }
+    }
+
     @Override
     protected String buildColumnTypeName(JdbcColumn c)
     {
@@ -73,6 +222,34 @@ public class SQLServerOutputConnection
         return false;
     }
 
+    @Override
+    protected boolean supportsTransactionalDdl()
+    {
+        return true;
+    }
+
+    @Override
+    protected boolean supportsMultiTableDrop()
+    {
+        return true;
+    }
+
+    @Override
+    protected Optional<String> buildAnalyzeTableSql(TableIdentifier table)
+    {
+        return Optional.of("UPDATE STATISTICS " + quoteTableIdentifier(table));
+    }
+
+    // an application lock owned by the transaction. sp_getapplock returns a negative status instead of raising an error
+    @Override
+    protected Optional<String> buildLockTableSql(TableIdentifier table)
+    {
+        String resource = ("embulk_collect_" + quoteTableIdentifier(table)).replace("'", "''");
+        return Optional.of("DECLARE @result INT; "
+                + "EXEC @result = sp_getapplock @Resource = N'" + resource + "', @LockMode = 'Exclusive', @LockOwner = 'Transaction', @LockTimeout = -1; "
+                + "IF @result < 0 RAISERROR('Cannot lock " + resource.replace("%", "%%") + "', 16, 1)");
+    }
+
     private static final String[] SIMPLE_TYPE_NAMES = {
         "BIT", "FLOAT",
     };
@@ -100,7 +277,7 @@ public class SQLServerOutputConnection
             sb.append(" SELECT ");
             sb.append(buildColumns(schema, ""));
             sb.append(" FROM ");
-            sb.append(quoteTableIdentifier(fromTables.get(i)));
+            appendCollectSource(sb, fromTables.get(i));
         }
         sb.append(") AS S");
         sb.append(" ON (");
@@ -160,6 +160,15 @@ public class BasicTest
         //assertThat(result1.getConfigDiff(), is((ConfigDiff) loadYamlResource(embulk, "test_expected.diff")));
     }
 
+    @Test
+    public void testReplacePartition() throws Exception
+    {
+        Path in1 = toPath("test_replace_partition.csv");
+        TestingEmbulk.RunResult result1 = embulk.runOutput(baseConfig.merge(loadYamlResource(embulk, "test_replace_partition.yml")), in1);
+        // only rows of the partition 2 (10 < ITEM1 <= 20) are replaced
+        assertThat(selectRecords(embulk, "TEST_PARTITION"), is(readResource("test_replace_partition_expected.csv")));
+    }
+
     @Test
     public void testNativeInsertDirect() throws Exception
     {
@@ -0,0 +1,93 @@
+package org.embulk.output.sqlserver;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.embulk.output.jdbc.FakeConnection;
+import org.embulk.output.jdbc.JdbcColumn;
+import org.embulk.output.jdbc.JdbcIndex;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SQLServerOutputConnectionTest
+{
+    private final JdbcSchema schema = new JdbcSchema(Arrays.asList(
+            JdbcColumn.newGenericTypeColumn("id", Types.INTEGER, "INT", 0, 0, false, false)));
+
+    @Test
+    public void testBuildLockTableSql() throws SQLException
+    {
+        SQLServerOutputConnection connection = new SQLServerOutputConnection(new FakeConnection().connection(), null);
+        // the lock is released by the commit, and a failure to lock raises an error
+        assertEquals(Optional.of("DECLARE @result INT; "
+                    + "EXEC @result = sp_getapplock @Resource = N'embulk_collect_\"dbo\".\"it''s\"', @LockMode = 'Exclusive', "
+                    + "@LockOwner = 'Transaction', @LockTimeout = -1; "
+                    + "IF @result < 0 RAISERROR('Cannot lock embulk_collect_\"dbo\".\"it''s\"', 16, 1)"),
+                connection.buildLockTableSql(new TableIdentifier(null, "dbo", "it's")));
+    }
+
+    @Test
+    public void testCreatePartitionTable() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection().result("sys.partition_schemes", Arrays.asList("name", "fanout"), new Object[] {"fg2", 4});
+        SQLServerOutputConnection connection = new SQLServerOutputConnection(fake.connection(), null);
+
+        // created on the filegroup of the partition
+        connection.createPartitionTable(new TableIdentifier(null, "dbo", "tmp"), new TableIdentifier(null, "dbo", "t"), "2", schema,
+                Optional.of("CHECK (id >= 10 AND id < 20)"), Optional.<String>empty());
+        assertEquals("CREATE TABLE \"dbo\".\"tmp\" (\"id\" INT, CHECK (id >= 10 AND id < 20)) ON \"fg2\"", fake.getLog().get(1));
+
+        // the range of the partition needs a CHECK constraint
+        try {
+            connection.createPartitionTable(new TableIdentifier(null, "dbo", "tmp"), new TableIdentifier(null, "dbo", "t"), "2", schema,
+                    Optional.<String>empty(), Optional.<String>empty());
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("'create_table_constraint' needs a CHECK constraint of the range of partition 2 of \"dbo\".\"t\".", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testCreatePartitionTableNotPartitioned() throws SQLException
+    {
+        SQLServerOutputConnection connection = new SQLServerOutputConnection(new FakeConnection().connection(), null);
+        try {
+            connection.createPartitionTable(new TableIdentifier(null, "dbo", "tmp"), new TableIdentifier(null, "dbo", "t"), "2", schema,
+                    Optional.of("CHECK (id >= 10 AND id < 20)"), Optional.<String>empty());
+            fail();
+        } catch (SQLException ex) {
+            assertEquals("Table \"dbo\".\"t\" has no partition 2.", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testGetSecondaryIndexes() throws SQLException
+    {
+        FakeConnection fake = new FakeConnection().result("sys.indexes",
+                Arrays.asList("index_name", "type", "is_unique", "filter_definition", "column_name", "is_descending_key", "is_included_column"),
+                new Object[] {"IX_A", 2, true, "([b]>(0))", "a", false, false},
+                new Object[] {"IX_A", 2, true, "([b]>(0))", "b", true, false},
+                new Object[] {"IX_A", 2, true, "([b]>(0))", "c", false, true},
+                new Object[] {"IX_B", 2, false, null, "b", false, false},
+                new Object[] {"IX_CLUSTERED", 1, false, null, "a", false, false});
+        SQLServerOutputConnection connection = new SQLServerOutputConnection(fake.connection(), null);
+        TableIdentifier table = new TableIdentifier(null, "dbo", "t");
+        List<JdbcIndex> indexes = connection.getSecondaryIndexes(table);
+
+        fake.clearLog();
+        connection.createIndexes(table, indexes);
+        // included columns and filters are kept, and the clustered index is skipped
+        assertEquals(Arrays.asList(
+                    "CREATE UNIQUE INDEX \"IX_A\" ON \"dbo\".\"t\" (\"a\", \"b\" DESC) INCLUDE (\"c\") WHERE ([b]>(0))"
+                        + " WITH (SORT_IN_TEMPDB = ON)",
+                    "CREATE INDEX \"IX_B\" ON \"dbo\".\"t\" (\"b\") WITH (SORT_IN_TEMPDB = ON)"),
+                fake.getLog());
+    }
+}
@@ -89,4 +89,18 @@ CREATE TABLE TEST_MAX (
     C3 NVARCHAR(4000),
     C4 NVARCHAR(MAX),
     PRIMARY KEY (ID)
-);
\ No newline at end of file
+);
+
+DROP TABLE TEST_PARTITION;
+DROP PARTITION SCHEME TEST_PARTITION_SCHEME;
+DROP PARTITION FUNCTION TEST_PARTITION_FUNCTION;
+CREATE PARTITION FUNCTION TEST_PARTITION_FUNCTION (INT) AS RANGE LEFT FOR VALUES (10, 20);
+CREATE PARTITION SCHEME TEST_PARTITION_SCHEME AS PARTITION TEST_PARTITION_FUNCTION ALL TO ([PRIMARY]);
+CREATE TABLE TEST_PARTITION (
+    ITEM1 INT,
+    ITEM2 INT,
+    ITEM3 VARCHAR(4)
+) ON TEST_PARTITION_SCHEME (ITEM1);
+INSERT INTO TEST_PARTITION VALUES(5, 20, 'A');
+INSERT INTO TEST_PARTITION VALUES(15, 21, 'B');
+INSERT INTO TEST_PARTITION VALUES(25, 20, 'C');